@@ -113,6 +113,18 @@ public class DataLookup {
         return deviceSerials;
     }
 
+    /**
+     * Device management entry for a serial number, or null if AMiE does not list it.
+     */
+    public static JsonNode getDevice(String deviceSerial) {
+        JsonNode data = Session.getAmieApiClient().sendRequest(GET, "devicemgt/?start=0&length=50&search=" + deviceSerial).getJsonObjectBody();
+        if (data == null || !data.has("data")) return null;
+        for (JsonNode device : data.get("data")) {
+            if (device.path("serial").asText().equalsIgnoreCase(deviceSerial)) return device;
+        }
+        return null;
+    }
+
     public static List<String> getDeviceCallIds(String deviceSerial) {
         ArrayList<String> callIds = new ArrayList<>();
         JsonNode data = Session.getAmieApiClient().sendRequest(GET, "/devices/" + deviceSerial + "/call-histories?start=0&length=50&sortField=&sortOrder=").getJsonObjectBody();
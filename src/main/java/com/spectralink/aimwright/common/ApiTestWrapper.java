@@ -1,6 +1,11 @@
 package com.spectralink.aimwright.common;
 
 import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.injection.BrokerRateLimiter;
+import com.spectralink.aimwright.injection.BufferFlusher;
+import com.spectralink.aimwright.injection.MqttConnectionPool;
+import com.spectralink.aimwright.injection.MqttTimings;
+import com.spectralink.aimwright.injection.TrafficRecorder;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 import org.testng.ITestResult;
@@ -62,6 +67,16 @@ public class ApiTestWrapper {
         // Override in subclass if needed
     }
 
+    @AfterSuite(alwaysRun = true)
+    public void shutdownFramework() {
+        BufferFlusher.shutdown();
+        BrokerRateLimiter.shutdown();
+        MqttConnectionPool.shutdown();
+        MqttTimings.logSummary();
+        TrafficRecorder.stop();
+        log.info("Aimwright API test framework shutdown complete");
+    }
+
     /**
      * Converts TestNG result status to string.
      */
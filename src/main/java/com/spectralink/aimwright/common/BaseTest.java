@@ -4,6 +4,11 @@ import ch.qos.logback.classic.Logger;
 import com.microsoft.playwright.*;
 import com.microsoft.playwright.assertions.PlaywrightAssertions;
 import com.microsoft.playwright.options.LoadState;
+import com.spectralink.aimwright.injection.BrokerRateLimiter;
+import com.spectralink.aimwright.injection.BufferFlusher;
+import com.spectralink.aimwright.injection.MqttConnectionPool;
+import com.spectralink.aimwright.injection.MqttTimings;
+import com.spectralink.aimwright.injection.TrafficRecorder;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 import org.testng.ITestResult;
@@ -148,6 +153,11 @@ public class BaseTest {
 
     @AfterSuite(alwaysRun = true)
     public void shutdownFramework() {
+        BufferFlusher.shutdown();
+        BrokerRateLimiter.shutdown();
+        MqttConnectionPool.shutdown();
+        MqttTimings.logSummary();
+        TrafficRecorder.stop();
         if (browser != null) {
             browser.close();
         }
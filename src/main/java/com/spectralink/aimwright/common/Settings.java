@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
@@ -75,6 +76,16 @@ public class Settings {
         }
     }
 
+    private static Long getLong(String key, Long defaultValue) {
+        String value = get(key);
+        try {
+            return value != null ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            log.warn("Invalid long value for key {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
     private static List<String> getList(String key) {
         String value = get(key);
         if (value == null || value.isEmpty()) {
@@ -266,6 +277,112 @@ public class Settings {
         return get("run.gateway.address");
     }
 
+    /**
+     * Broker endpoints ({@code host} or {@code host:port}) to shard devices across; falls back to
+     * {@code run.gateway.address} when {@code run.gateway.addresses} is empty.
+     */
+    public static List<String> getGatewayAddresses() {
+        List<String> addresses = new ArrayList<>();
+        for (String address : getList("run.gateway.addresses")) {
+            if (!address.isBlank()) addresses.add(address.trim());
+        }
+        if (addresses.isEmpty() && getGatewayAddress() != null && !getGatewayAddress().isEmpty()) {
+            addresses.add(getGatewayAddress());
+        }
+        return addresses;
+    }
+
+    public static Integer getGatewayVirtualNodes() {
+        return getInteger("run.gateway.virtual.nodes", 128);
+    }
+
+    public static Long getGatewayRetryMs() {
+        return getLong("run.gateway.retry.ms", 5000L);
+    }
+
+    public static Integer getMqttQos() {
+        return getInteger("run.mqtt.qos", 2);
+    }
+
+    public static Integer getMqttMaxInflight() {
+        return getInteger("run.mqtt.max.inflight", 10);
+    }
+
+    public static Integer getMqttConnections() {
+        return getInteger("run.mqtt.connections", 4);
+    }
+
+    public static Integer getMqttRateMessages() {
+        return getInteger("run.mqtt.rate.messages", 0);
+    }
+
+    public static Long getMqttRateBytes() {
+        return getLong("run.mqtt.rate.bytes", 0L);
+    }
+
+    public static Integer getMqttQueueCapacity() {
+        return getInteger("run.mqtt.queue.capacity", 10000);
+    }
+
+    public static String getMqttQueueOverflow() {
+        String value = get("run.mqtt.queue.overflow");
+        return value != null ? value : "BLOCK";
+    }
+
+    public static Integer getMqttInboundCapacity() {
+        return getInteger("run.mqtt.inbound.capacity", 10000);
+    }
+
+    public static String getMqttInboundOverflow() {
+        String value = get("run.mqtt.inbound.overflow");
+        return value != null ? value : "DROP_OLDEST";
+    }
+
+    public static String getMqttRecordFile() {
+        return get("run.mqtt.record.file");
+    }
+
+    public static Boolean isMqttTimingsEnabled() {
+        return getBoolean("run.mqtt.timings", true);
+    }
+
+    public static String getMqttCodec() {
+        String value = get("run.mqtt.codec");
+        return value != null && !value.isBlank() ? value : "json";
+    }
+
+    public static Integer getBufferFlushRecords() {
+        return getInteger("run.buffer.flush.records", 50);
+    }
+
+    public static Long getBufferFlushAgeMs() {
+        return getLong("run.buffer.flush.age.ms", 2000L);
+    }
+
+    public static Long getLatencyPollInitialMs() {
+        return getLong("run.latency.poll.initial.ms", 250L);
+    }
+
+    public static Long getLatencyPollMaxMs() {
+        return getLong("run.latency.poll.max.ms", 5000L);
+    }
+
+    public static Long getLatencyTimeoutMs() {
+        return getLong("run.latency.timeout.ms", 120000L);
+    }
+
+    public static Integer getNetworkCandidateCount() {
+        return getInteger("run.network.candidates", 8);
+    }
+
+    public static Integer getRoamHysteresisDb() {
+        return getInteger("run.mobility.hysteresis.db", 6);
+    }
+
+    public static Long getSimulationSeed() {
+        return getLong("run.simulation.seed", 0L);
+    }
+
     public static String getTargetBattery() {
         return get("run.target.battery");
     }
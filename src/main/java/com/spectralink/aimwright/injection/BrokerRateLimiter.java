@@ -0,0 +1,294 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Per-broker publish rate limit shared by every {@link MqttAgent} connected to the same broker.
+ *
+ * Limits are a messages/sec and a bytes/sec token bucket; a zero rate means unlimited. Asynchronous
+ * publishes wait in a bounded queue that a single dispatcher thread drains at the permitted rate. When the
+ * queue is full the publisher either blocks until there is room ({@link OverflowPolicy#BLOCK}) or the
+ * message is dropped and its future fails ({@link OverflowPolicy#SHED}). Blocking sends skip the queue
+ * and wait for tokens on the caller's thread.
+ *
+ * Defaults come from the {@code run.mqtt.rate.*} and {@code run.mqtt.queue.*} settings; use
+ * {@link #configure} to set limits for a particular broker.
+ */
+public class BrokerRateLimiter {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(BrokerRateLimiter.class.getName());
+    private static final Map<String, BrokerRateLimiter> limiters = new ConcurrentHashMap<>();
+
+    public enum OverflowPolicy {
+        BLOCK,
+        SHED
+    }
+
+    private final String brokerAddress;
+    private final TokenBucket messageBucket;
+    private final TokenBucket byteBucket;
+    private final BlockingQueue<Pending> queue;
+    private final OverflowPolicy policy;
+    private Thread dispatcher;
+    private volatile boolean closed = false;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    private BrokerRateLimiter(String brokerAddress, double messagesPerSecond, double bytesPerSecond, int queueCapacity, OverflowPolicy policy) {
+        this.brokerAddress = brokerAddress;
+        this.messageBucket = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond) : null;
+        this.byteBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.policy = policy;
+    }
+
+    /**
+     * Returns the limiter for a broker, creating it from the run settings on first use.
+     */
+    public static BrokerRateLimiter forBroker(String brokerAddress) {
+        return limiters.computeIfAbsent(String.valueOf(brokerAddress), address -> new BrokerRateLimiter(address,
+                Settings.getMqttRateMessages(), Settings.getMqttRateBytes(), Settings.getMqttQueueCapacity(), getDefaultPolicy()));
+    }
+
+    /**
+     * Replaces the limits for a broker. Messages already queued on the previous limiter are still sent.
+     *
+     * @param messagesPerSecond Message rate, 0 for unlimited
+     * @param bytesPerSecond Payload byte rate, 0 for unlimited
+     * @param queueCapacity Maximum number of queued asynchronous publishes
+     * @param policy What to do when the queue is full
+     */
+    public static BrokerRateLimiter configure(String brokerAddress, double messagesPerSecond, double bytesPerSecond,
+                                              int queueCapacity, OverflowPolicy policy) {
+        BrokerRateLimiter limiter = new BrokerRateLimiter(String.valueOf(brokerAddress), messagesPerSecond, bytesPerSecond, queueCapacity, policy);
+        BrokerRateLimiter previous = limiters.put(limiter.brokerAddress, limiter);
+        if (previous != null) {
+            previous.drainAndStop();
+        }
+        log.info("Rate limit for broker {}: {}", brokerAddress, limiter.describeLimits());
+        return limiter;
+    }
+
+    /**
+     * True when either a message or a byte rate applies to this broker.
+     */
+    public boolean isLimited() {
+        return messageBucket != null || byteBucket != null;
+    }
+
+    /**
+     * Queues a publish to run once the rate allows it.
+     *
+     * @param bytes Payload size counted against the bytes/sec limit
+     * @param publish Starts the actual publish and returns its completion
+     * @return Future completed with the publish result, or failed if the message was shed
+     */
+    public CompletableFuture<Void> submit(int bytes, Supplier<CompletableFuture<Void>> publish) {
+        submitted.incrementAndGet();
+        Pending pending = new Pending(bytes, publish);
+        if (closed) {
+            return reject(pending, cancelled, new CancellationException("Rate limiter for broker " + brokerAddress + " is closed"));
+        }
+        startDispatcher();
+        if (policy == OverflowPolicy.SHED) {
+            if (!queue.offer(pending)) {
+                return reject(pending, shed, new RejectedExecutionException("Publish queue for broker " + brokerAddress + " is full"));
+            }
+        } else {
+            try {
+                queue.put(pending);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                pending.result.completeExceptionally(ie);
+            }
+        }
+        return pending.result;
+    }
+
+    /**
+     * Waits on the caller's thread until a message of the given size may be sent.
+     */
+    public void acquire(int bytes) {
+        long waitNanos = 0;
+        if (messageBucket != null) waitNanos = Math.max(waitNanos, messageBucket.reserve(1));
+        if (byteBucket != null) waitNanos = Math.max(waitNanos, byteBucket.reserve(bytes));
+        if (waitNanos > 0) {
+            throttled.incrementAndGet();
+            throttledNanos.addAndGet(waitNanos);
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String getBrokerAddress() {
+        return brokerAddress;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * Number of messages that had to wait for the rate limit before being sent.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Number of messages dropped because the queue was full.
+     */
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * Number of messages failed because the limiter was closed or stopped before they were sent.
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    public double getThrottledMillis() {
+        return throttledNanos.get() / 1e6;
+    }
+
+    public String getSummary() {
+        return String.format("Broker %s rate limit (%s): %d submitted, %d published, %d throttled (%.0f ms waiting), %d shed, %d cancelled",
+                brokerAddress, describeLimits(), submitted.get(), published.get(), throttled.get(), getThrottledMillis(), shed.get(), cancelled.get());
+    }
+
+    /**
+     * Logs every limiter that was used, sends what is queued and stops the dispatchers.
+     */
+    public static void shutdown() {
+        List<BrokerRateLimiter> active = new ArrayList<>(limiters.values());
+        limiters.clear();
+        for (BrokerRateLimiter limiter : active) {
+            limiter.drainAndStop();
+            if (limiter.isLimited() && limiter.submitted.get() > 0) {
+                log.info(limiter.getSummary());
+            }
+        }
+    }
+
+    private String describeLimits() {
+        String messages = messageBucket != null ? Math.round(messageBucket.getRate()) + " msg/s" : "unlimited msg/s";
+        String bytes = byteBucket != null ? Math.round(byteBucket.getRate()) + " B/s" : "unlimited B/s";
+        return messages + ", " + bytes + ", queue " + (queue.size() + queue.remainingCapacity()) + " " + policy;
+    }
+
+    private synchronized void startDispatcher() {
+        if (dispatcher != null) return;
+        dispatcher = new Thread(this::dispatch, "mqtt-rate-limit-" + brokerAddress);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private void dispatch() {
+        while (!closed || !queue.isEmpty()) {
+            Pending pending;
+            try {
+                pending = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                break;
+            }
+            if (pending == null) continue;
+            acquire(pending.bytes);
+            try {
+                pending.publish.get().whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        published.incrementAndGet();
+                        pending.result.complete(null);
+                    } else {
+                        pending.result.completeExceptionally(error);
+                    }
+                });
+            } catch (RuntimeException re) {
+                log.error("Failed to publish to MQTT server {}: {}", brokerAddress, re.getMessage());
+                pending.result.completeExceptionally(re);
+            }
+        }
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            cancelled.incrementAndGet();
+            pending.result.completeExceptionally(new CancellationException("Rate limiter for broker " + brokerAddress + " was stopped"));
+        }
+    }
+
+    private void drainAndStop() {
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = dispatcher;
+        }
+        if (thread == null) return;
+        try {
+            thread.join(30000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    private CompletableFuture<Void> reject(Pending pending, AtomicLong counter, RuntimeException reason) {
+        counter.incrementAndGet();
+        pending.result.completeExceptionally(reason);
+        return pending.result;
+    }
+
+    private static OverflowPolicy getDefaultPolicy() {
+        try {
+            return OverflowPolicy.valueOf(Settings.getMqttQueueOverflow().trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            log.error("Invalid MQTT queue overflow policy {}, using BLOCK", Settings.getMqttQueueOverflow());
+            return OverflowPolicy.BLOCK;
+        }
+    }
+
+    private static class Pending {
+        final int bytes;
+        final Supplier<CompletableFuture<Void>> publish;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Pending(int bytes, Supplier<CompletableFuture<Void>> publish) {
+            this.bytes = bytes;
+            this.publish = publish;
+        }
+    }
+}
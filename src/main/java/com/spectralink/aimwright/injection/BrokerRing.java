@@ -0,0 +1,153 @@
+package com.spectralink.aimwright.injection;
+
+import com.spectralink.aimwright.common.Settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring that assigns device serial numbers to broker endpoints.
+ *
+ * Each endpoint ({@code host} or {@code host:port}) is placed on the ring at a number of virtual nodes, and a
+ * serial belongs to the first node clockwise from its own hash. Adding an endpoint therefore only moves the
+ * serials that land on its new nodes, about 1/N of the fleet, and removing one only moves its own serials to
+ * their next endpoint clockwise, which is also where {@link #route} fails over to. The ring is immutable;
+ * {@link #with} and {@link #without} return a new one.
+ */
+public class BrokerRing {
+    private final List<String> endpoints;
+    private final int virtualNodes;
+    private final long[] hashes;
+    private final int[] owners;
+
+    /**
+     * @param endpoints Broker endpoints, {@code host} or {@code host:port}
+     * @param virtualNodes Ring positions per endpoint; more evens out the share each endpoint gets
+     */
+    public BrokerRing(List<String> endpoints, int virtualNodes) {
+        if (endpoints.isEmpty()) throw new IllegalArgumentException("A broker ring needs at least one endpoint");
+        if (virtualNodes < 1) throw new IllegalArgumentException("Invalid virtual node count " + virtualNodes);
+        if (endpoints.stream().distinct().count() != endpoints.size()) {
+            throw new IllegalArgumentException("Duplicate broker endpoint in " + endpoints);
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.virtualNodes = virtualNodes;
+        int size = endpoints.size() * virtualNodes;
+        long[] points = new long[size];
+        for (int owner = 0; owner < endpoints.size(); owner++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                points[owner * virtualNodes + node] = hash(endpoints.get(owner) + "#" + node);
+            }
+        }
+        Integer[] order = new Integer[size];
+        for (int index = 0; index < size; index++) {
+            order[index] = index;
+        }
+        Arrays.sort(order, Comparator.comparingLong(point -> points[point]));
+        hashes = new long[size];
+        owners = new int[size];
+        for (int index = 0; index < size; index++) {
+            hashes[index] = points[order[index]];
+            owners[index] = order[index] / virtualNodes;
+        }
+    }
+
+    /**
+     * Ring over {@code run.gateway.addresses}, or the single {@code run.gateway.address}.
+     */
+    public static BrokerRing fromSettings() {
+        return new BrokerRing(Settings.getGatewayAddresses(), Settings.getGatewayVirtualNodes());
+    }
+
+    public List<String> getEndpoints() {
+        return endpoints;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * The endpoint a serial number belongs to.
+     */
+    public String owner(String serial) {
+        return endpoints.get(owners[slot(serial)]);
+    }
+
+    /**
+     * The first endpoint clockwise from a serial number that is usable, or null if none is.
+     */
+    public String route(String serial, Predicate<String> usable) {
+        int start = slot(serial);
+        boolean[] tried = new boolean[endpoints.size()];
+        int remaining = endpoints.size();
+        for (int step = 0; step < hashes.length && remaining > 0; step++) {
+            int owner = owners[(start + step) % hashes.length];
+            if (tried[owner]) continue;
+            tried[owner] = true;
+            remaining--;
+            String endpoint = endpoints.get(owner);
+            if (usable.test(endpoint)) return endpoint;
+        }
+        return null;
+    }
+
+    public BrokerRing with(String endpoint) {
+        List<String> grown = new ArrayList<>(endpoints);
+        grown.add(endpoint);
+        return new BrokerRing(grown, virtualNodes);
+    }
+
+    public BrokerRing without(String endpoint) {
+        List<String> shrunk = new ArrayList<>(endpoints);
+        if (!shrunk.remove(endpoint)) throw new IllegalArgumentException("Unknown broker endpoint " + endpoint);
+        return new BrokerRing(shrunk, virtualNodes);
+    }
+
+    /**
+     * Host part of an endpoint.
+     */
+    public static String host(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        return colon < 0 ? endpoint : endpoint.substring(0, colon);
+    }
+
+    /**
+     * Port part of an endpoint, or null for the default MQTT port.
+     */
+    public static String port(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        return colon < 0 ? null : endpoint.substring(colon + 1);
+    }
+
+    private int slot(String serial) {
+        int slot = Arrays.binarySearch(hashes, hash(serial));
+        if (slot < 0) slot = -slot - 1;
+        return slot == hashes.length ? 0 : slot;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by a murmur finalizer, so similar serials and node names spread over the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < key.length(); index++) {
+            hash ^= key.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
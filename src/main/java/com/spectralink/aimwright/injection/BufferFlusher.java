@@ -0,0 +1,194 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background flusher for device metric buffers filled through {@link SimulatedPhone#bufferMetrics}.
+ *
+ * A buffer that reaches its policy's record count is flushed by the thread that filled it; otherwise a
+ * timer on the flusher thread sends it when its oldest record reaches the policy's age. Either way the
+ * buffered records are coalesced into one {@code data} array and published without waiting for the broker,
+ * through the {@link MqttConnectionPool} unless another publisher is set.
+ */
+public class BufferFlusher {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(BufferFlusher.class.getName());
+    private static final Set<SimulatedPhone> pending = ConcurrentHashMap.newKeySet();
+    private static final ThreadLocal<MetricsStreamWriter> writers = ThreadLocal.withInitial(MetricsStreamWriter::new);
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong sizeFlushes = new AtomicLong();
+    private static final AtomicLong ageFlushes = new AtomicLong();
+    private static final AtomicLong recordsFlushed = new AtomicLong();
+    private static final AtomicLong bytesFlushed = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static volatile MetricsPublisher publisher = MqttConnectionPool::publishAsync;
+    private static ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Sets where flushed buffers are published; null restores the MQTT connection pool.
+     */
+    public static void setPublisher(MetricsPublisher newPublisher) {
+        publisher = newPublisher != null ? newPublisher : MqttConnectionPool::publishAsync;
+    }
+
+    /**
+     * Sends every pending buffer now.
+     */
+    public static void flushAll() {
+        for (SimulatedPhone phone : new ArrayList<>(pending)) {
+            phone.flushBuffer();
+        }
+    }
+
+    /**
+     * Flushes every pending buffer and stops the flusher thread. Buffers filled afterwards start it again.
+     * Buffers that got their first record while the thread was stopping lose their age timer, so they are
+     * flushed once more after it has stopped.
+     */
+    public static void shutdown() {
+        flushAll();
+        synchronized (BufferFlusher.class) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        flushAll();
+        if (getFlushCount() > 0) {
+            log.info(getSummary());
+        }
+    }
+
+    public static int getPendingCount() {
+        return pending.size();
+    }
+
+    public static long getFlushCount() {
+        return flushes.get();
+    }
+
+    public static long getSizeFlushCount() {
+        return sizeFlushes.get();
+    }
+
+    public static long getAgeFlushCount() {
+        return ageFlushes.get();
+    }
+
+    public static long getRecordsFlushed() {
+        return recordsFlushed.get();
+    }
+
+    public static long getBytesFlushed() {
+        return bytesFlushed.get();
+    }
+
+    public static long getFailures() {
+        return failures.get();
+    }
+
+    public static void resetCounters() {
+        flushes.set(0);
+        sizeFlushes.set(0);
+        ageFlushes.set(0);
+        recordsFlushed.set(0);
+        bytesFlushed.set(0);
+        failures.set(0);
+    }
+
+    public static String getSummary() {
+        long flushes = getFlushCount();
+        return String.format("Buffer flusher: %d records in %d messages (%d by size, %d by age), %.1f records/message, %d failures",
+                recordsFlushed.get(), flushes, sizeFlushes.get(), ageFlushes.get(),
+                flushes > 0 ? recordsFlushed.get() / (double) flushes : 0.0, failures.get());
+    }
+
+    /**
+     * Arms the age flush for a buffer that just received its first record.
+     */
+    static ScheduledFuture<?> schedule(SimulatedPhone phone, long delayMs) {
+        pending.add(phone);
+        return scheduler().schedule(() -> {
+            try {
+                phone.flushBuffer(Trigger.AGE);
+            } catch (RuntimeException re) {
+                log.error("Failed to flush buffer for {}: {}", phone.getDevice_serial_number(), re.getMessage());
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tracks a buffer that flushes on size only, so {@link #flushAll()} still finds it.
+     */
+    static void track(SimulatedPhone phone) {
+        pending.add(phone);
+    }
+
+    /**
+     * Stops tracking a buffer that was just emptied. Called under the phone's buffer lock, so a record buffered
+     * by another thread right afterwards tracks the phone again instead of being dropped from the pending set.
+     */
+    static void untrack(SimulatedPhone phone) {
+        pending.remove(phone);
+    }
+
+    /**
+     * Publishes records taken out of a phone's buffer as a single message.
+     */
+    static void publish(SimulatedPhone phone, ArrayNode records, Trigger trigger) {
+        flushes.incrementAndGet();
+        if (trigger == Trigger.SIZE) sizeFlushes.incrementAndGet();
+        if (trigger == Trigger.AGE) ageFlushes.incrementAndGet();
+        recordsFlushed.addAndGet(records.size());
+        String serial = phone.getDevice_serial_number();
+        MetricsStreamWriter writer = writers.get();
+        writer.beginMessage(serial, System.currentTimeMillis());
+        for (JsonNode record : records) {
+            writer.writeRecord(record);
+        }
+        byte[] payload = writer.endMessage();
+        bytesFlushed.addAndGet(payload.length);
+        if (Settings.isDebugMode()) {
+            log.debug("Flushing {} buffered updates for {}: {}", records.size(), serial, new String(payload, StandardCharsets.UTF_8));
+            return;
+        }
+        publisher.publish(serial, payload).whenComplete((ignored, error) -> {
+            if (error != null) {
+                failures.incrementAndGet();
+                log.error("Failed to publish buffered metrics for {}: {}", serial, error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * What caused a buffer to be sent.
+     */
+    enum Trigger {
+        SIZE, AGE, MANUAL
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "buffer-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Most timers are cancelled by size flushes; drop them from the queue instead of letting them pile up
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
+    }
+}
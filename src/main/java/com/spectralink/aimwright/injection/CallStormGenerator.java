@@ -0,0 +1,451 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates concurrent calls across a fleet to load call-quality dashboards.
+ *
+ * Calls arrive as a Poisson process at a configured rate, each on a random phone that has an AP and no call.
+ * A call rings for a setup time, is confirmed, reports {@link SimulatedCall#getCallDetails(long)} every
+ * metrics interval while it is held, and then disconnects, some of them as dropped calls. Every step of every
+ * call is a timeout on one {@link TimerWheel}, so thousands of calls cost one thread and no sleeps. Each
+ * event is published as its own message.
+ */
+public class CallStormGenerator {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(CallStormGenerator.class.getName());
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 4096;
+
+    /**
+     * Source of random durations in milliseconds.
+     */
+    public interface Distribution {
+        long sample(SplittableRandom random);
+
+        static Distribution fixed(long ms) {
+            return random -> ms;
+        }
+
+        static Distribution uniform(long minMs, long maxMs) {
+            return random -> minMs >= maxMs ? minMs : random.nextLong(minMs, maxMs + 1);
+        }
+
+        static Distribution exponential(double meanMs) {
+            return random -> Math.round(-meanMs * Math.log(1.0 - random.nextDouble()));
+        }
+
+        /**
+         * Log-normal durations, the usual fit for call hold times: most calls are short with a long tail.
+         *
+         * @param medianMs Median duration
+         * @param sigma Standard deviation of the underlying normal distribution
+         */
+        static Distribution logNormal(double medianMs, double sigma) {
+            return random -> Math.round(medianMs * Math.exp(sigma * gaussian(random)));
+        }
+
+        private static double gaussian(SplittableRandom random) {
+            // Box-Muller; SplittableRandom has no nextGaussian
+            double radius = Math.sqrt(-2.0 * Math.log(1.0 - random.nextDouble()));
+            return radius * Math.cos(2.0 * Math.PI * random.nextDouble());
+        }
+    }
+
+    private final List<SimulatedPhone> fleet;
+    private double callsPerSecond = 1.0;
+    private Distribution holdTime = Distribution.logNormal(120000, 0.8);
+    private Distribution setupTime = Distribution.uniform(1000, 4000);
+    private Integer metricsIntervalSeconds;
+    private double incomingShare = 0.5;
+    private double dropRate = 0.01;
+    private long seed = SimulationRandom.getRunSeed();
+    private MetricsPublisher publisher;
+
+    private TimerWheel wheel;
+    private SplittableRandom random;
+    private int[] idle;
+    private int idleCount;
+    private final Map<SimulatedPhone, ActiveCall> active = new HashMap<>();
+    private final MetricsStreamWriter writer = new MetricsStreamWriter();
+    private long nextArrivalMs;
+    private long currentSecond;
+    private long eventsThisSecond;
+    private final AtomicLong peakEventsPerSecond = new AtomicLong();
+    private final AtomicLong activeCalls = new AtomicLong();
+    private final AtomicLong peakConcurrentCalls = new AtomicLong();
+    private final AtomicLong callsStarted = new AtomicLong();
+    private final AtomicLong callsEnded = new AtomicLong();
+    private final AtomicLong callsDropped = new AtomicLong();
+    private final AtomicLong arrivalsBlocked = new AtomicLong();
+    private final AtomicLong eventsEmitted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long startNanos;
+    private long stopNanos;
+
+    /**
+     * Creates a generator for every phone currently loaded into the Environment.
+     */
+    public CallStormGenerator() {
+        this(Environment.getSimPhones().values());
+    }
+
+    public CallStormGenerator(Collection<SimulatedPhone> phones) {
+        fleet = new ArrayList<>(phones);
+    }
+
+    /**
+     * Sets the mean call arrival rate across the whole fleet.
+     */
+    public CallStormGenerator setCallsPerSecond(double callsPerSecond) {
+        if (callsPerSecond <= 0) {
+            log.error("Invalid call arrival rate {}", callsPerSecond);
+        } else {
+            this.callsPerSecond = callsPerSecond;
+        }
+        return this;
+    }
+
+    /**
+     * Sets how long a call is held after it is confirmed. Defaults to log-normal with a two minute median.
+     */
+    public CallStormGenerator setHoldTime(Distribution holdTime) {
+        this.holdTime = holdTime;
+        return this;
+    }
+
+    /**
+     * Sets how long a call rings before it is confirmed. Defaults to uniform between one and four seconds.
+     */
+    public CallStormGenerator setSetupTime(Distribution setupTime) {
+        this.setupTime = setupTime;
+        return this;
+    }
+
+    /**
+     * Overrides each call's {@code metricsInterval}, the seconds between call detail updates.
+     */
+    public CallStormGenerator setMetricsInterval(int seconds) {
+        if (seconds < 1) {
+            log.error("Invalid call metrics interval {} s", seconds);
+        } else {
+            metricsIntervalSeconds = seconds;
+        }
+        return this;
+    }
+
+    public CallStormGenerator setIncomingShare(double incomingShare) {
+        this.incomingShare = Math.max(0, Math.min(1, incomingShare));
+        return this;
+    }
+
+    /**
+     * Sets the share of calls that end as dropped calls.
+     */
+    public CallStormGenerator setDropRate(double dropRate) {
+        this.dropRate = Math.max(0, Math.min(1, dropRate));
+        return this;
+    }
+
+    public CallStormGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sets where call events are published. Without a publisher events are only counted.
+     */
+    public CallStormGenerator setPublisher(MetricsPublisher publisher) {
+        this.publisher = publisher;
+        return this;
+    }
+
+    /**
+     * Starts generating calls. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (wheel != null) {
+            log.warn("Call storm already running");
+            return;
+        }
+        random = new SplittableRandom(seed);
+        idle = new int[fleet.size()];
+        idleCount = 0;
+        for (int index = 0; index < fleet.size(); index++) {
+            SimulatedPhone phone = fleet.get(index);
+            if (phone.getCurrent_ap() != null && phone.getCurrent_call() == null) {
+                idle[idleCount++] = index;
+            }
+        }
+        active.clear();
+        resetCounters();
+        startNanos = System.nanoTime();
+        stopNanos = 0;
+        wheel = new TimerWheel("call-storm", TICK_MS, WHEEL_SIZE);
+        nextArrivalMs = interArrivalMs();
+        wheel.schedule(this::arrive, nextArrivalMs);
+        log.info("Call storm started: {} calls/s over {} idle phones", callsPerSecond, idleCount);
+    }
+
+    /**
+     * Stops new calls, disconnects the calls still in progress and stops the wheel.
+     */
+    public synchronized void stop() {
+        if (wheel == null) return;
+        TimerWheel stopping = wheel;
+        stopping.close();
+        awaitTermination(stopping);
+        // The wheel thread has exited, so the call state can be touched from here
+        for (ActiveCall call : new ArrayList<>(active.values())) {
+            end(call, false);
+        }
+        stopNanos = System.nanoTime();
+        wheel = null;
+        log.info(getSummary());
+    }
+
+    public boolean isRunning() {
+        return wheel != null;
+    }
+
+    /**
+     * Waits however long a task still running on the closed wheel takes, since the call state and counters
+     * belong to that thread until it exits.
+     */
+    private static void awaitTermination(TimerWheel wheel) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (wheel.awaitTermination(1000)) return;
+                    log.warn("Waiting for the call storm wheel to finish its current task");
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getActiveCalls() {
+        return activeCalls.get();
+    }
+
+    public long getPeakConcurrentCalls() {
+        return peakConcurrentCalls.get();
+    }
+
+    public long getCallsStarted() {
+        return callsStarted.get();
+    }
+
+    public long getCallsEnded() {
+        return callsEnded.get();
+    }
+
+    public long getCallsDropped() {
+        return callsDropped.get();
+    }
+
+    /**
+     * Arrivals that found no idle phone and were skipped.
+     */
+    public long getArrivalsBlocked() {
+        return arrivalsBlocked.get();
+    }
+
+    public long getEventsEmitted() {
+        return eventsEmitted.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Highest number of events emitted within one second of the run.
+     */
+    public long getPeakEventsPerSecond() {
+        return peakEventsPerSecond.get();
+    }
+
+    public double getEventsPerSecond() {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? eventsEmitted.get() / seconds : 0;
+    }
+
+    public double getElapsedSeconds() {
+        if (startNanos == 0) return 0;
+        return ((stopNanos != 0 ? stopNanos : System.nanoTime()) - startNanos) / 1e9;
+    }
+
+    public String getSummary() {
+        return String.format("Call storm: %d phones, %d calls (%d dropped, %d blocked arrivals), peak %d concurrent, "
+                        + "%d events, %.1f events/s average, %d events/s peak, %d failures, %.1f s",
+                fleet.size(), callsStarted.get(), callsDropped.get(), arrivalsBlocked.get(), peakConcurrentCalls.get(),
+                eventsEmitted.get(), getEventsPerSecond(), peakEventsPerSecond.get(), failures.get(), getElapsedSeconds());
+    }
+
+    // Everything below runs on the wheel thread
+
+    private void arrive() {
+        long now = wheel.elapsedMillis();
+        while (nextArrivalMs <= now) {
+            startCall();
+            nextArrivalMs += interArrivalMs();
+        }
+        wheel.schedule(this::arrive, nextArrivalMs - now);
+    }
+
+    private void startCall() {
+        if (idleCount == 0) {
+            arrivalsBlocked.incrementAndGet();
+            return;
+        }
+        int slot = random.nextInt(idleCount);
+        int fleetIndex = idle[slot];
+        SimulatedPhone phone = fleet.get(fleetIndex);
+        if (phone.getCurrent_ap() == null || phone.getCurrent_call() != null) {
+            // Roamed out of coverage or placed in a call elsewhere since the storm started; the phone stays
+            // idle for later arrivals and this one is skipped
+            arrivalsBlocked.incrementAndGet();
+            return;
+        }
+        idle[slot] = idle[--idleCount];
+        phone.startCall(random.nextDouble() < incomingShare ? SimulatedPhone.CallDirection.INCOMING : SimulatedPhone.CallDirection.OUTGOING);
+        SimulatedCall call = phone.getCurrent_call();
+        if (metricsIntervalSeconds != null) call.setMetricsInterval(metricsIntervalSeconds);
+        ActiveCall state = new ActiveCall(phone, call, fleetIndex);
+        active.put(phone, state);
+        callsStarted.incrementAndGet();
+        long concurrent = activeCalls.incrementAndGet();
+        if (concurrent > peakConcurrentCalls.get()) peakConcurrentCalls.set(concurrent);
+
+        emit(phone, call.getCallBegin(System.currentTimeMillis()));
+        state.next = wheel.schedule(() -> confirm(state), setupTime.sample(random));
+    }
+
+    private void confirm(ActiveCall state) {
+        if (lostCoverage(state)) return;
+        emit(state.phone, state.call.getCallConfirmed(System.currentTimeMillis()));
+        long holdMs = Math.max(0, holdTime.sample(random));
+        state.endAtMs = wheel.elapsedMillis() + holdMs;
+        scheduleDetails(state);
+    }
+
+    private void scheduleDetails(ActiveCall state) {
+        long intervalMs = TimeUnit.SECONDS.toMillis(state.call.getMetricsInterval());
+        long now = wheel.elapsedMillis();
+        if (now + intervalMs < state.endAtMs) {
+            state.next = wheel.schedule(() -> {
+                if (lostCoverage(state)) return;
+                emitDetails(state);
+                scheduleDetails(state);
+            }, intervalMs);
+        } else {
+            state.next = wheel.schedule(() -> end(state, random.nextDouble() < dropRate), state.endAtMs - now);
+        }
+    }
+
+    private void emitDetails(ActiveCall state) {
+        long timestamp = System.currentTimeMillis();
+        byte[] payload = writer.beginMessage(state.phone.getDevice_serial_number(), timestamp)
+                .writeCallDetails(state.call, timestamp).endMessage();
+        publish(state.phone, payload);
+    }
+
+    /**
+     * Drops a call whose phone has left its AP. Call records carry the AP's RSSI, so nothing more is emitted.
+     */
+    private boolean lostCoverage(ActiveCall state) {
+        if (state.phone.getCurrent_ap() != null) return false;
+        end(state, true);
+        return true;
+    }
+
+    private void end(ActiveCall state, boolean dropped) {
+        if (state.next != null) state.next.cancel();
+        state.call.setCall_dropped(dropped);
+        if (state.phone.getCurrent_ap() != null) {
+            emit(state.phone, state.call.getCallEnd(System.currentTimeMillis()));
+        }
+        state.phone.setCurrent_call(null);
+        active.remove(state.phone);
+        idle[idleCount++] = state.fleetIndex;
+        activeCalls.decrementAndGet();
+        callsEnded.incrementAndGet();
+        if (dropped) callsDropped.incrementAndGet();
+    }
+
+    private void emit(SimulatedPhone phone, JsonNode record) {
+        long timestamp = record.path("timestamp").asLong(System.currentTimeMillis());
+        byte[] payload = writer.beginMessage(phone.getDevice_serial_number(), timestamp).writeRecord(record).endMessage();
+        publish(phone, payload);
+    }
+
+    private void publish(SimulatedPhone phone, byte[] payload) {
+        countEvent();
+        if (publisher == null) return;
+        publisher.publish(phone.getDevice_serial_number(), payload)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        failures.incrementAndGet();
+                        log.error("Failed to publish call event for {}: {}", phone.getDevice_serial_number(), error.getMessage());
+                    }
+                });
+    }
+
+    private void countEvent() {
+        eventsEmitted.incrementAndGet();
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+        if (second != currentSecond) {
+            currentSecond = second;
+            eventsThisSecond = 0;
+        }
+        eventsThisSecond++;
+        if (eventsThisSecond > peakEventsPerSecond.get()) peakEventsPerSecond.set(eventsThisSecond);
+    }
+
+    private long interArrivalMs() {
+        return Math.round(-1000.0 / callsPerSecond * Math.log(1.0 - random.nextDouble()));
+    }
+
+    private void resetCounters() {
+        activeCalls.set(0);
+        peakConcurrentCalls.set(0);
+        callsStarted.set(0);
+        callsEnded.set(0);
+        callsDropped.set(0);
+        arrivalsBlocked.set(0);
+        eventsEmitted.set(0);
+        failures.set(0);
+        peakEventsPerSecond.set(0);
+        currentSecond = 0;
+        eventsThisSecond = 0;
+    }
+
+    private static class ActiveCall {
+        final SimulatedPhone phone;
+        final SimulatedCall call;
+        final int fleetIndex;
+        long endAtMs;
+        TimerWheel.Timeout next;
+
+        ActiveCall(SimulatedPhone phone, SimulatedCall call, int fleetIndex) {
+            this.phone = phone;
+            this.call = call;
+            this.fleetIndex = fleetIndex;
+        }
+    }
+}
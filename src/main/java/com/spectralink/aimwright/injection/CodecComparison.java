@@ -0,0 +1,251 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares payload codecs on the same set of device messages.
+ *
+ * For each codec it measures the encoded size and the CPU time to encode and decode every sample (best of
+ * several rounds), then optionally publishes the encoded messages to an {@link EmbeddedMqttBroker} and times
+ * how long the broker takes to receive them all. {@link #getReport()} prints the results as a table.
+ *
+ * <pre>
+ * CodecComparison comparison = new CodecComparison()
+ *         .addCodec(PayloadCodecs.json())
+ *         .addCodec(PayloadCodecs.cbor());
+ * comparison.addSample(serial, writer.endMessage());
+ * comparison.run(broker);
+ * log.info(comparison.getReport());
+ * </pre>
+ */
+public class CodecComparison {
+    private final Logger log = (Logger) LoggerFactory.getLogger(this.getClass().getName());
+    private final List<PayloadCodec> codecs = new ArrayList<>();
+    private final List<String> serials = new ArrayList<>();
+    private final List<byte[]> samples = new ArrayList<>();
+    private final List<Result> results = new ArrayList<>();
+    private int rounds = 5;
+    private int connections = 2;
+    private int maxInflight = 1000;
+    private long timeoutMs = 60000;
+
+    public CodecComparison addCodec(PayloadCodec codec) {
+        codecs.add(codec);
+        return this;
+    }
+
+    /**
+     * Adds a device message to the sample set.
+     *
+     * @param serial Device the message is published for
+     * @param json Serialized JSON payload
+     */
+    public CodecComparison addSample(String serial, byte[] json) {
+        serials.add(serial);
+        samples.add(json);
+        return this;
+    }
+
+    /**
+     * Sets how many times each codec encodes and decodes the samples; the fastest round is reported.
+     */
+    public CodecComparison setRounds(int rounds) {
+        if (rounds < 1) {
+            throw new IllegalArgumentException("At least one round is needed: " + rounds);
+        }
+        this.rounds = rounds;
+        return this;
+    }
+
+    /**
+     * Sets the broker connections and inflight window per connection used for the publish run.
+     */
+    public CodecComparison setPublishWindow(int connections, int maxInflight) {
+        if (connections < 1 || maxInflight < 1) {
+            throw new IllegalArgumentException("Invalid publish window: " + connections + " connections, " + maxInflight + " inflight");
+        }
+        this.connections = connections;
+        this.maxInflight = maxInflight;
+        return this;
+    }
+
+    public CodecComparison setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    /**
+     * Measures every codec, publishing to the broker unless it is null.
+     *
+     * @return One result per codec, in the order they were added
+     * @throws IOException If a codec cannot encode or decode a sample
+     */
+    public List<Result> run(EmbeddedMqttBroker broker) throws IOException {
+        if (samples.isEmpty()) {
+            throw new IllegalStateException("No samples to compare codecs on");
+        }
+        results.clear();
+        for (PayloadCodec codec : codecs) {
+            Result result = measureEncoding(codec);
+            if (broker != null) measurePublish(codec, broker, result);
+            results.add(result);
+        }
+        return new ArrayList<>(results);
+    }
+
+    public List<Result> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Results as a table, one row per codec.
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder(String.format("Codec comparison over %d messages%n", samples.size()));
+        report.append(String.format("%-12s %10s %8s %10s %10s %12s %10s%n",
+                "codec", "avg bytes", "vs json", "encode us", "decode us", "publish/s", "MB/s"));
+        for (Result result : results) {
+            report.append(String.format("%-12s %10.0f %7.0f%% %10.2f %10.2f %12s %10s%n",
+                    result.getCodec(),
+                    result.getEncodedBytes() / (double) result.getMessages(),
+                    100.0 * result.getSizeRatio(),
+                    result.getEncodeMicrosPerMessage(),
+                    result.getDecodeMicrosPerMessage(),
+                    result.getPublishNanos() > 0 ? String.format("%.0f", result.getPublishMessagesPerSecond()) : "-",
+                    result.getPublishNanos() > 0 ? String.format("%.1f", result.getPublishMegabytesPerSecond()) : "-"));
+        }
+        return report.toString();
+    }
+
+    private Result measureEncoding(PayloadCodec codec) throws IOException {
+        Result result = new Result(codec.getName(), samples.size());
+        List<byte[]> encoded = new ArrayList<>(samples.size());
+        for (byte[] sample : samples) {
+            byte[] bytes = codec.transcode(sample);
+            encoded.add(bytes);
+            result.jsonBytes += sample.length;
+            result.encodedBytes += bytes.length;
+        }
+        result.encodeNanos = Long.MAX_VALUE;
+        result.decodeNanos = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (byte[] sample : samples) {
+                codec.transcode(sample);
+            }
+            long middle = System.nanoTime();
+            for (byte[] bytes : encoded) {
+                codec.decode(bytes);
+            }
+            long end = System.nanoTime();
+            result.encodeNanos = Math.min(result.encodeNanos, middle - start);
+            result.decodeNanos = Math.min(result.decodeNanos, end - middle);
+        }
+        return result;
+    }
+
+    private void measurePublish(PayloadCodec codec, EmbeddedMqttBroker broker, Result result) {
+        MultiplexedPublisher publisher = new MultiplexedPublisher(broker.getHost(), String.valueOf(broker.getPort()), connections, maxInflight);
+        try {
+            publisher.setCodec(codec);
+            publisher.connect();
+            broker.reset();
+            CompletableFuture<?>[] pending = new CompletableFuture<?>[samples.size()];
+            long start = System.nanoTime();
+            for (int index = 0; index < samples.size(); index++) {
+                pending[index] = publisher.publish(serials.get(index), samples.get(index));
+            }
+            CompletableFuture.allOf(pending).join();
+            if (!broker.awaitMessages(samples.size(), timeoutMs)) {
+                log.error("Broker received {} of {} {} messages", broker.getMessageCount(), samples.size(), codec.getName());
+            }
+            result.publishNanos = System.nanoTime() - start;
+            result.brokerBytes = broker.getByteCount();
+        } finally {
+            publisher.close();
+        }
+    }
+
+    /**
+     * Measurements for one codec.
+     */
+    public static class Result {
+        private final String codec;
+        private final int messages;
+        private long jsonBytes;
+        private long encodedBytes;
+        private long encodeNanos;
+        private long decodeNanos;
+        private long publishNanos;
+        private long brokerBytes;
+
+        private Result(String codec, int messages) {
+            this.codec = codec;
+            this.messages = messages;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+
+        public int getMessages() {
+            return messages;
+        }
+
+        public long getJsonBytes() {
+            return jsonBytes;
+        }
+
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        /**
+         * Encoded size as a fraction of the JSON size.
+         */
+        public double getSizeRatio() {
+            return jsonBytes > 0 ? encodedBytes / (double) jsonBytes : 0;
+        }
+
+        public double getEncodeMicrosPerMessage() {
+            return encodeNanos / 1000.0 / messages;
+        }
+
+        public double getDecodeMicrosPerMessage() {
+            return decodeNanos / 1000.0 / messages;
+        }
+
+        /**
+         * Wall clock time from the first publish until the broker had received every message, or 0 if not published.
+         */
+        public long getPublishNanos() {
+            return publishNanos;
+        }
+
+        /**
+         * Payload bytes the broker received; equal to the encoded bytes once every message has arrived.
+         */
+        public long getBrokerBytes() {
+            return brokerBytes;
+        }
+
+        public double getPublishMessagesPerSecond() {
+            return publishNanos > 0 ? messages * 1e9 / publishNanos : 0;
+        }
+
+        public double getPublishMegabytesPerSecond() {
+            return publishNanos > 0 ? encodedBytes * 1e9 / publishNanos / (1024 * 1024) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d messages, %d bytes (%.0f%% of JSON)", codec, messages, encodedBytes, 100 * getSizeRatio());
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.spectralink.aimwright.injection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Advances the drifting metrics of a whole fleet in tight loops over primitive arrays.
+ *
+ * Each drifting metric (cpu, ram, battery level, temperature, packets missed, rssi...) is a {@link Channel}
+ * of parallel arrays indexed by device. Phones, their batteries and their current calls share the phone's
+ * index; access points get their own. While a simulator object is attached its drifting getters return the
+ * engine's current value instead of drifting on every read, so a value only changes when its group is
+ * advanced. The INCREASING/DECREASING/RANDOM/STABLE semantics and limits are those of the
+ * {@code *DriftType} enums.
+ *
+ * Advancing a group must happen on one thread; readers on other threads see either the old or new value.
+ */
+public class DriftEngine {
+    static final byte HOLD = 0;
+    static final byte UP = 1;
+    static final byte DOWN = 2;
+    static final byte RANDOM = 3;
+    static final byte RANDOM_ADD = 4;
+
+    private final SimulatedPhone[] phones;
+    private final SimulatedBattery[] batteries;
+    private final SimulatedCall[] calls;
+    private final SimulatedAP[] phoneAps;
+    private final List<SimulatedAP> aps = new ArrayList<>();
+    private final Map<SimulatedAP, Integer> apIndex = new IdentityHashMap<>();
+
+    // Phone channels
+    final Channel cpu;
+    final Channel ram;
+    // Battery channels, indexed by the housing phone
+    final Channel level;
+    final Channel fullCharge;
+    final Channel cycleCounter;
+    final Channel temperature;
+    // Call channels, indexed by the calling phone
+    final Channel packetsMissed;
+    final Channel packetsDropped;
+    final Channel jitter;
+    final long[] packetsMissedTotal;
+    final long[] packetsDroppedTotal;
+    final double[] packetsMissedPct;
+    final double[] packetsDroppedPct;
+    final int[] callInterval;
+    // Access point channels
+    final Channel rssi;
+
+    /**
+     * Creates an engine for a fleet and attaches every phone, battery, current call and connected AP.
+     */
+    public DriftEngine(Collection<SimulatedPhone> fleet) {
+        int size = fleet.size();
+        phones = fleet.toArray(new SimulatedPhone[0]);
+        batteries = new SimulatedBattery[size];
+        calls = new SimulatedCall[size];
+        phoneAps = new SimulatedAP[size];
+        cpu = new Channel(size);
+        ram = new Channel(size);
+        level = new Channel(size);
+        fullCharge = new Channel(size);
+        cycleCounter = new Channel(size);
+        temperature = new Channel(size);
+        packetsMissed = new Channel(size);
+        packetsDropped = new Channel(size);
+        jitter = new Channel(size);
+        packetsMissedTotal = new long[size];
+        packetsDroppedTotal = new long[size];
+        packetsMissedPct = new double[size];
+        packetsDroppedPct = new double[size];
+        callInterval = new int[size];
+        rssi = new Channel(Math.max(16, size / 8));
+        rssi.size = 0;
+        for (int index = 0; index < size; index++) {
+            phones[index].attachDrift(this, index);
+            bindBattery(index);
+            bindCall(index);
+            bindAp(index);
+        }
+    }
+
+    public int getPhoneCount() {
+        return phones.length;
+    }
+
+    public int getApCount() {
+        return aps.size();
+    }
+
+    /**
+     * Advances every group by one step.
+     */
+    public void advance() {
+        advancePhones();
+        advanceBatteries();
+        advanceCalls();
+        advanceAps();
+    }
+
+    /**
+     * Advances cpu and ram utilization for every phone.
+     */
+    public void advancePhones() {
+        cpu.advance();
+        ram.advance();
+    }
+
+    /**
+     * Advances level, full charge, cycle count and temperature for every battery, first picking up batteries
+     * that were inserted or swapped since the last step.
+     */
+    public void advanceBatteries() {
+        for (int index = 0; index < phones.length; index++) {
+            if (phones[index].getCurrent_battery() != batteries[index]) {
+                bindBattery(index);
+            }
+        }
+        level.advance();
+        fullCharge.advance();
+        cycleCounter.advance();
+        temperature.advance();
+    }
+
+    /**
+     * Advances packet loss and jitter for every active call, first picking up calls started or ended since the
+     * last step.
+     */
+    public void advanceCalls() {
+        for (int index = 0; index < phones.length; index++) {
+            if (phones[index].getCurrent_call() != calls[index]) {
+                bindCall(index);
+            }
+        }
+        packetsMissed.advance();
+        packetsDropped.advance();
+        jitter.advance();
+        for (int index = 0; index < phones.length; index++) {
+            if (calls[index] != null) {
+                double scale = 50.0 * callInterval[index];
+                packetsMissedTotal[index] += (long) packetsMissed.value[index];
+                packetsDroppedTotal[index] += (long) packetsDropped.value[index];
+                packetsMissedPct[index] = packetsMissed.value[index] / scale;
+                packetsDroppedPct[index] = packetsDropped.value[index] / scale;
+            }
+        }
+    }
+
+    /**
+     * Advances rssi for every attached access point, first attaching APs phones have roamed to.
+     */
+    public void advanceAps() {
+        for (int index = 0; index < phones.length; index++) {
+            if (phones[index].getCurrent_ap() != phoneAps[index]) {
+                bindAp(index);
+            }
+        }
+        rssi.size = aps.size();
+        rssi.advance();
+    }
+
+    /**
+     * Detaches every simulator object, writing the engine's current values back into them.
+     */
+    public void close() {
+        for (int index = 0; index < phones.length; index++) {
+            phones[index].detachDrift();
+            if (batteries[index] != null) batteries[index].detachDrift();
+            if (calls[index] != null) calls[index].detachDrift();
+        }
+        for (SimulatedAP ap : aps) {
+            ap.detachDrift();
+        }
+        aps.clear();
+        apIndex.clear();
+    }
+
+    private void bindBattery(int index) {
+        if (batteries[index] != null) {
+            batteries[index].detachDrift();
+            level.clear(index);
+            fullCharge.clear(index);
+            cycleCounter.clear(index);
+            temperature.clear(index);
+        }
+        batteries[index] = phones[index].getCurrent_battery();
+        if (batteries[index] != null) {
+            batteries[index].attachDrift(this, index);
+        }
+    }
+
+    private void bindCall(int index) {
+        if (calls[index] != null) {
+            calls[index].detachDrift();
+            packetsMissed.clear(index);
+            packetsDropped.clear(index);
+            jitter.clear(index);
+        }
+        calls[index] = phones[index].getCurrent_call();
+        if (calls[index] != null) {
+            calls[index].attachDrift(this, index);
+        }
+    }
+
+    private void bindAp(int index) {
+        SimulatedAP ap = phones[index].getCurrent_ap();
+        phoneAps[index] = ap;
+        if (ap != null && !apIndex.containsKey(ap)) {
+            int apSlot = aps.size();
+            rssi.ensureCapacity(apSlot + 1);
+            aps.add(ap);
+            apIndex.put(ap, apSlot);
+            rssi.size = aps.size();
+            ap.attachDrift(this, apSlot);
+        }
+    }
+
+    /**
+     * Maps a {@code *DriftType} constant to a drift direction by name.
+     */
+    static byte modeOf(Enum<?> control) {
+        if (control == null) return HOLD;
+        switch (control.name()) {
+            case "INCREASING":
+                return UP;
+            case "DECREASING":
+                return DOWN;
+            case "RANDOM":
+                return RANDOM;
+            default:
+                return HOLD;
+        }
+    }
+
+    static double valueOf(Number number) {
+        return number == null ? 0.0 : number.doubleValue();
+    }
+
+    /**
+     * One drifting metric for every device of a kind, stored as parallel arrays.
+     *
+     * UP adds the increment and clamps to the upper limit, DOWN subtracts it and clamps to the lower limit,
+     * RANDOM replaces the value with a uniform integer between the limits and RANDOM_ADD adds one.
+     */
+    static final class Channel {
+        double[] value;
+        double[] previous;
+        double[] increment;
+        double[] lower;
+        double[] upper;
+        byte[] mode;
+        SplittableRandom[] random;
+        int size;
+
+        Channel(int capacity) {
+            value = new double[capacity];
+            previous = new double[capacity];
+            increment = new double[capacity];
+            lower = new double[capacity];
+            upper = new double[capacity];
+            mode = new byte[capacity];
+            random = new SplittableRandom[capacity];
+            size = capacity;
+        }
+
+        void load(int index, byte mode, double increment, double lower, double upper, double value, SplittableRandom random) {
+            this.mode[index] = mode;
+            this.increment[index] = increment;
+            this.lower[index] = lower;
+            this.upper[index] = upper;
+            this.value[index] = value;
+            this.previous[index] = value;
+            this.random[index] = random;
+        }
+
+        void clear(int index) {
+            mode[index] = HOLD;
+            random[index] = null;
+        }
+
+        void advance() {
+            for (int index = 0; index < size; index++) {
+                switch (mode[index]) {
+                    case UP:
+                        previous[index] = value[index];
+                        value[index] = Math.min(value[index] + increment[index], upper[index]);
+                        break;
+                    case DOWN:
+                        previous[index] = value[index];
+                        value[index] = Math.max(value[index] - increment[index], lower[index]);
+                        break;
+                    case RANDOM:
+                        previous[index] = value[index];
+                        value[index] = random[index].nextInt((int) lower[index], (int) upper[index] + 1);
+                        break;
+                    case RANDOM_ADD:
+                        previous[index] = value[index];
+                        value[index] += random[index].nextInt((int) lower[index], (int) upper[index] + 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity <= value.length) return;
+            int grown = Math.max(capacity, value.length * 2);
+            value = Arrays.copyOf(value, grown);
+            previous = Arrays.copyOf(previous, grown);
+            increment = Arrays.copyOf(increment, grown);
+            lower = Arrays.copyOf(lower, grown);
+            upper = Arrays.copyOf(upper, grown);
+            mode = Arrays.copyOf(mode, grown);
+            random = Arrays.copyOf(random, grown);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-JVM MQTT 3.1.1 broker for running the injection stack without a gateway.
+ *
+ * Listens on the loopback interface, on an ephemeral port unless one is given, and accepts CONNECT, PUBLISH at
+ * QoS 0, 1 and 2, SUBSCRIBE, UNSUBSCRIBE, PINGREQ and DISCONNECT. Every published message is counted per topic
+ * with its size and arrival time. Messages are forwarded to matching subscribers at QoS 0. There is no
+ * authentication, session persistence, retained messages or wills; it is a test stand-in, not a gateway.
+ *
+ * <pre>
+ * try (EmbeddedMqttBroker broker = EmbeddedMqttBroker.start()) {
+ *     MqttAgent agent = new MqttAgent(serial, broker.getHost(), String.valueOf(broker.getPort()));
+ *     ...
+ *     broker.awaitMessages(1000, 10000);
+ * }
+ * </pre>
+ */
+public class EmbeddedMqttBroker implements AutoCloseable {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(EmbeddedMqttBroker.class.getName());
+    private static final String HOST = "127.0.0.1";
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int UNSUBACK = 11;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final Map<String, TopicStats> topics = new ConcurrentHashMap<>();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean running = true;
+    private volatile boolean holdingAcks = false;
+
+    private EmbeddedMqttBroker(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(HOST), port));
+        acceptor = new Thread(this::accept, "embedded-mqtt-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Embedded MQTT broker listening on {}:{}", HOST, getPort());
+    }
+
+    /**
+     * Starts a broker on an ephemeral port.
+     */
+    public static EmbeddedMqttBroker start() throws IOException {
+        return new EmbeddedMqttBroker(0);
+    }
+
+    /**
+     * Starts a broker on a specific port, e.g. 1883 to stand in for a gateway.
+     */
+    public static EmbeddedMqttBroker start(int port) throws IOException {
+        return new EmbeddedMqttBroker(port);
+    }
+
+    public String getHost() {
+        return HOST;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Number of client connections accepted since the broker started.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * Topics that have received at least one message.
+     */
+    public Set<String> getTopics() {
+        return new TreeSet<>(topics.keySet());
+    }
+
+    /**
+     * Counters for one topic, or null if nothing was published to it.
+     */
+    public TopicStats getTopicStats(String topic) {
+        return topics.get(topic);
+    }
+
+    /**
+     * Counters for a device's {@code devices/spectralink/<serial>} topic, or null if it has sent nothing.
+     */
+    public TopicStats getDeviceStats(String serial) {
+        return topics.get(MqttAgent.topicFor(serial));
+    }
+
+    /**
+     * Waits until at least the given number of messages has arrived in total.
+     *
+     * @return True if the count was reached before the timeout
+     */
+    public boolean awaitMessages(long count, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (messageCount) {
+            while (messageCount.get() < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(messageCount, remaining);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts publishes but withholds their PUBACK and PUBREC until {@link #releaseAcknowledgements()}, so
+     * clients keep them inflight.
+     */
+    public void holdAcknowledgements() {
+        holdingAcks = true;
+    }
+
+    /**
+     * Sends every withheld acknowledgement and acknowledges new publishes straight away again.
+     */
+    public void releaseAcknowledgements() {
+        holdingAcks = false;
+        for (Connection connection : connections) {
+            connection.releaseAcks();
+        }
+    }
+
+    /**
+     * Clears all message counters. Connections and subscriptions are kept.
+     */
+    public void reset() {
+        topics.clear();
+        messageCount.set(0);
+        byteCount.set(0);
+    }
+
+    public String getSummary() {
+        return String.format("Embedded MQTT broker %s:%d: %d connections, %d messages (%d bytes) on %d topics",
+                HOST, getPort(), connectionCount.get(), messageCount.get(), byteCount.get(), topics.size());
+    }
+
+    /**
+     * Stops listening and drops every client connection.
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            log.error("Failed to close embedded MQTT broker socket: {}", ioe.getMessage());
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+        log.info(getSummary());
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connectionCount.incrementAndGet();
+                Thread reader = new Thread(connection, "embedded-mqtt-client-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException ioe) {
+                if (running) log.error("Embedded MQTT broker failed to accept a connection: {}", ioe.getMessage());
+            }
+        }
+    }
+
+    private void received(String topic, byte[] payload) {
+        topics.computeIfAbsent(topic, TopicStats::new).add(payload.length, System.currentTimeMillis());
+        byteCount.addAndGet(payload.length);
+        messageCount.incrementAndGet();
+        synchronized (messageCount) {
+            messageCount.notifyAll();
+        }
+        for (Connection connection : connections) {
+            if (connection.isSubscribed(topic)) {
+                connection.forward(topic, payload);
+            }
+        }
+    }
+
+    /**
+     * True if a topic matches a subscription filter with {@code +} and {@code #} wildcards.
+     */
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int index = 0; index < filterLevels.length; index++) {
+            if (filterLevels[index].equals("#")) return true;
+            if (index >= topicLevels.length) return false;
+            if (!filterLevels[index].equals("+") && !filterLevels[index].equals(topicLevels[index])) return false;
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * Message count, bytes and arrival times for one topic.
+     */
+    public static class TopicStats {
+        private final String topic;
+        private long messages = 0;
+        private long bytes = 0;
+        private long[] arrivals = new long[16];
+
+        TopicStats(String topic) {
+            this.topic = topic;
+        }
+
+        synchronized void add(int size, long arrivalMillis) {
+            if (messages == arrivals.length) {
+                arrivals = Arrays.copyOf(arrivals, arrivals.length * 2);
+            }
+            arrivals[(int) messages] = arrivalMillis;
+            messages++;
+            bytes += size;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public synchronized long getMessageCount() {
+            return messages;
+        }
+
+        public synchronized long getByteCount() {
+            return bytes;
+        }
+
+        /**
+         * Arrival time of every message in epoch milliseconds, oldest first.
+         */
+        public synchronized long[] getArrivalTimes() {
+            return Arrays.copyOf(arrivals, (int) messages);
+        }
+
+        public synchronized long getLastArrival() {
+            return messages == 0 ? 0 : arrivals[(int) messages - 1];
+        }
+    }
+
+    /**
+     * One client connection, read by its own thread.
+     */
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final OutputStream output;
+        private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+        private final Set<Integer> pendingReleases = new HashSet<>();
+        private final List<byte[]> heldAcks = new ArrayList<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        @Override
+        public void run() {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536))) {
+                while (running) {
+                    int header = input.read();
+                    if (header < 0) break;
+                    int length = readRemainingLength(input);
+                    byte[] body = new byte[length];
+                    input.readFully(body);
+                    if (!handle(header >> 4, header & 0x0F, body)) break;
+                    // Acknowledge a burst of publishes with one write
+                    if (input.available() == 0) flush();
+                }
+            } catch (EOFException | SocketException closed) {
+                // Client went away
+            } catch (IOException | RuntimeException e) {
+                if (running) log.error("Embedded MQTT broker dropped a client: {}", e.getMessage());
+            } finally {
+                close();
+                connections.remove(this);
+            }
+        }
+
+        private boolean handle(int type, int flags, byte[] body) throws IOException {
+            switch (type) {
+                case CONNECT:
+                    int level = body.length > 2 ? body[2 + readShort(body, 0)] : 0;
+                    send(CONNACK << 4, new byte[] {0, (byte) (level == 3 || level == 4 ? 0 : 1)});
+                    return level == 3 || level == 4;
+                case PUBLISH:
+                    publish(flags, body);
+                    return true;
+                case PUBREL:
+                    int releasedId = readShort(body, 0);
+                    pendingReleases.remove(releasedId);
+                    send(PUBCOMP << 4, new byte[] {body[0], body[1]});
+                    return true;
+                case SUBSCRIBE:
+                    subscribe(body);
+                    return true;
+                case UNSUBSCRIBE:
+                    int position = 2;
+                    while (position < body.length) {
+                        int filterLength = readShort(body, position);
+                        subscriptions.remove(new String(body, position + 2, filterLength, StandardCharsets.UTF_8));
+                        position += 2 + filterLength;
+                    }
+                    send(UNSUBACK << 4, new byte[] {body[0], body[1]});
+                    return true;
+                case PINGREQ:
+                    send(PINGRESP << 4, new byte[0]);
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    // PUBACK, PUBREC and PUBCOMP from subscribers are not expected at QoS 0
+                    return true;
+            }
+        }
+
+        private void publish(int flags, byte[] body) throws IOException {
+            int qos = (flags >> 1) & 0x03;
+            boolean duplicate = (flags & 0x08) != 0;
+            int topicLength = readShort(body, 0);
+            String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+            int position = 2 + topicLength;
+            int packetId = 0;
+            if (qos > 0) {
+                packetId = readShort(body, position);
+                position += 2;
+            }
+            byte[] payload = Arrays.copyOfRange(body, position, body.length);
+            boolean repeated = qos == 2 && duplicate && pendingReleases.contains(packetId);
+            if (!repeated) {
+                received(topic, payload);
+            }
+            if (qos == 1) {
+                acknowledge(PUBACK, packetId);
+            } else if (qos == 2) {
+                pendingReleases.add(packetId);
+                acknowledge(PUBREC, packetId);
+            }
+        }
+
+        private void acknowledge(int type, int packetId) throws IOException {
+            synchronized (output) {
+                if (holdingAcks) {
+                    heldAcks.add(new byte[] {(byte) type, (byte) (packetId >> 8), (byte) packetId});
+                } else {
+                    send(type << 4, new byte[] {(byte) (packetId >> 8), (byte) packetId});
+                }
+            }
+        }
+
+        void releaseAcks() {
+            synchronized (output) {
+                try {
+                    for (byte[] ack : heldAcks) {
+                        send(ack[0] << 4, new byte[] {ack[1], ack[2]});
+                    }
+                    flush();
+                } catch (IOException ioe) {
+                    log.error("Embedded MQTT broker could not release acknowledgements: {}", ioe.getMessage());
+                }
+                heldAcks.clear();
+            }
+        }
+
+        private void subscribe(byte[] body) throws IOException {
+            List<Byte> granted = new ArrayList<>();
+            int position = 2;
+            while (position < body.length) {
+                int filterLength = readShort(body, position);
+                subscriptions.add(new String(body, position + 2, filterLength, StandardCharsets.UTF_8));
+                position += 2 + filterLength + 1;
+                granted.add((byte) 0);
+            }
+            byte[] response = new byte[2 + granted.size()];
+            response[0] = body[0];
+            response[1] = body[1];
+            for (int index = 0; index < granted.size(); index++) {
+                response[2 + index] = granted.get(index);
+            }
+            send(SUBACK << 4, response);
+        }
+
+        boolean isSubscribed(String topic) {
+            if (subscriptions.isEmpty()) return false;
+            for (String filter : subscriptions) {
+                if (matches(filter, topic)) return true;
+            }
+            return false;
+        }
+
+        void forward(String topic, byte[] payload) {
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            byte[] body = new byte[2 + topicBytes.length + payload.length];
+            body[0] = (byte) (topicBytes.length >> 8);
+            body[1] = (byte) topicBytes.length;
+            System.arraycopy(topicBytes, 0, body, 2, topicBytes.length);
+            System.arraycopy(payload, 0, body, 2 + topicBytes.length, payload.length);
+            try {
+                send(PUBLISH << 4, body);
+                flush();
+            } catch (IOException ioe) {
+                log.error("Embedded MQTT broker could not forward to a subscriber: {}", ioe.getMessage());
+            }
+        }
+
+        /**
+         * Buffers a packet; the reader flushes once it has handled all input that has already arrived.
+         */
+        private void send(int header, byte[] body) throws IOException {
+            synchronized (output) {
+                output.write(header);
+                int length = body.length;
+                do {
+                    int digit = length % 128;
+                    length /= 128;
+                    output.write(length > 0 ? digit | 0x80 : digit);
+                } while (length > 0);
+                output.write(body);
+            }
+        }
+
+        private void flush() throws IOException {
+            synchronized (output) {
+                output.flush();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+
+        private int readRemainingLength(DataInputStream input) throws IOException {
+            int length = 0;
+            int multiplier = 1;
+            int digit;
+            do {
+                digit = input.readUnsignedByte();
+                length += (digit & 0x7F) * multiplier;
+                multiplier *= 128;
+            } while ((digit & 0x80) != 0);
+            return length;
+        }
+
+        private int readShort(byte[] body, int position) {
+            return ((body[position] & 0xFF) << 8) | (body[position + 1] & 0xFF);
+        }
+    }
+}
@@ -1,32 +1,47 @@
 package com.spectralink.aimwright.injection;
 
 import ch.qos.logback.classic.Logger;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 /**
  * Manages the simulated test environment including phones, batteries, and access points.
  * Provides singleton access to simulated device collections.
+ *
+ * Phones are indexed by serial number, batteries by battery serial and APs by SSID in concurrent maps, so
+ * simulator threads can look devices up while tests change the environment. Definition files are
+ * stream-parsed one object at a time into a new map that then replaces the registry in one step, so readers
+ * see either the previous devices or the complete new set, never a partial load. Code that kept a reference to
+ * the previous map (or its values) keeps seeing the previous devices, and devices added while a file is being
+ * loaded are replaced along with them.
  */
 public class Environment {
     private static Environment myself;
     private static final Logger log = (Logger) LoggerFactory.getLogger(Environment.class.getName());
     private static final String projectDirectory = System.getProperty("user.dir");
     private static final String testDataDirectory = projectDirectory + "/src/main/resources/test_data";
-    private static final Map<String, SimulatedPhone> simPhones = new HashMap<>();
-    private static final Map<String, SimulatedBattery> simBatteries = new HashMap<>();
-    private static final Map<String, SimulatedAP> simNetworks = new HashMap<>();
-    private static final Map<String, Object> temporaryStorage = new HashMap<>();
+    private static volatile Map<String, SimulatedPhone> simPhones = new ConcurrentHashMap<>();
+    private static volatile Map<String, SimulatedBattery> simBatteries = new ConcurrentHashMap<>();
+    private static volatile Map<String, SimulatedAP> simNetworks = new ConcurrentHashMap<>();
+    private static final Map<String, SimulatedLocation> simLocations = new ConcurrentHashMap<>();
+    private static final Map<String, Object> temporaryStorage = new ConcurrentHashMap<>();
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static volatile DefinitionIndex deviceIndex;
 
     public static Environment getInstance() {
         if (myself == null) {
@@ -39,14 +54,18 @@ public class Environment {
      * Loads access points from JSON configuration file.
      */
     public static void loadAPs() {
-        Path apData = Paths.get(testDataDirectory, "injection_data", "ap_defaults.json");
+        loadAPs(Paths.get(testDataDirectory, "injection_data", "ap_defaults.json"));
+    }
+
+    /**
+     * Loads access points from a JSON array of AP definitions, replacing those already loaded.
+     */
+    public static void loadAPs(Path apData) {
+        Map<String, SimulatedAP> loaded = new ConcurrentHashMap<>();
         try {
-            List<SimulatedAP> apList = objectMapper.readValue(apData.toFile(), new TypeReference<>() {});
-            simNetworks.clear();
-            for (SimulatedAP eachAp : apList) {
-                simNetworks.put(eachAp.getAp_ssid(), eachAp);
-                log.trace("Loaded AP '{}' into Environment", eachAp.getAp_ssid());
-            }
+            readDefinitions(apData, SimulatedAP.class, (eachAp, range) -> loaded.put(eachAp.getAp_ssid(), eachAp));
+            simNetworks = loaded;
+            log.debug("Loaded {} APs into Environment", loaded.size());
         } catch (IOException ioe) {
             log.error("Could not load file in the path {}: {}", apData, ioe.getMessage());
         }
@@ -60,16 +79,21 @@ public class Environment {
      * Loads batteries from JSON configuration file.
      */
     public static void loadBatteries() {
-        Path apData = Paths.get(testDataDirectory, "injection_data", "battery_defaults.json");
+        loadBatteries(Paths.get(testDataDirectory, "injection_data", "battery_defaults.json"));
+    }
+
+    /**
+     * Loads batteries from a JSON array of battery definitions, replacing those already loaded.
+     */
+    public static void loadBatteries(Path batteryData) {
+        Map<String, SimulatedBattery> loaded = new ConcurrentHashMap<>();
         try {
-            List<SimulatedBattery> batteryList = objectMapper.readValue(apData.toFile(), new TypeReference<>() {});
-            simBatteries.clear();
-            for (SimulatedBattery eachBattery : batteryList) {
-                simBatteries.put(eachBattery.getBattery_serial_num(), eachBattery);
-                log.trace("Loaded battery {} into Environment", eachBattery.getBattery_serial_num());
-            }
+            readDefinitions(batteryData, SimulatedBattery.class, (eachBattery, range) ->
+                    loaded.put(eachBattery.getBattery_serial_num(), eachBattery));
+            simBatteries = loaded;
+            log.debug("Loaded {} batteries into Environment", loaded.size());
         } catch (IOException ioe) {
-            log.error("Could not load file in the path {}: {}", apData, ioe.getMessage());
+            log.error("Could not load file in the path {}: {}", batteryData, ioe.getMessage());
         }
     }
 
@@ -81,60 +105,133 @@ public class Environment {
      * Loads devices from JSON configuration file.
      */
     public static void loadDevices() {
-        Path apData = Paths.get(testDataDirectory, "injection_data", "device_defaults.json");
+        loadDevices(Paths.get(testDataDirectory, "injection_data", "device_defaults.json"));
+    }
+
+    /**
+     * Loads devices from a JSON array of device definitions, replacing those already loaded, and connects each
+     * one to its designated AP and battery. Remembers where each definition sits in the file so
+     * {@link #reloadDevice(Path, String)} can read it back on its own.
+     */
+    public static void loadDevices(Path deviceData) {
+        Map<String, SimulatedPhone> loaded = new ConcurrentHashMap<>();
+        Map<String, long[]> offsets = new HashMap<>();
         try {
-            List<SimulatedPhone> phoneList = objectMapper.readValue(apData.toFile(), new TypeReference<>() {});
-            simPhones.clear();
-            for (SimulatedPhone eachPhone : phoneList) {
-                simPhones.put(eachPhone.getDevice_serial_number(), eachPhone);
-                log.info("Loaded device {} into Environment", eachPhone.getDevice_serial_number());
-                if (getAPList().contains(eachPhone.getDesignated_ap())) {
-                    eachPhone.connectWifi(simNetworks.get(eachPhone.getDesignated_ap()));
-                    log.debug("Connected {} to AP SSID '{}'", eachPhone.getDevice_serial_number(), eachPhone.getDesignated_ap());
-                } else {
-                    log.warn("No AP was available for device {}", eachPhone.getDevice_serial_number());
-                }
+            readDefinitions(deviceData, SimulatedPhone.class, (eachPhone, range) -> {
+                loaded.put(eachPhone.getDevice_serial_number(), eachPhone);
+                offsets.put(eachPhone.getDevice_serial_number(), range);
+                attachDesignated(eachPhone);
+            });
+            simPhones = loaded;
+            deviceIndex = new DefinitionIndex(deviceData, offsets);
+            log.info("Loaded {} devices into Environment from {}", loaded.size(), deviceData.getFileName());
+        } catch (IOException ioe) {
+            log.error("Could not load file in the path {}: {}", deviceData, ioe.getMessage());
+        }
+    }
 
-                if (getBatteryList().contains(eachPhone.getDesignated_battery())) {
-                    eachPhone.insertBattery(simBatteries.get(eachPhone.getDesignated_battery()));
-                    log.debug("Inserted battery {} into {}", eachPhone.getDesignated_battery(), eachPhone.getDevice_serial_number());
-                } else {
-                    log.warn("No battery was available for device {}", eachPhone.getDevice_serial_number());
-                }
+    /**
+     * Reloads a specific device from the default JSON configuration, reading only its own definition.
+     */
+    public static void reloadDevice(String serial) {
+        reloadDevice(Paths.get(testDataDirectory, "injection_data", "device_defaults.json"), serial);
+    }
+
+    /**
+     * Reloads a specific device from a JSON array of device definitions, reading only its own definition.
+     * The byte offsets from the last load or reload of the same file are reused while the file is unchanged.
+     */
+    public static void reloadDevice(Path deviceData, String serial) {
+        DefinitionIndex index = deviceIndex;
+        if (index == null || !index.path.equals(deviceData) || index.isStale()) {
+            index = indexDefinitions(deviceData);
+        }
+        if (index == null) return;
+        long[] range = index.offsets.get(serial);
+        if (range == null) {
+            log.error("No device definition with the serial number {} in {}", serial, index.path);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(index.path, StandardOpenOption.READ)) {
+            ByteBuffer definition = ByteBuffer.allocate((int) (range[1] - range[0]));
+            while (definition.hasRemaining()) {
+                if (channel.read(definition, range[0] + definition.position()) < 0) break;
             }
+            SimulatedPhone eachPhone = objectMapper.readValue(definition.array(), 0, definition.position(), SimulatedPhone.class);
+            simPhones.put(eachPhone.getDevice_serial_number(), eachPhone);
+            log.info("Reloaded device {} into Environment", eachPhone.getDevice_serial_number());
+            attachDesignated(eachPhone);
         } catch (IOException ioe) {
-            log.error("Could not load file in the path {}: {}", apData, ioe.getMessage());
+            log.error("Could not load file in the path {}: {}", index.path, ioe.getMessage());
         }
     }
 
     /**
-     * Reloads a specific device from JSON configuration.
+     * Connects a phone to its designated AP and battery. Runs once per device during a load, so only misses are
+     * logged.
      */
-    public static void reloadDevice(String serial) {
-        Path apData = Paths.get(testDataDirectory, "injection_data", "device_defaults.json");
-        try {
-            List<SimulatedPhone> phoneList = objectMapper.readValue(apData.toFile(), new TypeReference<>() {});
-            for (SimulatedPhone eachPhone : phoneList) {
-                if (eachPhone.getDevice_serial_number().contentEquals(serial)) {
-                    simPhones.put(eachPhone.getDevice_serial_number(), eachPhone);
-                    log.info("Reloaded device {} into Environment", eachPhone.getDevice_serial_number());
-                    if (getAPList().contains(eachPhone.getDesignated_ap())) {
-                        eachPhone.connectWifi(simNetworks.get(eachPhone.getDesignated_ap()));
-                        log.debug("Connected {} to AP SSID '{}'", eachPhone.getDevice_serial_number(), eachPhone.getDesignated_ap());
-                    } else {
-                        log.warn("No AP was available for device {}", eachPhone.getDevice_serial_number());
-                    }
+    private static void attachDesignated(SimulatedPhone eachPhone) {
+        SimulatedAP ap = eachPhone.getDesignated_ap() == null ? null : simNetworks.get(eachPhone.getDesignated_ap());
+        if (ap != null) {
+            eachPhone.connectWifi(ap);
+        } else {
+            log.warn("No AP was available for device {}", eachPhone.getDevice_serial_number());
+        }
+
+        SimulatedBattery battery = eachPhone.getDesignated_battery() == null ? null : simBatteries.get(eachPhone.getDesignated_battery());
+        if (battery != null) {
+            eachPhone.insertBattery(battery);
+        } else {
+            log.warn("No battery was available for device {}", eachPhone.getDevice_serial_number());
+        }
+    }
 
-                    if (getBatteryList().contains(eachPhone.getDesignated_battery())) {
-                        eachPhone.insertBattery(simBatteries.get(eachPhone.getDesignated_battery()));
-                        log.debug("Inserted battery {} into {}", eachPhone.getDesignated_battery(), eachPhone.getDevice_serial_number());
+    /**
+     * Streams a JSON array of definitions, binding one object at a time and reporting its byte range.
+     */
+    private static <T> void readDefinitions(Path file, Class<T> type, BiConsumer<T, long[]> consumer) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array of definitions");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long start = parser.getTokenLocation().getByteOffset();
+                T definition = objectMapper.readValue(parser, type);
+                consumer.accept(definition, new long[] {start, parser.getCurrentLocation().getByteOffset()});
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the device offset index without binding any devices.
+     */
+    private static DefinitionIndex indexDefinitions(Path file) {
+        Map<String, long[]> offsets = new HashMap<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array of definitions");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long start = parser.getTokenLocation().getByteOffset();
+                String serial = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("device_serial_number")) {
+                        serial = parser.getValueAsString();
                     } else {
-                        log.warn("No battery was available for device {}", eachPhone.getDevice_serial_number());
+                        parser.skipChildren();
                     }
                 }
+                if (serial != null) {
+                    offsets.put(serial, new long[] {start, parser.getCurrentLocation().getByteOffset()});
+                }
             }
+            deviceIndex = new DefinitionIndex(file, offsets);
+            return deviceIndex;
         } catch (IOException ioe) {
-            log.error("Could not load file in the path {}: {}", apData, ioe.getMessage());
+            log.error("Could not load file in the path {}: {}", file, ioe.getMessage());
+            return null;
         }
     }
 
@@ -151,12 +248,11 @@ public class Environment {
     }
 
     public static SimulatedPhone getSimPhone(String serial) {
-        if (simPhones.containsKey(serial)) {
-            return simPhones.get(serial);
-        } else {
+        SimulatedPhone phone = serial != null ? simPhones.get(serial) : null;
+        if (phone == null) {
             log.error("No phone present with the serial number {}", serial);
-            return null;
         }
+        return phone;
     }
 
     public static Map<String, SimulatedPhone> getSimPhones() {
@@ -164,20 +260,27 @@ public class Environment {
     }
 
     public static void setSimPhone(String token, SimulatedPhone phone) {
-        simPhones.put(token, phone);
+        if (token == null) {
+            log.error("Cannot register a phone without a serial number");
+        } else if (phone == null) {
+            simPhones.remove(token);
+        } else {
+            simPhones.put(token, phone);
+        }
     }
 
     public static void removeSimPhone(String token) {
-        simPhones.remove(token);
+        if (token != null) {
+            simPhones.remove(token);
+        }
     }
 
     public static SimulatedBattery getSimBattery(String serial) {
-        if (simBatteries.containsKey(serial)) {
-            return simBatteries.get(serial);
-        } else {
+        SimulatedBattery battery = serial != null ? simBatteries.get(serial) : null;
+        if (battery == null) {
             log.error("No battery present with the serial number {}", serial);
-            return null;
         }
+        return battery;
     }
 
     public static Map<String, SimulatedBattery> getSimBatteries() {
@@ -185,20 +288,27 @@ public class Environment {
     }
 
     public static void setSimBattery(String token, SimulatedBattery battery) {
-        simBatteries.put(token, battery);
+        if (token == null) {
+            log.error("Cannot register a battery without a serial number");
+        } else if (battery == null) {
+            simBatteries.remove(token);
+        } else {
+            simBatteries.put(token, battery);
+        }
     }
 
     public static void removeSimBattery(String token) {
-        simBatteries.remove(token);
+        if (token != null) {
+            simBatteries.remove(token);
+        }
     }
 
     public static SimulatedAP getSimNetwork(String ssid) {
-        if (simNetworks.containsKey(ssid)) {
-            return simNetworks.get(ssid);
-        } else {
+        SimulatedAP ap = ssid != null ? simNetworks.get(ssid) : null;
+        if (ap == null) {
             log.error("No AP present with the SSID {}", ssid);
-            return null;
         }
+        return ap;
     }
 
     public static Map<String, SimulatedAP> getSimNetworks() {
@@ -206,10 +316,76 @@ public class Environment {
     }
 
     public static void setSimNetwork(String bssid, SimulatedAP newAP) {
-        simNetworks.put(bssid, newAP);
+        if (bssid == null) {
+            log.error("Cannot register an AP without an SSID");
+        } else if (newAP == null) {
+            simNetworks.remove(bssid);
+        } else {
+            simNetworks.put(bssid, newAP);
+        }
     }
 
     public static void removeSimNetwork(String ssid) {
-        simNetworks.remove(ssid);
+        if (ssid != null) {
+            simNetworks.remove(ssid);
+        }
+    }
+
+    public static SimulatedLocation getSimLocation(String name) {
+        SimulatedLocation location = name != null ? simLocations.get(name) : null;
+        if (location == null) {
+            log.error("No location present with the name {}", name);
+        }
+        return location;
+    }
+
+    public static Map<String, SimulatedLocation> getSimLocations() {
+        return simLocations;
+    }
+
+    /**
+     * Registers a location together with its APs, phones and the batteries inserted in them, and indexes
+     * its AP neighbours.
+     */
+    public static void addSimLocation(SimulatedLocation location) {
+        simLocations.put(location.getName(), location);
+        NeighborIndex.index(location);
+        for (SimulatedAP ap : location.getAps()) {
+            simNetworks.put(ap.getAp_ssid(), ap);
+        }
+        for (SimulatedPhone phone : location.getPhones()) {
+            simPhones.put(phone.getDevice_serial_number(), phone);
+            if (phone.getCurrent_battery() != null) {
+                simBatteries.put(phone.getCurrent_battery().getBattery_serial_num(), phone.getCurrent_battery());
+            }
+        }
+    }
+
+    public static void removeSimLocation(String name) {
+        SimulatedLocation location = simLocations.remove(name);
+        if (location != null) {
+            NeighborIndex.remove(location);
+        }
+    }
+
+    /**
+     * Byte range of each device definition in a defaults file, valid while the file is unchanged.
+     */
+    private static class DefinitionIndex {
+        final Path path;
+        final Map<String, long[]> offsets;
+        final long size;
+        final long modified;
+
+        DefinitionIndex(Path path, Map<String, long[]> offsets) {
+            this.path = path;
+            this.offsets = offsets;
+            this.size = path.toFile().length();
+            this.modified = path.toFile().lastModified();
+        }
+
+        boolean isStale() {
+            return path.toFile().length() != size || path.toFile().lastModified() != modified;
+        }
     }
 }
@@ -0,0 +1,296 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static com.spectralink.aimwright.injection.SimulatedAP.WifiBandsChannels.*;
+import static com.spectralink.aimwright.injection.SimulatedPhone.Model.*;
+
+/**
+ * Builds large simulated fleets without hand-maintained JSON.
+ *
+ * Phones are spread evenly across locations. Each location is a floor with its APs on a square grid, and
+ * each phone is placed at a random spot on the floor, paired with its own battery and connected to the
+ * nearest AP. Neighbouring APs on the same band get different channels.
+ *
+ * Everything is derived from the seed, so the same seed always builds the same fleet. Serial numbers, MAC
+ * addresses, IP addresses, battery serials and BSSIDs are unique within a fleet: each is a scrambled
+ * one-to-one mapping of the object's ordinal rather than a random draw.
+ */
+public class FleetGenerator {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(FleetGenerator.class.getName());
+    private static final double AP_SPACING_M = 20.0;
+    private static final int MAX_PHONES = 1 << 24;
+    private static final int MAX_LOCATIONS = 256;
+    private static final int HOSTS_PER_LOCATION = 254 * 256;
+    private static final char[] BASE36 = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+    private static final SimulatedAP.WifiBandsChannels[] CHANNELS_24 = {CHANNEL1_24GHZ, CHANNEL6_24GHZ, CHANNEL11_24GHZ};
+    private static final SimulatedAP.WifiBandsChannels[] CHANNELS_50 = {
+            CHANNEL36_50GHZ, CHANNEL40_50GHZ, CHANNEL44_50GHZ, CHANNEL48_50GHZ, CHANNEL149_50GHZ, CHANNEL153_50GHZ,
+            CHANNEL157_50GHZ, CHANNEL161_50GHZ, CHANNEL52_50GHZ, CHANNEL56_50GHZ, CHANNEL60_50GHZ, CHANNEL64_50GHZ,
+            CHANNEL100_50GHZ, CHANNEL104_50GHZ, CHANNEL108_50GHZ, CHANNEL112_50GHZ, CHANNEL116_50GHZ,
+            CHANNEL120_50GHZ, CHANNEL124_50GHZ, CHANNEL128_50GHZ, CHANNEL132_50GHZ, CHANNEL136_50GHZ,
+            CHANNEL140_50GHZ, CHANNEL144_50GHZ, CHANNEL165_50GHZ};
+    // Preferred scanning channels of the 6 GHz band
+    private static final SimulatedAP.WifiBandsChannels[] CHANNELS_60 = {
+            CHANNEL5_60GHZ, CHANNEL21_60GHZ, CHANNEL37_60GHZ, CHANNEL53_60GHZ, CHANNEL69_60GHZ, CHANNEL85_60GHZ,
+            CHANNEL101_60GHZ, CHANNEL117_60GHZ, CHANNEL133_60GHZ, CHANNEL149_60GHZ, CHANNEL165_60GHZ,
+            CHANNEL181_60GHZ, CHANNEL197_60GHZ, CHANNEL213_60GHZ, CHANNEL229_60GHZ};
+
+    private final int phoneCount;
+    private int locationCount = 1;
+    private int apsPerLocation = 16;
+    private long seed = SimulationRandom.getRunSeed();
+    private String locationPrefix = "Site";
+    private final Map<SimulatedPhone.Model, Integer> modelMix = new EnumMap<>(SimulatedPhone.Model.class);
+    private final int[] bandMix = {15, 70, 15};
+
+    public FleetGenerator(int phoneCount) {
+        if (phoneCount < 0 || phoneCount > MAX_PHONES) {
+            throw new IllegalArgumentException("Fleet size must be between 0 and " + MAX_PHONES + ": " + phoneCount);
+        }
+        this.phoneCount = phoneCount;
+        modelMix.put(VERSITY_9540, 1);
+        modelMix.put(VERSITY_9553, 1);
+        modelMix.put(VERSITY_9640, 3);
+        modelMix.put(VERSITY_9653, 2);
+        modelMix.put(VERSITY_9740, 3);
+        modelMix.put(VERSITY_9753, 2);
+        modelMix.put(ORION_9240, 1);
+        modelMix.put(ORION_9253, 1);
+    }
+
+    /**
+     * Sets the number of locations the phones are spread across, at most 256.
+     */
+    public FleetGenerator setLocations(int locationCount) {
+        if (locationCount < 1 || locationCount > MAX_LOCATIONS) {
+            log.error("Invalid location count {}; keeping {}", locationCount, this.locationCount);
+        } else {
+            this.locationCount = locationCount;
+        }
+        return this;
+    }
+
+    public FleetGenerator setApsPerLocation(int apsPerLocation) {
+        if (apsPerLocation < 1) {
+            log.error("Invalid AP count per location {}; keeping {}", apsPerLocation, this.apsPerLocation);
+        } else {
+            this.apsPerLocation = apsPerLocation;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the seed the fleet is derived from. Defaults to the simulation run seed.
+     */
+    public FleetGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sets the prefix of location names, which are numbered from 001.
+     */
+    public FleetGenerator setLocationPrefix(String locationPrefix) {
+        this.locationPrefix = locationPrefix;
+        return this;
+    }
+
+    /**
+     * Sets the relative weight of each phone model. Models not in the map are not generated.
+     */
+    public FleetGenerator setModelMix(Map<SimulatedPhone.Model, Integer> weights) {
+        Map<SimulatedPhone.Model, Integer> positive = new EnumMap<>(SimulatedPhone.Model.class);
+        for (Map.Entry<SimulatedPhone.Model, Integer> weight : weights.entrySet()) {
+            if (weight.getValue() > 0) positive.put(weight.getKey(), weight.getValue());
+        }
+        if (positive.isEmpty()) {
+            log.error("Invalid model mix {}; keeping {}", weights, modelMix);
+        } else {
+            modelMix.clear();
+            modelMix.putAll(positive);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the relative weight of 2.4, 5 and 6 GHz APs.
+     */
+    public FleetGenerator setBandMix(int weight24, int weight50, int weight60) {
+        if (weight24 < 0 || weight50 < 0 || weight60 < 0 || weight24 + weight50 + weight60 == 0) {
+            log.error("Invalid band mix {}/{}/{}; keeping {}/{}/{}", weight24, weight50, weight60, bandMix[0], bandMix[1], bandMix[2]);
+        } else {
+            bandMix[0] = weight24;
+            bandMix[1] = weight50;
+            bandMix[2] = weight60;
+        }
+        return this;
+    }
+
+    /**
+     * Builds the fleet. The phones are not registered anywhere; see {@link Environment#addSimLocation}.
+     *
+     * @throws IllegalArgumentException If the fleet size, location count and AP count together cannot be given
+     *         unique IP addresses and BSSIDs. Each setting is valid on its own, so there is no previous value to
+     *         fall back to, and a fleet with duplicate identities would only fail later and less clearly.
+     */
+    public List<SimulatedLocation> generate() {
+        int phonesPerLocation = (phoneCount + locationCount - 1) / locationCount;
+        if (phonesPerLocation > HOSTS_PER_LOCATION) {
+            throw new IllegalArgumentException("At most " + HOSTS_PER_LOCATION + " phones fit in a location's subnet: " + phonesPerLocation);
+        }
+        if ((long) locationCount * apsPerLocation > MAX_PHONES) {
+            throw new IllegalArgumentException("Too many APs for unique BSSIDs: " + (long) locationCount * apsPerLocation);
+        }
+        long start = System.nanoTime();
+        SplittableRandom random = new SplittableRandom(seed);
+        long serialSalt = random.nextLong();
+        long macSalt = random.nextLong();
+        long batterySalt = random.nextLong();
+        long bssidSalt = random.nextLong();
+        char[] serialPrefix = {'c', 'n', 'n', 'c', BASE36[random.nextInt(36)], BASE36[random.nextInt(36)], BASE36[random.nextInt(36)]};
+        SimulatedPhone.Model[] models = modelMix.keySet().toArray(new SimulatedPhone.Model[0]);
+        int[] modelWeights = modelMix.values().stream().mapToInt(Integer::intValue).toArray();
+
+        List<SimulatedLocation> locations = new ArrayList<>(locationCount);
+        int columns = (int) Math.ceil(Math.sqrt(apsPerLocation));
+        int rows = (apsPerLocation + columns - 1) / columns;
+        int phoneOrdinal = 0;
+        for (int locationIndex = 0; locationIndex < locationCount; locationIndex++) {
+            SplittableRandom locationRandom = random.split();
+            String name = String.format("%s-%03d", locationPrefix, locationIndex + 1);
+            SimulatedLocation location = new SimulatedLocation(name, columns * AP_SPACING_M, rows * AP_SPACING_M);
+            for (int apIndex = 0; apIndex < apsPerLocation; apIndex++) {
+                int row = apIndex / columns;
+                int column = apIndex % columns;
+                SimulatedAP ap = new SimulatedAP(String.format("%s-AP-%03d", name, apIndex + 1));
+                ap.setAp_bssid(bssid(scramble(locationIndex * (long) apsPerLocation + apIndex, 24, bssidSalt)));
+                ap.setAp_channel(channelFor(pick(locationRandom, bandMix), row, column));
+                location.addAp(ap, (column + 0.5) * AP_SPACING_M, (row + 0.5) * AP_SPACING_M);
+            }
+
+            int hostOffset = locationRandom.nextInt(HOSTS_PER_LOCATION);
+            int phonesHere = Math.min(phonesPerLocation, phoneCount - phoneOrdinal);
+            for (int phoneIndex = 0; phoneIndex < phonesHere; phoneIndex++, phoneOrdinal++) {
+                SimulatedPhone.Model model = models[pick(locationRandom, modelWeights)];
+                SimulatedPhone phone = new SimulatedPhone();
+                String serial = serial(serialPrefix, scramble(phoneOrdinal, 40, serialSalt));
+                phone.setDevice_serial_number(serial);
+                phone.setDesignated_model(model);
+                phone.setDevice_model(model.fullModel());
+                phone.setDevice_name("Spectralink " + serial);
+                phone.setImei(hex(locationRandom.nextLong()));
+                phone.setMac_address(spectralinkMac(scramble(phoneOrdinal, 24, macSalt)));
+                phone.setIp_address(ipAddress(locationIndex, (hostOffset + phoneIndex) % HOSTS_PER_LOCATION));
+
+                SimulatedBattery battery = new SimulatedBattery(String.format("VK%011d", scramble(phoneOrdinal, 36, batterySalt)));
+                phone.setDesignated_battery(battery.getBattery_serial_num());
+                phone.insertBattery(battery);
+
+                double x = locationRandom.nextDouble() * location.getWidth();
+                double y = locationRandom.nextDouble() * location.getDepth();
+                SimulatedAP nearest = location.getAp(location.nearestAp(x, y));
+                phone.setDesignated_ap(nearest.getAp_ssid());
+                phone.connectWifi(nearest);
+                location.addPhone(phone, x, y);
+            }
+            locations.add(location);
+        }
+        log.info("Generated {} phones across {} locations with {} APs each in {} ms (seed {})", phoneCount, locationCount,
+                apsPerLocation, (System.nanoTime() - start) / 1000000, seed);
+        return locations;
+    }
+
+    /**
+     * Builds the fleet and registers every location, AP, battery and phone in the Environment.
+     */
+    public List<SimulatedLocation> generateIntoEnvironment() {
+        List<SimulatedLocation> locations = generate();
+        register(locations);
+        return locations;
+    }
+
+    public static void register(Collection<SimulatedLocation> locations) {
+        for (SimulatedLocation location : locations) {
+            Environment.addSimLocation(location);
+        }
+    }
+
+    /**
+     * One-to-one mix of the low bits of a value: every step is invertible within the bit width, so distinct
+     * ordinals always give distinct results.
+     */
+    static long scramble(long value, int bits, long salt) {
+        long mask = (1L << bits) - 1;
+        long mixed = (value ^ salt) & mask;
+        mixed = (mixed * 0x9e3779b97f4a7c15L) & mask;
+        mixed ^= mixed >>> (bits / 2);
+        mixed = (mixed * 0xbf58476d1ce4e5b9L) & mask;
+        mixed ^= mixed >>> (bits / 2 + 1);
+        return mixed;
+    }
+
+    private static int pick(SplittableRandom random, int[] weights) {
+        int total = 0;
+        for (int weight : weights) total += weight;
+        int roll = random.nextInt(total);
+        for (int index = 0; index < weights.length; index++) {
+            roll -= weights[index];
+            if (roll < 0) return index;
+        }
+        return weights.length - 1;
+    }
+
+    private static SimulatedAP.WifiBandsChannels channelFor(int band, int row, int column) {
+        SimulatedAP.WifiBandsChannels[] plan = band == 0 ? CHANNELS_24 : band == 1 ? CHANNELS_50 : CHANNELS_60;
+        // Stepping two channels per row keeps horizontal and vertical neighbours apart, even with three channels
+        return plan[(column + 2 * row) % plan.length];
+    }
+
+    private static String serial(char[] prefix, long value) {
+        char[] serial = new char[prefix.length + 8];
+        System.arraycopy(prefix, 0, serial, 0, prefix.length);
+        for (int index = serial.length - 1; index >= prefix.length; index--) {
+            serial[index] = BASE36[(int) (value % 36)];
+            value /= 36;
+        }
+        return new String(serial);
+    }
+
+    private static String spectralinkMac(long value) {
+        char[] mac = {'0', '0', ':', '9', '0', ':', '7', 'A', ':', 0, 0, ':', 0, 0, ':', 0, 0};
+        for (int pair = 0; pair < 3; pair++) {
+            int octet = (int) (value >>> (16 - pair * 8)) & 0xff;
+            mac[9 + pair * 3] = HEX_UPPER[octet >> 4];
+            mac[10 + pair * 3] = HEX_UPPER[octet & 0xf];
+        }
+        return new String(mac);
+    }
+
+    private static String bssid(long value) {
+        return String.format("5c:0e:8b:%02x:%02x:%02x", (value >>> 16) & 0xff, (value >>> 8) & 0xff, value & 0xff);
+    }
+
+    private static String ipAddress(int locationIndex, int host) {
+        return "10." + locationIndex + "." + (host / 254) + "." + (host % 254 + 1);
+    }
+
+    private static String hex(long value) {
+        char[] text = new char[16];
+        for (int index = 15; index >= 0; index--) {
+            text[index] = HEX_LOWER[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(text);
+    }
+}
@@ -0,0 +1,421 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.spectralink.aimwright.injection.SimulatedPhone.MetricsType.*;
+
+/**
+ * Drives a whole fleet of simulated phones on a fixed-size scheduler.
+ *
+ * The fleet is split into one shard per scheduler thread, so a phone is only ever touched by one thread.
+ * Every tick a shard emits the metric types that are due for a slice of its phones; each metric type is
+ * spread evenly across its interval instead of bursting the whole fleet at once.
+ */
+public class FleetSimulator {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(FleetSimulator.class.getName());
+    private static final long MAX_TICK_MS = 1000;
+
+    private final List<SimulatedPhone> fleet;
+    private final Map<SimulatedPhone.MetricsType, Long> intervals = new EnumMap<>(SimulatedPhone.MetricsType.class);
+    private int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private ScheduledExecutorService scheduler;
+    private MetricsPublisher publisher;
+    private boolean ownsPublisher = false;
+    private boolean useTemplates = true;
+    private boolean useDriftEngine = true;
+    private DriftEngine driftEngine;
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long startNanos;
+    private long stopNanos;
+
+    /**
+     * Creates a simulator for every phone currently loaded into the Environment.
+     */
+    public FleetSimulator() {
+        this(Environment.getSimPhones().values());
+    }
+
+    public FleetSimulator(Collection<SimulatedPhone> phones) {
+        fleet = new ArrayList<>(phones);
+        intervals.put(DEVICE, 60000L);
+        intervals.put(BATTERY, 60000L);
+        intervals.put(NETWORK, 30000L);
+        intervals.put(CALL, 5000L);
+    }
+
+    /**
+     * Sets how often each phone emits a metric type. A zero interval disables the type.
+     * Only DEVICE, BATTERY, NETWORK and CALL are driven by the simulator.
+     */
+    public FleetSimulator setInterval(SimulatedPhone.MetricsType type, long intervalMs) {
+        if (!intervals.containsKey(type)) {
+            log.error("Metric type {} is not driven by the fleet simulator", type);
+        } else if (intervalMs < 0) {
+            log.error("Invalid interval {} ms for {}", intervalMs, type);
+        } else {
+            intervals.put(type, intervalMs);
+        }
+        return this;
+    }
+
+    public long getInterval(SimulatedPhone.MetricsType type) {
+        return intervals.getOrDefault(type, 0L);
+    }
+
+    /**
+     * Sets where the fleet's metrics are published. When no publisher is set, the simulator opens a
+     * {@link MultiplexedPublisher} against the configured gateway on start and closes it on stop.
+     */
+    public FleetSimulator setPublisher(MetricsPublisher publisher) {
+        this.publisher = publisher;
+        ownsPublisher = false;
+        return this;
+    }
+
+    /**
+     * Renders DEVICE and BATTERY messages from per-phone {@link PayloadTemplate}s instead of streaming every field.
+     * Templates are compiled on first use, so static phone fields changed while running are not picked up.
+     */
+    public FleetSimulator setUseTemplates(boolean useTemplates) {
+        this.useTemplates = useTemplates;
+        return this;
+    }
+
+    /**
+     * Drifts the fleet's metrics with a {@link DriftEngine} while running, advancing each group once per
+     * interval of its metric type, instead of drifting inside every getter call.
+     */
+    public FleetSimulator setUseDriftEngine(boolean useDriftEngine) {
+        this.useDriftEngine = useDriftEngine;
+        return this;
+    }
+
+    public FleetSimulator setThreadCount(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+        return this;
+    }
+
+    public int getFleetSize() {
+        return fleet.size();
+    }
+
+    /**
+     * Starts emitting metrics for the fleet. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            log.warn("Fleet simulator is already running");
+            return;
+        }
+        if (publisher == null && !Settings.isDebugMode()) {
+            publisher = new MultiplexedPublisher();
+            ownsPublisher = true;
+        }
+        long tickMs = getTickMillis();
+        int shardCount = Math.max(1, Math.min(threadCount, fleet.size()));
+        AtomicInteger threadIndex = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(shardCount, runnable -> {
+            Thread thread = new Thread(runnable, "fleet-simulator-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        messagesSent.set(0);
+        failures.set(0);
+        startNanos = System.nanoTime();
+        stopNanos = 0;
+        if (useDriftEngine) {
+            driftEngine = new DriftEngine(fleet);
+            scheduler.scheduleAtFixedRate(new DriftTask(driftEngine, new EnumMap<>(intervals), tickMs), 0, tickMs, TimeUnit.MILLISECONDS);
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<SimulatedPhone> shardPhones = new ArrayList<>();
+            for (int index = shard; index < fleet.size(); index += shardCount) {
+                shardPhones.add(fleet.get(index));
+            }
+            scheduler.scheduleAtFixedRate(new ShardTask(shardPhones, new EnumMap<>(intervals), tickMs), 0, tickMs, TimeUnit.MILLISECONDS);
+        }
+        log.info("Fleet simulator started: {} phones, {} threads, {} ms tick, target {} msg/s",
+                fleet.size(), shardCount, tickMs, Math.round(getTargetRate() * 10) / 10.0);
+    }
+
+    /**
+     * Stops the scheduler, waits for in-flight ticks and logs the achieved rate.
+     */
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        if (driftEngine != null) {
+            driftEngine.close();
+            driftEngine = null;
+        }
+        if (ownsPublisher) {
+            publisher.close();
+            publisher = null;
+            ownsPublisher = false;
+        }
+        stopNanos = System.nanoTime();
+        log.info(getSummary());
+    }
+
+    public boolean isRunning() {
+        return scheduler != null;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Messages per second the configured intervals ask for across the fleet.
+     */
+    public double getTargetRate() {
+        double rate = 0.0;
+        for (Map.Entry<SimulatedPhone.MetricsType, Long> entry : intervals.entrySet()) {
+            if (entry.getValue() > 0) {
+                rate += countEligible(entry.getKey()) * 1000.0 / entry.getValue();
+            }
+        }
+        return rate;
+    }
+
+    /**
+     * Messages per second actually published since the simulator started.
+     */
+    public double getAchievedRate() {
+        if (startNanos == 0) return 0.0;
+        long end = stopNanos != 0 ? stopNanos : System.nanoTime();
+        double seconds = (end - startNanos) / 1e9;
+        return seconds > 0 ? messagesSent.get() / seconds : 0.0;
+    }
+
+    public String getSummary() {
+        double target = getTargetRate();
+        double achieved = getAchievedRate();
+        String pct = target > 0 ? String.valueOf(Math.round(achieved / target * 1000) / 10.0) : "n/a";
+        return String.format("Fleet simulator: %d phones, %d messages, %d failures, %.1f msg/s achieved of %.1f msg/s target (%s%%)",
+                fleet.size(), messagesSent.get(), failures.get(), achieved, target, pct);
+    }
+
+    private long getTickMillis() {
+        long tick = MAX_TICK_MS;
+        for (long interval : intervals.values()) {
+            if (interval > 0) tick = gcd(tick, interval);
+        }
+        return tick;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    private long countEligible(SimulatedPhone.MetricsType type) {
+        long count = 0;
+        for (SimulatedPhone phone : fleet) {
+            if (isEligible(phone, type)) count++;
+        }
+        return count;
+    }
+
+    static boolean isEligible(SimulatedPhone phone, SimulatedPhone.MetricsType type) {
+        switch (type) {
+            case DEVICE:
+                return true;
+            case BATTERY:
+                return phone.getCurrent_battery() != null;
+            case NETWORK:
+                return phone.getCurrent_ap() != null;
+            case CALL:
+                return phone.getCurrent_call() != null && phone.getCurrent_ap() != null;
+            default:
+                return false;
+        }
+    }
+
+    static void writeMetrics(MetricsStreamWriter writer, SimulatedPhone phone, SimulatedPhone.MetricsType type, long timestamp) {
+        switch (type) {
+            case DEVICE:
+                writer.writeDeviceMetrics(phone, timestamp);
+                break;
+            case BATTERY:
+                writer.writeBattery(phone.getCurrent_battery(), timestamp);
+                break;
+            case NETWORK:
+                writer.writeNetworkMetrics(phone, timestamp);
+                break;
+            case CALL:
+                writer.writeCallDetails(phone.getCurrent_call(), timestamp);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void publish(SimulatedPhone phone, byte[] payload) {
+        if (publisher == null) {
+            log.trace(new String(payload, StandardCharsets.UTF_8));
+            messagesSent.incrementAndGet();
+        } else {
+            publisher.publish(phone.getDevice_serial_number(), payload)
+                    .whenComplete((ignored, error) -> {
+                        if (error == null) {
+                            messagesSent.incrementAndGet();
+                        } else {
+                            failures.incrementAndGet();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Advances each drift group once per interval of the metric type that reports it.
+     */
+    private static class DriftTask implements Runnable {
+        private final DriftEngine engine;
+        private final Map<SimulatedPhone.MetricsType, Long> schedule;
+        private final long tickMs;
+        private long tickCount = 0;
+
+        DriftTask(DriftEngine engine, Map<SimulatedPhone.MetricsType, Long> schedule, long tickMs) {
+            this.engine = engine;
+            this.schedule = schedule;
+            this.tickMs = tickMs;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Map.Entry<SimulatedPhone.MetricsType, Long> entry : schedule.entrySet()) {
+                    long interval = entry.getValue();
+                    if (interval <= 0 || tickCount % Math.max(1, interval / tickMs) != 0) continue;
+                    advance(entry.getKey());
+                }
+            } catch (RuntimeException re) {
+                // An exception would cancel the schedule; log it and drift again next tick
+                log.error("Failed to advance fleet drift: {}", re.getMessage());
+            }
+            tickCount++;
+        }
+
+        private void advance(SimulatedPhone.MetricsType type) {
+            switch (type) {
+                case DEVICE:
+                    engine.advancePhones();
+                    break;
+                case BATTERY:
+                    engine.advanceBatteries();
+                    break;
+                case NETWORK:
+                    engine.advanceAps();
+                    break;
+                case CALL:
+                    engine.advanceCalls();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Emits the due metric types for one shard of the fleet on every tick.
+     */
+    private class ShardTask implements Runnable {
+        private final List<SimulatedPhone> phones;
+        private final Map<SimulatedPhone.MetricsType, Long> schedule;
+        private final long tickMs;
+        private final MetricsStreamWriter writer = new MetricsStreamWriter();
+        private final PayloadTemplate[] deviceTemplates;
+        private final PayloadTemplate[] batteryTemplates;
+        private long tickCount = 0;
+
+        ShardTask(List<SimulatedPhone> phones, Map<SimulatedPhone.MetricsType, Long> schedule, long tickMs) {
+            this.phones = phones;
+            this.schedule = schedule;
+            this.tickMs = tickMs;
+            deviceTemplates = new PayloadTemplate[phones.size()];
+            batteryTemplates = new PayloadTemplate[phones.size()];
+        }
+
+        @Override
+        public void run() {
+            for (Map.Entry<SimulatedPhone.MetricsType, Long> entry : schedule.entrySet()) {
+                long interval = entry.getValue();
+                if (interval <= 0) continue;
+                int slots = (int) Math.max(1, interval / tickMs);
+                int slot = (int) (tickCount % slots);
+                for (int index = slot; index < phones.size(); index += slots) {
+                    SimulatedPhone phone = phones.get(index);
+                    if (isEligible(phone, entry.getKey())) {
+                        emit(index, phone, entry.getKey());
+                    }
+                }
+            }
+            tickCount++;
+        }
+
+        private void emit(int index, SimulatedPhone phone, SimulatedPhone.MetricsType type) {
+            try {
+                long timestamp = System.currentTimeMillis();
+                PayloadTemplate template = useTemplates ? getTemplate(index, phone, type) : null;
+                byte[] payload;
+                if (template != null) {
+                    payload = template.render(timestamp);
+                } else {
+                    writer.beginMessage(phone.getDevice_serial_number(), timestamp);
+                    writeMetrics(writer, phone, type, timestamp);
+                    payload = writer.endMessage();
+                }
+                publish(phone, payload);
+            } catch (RuntimeException re) {
+                writer.reset();
+                failures.incrementAndGet();
+                log.error("Failed to emit {} metrics for {}: {}", type, phone.getDevice_serial_number(), re.getMessage());
+            }
+        }
+
+        private PayloadTemplate getTemplate(int index, SimulatedPhone phone, SimulatedPhone.MetricsType type) {
+            switch (type) {
+                case DEVICE:
+                    if (deviceTemplates[index] == null) {
+                        deviceTemplates[index] = PayloadTemplate.forDeviceMetrics(phone);
+                    }
+                    return deviceTemplates[index];
+                case BATTERY:
+                    if (batteryTemplates[index] == null || batteryTemplates[index].getSource() != phone.getCurrent_battery()) {
+                        batteryTemplates[index] = PayloadTemplate.forBattery(phone.getCurrent_battery());
+                    }
+                    return batteryTemplates[index];
+                default:
+                    return null;
+            }
+        }
+    }
+}
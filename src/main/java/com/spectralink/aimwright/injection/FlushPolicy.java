@@ -0,0 +1,50 @@
+package com.spectralink.aimwright.injection;
+
+import com.spectralink.aimwright.common.Settings;
+
+/**
+ * When a simulated device sends the records it has buffered with {@link SimulatedPhone#bufferMetrics}.
+ *
+ * A buffer is flushed as soon as it holds {@code maxRecords} records, which also bounds its size, or once its
+ * oldest record is {@code maxAgeMs} old. All records in a flush go out as one message.
+ */
+public class FlushPolicy {
+    private final int maxRecords;
+    private final long maxAgeMs;
+
+    private FlushPolicy(int maxRecords, long maxAgeMs) {
+        this.maxRecords = maxRecords;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * @param maxRecords Records that trigger a flush, at least 1
+     * @param maxAgeMs Age of the oldest record that triggers a flush; 0 flushes on size only
+     */
+    public static FlushPolicy of(int maxRecords, long maxAgeMs) {
+        if (maxRecords < 1 || maxAgeMs < 0) {
+            throw new IllegalArgumentException("Invalid flush policy: " + maxRecords + " records, " + maxAgeMs + " ms");
+        }
+        return new FlushPolicy(maxRecords, maxAgeMs);
+    }
+
+    /**
+     * Policy from {@code run.buffer.flush.records} and {@code run.buffer.flush.age.ms}.
+     */
+    public static FlushPolicy fromSettings() {
+        return of(Settings.getBufferFlushRecords(), Settings.getBufferFlushAgeMs());
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    @Override
+    public String toString() {
+        return maxAgeMs > 0 ? maxRecords + " records or " + maxAgeMs + " ms" : maxRecords + " records";
+    }
+}
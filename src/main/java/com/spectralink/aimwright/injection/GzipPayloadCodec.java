@@ -0,0 +1,79 @@
+package com.spectralink.aimwright.injection;
+
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-compresses the output of another codec. Named after it with a {@code +gzip} suffix, e.g. {@code cbor+gzip}.
+ */
+public class GzipPayloadCodec implements PayloadCodec {
+    private final PayloadCodec inner;
+    private final String name;
+    private final int level;
+
+    public GzipPayloadCodec(PayloadCodec inner) {
+        this(inner, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param inner Codec whose output is compressed
+     * @param level Deflate level, 1 (fastest) to 9 (smallest), or -1 for the default
+     */
+    public GzipPayloadCodec(PayloadCodec inner, int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Invalid gzip level: " + level);
+        }
+        this.inner = inner;
+        this.name = inner.getName() + "+gzip";
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte[] encode(JsonNode json) throws IOException {
+        return compress(inner.encode(json));
+    }
+
+    @Override
+    public byte[] transcode(byte[] json) throws IOException {
+        return compress(inner.transcode(json));
+    }
+
+    @Override
+    public JsonNode decode(byte[] payload) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+            return inner.decode(in.readAllBytes());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private byte[] compress(byte[] data) throws IOException {
+        ByteArrayBuilder out = new ByteArrayBuilder(Math.max(64, data.length / 2));
+        try (GZIPOutputStream gzip = new LeveledGzipOutputStream(out, level)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static class LeveledGzipOutputStream extends GZIPOutputStream {
+        LeveledGzipOutputStream(ByteArrayBuilder out, int level) throws IOException {
+            super(out, 4096);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.spectralink.aimwright.injection.SimulatedPhone.MetricsType.*;
+
+/**
+ * Loads a history of metrics for a fleet by walking simulated time over a past window.
+ *
+ * Every phone gets one record per sample interval of each metric type, timestamped in simulated time. The
+ * records are packed into large {@code data} arrays, as {@link SimulatedPhone#sendBufferedMetrics()} does with
+ * the phone buffer, and published as fast as the publisher accepts them. Each sample reads the drifting
+ * getters once, so metrics drift one step per sample. Do not run a backfill on phones that a running
+ * {@link FleetSimulator} is driving.
+ *
+ * <pre>
+ * new HistoricalBackfill(fleet)
+ *         .setWindow(Duration.ofDays(90))
+ *         .setInterval(SimulatedPhone.MetricsType.BATTERY, 900000)
+ *         .run();
+ * </pre>
+ */
+public class HistoricalBackfill {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(HistoricalBackfill.class.getName());
+    private static final int MAX_PENDING = 10000;
+
+    private final List<SimulatedPhone> fleet;
+    private final Map<SimulatedPhone.MetricsType, Long> intervals = new EnumMap<>(SimulatedPhone.MetricsType.class);
+    private long endMillis = System.currentTimeMillis();
+    private long startMillis = endMillis - Duration.ofDays(30).toMillis();
+    private int batchSize = 200;
+    private int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private MetricsPublisher publisher;
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long elapsedNanos = 0;
+
+    /**
+     * Creates a backfill for every phone currently loaded into the Environment.
+     */
+    public HistoricalBackfill() {
+        this(Environment.getSimPhones().values());
+    }
+
+    public HistoricalBackfill(Collection<SimulatedPhone> phones) {
+        fleet = new ArrayList<>(phones);
+        intervals.put(DEVICE, 3600000L);
+        intervals.put(BATTERY, 900000L);
+        intervals.put(NETWORK, 900000L);
+        intervals.put(CALL, 0L);
+    }
+
+    /**
+     * Backfills the given duration up to now.
+     */
+    public HistoricalBackfill setWindow(Duration history) {
+        long now = System.currentTimeMillis();
+        return setWindow(now - history.toMillis(), now);
+    }
+
+    /**
+     * Backfills from start (inclusive) to end (exclusive), in epoch milliseconds.
+     */
+    public HistoricalBackfill setWindow(long startMillis, long endMillis) {
+        if (startMillis >= endMillis) {
+            log.error("Invalid backfill window {} - {}", startMillis, endMillis);
+        } else {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the simulated time between two records of a metric type. A zero interval disables the type.
+     * Only DEVICE, BATTERY, NETWORK and CALL are backfilled.
+     */
+    public HistoricalBackfill setInterval(SimulatedPhone.MetricsType type, long intervalMs) {
+        if (!intervals.containsKey(type)) {
+            log.error("Metric type {} is not backfilled", type);
+        } else if (intervalMs < 0) {
+            log.error("Invalid interval {} ms for {}", intervalMs, type);
+        } else {
+            intervals.put(type, intervalMs);
+        }
+        return this;
+    }
+
+    public long getInterval(SimulatedPhone.MetricsType type) {
+        return intervals.getOrDefault(type, 0L);
+    }
+
+    /**
+     * Sets the maximum number of records packed into one message.
+     */
+    public HistoricalBackfill setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            log.error("Invalid backfill batch size {}", batchSize);
+        } else {
+            this.batchSize = batchSize;
+        }
+        return this;
+    }
+
+    /**
+     * Sets where the history is published. When no publisher is set, a {@link MultiplexedPublisher} against the
+     * configured gateway is opened for the run and closed afterwards.
+     */
+    public HistoricalBackfill setPublisher(MetricsPublisher publisher) {
+        this.publisher = publisher;
+        return this;
+    }
+
+    public HistoricalBackfill setThreadCount(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+        return this;
+    }
+
+    /**
+     * Number of records the window and intervals produce for the fleet.
+     */
+    public long getExpectedRecords() {
+        long records = 0;
+        for (Map.Entry<SimulatedPhone.MetricsType, Long> entry : intervals.entrySet()) {
+            if (entry.getValue() <= 0) continue;
+            long samples = (endMillis - startMillis + entry.getValue() - 1) / entry.getValue();
+            for (SimulatedPhone phone : fleet) {
+                if (FleetSimulator.isEligible(phone, entry.getKey())) records += samples;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Generates and publishes the whole history, returning once every message has completed.
+     */
+    public synchronized void run() {
+        recordsWritten.set(0);
+        messagesSent.set(0);
+        bytesSent.set(0);
+        failures.set(0);
+        MetricsPublisher target = publisher;
+        boolean ownsPublisher = false;
+        if (target == null && !Settings.isDebugMode()) {
+            target = new MultiplexedPublisher();
+            ownsPublisher = true;
+        }
+        log.info("Backfilling {} records for {} phones from {} to {}",
+                getExpectedRecords(), fleet.size(), Instant.ofEpochMilli(startMillis), Instant.ofEpochMilli(endMillis));
+
+        long start = System.nanoTime();
+        int shardCount = Math.max(1, Math.min(threadCount, fleet.size()));
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(shardCount, runnable -> {
+            Thread thread = new Thread(runnable, "backfill-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<?>> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<SimulatedPhone> shardPhones = new ArrayList<>();
+            for (int index = shard; index < fleet.size(); index += shardCount) {
+                shardPhones.add(fleet.get(index));
+            }
+            shards.add(executor.submit(new ShardTask(shardPhones, target)));
+        }
+        for (Future<?> shard : shards) {
+            try {
+                shard.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                log.error("Backfill shard failed: {}", ee.getCause().getMessage());
+            }
+        }
+        executor.shutdownNow();
+        elapsedNanos = System.nanoTime() - start;
+        if (ownsPublisher) {
+            target.close();
+        }
+        log.info(getSummary());
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public double getElapsedSeconds() {
+        return elapsedNanos / 1e9;
+    }
+
+    public String getSummary() {
+        double seconds = getElapsedSeconds();
+        return String.format("Backfill: %d phones, %d records in %d messages (%.1f MB), %d failures, %.1f s, %.0f records/s",
+                fleet.size(), recordsWritten.get(), messagesSent.get(), bytesSent.get() / 1048576.0, failures.get(), seconds,
+                seconds > 0 ? recordsWritten.get() / seconds : 0.0);
+    }
+
+    private long getStepMillis() {
+        long step = 0;
+        for (long interval : intervals.values()) {
+            if (interval > 0) step = step == 0 ? interval : gcd(step, interval);
+        }
+        return step;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * Walks the window for each phone of one shard in turn, publishing its records in batches.
+     */
+    private class ShardTask implements Runnable {
+        private final List<SimulatedPhone> phones;
+        private final MetricsPublisher target;
+        private final MetricsStreamWriter writer = new MetricsStreamWriter();
+        private final List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        ShardTask(List<SimulatedPhone> phones, MetricsPublisher target) {
+            this.phones = phones;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            long step = getStepMillis();
+            if (step == 0) return;
+            for (SimulatedPhone phone : phones) {
+                if (Thread.currentThread().isInterrupted()) break;
+                backfill(phone, step);
+            }
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+            } catch (RuntimeException re) {
+                // Failures are counted per message
+            }
+        }
+
+        private void backfill(SimulatedPhone phone, long step) {
+            int batched = 0;
+            try {
+                for (long timestamp = startMillis; timestamp < endMillis; timestamp += step) {
+                    long offset = timestamp - startMillis;
+                    for (Map.Entry<SimulatedPhone.MetricsType, Long> entry : intervals.entrySet()) {
+                        long interval = entry.getValue();
+                        if (interval <= 0 || offset % interval != 0 || !FleetSimulator.isEligible(phone, entry.getKey())) continue;
+                        if (batched == 0) {
+                            writer.beginMessage(phone.getDevice_serial_number(), timestamp);
+                        }
+                        FleetSimulator.writeMetrics(writer, phone, entry.getKey(), timestamp);
+                        recordsWritten.incrementAndGet();
+                        if (++batched == batchSize) {
+                            publish(phone, writer.endMessage());
+                            batched = 0;
+                        }
+                    }
+                }
+                if (batched > 0) {
+                    publish(phone, writer.endMessage());
+                }
+            } catch (RuntimeException re) {
+                writer.reset();
+                failures.incrementAndGet();
+                log.error("Failed to backfill metrics for {}: {}", phone.getDevice_serial_number(), re.getMessage());
+            }
+        }
+
+        private void publish(SimulatedPhone phone, byte[] payload) {
+            bytesSent.addAndGet(payload.length);
+            if (target == null) {
+                log.trace(new String(payload, StandardCharsets.UTF_8));
+                messagesSent.incrementAndGet();
+                return;
+            }
+            pending.add(target.publish(phone.getDevice_serial_number(), payload)
+                    .whenComplete((ignored, error) -> {
+                        if (error == null) {
+                            messagesSent.incrementAndGet();
+                        } else {
+                            failures.incrementAndGet();
+                        }
+                    }));
+            if (pending.size() >= MAX_PENDING) {
+                pending.removeIf(CompletableFuture::isDone);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.spectralink.aimwright.injection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded ring buffer of received MQTT payloads with blocking waits.
+ *
+ * The MQTT client thread adds messages and never blocks: when the buffer is full the oldest message is
+ * overwritten ({@link OverflowPolicy#DROP_OLDEST}) or the new one is discarded
+ * ({@link OverflowPolicy#DROP_NEWEST}), and the drop is counted. Readers either drain everything at once or
+ * wait for a matching message, waking as soon as it arrives instead of polling.
+ */
+public class InboundMessageBuffer {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    private final byte[][] ring;
+    private final long[] sequence;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+    private int head = 0;
+    private int size = 0;
+    private long receivedCount = 0;
+    private long droppedCount = 0;
+
+    /**
+     * @param capacity Maximum number of messages held
+     * @param policy Which message to lose when the buffer is full
+     */
+    public InboundMessageBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Inbound buffer capacity must be positive: " + capacity);
+        }
+        this.ring = new byte[capacity][];
+        this.sequence = new long[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message, dropping one according to the overflow policy if the buffer is full.
+     *
+     * @return False if a message was dropped
+     */
+    public boolean add(byte[] payload) {
+        lock.lock();
+        try {
+            receivedCount++;
+            boolean kept = true;
+            if (size == ring.length) {
+                droppedCount++;
+                kept = false;
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                head = (head + 1) % ring.length;
+                size--;
+            }
+            int index = (head + size) % ring.length;
+            ring[index] = payload;
+            sequence[index] = receivedCount;
+            size++;
+            arrived.signalAll();
+            return kept;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns every buffered message, oldest first.
+     */
+    public List<byte[]> drain() {
+        lock.lock();
+        try {
+            return take(size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a message matching the predicate, removes it and returns it. Messages that do not match stay
+     * in the buffer.
+     *
+     * @return The oldest matching message, or null if none arrived before the timeout
+     */
+    public byte[] await(Predicate<byte[]> predicate, long timeoutMs) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            long checked = 0;
+            while (true) {
+                // Only messages that arrived since the last scan need checking
+                for (int offset = 0; offset < size; offset++) {
+                    int index = (head + offset) % ring.length;
+                    if (sequence[index] > checked && predicate.test(ring[index])) {
+                        return removeAt(offset);
+                    }
+                }
+                checked = receivedCount;
+                if (remaining <= 0) return null;
+                remaining = arrived.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the buffer holds at least the given number of messages, then removes and returns that many,
+     * oldest first. On timeout returns whatever has arrived, which may be fewer.
+     */
+    public List<byte[]> await(int count, long timeoutMs) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            try {
+                while (size < count && remaining > 0) {
+                    remaining = arrived.awaitNanos(remaining);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return take(Math.min(count, size));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of messages added since the buffer was created, including dropped ones.
+     */
+    public long getReceivedCount() {
+        lock.lock();
+        try {
+            return receivedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of messages lost because the buffer was full.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            take(size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<byte[]> take(int count) {
+        List<byte[]> messages = new ArrayList<>(count);
+        for (int taken = 0; taken < count; taken++) {
+            messages.add(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        size -= count;
+        return messages;
+    }
+
+    private byte[] removeAt(int offset) {
+        int index = (head + offset) % ring.length;
+        byte[] payload = ring[index];
+        // Close the gap by shifting the newer messages back one slot
+        for (int position = offset; position < size - 1; position++) {
+            int to = (head + position) % ring.length;
+            int from = (head + position + 1) % ring.length;
+            ring[to] = ring[from];
+            sequence[to] = sequence[from];
+        }
+        ring[(head + size - 1) % ring.length] = null;
+        size--;
+        return payload;
+    }
+}
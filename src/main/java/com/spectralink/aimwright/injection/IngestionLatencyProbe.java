@@ -0,0 +1,369 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.spectralink.aimwright.api.DataLookup;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long AMiE takes to make injected telemetry visible through its API.
+ *
+ * For every device and metric type the probe publishes a message carrying a unique marker, then polls the
+ * API until the marker shows up, starting after {@code run.latency.poll.initial.ms} and backing off by half
+ * again each time up to {@code run.latency.poll.max.ms}. A marker that has not appeared after
+ * {@code run.latency.timeout.ms} counts as a timeout. All devices are probed at once, so the latencies reflect
+ * ingest under concurrent load. A latency runs from the moment the publisher has taken the message to the
+ * start of the poll that found the marker, so it overstates the true latency by at most the preceding poll
+ * interval, which is recorded with each sample. With the default publisher every device's pooled agent is
+ * connected before the first marker goes out, so connection setup is not counted as ingest latency.
+ */
+public class IngestionLatencyProbe {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(IngestionLatencyProbe.class.getName());
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final MetricsPublisher POOLED = MqttConnectionPool::publishAsync;
+
+    /**
+     * Kind of telemetry probed, with where its marker appears.
+     */
+    public enum MetricType {
+        /** DEVICE_METRICS carrying the marker as {@code device_name}, visible in device management */
+        DEVICE_NAME,
+        /** A complete call whose {@code call_id} is the marker, visible in the device's call history */
+        CALL_HISTORY
+    }
+
+    /**
+     * Decides whether a published marker is visible yet. Called from several poller threads at once.
+     */
+    @FunctionalInterface
+    public interface VisibilityCheck {
+        boolean isVisible(String serial, MetricType type, String marker);
+    }
+
+    private final String runId = UUID.randomUUID().toString().substring(0, 8);
+    private final AtomicLong markerCount = new AtomicLong();
+    private MetricsPublisher publisher = POOLED;
+    private VisibilityCheck visibility = amieApi();
+    private long initialPollMs = Settings.getLatencyPollInitialMs();
+    private long maxPollMs = Settings.getLatencyPollMaxMs();
+    private long timeoutMs = Settings.getLatencyTimeoutMs();
+    private int pollers = 8;
+
+    /**
+     * Looks markers up through {@link DataLookup}: the device management entry for device names and the
+     * call history for calls.
+     */
+    public static VisibilityCheck amieApi() {
+        return (serial, type, marker) -> {
+            try {
+                JsonNode found = type == MetricType.DEVICE_NAME ? DataLookup.getDevice(serial) : DataLookup.getDeviceCalls(serial);
+                return isMarked(found, type, marker);
+            } catch (RuntimeException re) {
+                log.debug("Latency poll for {} failed: {}", serial, re.getMessage());
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Whether an API response carries the marker as its {@code device_name} or {@code call_id}. Only a whole
+     * field value counts, so one marker never matches another that it is a prefix of.
+     */
+    public static boolean isMarked(JsonNode found, MetricType type, String marker) {
+        if (found == null) return false;
+        String field = type == MetricType.DEVICE_NAME ? "device_name" : "call_id";
+        return found.findValuesAsText(field).contains(marker);
+    }
+
+    /**
+     * Sets how markers are published; defaults to the pooled {@link MqttAgent} for each device.
+     */
+    public IngestionLatencyProbe setPublisher(MetricsPublisher publisher) {
+        this.publisher = publisher;
+        return this;
+    }
+
+    public IngestionLatencyProbe setVisibilityCheck(VisibilityCheck visibility) {
+        this.visibility = visibility;
+        return this;
+    }
+
+    /**
+     * @param initialPollMs Delay before the first poll
+     * @param maxPollMs Longest interval between polls
+     */
+    public IngestionLatencyProbe setPollInterval(long initialPollMs, long maxPollMs) {
+        if (initialPollMs < 1 || maxPollMs < initialPollMs) {
+            throw new IllegalArgumentException("Invalid poll interval: " + initialPollMs + " to " + maxPollMs + " ms");
+        }
+        this.initialPollMs = initialPollMs;
+        this.maxPollMs = maxPollMs;
+        return this;
+    }
+
+    public IngestionLatencyProbe setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    /**
+     * Sets how many threads poll the API at once.
+     */
+    public IngestionLatencyProbe setPollers(int pollers) {
+        if (pollers < 1) {
+            throw new IllegalArgumentException("At least one poller is needed: " + pollers);
+        }
+        this.pollers = pollers;
+        return this;
+    }
+
+    /**
+     * Probes every phone for each metric type and waits for every marker to appear or time out.
+     */
+    public Report run(Collection<SimulatedPhone> phones, MetricType... types) throws InterruptedException {
+        Report report = new Report(runId, types);
+        CountDownLatch done = new CountDownLatch(phones.size() * types.length);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(pollers, runnable -> {
+            Thread thread = new Thread(runnable, "latency-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (publisher == POOLED) {
+                for (SimulatedPhone phone : phones) {
+                    MqttConnectionPool.getAgent(phone.getDevice_serial_number());
+                }
+            }
+            for (SimulatedPhone phone : phones) {
+                for (MetricType type : types) {
+                    probe(new Probe(phone.getDevice_serial_number(), type, nextMarker()), phone, report, scheduler, done);
+                }
+            }
+            if (!done.await(timeoutMs + maxPollMs * 2 + 10000, TimeUnit.MILLISECONDS)) {
+                log.error("Latency probe {} did not finish; {} probes outstanding", runId, done.getCount());
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+        log.info(report.getSummary());
+        return report;
+    }
+
+    private String nextMarker() {
+        return "probe-" + runId + "-" + markerCount.incrementAndGet();
+    }
+
+    private void probe(Probe probe, SimulatedPhone phone, Report report, ScheduledThreadPoolExecutor scheduler, CountDownLatch done) {
+        byte[] payload;
+        try {
+            payload = payloadFor(probe, phone);
+        } catch (RuntimeException re) {
+            log.error("Cannot build {} probe for {}: {}", probe.type, probe.serial, re.getMessage());
+            report.fail(probe);
+            done.countDown();
+            return;
+        }
+        CompletableFuture<Void> published = publisher.publish(probe.serial, payload);
+        probe.publishNanos = System.nanoTime();
+        published.whenComplete((ignored, error) -> {
+            if (error != null) {
+                log.error("Failed to publish {} probe for {}: {}", probe.type, probe.serial, error.getMessage());
+                report.fail(probe);
+                done.countDown();
+            } else {
+                schedulePoll(probe, initialPollMs, report, scheduler, done);
+            }
+        });
+    }
+
+    private void schedulePoll(Probe probe, long delayMs, Report report, ScheduledThreadPoolExecutor scheduler, CountDownLatch done) {
+        scheduler.schedule(() -> {
+            long pollNanos = System.nanoTime();
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(pollNanos - probe.publishNanos);
+            probe.polls++;
+            if (visibility.isVisible(probe.serial, probe.type, probe.marker)) {
+                probe.latencyMs = elapsedMs;
+                probe.resolutionMs = probe.lastPollNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(pollNanos - probe.lastPollNanos) : elapsedMs;
+                report.complete(probe);
+                done.countDown();
+            } else if (elapsedMs >= timeoutMs) {
+                report.timeOut(probe);
+                done.countDown();
+            } else {
+                probe.lastPollNanos = pollNanos;
+                schedulePoll(probe, Math.min(maxPollMs, Math.round(delayMs * BACKOFF_FACTOR)), report, scheduler, done);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static byte[] payloadFor(Probe probe, SimulatedPhone phone) {
+        long timestamp = System.currentTimeMillis();
+        MetricsStreamWriter writer = new MetricsStreamWriter().beginMessage(probe.serial, timestamp);
+        if (probe.type == MetricType.DEVICE_NAME) {
+            ObjectNode metrics = phone.getDeviceMetrics(timestamp);
+            metrics.put("device_name", probe.marker);
+            writer.writeRecord(metrics);
+        } else {
+            if (phone.getCurrent_ap() == null) {
+                throw new IllegalStateException("phone has no AP to place a call through");
+            }
+            SimulatedCall call = new SimulatedCall(phone);
+            call.setCall_type(SimulatedPhone.CallDirection.OUTGOING);
+            call.setCall_id(probe.marker);
+            call.setCall_dropped(false);
+            writer.writeRecord(call.getCallBegin(timestamp))
+                    .writeRecord(call.getCallConfirmed(timestamp))
+                    .writeCallDetails(call, timestamp)
+                    .writeRecord(call.getCallEnd(timestamp));
+        }
+        return writer.endMessage();
+    }
+
+    private static class Probe {
+        private final String serial;
+        private final MetricType type;
+        private final String marker;
+        private long publishNanos;
+        private long lastPollNanos;
+        private int polls;
+        private long latencyMs = -1;
+        private long resolutionMs;
+
+        private Probe(String serial, MetricType type, String marker) {
+            this.serial = serial;
+            this.type = type;
+            this.marker = marker;
+        }
+    }
+
+    /**
+     * Latency distributions of one probe run.
+     */
+    public static class Report {
+        private final String runId;
+        private final Map<MetricType, LatencyHistogram> histograms = new EnumMap<>(MetricType.class);
+        private final Map<MetricType, AtomicLong> timeouts = new EnumMap<>(MetricType.class);
+        private final Map<MetricType, AtomicLong> failures = new EnumMap<>(MetricType.class);
+        private final LatencyHistogram overall = new LatencyHistogram("all", TimeUnit.MILLISECONDS);
+        private final List<Probe> probes = Collections.synchronizedList(new ArrayList<>());
+
+        private Report(String runId, MetricType... types) {
+            this.runId = runId;
+            for (MetricType type : types) {
+                histograms.put(type, new LatencyHistogram(type.name(), TimeUnit.MILLISECONDS));
+                timeouts.put(type, new AtomicLong());
+                failures.put(type, new AtomicLong());
+            }
+        }
+
+        private void complete(Probe probe) {
+            histograms.get(probe.type).record(probe.latencyMs);
+            overall.record(probe.latencyMs);
+            probes.add(probe);
+        }
+
+        private void timeOut(Probe probe) {
+            timeouts.get(probe.type).incrementAndGet();
+            probes.add(probe);
+        }
+
+        private void fail(Probe probe) {
+            failures.get(probe.type).incrementAndGet();
+            probes.add(probe);
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        /**
+         * Publish-to-visible latencies in milliseconds for one metric type.
+         */
+        public LatencyHistogram getHistogram(MetricType type) {
+            return histograms.get(type);
+        }
+
+        /**
+         * Publish-to-visible latencies in milliseconds across every metric type.
+         */
+        public LatencyHistogram getOverall() {
+            return overall;
+        }
+
+        public long getTimeouts(MetricType type) {
+            return timeouts.get(type).get();
+        }
+
+        public long getFailures(MetricType type) {
+            return failures.get(type).get();
+        }
+
+        public int getProbeCount() {
+            return probes.size();
+        }
+
+        public String getSummary() {
+            StringBuilder summary = new StringBuilder("Ingestion latency probe " + runId + ":");
+            for (Map.Entry<MetricType, LatencyHistogram> entry : histograms.entrySet()) {
+                summary.append(String.format("%n  %s, %d timeouts, %d failures", entry.getValue().getSummary(),
+                        getTimeouts(entry.getKey()), getFailures(entry.getKey())));
+            }
+            summary.append(String.format("%n  %s", overall.getSummary()));
+            return summary.toString();
+        }
+
+        /**
+         * Writes the summary and one CSV line per probe under {@code target/ingestion-latency}.
+         *
+         * @return Path of the summary file
+         */
+        public Path write() throws IOException {
+            return write(Paths.get("target", "ingestion-latency"));
+        }
+
+        /**
+         * Writes {@code <runId>.txt} with the summary and {@code <runId>.csv} with one line per probe.
+         *
+         * @return Path of the summary file
+         */
+        public Path write(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            Path summaryFile = directory.resolve(runId + ".txt");
+            Files.writeString(summaryFile, getSummary() + System.lineSeparator());
+            try (BufferedWriter csv = Files.newBufferedWriter(directory.resolve(runId + ".csv"))) {
+                csv.write("serial,type,marker,outcome,latency_ms,resolution_ms,polls");
+                csv.newLine();
+                synchronized (probes) {
+                    for (Probe probe : probes) {
+                        String outcome = probe.latencyMs >= 0 ? "visible" : probe.polls > 0 ? "timeout" : "failed";
+                        csv.write(String.join(",", probe.serial, probe.type.name(), probe.marker, outcome,
+                                String.valueOf(probe.latencyMs), String.valueOf(probe.resolutionMs), String.valueOf(probe.polls)));
+                        csv.newLine();
+                    }
+                }
+            }
+            log.info("Wrote ingestion latency report to {}", summaryFile);
+            return summaryFile;
+        }
+    }
+}
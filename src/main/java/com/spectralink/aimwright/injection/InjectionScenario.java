@@ -0,0 +1,449 @@
+package com.spectralink.aimwright.injection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Declarative per-device timelines of state changes and metric emissions, compiled into one
+ * {@link ScenarioSchedule}.
+ *
+ * A scenario is a JSON document read with Jackson like the Environment definitions. Times and durations are
+ * milliseconds or strings such as {@code 500ms}, {@code 30s}, {@code 20m}, {@code 2h} or ISO-8601
+ * ({@code PT2H}). Any step repeats with {@code every} plus {@code until} or {@code times}.
+ *
+ * <pre>
+ * {
+ *   "name": "drain-and-roam",
+ *   "devices": [{
+ *     "serials": ["cnnc03bp5pf2169", "cnnc03bp5pf2170"],
+ *     "stagger": "5s",
+ *     "timeline": [
+ *       {"at": "0s", "action": "connect", "ap": "Site-001-AP-001"},
+ *       {"at": "0s", "action": "battery", "level": 100, "to": 10, "over": "2h", "every": "1m"},
+ *       {"at": "40m", "action": "connect", "ap": "Site-001-AP-002"},
+ *       {"at": "80m", "action": "connect", "ap": "Site-001-AP-003"},
+ *       {"at": "10m", "every": "30m", "times": 4, "action": "call", "duration": "3m", "interval": "5s"},
+ *       {"at": "0s", "every": "1m", "until": "2h", "action": "emit", "metrics": ["DEVICE", "NETWORK", "BATTERY"]}
+ *     ]
+ *   }]
+ * }
+ * </pre>
+ *
+ * Actions:
+ * - connect: associate with the AP named by {@code ap}
+ * - disconnect: drop the WiFi connection
+ * - battery: set {@code level}, {@code control} and {@code increment}, or ramp to {@code to} over {@code over}
+ *   in steps of {@code every} (default 1m)
+ * - call: place a {@code direction} call lasting {@code duration}, rung for {@code setup} and reporting call
+ *   details every {@code interval}
+ * - emit: publish one message with the listed {@link SimulatedPhone.MetricsType} records
+ */
+public class InjectionScenario {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private String name = "scenario";
+    private List<DeviceTimeline> devices = new ArrayList<>();
+
+    public static InjectionScenario load(Path path) throws IOException {
+        return mapper.readValue(path.toFile(), InjectionScenario.class);
+    }
+
+    public static InjectionScenario fromJson(String json) throws IOException {
+        return mapper.readValue(json, InjectionScenario.class);
+    }
+
+    /**
+     * Compiles against the phones and APs loaded in the {@link Environment}.
+     */
+    public ScenarioSchedule compile() {
+        return compile(Environment.getSimPhones()::get, Environment.getSimNetworks()::get);
+    }
+
+    /**
+     * Compiles every timeline into one schedule, resolving serial numbers and SSIDs up front.
+     *
+     * @throws IllegalArgumentException If a step is malformed or names an unknown device or AP
+     */
+    public ScenarioSchedule compile(Function<String, SimulatedPhone> phones, Function<String, SimulatedAP> aps) {
+        ScenarioSchedule schedule = new ScenarioSchedule(name);
+        for (DeviceTimeline device : devices) {
+            List<String> serials = new ArrayList<>(device.getSerials());
+            if (device.getSerial() != null) serials.add(0, device.getSerial());
+            if (serials.isEmpty()) {
+                throw new IllegalArgumentException("Scenario " + name + " has a timeline without a serial");
+            }
+            long stagger = parseDuration(device.getStagger(), "stagger");
+            for (int index = 0; index < serials.size(); index++) {
+                SimulatedPhone phone = serials.get(index) != null ? phones.apply(serials.get(index)) : null;
+                if (phone == null) {
+                    throw new IllegalArgumentException("Scenario " + name + " names unknown device " + serials.get(index));
+                }
+                long offset = stagger * index;
+                List<long[]> calls = new ArrayList<>();
+                for (Step step : device.getTimeline()) {
+                    try {
+                        compileStep(schedule, phone, step, offset, aps, calls);
+                    } catch (IllegalArgumentException iae) {
+                        throw new IllegalArgumentException("Scenario " + name + ", device " + serials.get(index) + ", " + step + ": " + iae.getMessage(), iae);
+                    }
+                }
+            }
+        }
+        schedule.seal();
+        return schedule;
+    }
+
+    private static void compileStep(ScenarioSchedule schedule, SimulatedPhone phone, Step step, long offset,
+                                    Function<String, SimulatedAP> aps, List<long[]> calls) {
+        String action = step.getAction() == null ? "" : step.getAction().toLowerCase(Locale.ROOT);
+        long at = offset + parseDuration(step.getAt(), "at");
+        if (action.equals("battery") && step.getTo() != null) {
+            compileRamp(schedule, phone, step, at);
+            return;
+        }
+        ScenarioSchedule.Action compiled;
+        long callLength = 0;
+        switch (action) {
+            case "connect":
+                SimulatedAP ap = step.getAp() != null ? aps.apply(step.getAp()) : null;
+                if (ap == null) throw new IllegalArgumentException("unknown AP " + step.getAp());
+                compiled = (run, target, timestamp) -> target.connectWifi(ap);
+                break;
+            case "disconnect":
+                compiled = (run, target, timestamp) -> target.disconnectWifi();
+                break;
+            case "battery":
+                SimulatedBattery.LevelDriftType control = step.getControl() != null
+                        ? SimulatedBattery.LevelDriftType.valueOf(step.getControl().toUpperCase(Locale.ROOT)) : null;
+                compiled = (run, target, timestamp) -> run.setBattery(target, step.getLevel(), control, step.getIncrement());
+                break;
+            case "emit":
+                if (step.getMetrics().isEmpty()) throw new IllegalArgumentException("nothing to emit");
+                List<SimulatedPhone.MetricsType> types = new ArrayList<>();
+                for (String metric : step.getMetrics()) {
+                    types.add(SimulatedPhone.MetricsType.valueOf(metric.toUpperCase(Locale.ROOT)));
+                }
+                compiled = (run, target, timestamp) -> run.emit(target, types, timestamp);
+                break;
+            case "call":
+                callLength = parseDuration(step.getDuration(), "duration");
+                if (callLength <= 0) throw new IllegalArgumentException("a call needs a duration");
+                compiled = null;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown action '" + step.getAction() + "'");
+        }
+        long every = parseDuration(step.getEvery(), "every");
+        int repeats = repeats(step, at, offset, every);
+        for (int repeat = 0; repeat < repeats; repeat++) {
+            long time = at + every * repeat;
+            if (compiled != null) {
+                schedule.add(time, phone, compiled);
+            } else {
+                compileCall(schedule, phone, step, time, callLength, calls);
+            }
+        }
+    }
+
+    private static void compileRamp(ScenarioSchedule schedule, SimulatedPhone phone, Step step, long at) {
+        long over = parseDuration(step.getOver(), "over");
+        long every = step.getEvery() != null ? parseDuration(step.getEvery(), "every") : 60000;
+        if (over <= 0 || every <= 0) throw new IllegalArgumentException("a battery ramp needs positive over and every");
+        SimulatedBattery battery = phone.getCurrent_battery();
+        if (step.getLevel() == null && battery == null) throw new IllegalArgumentException("no battery level to ramp from");
+        int from = step.getLevel() != null ? step.getLevel() : battery.getLevel();
+        int to = step.getTo();
+        long steps = Math.max(1, over / every);
+        for (long index = 0; index <= steps; index++) {
+            int level = (int) Math.round(from + (to - from) * index / (double) steps);
+            // Hold the level steady between steps; drift would otherwise move it on every battery report
+            SimulatedBattery.LevelDriftType control = index == 0 ? SimulatedBattery.LevelDriftType.STABLE : null;
+            schedule.add(at + over * index / steps, phone, (run, target, timestamp) -> run.setBattery(target, level, control, null));
+        }
+    }
+
+    private static void compileCall(ScenarioSchedule schedule, SimulatedPhone phone, Step step, long at, long length, List<long[]> calls) {
+        for (long[] call : calls) {
+            if (at < call[1] && call[0] < at + length) {
+                throw new IllegalArgumentException("call at " + at + " ms overlaps another call on the same device");
+            }
+        }
+        calls.add(new long[]{at, at + length});
+        SimulatedPhone.CallDirection direction = step.getDirection() != null
+                ? SimulatedPhone.CallDirection.valueOf(step.getDirection().toUpperCase(Locale.ROOT)) : SimulatedPhone.CallDirection.OUTGOING;
+        long setup = Math.min(length, parseDuration(step.getSetup(), "setup"));
+        long interval = step.getInterval() != null ? parseDuration(step.getInterval(), "interval") : 5000;
+        if (interval <= 0) throw new IllegalArgumentException("call interval must be positive");
+        schedule.add(at, phone, (run, target, timestamp) -> run.beginCall(target, direction, (int) Math.max(1, interval / 1000), timestamp));
+        schedule.add(at + setup, phone, ScenarioSchedule::confirmCall);
+        for (long time = at + setup + interval; time < at + length; time += interval) {
+            schedule.add(time, phone, ScenarioSchedule::callDetails);
+        }
+        schedule.add(at + length, phone, ScenarioSchedule::endCall);
+    }
+
+    private static int repeats(Step step, long at, long offset, long every) {
+        if (step.getEvery() == null) return 1;
+        if (every <= 0) throw new IllegalArgumentException("every must be positive");
+        if (step.getTimes() != null) return Math.max(0, step.getTimes());
+        if (step.getUntil() == null) throw new IllegalArgumentException("a repeating step needs until or times");
+        long until = offset + parseDuration(step.getUntil(), "until");
+        return until < at ? 0 : (int) ((until - at) / every) + 1;
+    }
+
+    /**
+     * Parses {@code 250}, {@code 250ms}, {@code 30s}, {@code 20m}, {@code 2h}, {@code 1d} or ISO-8601 into
+     * milliseconds; null is zero.
+     */
+    public static long parseDuration(String value, String field) {
+        if (value == null || value.isBlank()) return 0;
+        String text = value.trim().toLowerCase(Locale.ROOT);
+        try {
+            if (text.startsWith("p")) return Duration.parse(text.toUpperCase(Locale.ROOT)).toMillis();
+            int split = 0;
+            while (split < text.length() && (Character.isDigit(text.charAt(split)) || text.charAt(split) == '.')) split++;
+            double amount = Double.parseDouble(text.substring(0, split));
+            switch (text.substring(split).trim()) {
+                case "":
+                case "ms":
+                    return Math.round(amount);
+                case "s":
+                    return Math.round(amount * 1000);
+                case "m":
+                    return Math.round(amount * 60000);
+                case "h":
+                    return Math.round(amount * 3600000);
+                case "d":
+                    return Math.round(amount * 86400000);
+                default:
+                    break;
+            }
+        } catch (RuntimeException re) {
+            // Reported below with the field name
+        }
+        throw new IllegalArgumentException("invalid " + field + " '" + value + "'");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<DeviceTimeline> getDevices() {
+        return devices;
+    }
+
+    public void setDevices(List<DeviceTimeline> devices) {
+        this.devices = devices;
+    }
+
+    /**
+     * One timeline applied to one or more devices.
+     */
+    public static class DeviceTimeline {
+        private String serial;
+        private List<String> serials = new ArrayList<>();
+        private String stagger;
+        private List<Step> timeline = new ArrayList<>();
+
+        public String getSerial() {
+            return serial;
+        }
+
+        public void setSerial(String serial) {
+            this.serial = serial;
+        }
+
+        public List<String> getSerials() {
+            return serials;
+        }
+
+        public void setSerials(List<String> serials) {
+            this.serials = serials;
+        }
+
+        /**
+         * Offset between the timelines of consecutive serials, so a large group does not act in lockstep.
+         */
+        public String getStagger() {
+            return stagger;
+        }
+
+        public void setStagger(String stagger) {
+            this.stagger = stagger;
+        }
+
+        public List<Step> getTimeline() {
+            return timeline;
+        }
+
+        public void setTimeline(List<Step> timeline) {
+            this.timeline = timeline;
+        }
+    }
+
+    /**
+     * A single timeline entry; which fields apply depends on the action.
+     */
+    public static class Step {
+        private String at;
+        private String action;
+        private String every;
+        private String until;
+        private Integer times;
+        private String ap;
+        private Integer level;
+        private Integer to;
+        private String over;
+        private String control;
+        private Integer increment;
+        private String direction;
+        private String duration;
+        private String setup;
+        private String interval;
+        private List<String> metrics = new ArrayList<>();
+
+        public String getAt() {
+            return at;
+        }
+
+        public void setAt(String at) {
+            this.at = at;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public void setAction(String action) {
+            this.action = action;
+        }
+
+        public String getEvery() {
+            return every;
+        }
+
+        public void setEvery(String every) {
+            this.every = every;
+        }
+
+        public String getUntil() {
+            return until;
+        }
+
+        public void setUntil(String until) {
+            this.until = until;
+        }
+
+        public Integer getTimes() {
+            return times;
+        }
+
+        public void setTimes(Integer times) {
+            this.times = times;
+        }
+
+        public String getAp() {
+            return ap;
+        }
+
+        public void setAp(String ap) {
+            this.ap = ap;
+        }
+
+        public Integer getLevel() {
+            return level;
+        }
+
+        public void setLevel(Integer level) {
+            this.level = level;
+        }
+
+        public Integer getTo() {
+            return to;
+        }
+
+        public void setTo(Integer to) {
+            this.to = to;
+        }
+
+        public String getOver() {
+            return over;
+        }
+
+        public void setOver(String over) {
+            this.over = over;
+        }
+
+        public String getControl() {
+            return control;
+        }
+
+        public void setControl(String control) {
+            this.control = control;
+        }
+
+        public Integer getIncrement() {
+            return increment;
+        }
+
+        public void setIncrement(Integer increment) {
+            this.increment = increment;
+        }
+
+        public String getDirection() {
+            return direction;
+        }
+
+        public void setDirection(String direction) {
+            this.direction = direction;
+        }
+
+        public String getDuration() {
+            return duration;
+        }
+
+        public void setDuration(String duration) {
+            this.duration = duration;
+        }
+
+        public String getSetup() {
+            return setup;
+        }
+
+        public void setSetup(String setup) {
+            this.setup = setup;
+        }
+
+        public String getInterval() {
+            return interval;
+        }
+
+        public void setInterval(String interval) {
+            this.interval = interval;
+        }
+
+        public List<String> getMetrics() {
+            return metrics;
+        }
+
+        public void setMetrics(List<String> metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public String toString() {
+            return action + " at " + at;
+        }
+    }
+}
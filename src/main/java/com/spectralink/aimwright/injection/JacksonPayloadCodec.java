@@ -0,0 +1,68 @@
+package com.spectralink.aimwright.injection;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Payload codec for any Jackson data format, e.g. JSON, Smile or CBOR.
+ *
+ * Transcoding streams tokens from the JSON parser straight into the target generator without building a tree,
+ * and the JSON format itself passes serialized payloads through untouched.
+ */
+public class JacksonPayloadCodec implements PayloadCodec {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final String name;
+    private final ObjectMapper mapper;
+    private final boolean json;
+
+    /**
+     * @param name Codec name
+     * @param factory Factory of the target format
+     */
+    public JacksonPayloadCodec(String name, JsonFactory factory) {
+        this.name = name;
+        this.mapper = new ObjectMapper(factory);
+        this.json = JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte[] encode(JsonNode tree) throws IOException {
+        return mapper.writeValueAsBytes(tree);
+    }
+
+    @Override
+    public byte[] transcode(byte[] payload) throws IOException {
+        if (json) return payload;
+        try (ByteArrayBuilder out = new ByteArrayBuilder(payload.length);
+             JsonParser parser = jsonFactory.createParser(payload);
+             JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+            generator.flush();
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    public JsonNode decode(byte[] payload) throws IOException {
+        return mapper.readTree(payload);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
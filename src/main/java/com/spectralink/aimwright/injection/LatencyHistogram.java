@@ -0,0 +1,163 @@
+package com.spectralink.aimwright.injection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe log-linear histogram of latencies that never allocates while recording.
+ *
+ * Like an HDR histogram, values below 64 get a bucket each and every power of two above that is split into
+ * 32 buckets, so any recorded value is reported within about 3% using a fixed array of about a thousand
+ * counters. Values beyond 2^40 units are counted in the top bucket. Percentiles, mean and extremes can be read
+ * while other threads record.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_TRACKED = (1L << MAX_MAGNITUDE) - 1;
+
+    private final String name;
+    private final TimeUnit unit;
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_TRACKED) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name Label used in summaries
+     * @param unit Unit of the recorded values
+     */
+    public LatencyHistogram(String name, TimeUnit unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /**
+     * Records one value; negative values count as zero.
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        counts.incrementAndGet(indexOf(Math.min(clamped, MAX_TRACKED)));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        if (clamped < min.get()) min.accumulateAndGet(clamped, Math::min);
+        if (clamped > max.get()) max.accumulateAndGet(clamped, Math::max);
+    }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading, converted to this histogram's unit.
+     */
+    public void recordSince(long startNanos) {
+        record(unit.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Adds every value recorded by another histogram with the same unit.
+     */
+    public void add(LatencyHistogram other) {
+        if (other.unit != unit) {
+            throw new IllegalArgumentException("Cannot add " + other.unit + " histogram " + other.name + " to " + unit + " histogram " + name);
+        }
+        if (other.getCount() == 0) return;
+        for (int index = 0; index < counts.length(); index++) {
+            long bucket = other.counts.get(index);
+            if (bucket > 0) counts.addAndGet(index, bucket);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        min.accumulateAndGet(other.min.get(), Math::min);
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public TimeUnit getUnit() {
+        return unit;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMin() {
+        return count.get() > 0 ? min.get() : 0;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = count.get();
+        return total > 0 ? sum.get() / (double) total : 0;
+    }
+
+    /**
+     * Smallest value that the given percentage of samples are at or below, to bucket precision.
+     *
+     * @param percentile 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int index = 0; index < counts.length(); index++) {
+            seen += counts.get(index);
+            if (seen >= rank) {
+                return Math.max(getMin(), Math.min(highestEquivalent(index), max.get()));
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int index = 0; index < counts.length(); index++) {
+            counts.set(index, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * One-line summary with percentiles converted to milliseconds.
+     */
+    public String getSummary() {
+        return String.format("%s: %d samples, mean %.2f ms, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                name, getCount(), toMillis(getMean()), toMillis(getValueAtPercentile(50)), toMillis(getValueAtPercentile(95)),
+                toMillis(getValueAtPercentile(99)), toMillis(getMax()));
+    }
+
+    /**
+     * Converts a value in this histogram's unit to milliseconds.
+     */
+    public double toMillis(double value) {
+        return value * unit.toNanos(1) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = SUB_BUCKETS + (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,25 @@
+package com.spectralink.aimwright.injection;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination for serialized device metrics.
+ * Implementations decide how a device's payload reaches its {@code devices/spectralink/<serial>} topic.
+ */
+public interface MetricsPublisher {
+
+    /**
+     * Publishes a serialized payload for a device without waiting for the broker.
+     *
+     * @param serial Device serial number the payload belongs to
+     * @param payload Serialized message body
+     * @return Future completed when the broker has accepted the message
+     */
+    CompletableFuture<Void> publish(String serial, byte[] payload);
+
+    /**
+     * Releases any connections held by the publisher.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,172 @@
+package com.spectralink.aimwright.injection;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes MQTT metrics messages straight to a reusable byte buffer with Jackson's streaming generator.
+ *
+ * Produces the same bytes as building the {@code ObjectNode} records and serializing them with a plain
+ * {@code ObjectMapper}, without the intermediate trees. A writer is not thread-safe; give each publishing
+ * thread its own instance and reuse it for every message.
+ *
+ * <pre>
+ * byte[] payload = writer.beginMessage(serial, now)
+ *         .writeDeviceMetrics(phone, now)
+ *         .writeBattery(phone.getCurrent_battery(), now)
+ *         .endMessage();
+ * </pre>
+ */
+public class MetricsStreamWriter {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final ByteArrayBuilder buffer = new ByteArrayBuilder(INITIAL_CAPACITY);
+    private JsonGenerator generator;
+
+    public MetricsStreamWriter() {
+        createGenerator();
+    }
+
+    /**
+     * Starts a message envelope with the same layout as {@link SimulatedPhone#sendBufferedMetrics()}.
+     */
+    public MetricsStreamWriter beginMessage(String serial, long timestamp) {
+        try {
+            generator.writeStartObject();
+            generator.writeStringField("deviceSerial", serial);
+            generator.writeNumberField("timestamp", timestamp);
+            generator.writeArrayFieldStart("data");
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public MetricsStreamWriter writeDeviceMetrics(SimulatedPhone phone, long timestamp) {
+        try {
+            phone.writeDeviceMetrics(generator, timestamp);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public MetricsStreamWriter writeNetworkMetrics(SimulatedPhone phone, long timestamp) {
+        try {
+            phone.writeNetworkMetrics(generator, timestamp);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public MetricsStreamWriter writeBattery(SimulatedBattery battery, long timestamp) {
+        try {
+            battery.writeBattery(generator, timestamp);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public MetricsStreamWriter writeCallDetails(SimulatedCall call, long timestamp) {
+        try {
+            call.writeCallDetails(generator, timestamp);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a record that has no streaming form, such as a barcode or scan event.
+     */
+    public MetricsStreamWriter writeRecord(JsonNode record) {
+        try {
+            generator.writeTree(record);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    /**
+     * Closes the envelope and returns the finished payload. The buffer is reused for the next message.
+     */
+    public byte[] endMessage() {
+        try {
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        byte[] payload = buffer.toByteArray();
+        buffer.reset();
+        return payload;
+    }
+
+    /**
+     * Discards a partially written message, e.g. after a record failed to generate.
+     */
+    public void reset() {
+        try {
+            generator.close();
+        } catch (IOException ignored) {
+            // The buffer is in memory; nothing to release
+        }
+        buffer.reset();
+        createGenerator();
+    }
+
+    private void createGenerator() {
+        try {
+            generator = mapper.getFactory().createGenerator(buffer);
+            generator.setRootValueSeparator(null);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    static void writeField(JsonGenerator generator, String name, Integer value) throws IOException {
+        if (value == null) {
+            generator.writeNullField(name);
+        } else {
+            generator.writeNumberField(name, value.intValue());
+        }
+    }
+
+    static void writeField(JsonGenerator generator, String name, Long value) throws IOException {
+        if (value == null) {
+            generator.writeNullField(name);
+        } else {
+            generator.writeNumberField(name, value.longValue());
+        }
+    }
+
+    static void writeField(JsonGenerator generator, String name, Double value) throws IOException {
+        if (value == null) {
+            generator.writeNullField(name);
+        } else {
+            generator.writeNumberField(name, value.doubleValue());
+        }
+    }
+
+    static void writeField(JsonGenerator generator, String name, Boolean value) throws IOException {
+        if (value == null) {
+            generator.writeNullField(name);
+        } else {
+            generator.writeBooleanField(name, value);
+        }
+    }
+
+    static void writeField(JsonGenerator generator, String name, String value) throws IOException {
+        generator.writeStringField(name, value);
+    }
+}
@@ -0,0 +1,421 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks phones around their location's floor and roams them between APs as their signal changes.
+ *
+ * Mobile phones follow a random waypoint model: each walks in a straight line at its own speed to a random
+ * point on the floor, pauses, then picks the next one; the others stay where they were placed. Every tick a
+ * phone's RSSI to its AP follows a log-distance path loss model clamped to the {@link SimulatedAP.RssiDriftType}
+ * limits, and the phone hands off to the closest of the AP's {@link NeighborIndex} neighbours once that one is
+ * stronger by the hysteresis margin ({@code run.mobility.hysteresis.db}). A tick therefore costs the neighbour
+ * count per moving phone; stationary phones are only evaluated again after something else changes their AP.
+ *
+ * Handoffs go through {@link SimulatedPhone#connectWifi(SimulatedAP)}, so the phone's next NETWORK_METRICS
+ * record reports the roam and the RSSI it measures. Only phones placed on a location before the simulator was
+ * created are moved.
+ */
+public class MobilitySimulator {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(MobilitySimulator.class.getName());
+
+    private final List<Floor> floors = new ArrayList<>();
+    private final Map<SimulatedPhone, Floor> floorOf = new IdentityHashMap<>();
+    private double mobileFraction = 0.25;
+    private double minSpeed = 0.8;
+    private double maxSpeed = 1.6;
+    private long maxPauseMs = 30000;
+    private double referenceRssi = -30;
+    private double pathLossExponent = 3.0;
+    private int hysteresisDb = Settings.getRoamHysteresisDb();
+    private SimulatedAP.RssiDriftType rssiRange = SimulatedAP.RssiDriftType.INCREASING;
+    private RoamListener listener;
+    private boolean prepared = false;
+    private ScheduledExecutorService scheduler;
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong handoffs = new AtomicLong();
+    private final LatencyHistogram tickTimes = new LatencyHistogram("Mobility tick", TimeUnit.MICROSECONDS);
+
+    /**
+     * Observes each handoff, on the thread that runs the tick.
+     */
+    public interface RoamListener {
+        void onRoam(SimulatedPhone phone, SimulatedAP from, SimulatedAP to, int rssi);
+    }
+
+    /**
+     * Creates a simulator for every location currently loaded into the Environment.
+     */
+    public MobilitySimulator() {
+        this(Environment.getSimLocations().values());
+    }
+
+    public MobilitySimulator(Collection<SimulatedLocation> locations) {
+        for (SimulatedLocation location : locations) {
+            Floor floor = new Floor(location);
+            floors.add(floor);
+            for (int index = 0; index < floor.size; index++) {
+                floorOf.put(location.getPhone(index), floor);
+            }
+        }
+    }
+
+    /**
+     * Share of phones that walk, the rest stay put. Takes effect at the first tick.
+     */
+    public MobilitySimulator setMobileFraction(double mobileFraction) {
+        if (mobileFraction < 0 || mobileFraction > 1) {
+            log.error("Invalid mobile fraction {}", mobileFraction);
+        } else {
+            this.mobileFraction = mobileFraction;
+        }
+        return this;
+    }
+
+    /**
+     * Walking speed range in meters per second; each leg picks a speed in it.
+     */
+    public MobilitySimulator setSpeed(double minSpeed, double maxSpeed) {
+        if (minSpeed <= 0 || maxSpeed < minSpeed) {
+            log.error("Invalid speed range {} - {} m/s", minSpeed, maxSpeed);
+        } else {
+            this.minSpeed = minSpeed;
+            this.maxSpeed = maxSpeed;
+        }
+        return this;
+    }
+
+    /**
+     * Longest pause at a waypoint; each pause picks a duration up to it.
+     */
+    public MobilitySimulator setMaxPauseMs(long maxPauseMs) {
+        this.maxPauseMs = Math.max(0, maxPauseMs);
+        return this;
+    }
+
+    /**
+     * Path loss model: the RSSI one meter from an AP and how fast it falls with distance (2 in free space,
+     * around 3 indoors).
+     */
+    public MobilitySimulator setPathLoss(double referenceRssi, double pathLossExponent) {
+        if (pathLossExponent <= 0) {
+            log.error("Invalid path loss exponent {}", pathLossExponent);
+        } else {
+            this.referenceRssi = referenceRssi;
+            this.pathLossExponent = pathLossExponent;
+        }
+        return this;
+    }
+
+    /**
+     * How many dB stronger a neighbour must be before a phone roams to it.
+     */
+    public MobilitySimulator setHysteresisDb(int hysteresisDb) {
+        this.hysteresisDb = Math.max(0, hysteresisDb);
+        return this;
+    }
+
+    /**
+     * Drift type whose limits bound the computed RSSI.
+     */
+    public MobilitySimulator setRssiRange(SimulatedAP.RssiDriftType rssiRange) {
+        this.rssiRange = rssiRange;
+        return this;
+    }
+
+    public MobilitySimulator setListener(RoamListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Sends a phone walking to a point at a given speed; after arriving it continues on random waypoints.
+     */
+    public synchronized MobilitySimulator moveTo(SimulatedPhone phone, double x, double y, double speed) {
+        Floor floor = floorOf.get(phone);
+        if (floor == null) {
+            log.error("Phone {} is not on a simulated location", phone.getDevice_serial_number());
+        } else if (speed <= 0) {
+            log.error("Invalid speed {} m/s", speed);
+        } else {
+            prepare();
+            int index = floor.indexOf.get(phone);
+            floor.mobile[index] = true;
+            floor.targetX[index] = x;
+            floor.targetY[index] = y;
+            floor.speed[index] = speed;
+            floor.pauseMs[index] = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Advances every phone by the given simulated time, moving it and handing it off where due.
+     */
+    public synchronized void tick(long elapsedMs) {
+        long start = System.nanoTime();
+        prepare();
+        long roamed = 0;
+        for (Floor floor : floors) {
+            roamed += floor.advance(elapsedMs);
+        }
+        handoffs.addAndGet(roamed);
+        ticks.incrementAndGet();
+        tickTimes.recordSince(start);
+    }
+
+    /**
+     * Ticks in real time on a background thread.
+     */
+    public synchronized MobilitySimulator start(long tickMs) {
+        if (scheduler != null) {
+            log.error("Mobility simulator is already running");
+            return this;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mobility");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                tick(tickMs);
+            } catch (RuntimeException re) {
+                log.error("Mobility tick failed: {}", re.toString());
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        log.info("Moving {} phones on {} locations every {} ms", floorOf.size(), floors.size(), tickMs);
+        return this;
+    }
+
+    public void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = scheduler;
+            scheduler = null;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            log.info(getSummary());
+        }
+    }
+
+    public int getPhoneCount() {
+        return floorOf.size();
+    }
+
+    public synchronized int getMobileCount() {
+        prepare();
+        int mobile = 0;
+        for (Floor floor : floors) {
+            for (int index = 0; index < floor.size; index++) {
+                if (floor.mobile[index]) mobile++;
+            }
+        }
+        return mobile;
+    }
+
+    public long getTicks() {
+        return ticks.get();
+    }
+
+    public long getHandoffs() {
+        return handoffs.get();
+    }
+
+    /**
+     * Wall clock time spent per tick, in microseconds.
+     */
+    public LatencyHistogram getTickTimes() {
+        return tickTimes;
+    }
+
+    public String getSummary() {
+        return String.format("Mobility: %d phones on %d locations, %d ticks, %d handoffs, tick p50 %.3f ms p99 %.3f ms",
+                floorOf.size(), floors.size(), ticks.get(), handoffs.get(),
+                tickTimes.toMillis(tickTimes.getValueAtPercentile(50)), tickTimes.toMillis(tickTimes.getValueAtPercentile(99)));
+    }
+
+    /**
+     * RSSI at a squared distance in square meters, from the path loss model and clamped to the range limits.
+     */
+    int rssiAt(double distanceSquared) {
+        // 10 * n * log10(d) without the square root
+        double rssi = referenceRssi - 5 * pathLossExponent * Math.log10(Math.max(1, distanceSquared));
+        return (int) Math.round(Math.max(rssiRange.lowerLimit(), Math.min(rssiRange.upperLimit(), rssi)));
+    }
+
+    private void prepare() {
+        if (prepared) return;
+        prepared = true;
+        for (Floor floor : floors) {
+            for (int index = 0; index < floor.size; index++) {
+                if (floor.random.nextDouble() < mobileFraction) {
+                    floor.mobile[index] = true;
+                    floor.pickWaypoint(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-phone state of one location, in arrays indexed like the location's phones.
+     */
+    private class Floor {
+        final SimulatedLocation location;
+        final int size;
+        final Map<SimulatedAP, Integer> apIndex = new IdentityHashMap<>();
+        final Map<SimulatedPhone, Integer> indexOf = new IdentityHashMap<>();
+        final int[][] neighbors;
+        final SplittableRandom random;
+        final SimulatedAP[] lastAp;
+        final int[] current;
+        final boolean[] mobile;
+        final boolean[] settled;
+        final double[] targetX;
+        final double[] targetY;
+        final double[] speed;
+        final long[] pauseMs;
+
+        Floor(SimulatedLocation location) {
+            this.location = location;
+            size = location.getPhones().size();
+            random = SimulationRandom.forKey("mobility " + location.getName());
+            List<SimulatedAP> aps = location.getAps();
+            for (int index = 0; index < aps.size(); index++) {
+                apIndex.put(aps.get(index), index);
+            }
+            if (!aps.isEmpty() && NeighborIndex.getCandidates(aps.get(0)) == null) {
+                NeighborIndex.index(location);
+            }
+            neighbors = new int[aps.size()][];
+            for (int index = 0; index < aps.size(); index++) {
+                List<SimulatedAP> candidates = NeighborIndex.getCandidates(aps.get(index));
+                neighbors[index] = new int[candidates.size()];
+                for (int slot = 0; slot < candidates.size(); slot++) {
+                    neighbors[index][slot] = apIndex.get(candidates.get(slot));
+                }
+            }
+            lastAp = new SimulatedAP[size];
+            current = new int[size];
+            mobile = new boolean[size];
+            settled = new boolean[size];
+            targetX = new double[size];
+            targetY = new double[size];
+            speed = new double[size];
+            pauseMs = new long[size];
+            for (int index = 0; index < size; index++) {
+                indexOf.put(location.getPhone(index), index);
+                current[index] = -1;
+            }
+        }
+
+        long advance(long elapsedMs) {
+            long roamed = 0;
+            for (int index = 0; index < size; index++) {
+                SimulatedPhone phone = location.getPhone(index);
+                SimulatedAP ap = phone.getCurrent_ap();
+                if (ap != lastAp[index]) {
+                    // First tick, or something else connected the phone
+                    Integer slot = apIndex.get(ap);
+                    current[index] = slot == null ? -1 : slot;
+                    lastAp[index] = ap;
+                    settled[index] = false;
+                }
+                if (mobile[index]) {
+                    move(index, elapsedMs);
+                } else if (settled[index]) {
+                    continue;
+                }
+                if (current[index] < 0 || phone.getConnection_status() != SimulatedPhone.ConnectionState.CONNECTED) continue;
+                settled[index] = true;
+                if (evaluate(index, phone)) roamed++;
+            }
+            return roamed;
+        }
+
+        private void move(int index, long elapsedMs) {
+            if (pauseMs[index] > 0) {
+                pauseMs[index] -= elapsedMs;
+                return;
+            }
+            double x = location.getPhoneX(index);
+            double y = location.getPhoneY(index);
+            double dx = targetX[index] - x;
+            double dy = targetY[index] - y;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            double step = speed[index] * elapsedMs / 1000.0;
+            if (distance <= step) {
+                location.setPhonePosition(index, targetX[index], targetY[index]);
+                pauseMs[index] = maxPauseMs > 0 ? random.nextLong(maxPauseMs + 1) : 0;
+                pickWaypoint(index);
+            } else {
+                location.setPhonePosition(index, x + dx * step / distance, y + dy * step / distance);
+            }
+        }
+
+        void pickWaypoint(int index) {
+            targetX[index] = random.nextDouble() * location.getWidth();
+            targetY[index] = random.nextDouble() * location.getDepth();
+            speed[index] = minSpeed + random.nextDouble() * (maxSpeed - minSpeed);
+        }
+
+        /**
+         * Updates the phone's RSSI and hands it off to the closest neighbour when that one is stronger by the
+         * hysteresis margin.
+         */
+        private boolean evaluate(int index, SimulatedPhone phone) {
+            int from = current[index];
+            double fromDistance = distanceSquared(index, from);
+            int best = -1;
+            double bestDistance = fromDistance;
+            for (int neighbor : neighbors[from]) {
+                double distance = distanceSquared(index, neighbor);
+                if (distance < bestDistance) {
+                    best = neighbor;
+                    bestDistance = distance;
+                }
+            }
+            int rssi = rssiAt(fromDistance);
+            if (best >= 0) {
+                int bestRssi = rssiAt(bestDistance);
+                if (bestRssi - rssi >= hysteresisDb) {
+                    SimulatedAP target = location.getAp(best);
+                    phone.connectWifi(target);
+                    phone.setSignal_rssi(bestRssi);
+                    current[index] = best;
+                    lastAp[index] = target;
+                    if (listener != null) listener.onRoam(phone, location.getAp(from), target, bestRssi);
+                    return true;
+                }
+            }
+            Integer reported = phone.getSignal_rssi();
+            if (reported == null || reported != rssi) phone.setSignal_rssi(rssi);
+            return false;
+        }
+
+        private double distanceSquared(int phoneIndex, int apIndex) {
+            double dx = location.getPhoneX(phoneIndex) - location.getApX(apIndex);
+            double dy = location.getPhoneY(phoneIndex) - location.getApY(apIndex);
+            return dx * dx + dy * dy;
+        }
+    }
+}
@@ -6,27 +6,54 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.LoggerFactory;
 import com.spectralink.aimwright.common.Settings;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  * MQTT client agent for sending simulated device metrics to a gateway broker.
  * Used for test data injection and device simulation.
+ *
+ * The agent wraps a single Paho {@link MqttAsyncClient}. {@link #sendMessage(ObjectNode)} blocks until the
+ * broker has acknowledged the message, while {@link #sendMessageAsync(ObjectNode)} returns as soon as the
+ * message is handed to the client so high-volume injection can pipeline publishes. At most
+ * {@link #getMaxInflight()} asynchronous publishes are outstanding; further callers wait for a free slot.
+ * Every publish is captured by the active {@link TrafficRecorder}, if any, and timed in {@link MqttTimings}.
+ *
+ * Payloads are built as JSON and encoded by the agent's {@link PayloadCodec} on the way out, JSON unless
+ * {@code run.mqtt.codec} or {@link #setCodec} says otherwise. The recorder keeps the JSON so captures replay
+ * under any codec.
  */
 public class MqttAgent {
     private final Logger log = (Logger) LoggerFactory.getLogger(this.getClass().getName());
+    private static final long COMPLETION_TIMEOUT_MS = 30000;
     private String brokerAddress;
     private final MqttConnectOptions options = new MqttConnectOptions();
-    private IMqttClient agent;
-    private final ConcurrentLinkedDeque<MqttMessage> inboundMessages = new ConcurrentLinkedDeque<>();
+    private IMqttAsyncClient agent;
+    private static final int DEFAULT_INBOUND_CAPACITY = 10000;
+    private static final long DROP_WARNING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private volatile InboundMessageBuffer inboundMessages;
+    private final Object inboundLock = new Object();
+    // Only touched from the client's callback thread
+    private long warnedDrops;
+    private long lastDropWarningNanos;
     private String topic;
+    private int qos = Settings.getMqttQos();
+    private volatile PayloadCodec codec = PayloadCodecs.fromSettings();
+    private Semaphore inflightWindow;
+    private final AtomicLong connectCount = new AtomicLong();
     private static final ObjectMapper mapper = new ObjectMapper();
 
     /**
@@ -36,9 +63,21 @@ public class MqttAgent {
      * @param customPort Optional custom MQTT port (null for default 1883)
      */
     public MqttAgent(String serial, String customPort) {
+        this(serial, Settings.getGatewayAddress(), customPort);
+    }
+
+    /**
+     * Creates an MQTT agent for the specified device serial number on a specific broker.
+     *
+     * @param serial Device serial number (used for topic)
+     * @param brokerAddress Broker host name or IP address
+     * @param customPort Optional custom MQTT port (null for default 1883)
+     */
+    public MqttAgent(String serial, String brokerAddress, String customPort) {
+        setMaxInflight(Settings.getMqttMaxInflight());
         try {
             if (serial != null && !serial.isEmpty()) {
-                topic = "devices/spectralink/" + serial;
+                topic = topicFor(serial);
             } else {
                 throw new Exception("No serial number was specified for MQTT agent");
             }
@@ -46,7 +85,7 @@ public class MqttAgent {
             if (customPort != null && !customPort.isEmpty()) {
                 port = customPort;
             }
-            brokerAddress = Settings.getGatewayAddress();
+            this.brokerAddress = brokerAddress;
             String gatewayMqttUri = "";
             if (brokerAddress == null || brokerAddress.isEmpty()) {
                 throw new Exception("Could not find gateway address for current context");
@@ -55,12 +94,31 @@ public class MqttAgent {
             }
 
             String publisherId = UUID.randomUUID().toString();
-            agent = new MqttClient(gatewayMqttUri, publisherId);
+            agent = new MqttAsyncClient(gatewayMqttUri, publisherId, new MemoryPersistence());
 
             options.setAutomaticReconnect(true);
             options.setCleanSession(true);
             options.setConnectionTimeout(30);
             options.setKeepAliveInterval(60);
+            agent.setCallback(new MqttCallbackExtended() {
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    connectCount.incrementAndGet();
+                    if (reconnect) log.debug("Reconnected to MQTT broker {}", serverURI);
+                }
+
+                public void connectionLost(Throwable cause) {
+                    log.warn("Lost connection to MQTT broker {}: {}", brokerAddress, cause.getMessage());
+                }
+
+                public void messageArrived(String topic, MqttMessage message) {
+                    InboundMessageBuffer inbound = getInboundMessages();
+                    if (!inbound.add(message.getPayload())) {
+                        warnDropped(topic, inbound.getDroppedCount());
+                    }
+                }
+
+                public void deliveryComplete(IMqttDeliveryToken token) {}
+            });
         } catch (Exception e) {
             log.error("Failed to configure new MQTT session: {}", e.getMessage());
         }
@@ -69,10 +127,12 @@ public class MqttAgent {
     /**
      * Connects to the MQTT broker.
      */
-    public void connect() {
+    public synchronized void connect() {
         try {
             if (!agent.isConnected()) {
-                agent.connect(options);
+                long startNanos = MqttTimings.start();
+                agent.connect(options).waitForCompletion(COMPLETION_TIMEOUT_MS);
+                MqttTimings.recordConnect(startNanos);
                 log.debug("Connected to MQTT broker {}", brokerAddress);
             } else {
                 log.debug("Agent was already connected to MQTT broker {}", brokerAddress);
@@ -85,7 +145,7 @@ public class MqttAgent {
     }
 
     /**
-     * Sends a JSON message to the MQTT topic.
+     * Sends a JSON message to the MQTT topic and waits for the broker to acknowledge it.
      *
      * @param json The JSON payload to send
      */
@@ -96,37 +156,178 @@ public class MqttAgent {
             }
             ObjectWriter writer = mapper.writer();
             byte[] payload = writer.writeValueAsBytes(json);
-            agent.publish(topic, payload, 2, false);
-            String message = new String(payload, StandardCharsets.UTF_8);
-            logPrettyJson(json);
-        } catch (MqttSecurityException mse) {
-            log.error("Cannot authenticate to MQTT server {}: {}", brokerAddress, mse.getMessage());
-        } catch (MqttException me) {
-            log.error("Failed to connect to MQTT server {}: {}", brokerAddress, me.getMessage());
+            byte[] encoded = codec.transcode(payload);
+            BrokerRateLimiter.forBroker(brokerAddress).acquire(encoded.length);
+            publishAndWait(payload, encoded);
+            if (log.isDebugEnabled()) {
+                logPrettyJson(json);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting to publish to MQTT server {}", brokerAddress);
         } catch (JsonProcessingException jpe) {
             log.error("Could not process json object: {}", jpe.getMessage());
+        } catch (IOException ioe) {
+            log.error("Could not encode payload as {}: {}", codec.getName(), ioe.getMessage());
         }
     }
 
     /**
-     * Subscribes to receive messages on the topic.
+     * Sends an already serialized payload to the MQTT topic and waits for the broker to acknowledge it.
+     *
+     * @param payload Serialized JSON message body, e.g. from {@link MetricsStreamWriter}
      */
-    public void receiveMessages() {
+    public void sendMessage(byte[] payload) {
         try {
             if (!agent.isConnected()) {
                 connect();
             }
-            agent.setCallback(new MqttCallback() {
-                public void connectionLost(Throwable cause) {}
+            byte[] encoded = codec.transcode(payload);
+            BrokerRateLimiter.forBroker(brokerAddress).acquire(encoded.length);
+            publishAndWait(payload, encoded);
+            if (log.isDebugEnabled()) {
+                log.debug("Metrics sent: {}", new String(payload, StandardCharsets.UTF_8));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting to publish to MQTT server {}", brokerAddress);
+        } catch (IOException ioe) {
+            log.error("Could not encode payload as {}: {}", codec.getName(), ioe.getMessage());
+        }
+    }
 
-                public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    inboundMessages.add(message);
+    /**
+     * Publishes to the agent's topic and waits for the broker. Goes through the same inflight window as the
+     * asynchronous publishes, since Paho has no more slots than the window has permits. The slot is given back
+     * from the completion listener, which Paho calls only after it has freed its own slot; a plain token wait
+     * can return before that and let the next publish fail with "too many publishes in progress".
+     */
+    private void publishAndWait(byte[] payload, byte[] encoded) throws InterruptedException {
+        try {
+            publishNow(topic, payload, encoded, qos).get(COMPLETION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) {
+            // Already logged by the completion listener
+        } catch (TimeoutException te) {
+            log.error("Timed out waiting for MQTT server {} to acknowledge a publish", brokerAddress);
+        }
+    }
+
+    /**
+     * Publishes a JSON message at the agent's QoS without waiting for the broker.
+     *
+     * @param json The JSON payload to send
+     * @return Future completed when the publish finishes at the requested QoS
+     */
+    public CompletableFuture<Void> sendMessageAsync(ObjectNode json) {
+        return sendMessageAsync(json, qos);
+    }
+
+    /**
+     * Publishes a JSON message at the given QoS without waiting for the broker.
+     *
+     * @param json The JSON payload to send
+     * @param qos MQTT quality of service (0, 1 or 2)
+     * @return Future completed when the publish finishes at the requested QoS
+     */
+    public CompletableFuture<Void> sendMessageAsync(ObjectNode json, int qos) {
+        try {
+            return sendMessageAsync(mapper.writeValueAsBytes(json), qos);
+        } catch (JsonProcessingException jpe) {
+            log.error("Could not process json object: {}", jpe.getMessage());
+            return CompletableFuture.failedFuture(jpe);
+        }
+    }
+
+    /**
+     * Publishes an already serialized payload at the given QoS without waiting for the broker.
+     * Blocks only while the inflight window is full.
+     *
+     * @param payload Serialized JSON message body
+     * @param qos MQTT quality of service (0, 1 or 2)
+     * @return Future completed when the publish finishes at the requested QoS
+     */
+    public CompletableFuture<Void> sendMessageAsync(byte[] payload, int qos) {
+        return publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * Publishes a serialized payload to any topic on this agent's connection without waiting for the broker.
+     * Lets one connection carry traffic for many devices. Blocks only while the inflight window is full, or
+     * while the broker's publish queue is full when a {@link BrokerRateLimiter} rate is set.
+     *
+     * @param topic Destination topic
+     * @param payload Serialized JSON message body
+     * @param qos MQTT quality of service (0, 1 or 2)
+     * @return Future completed when the publish finishes at the requested QoS
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos) {
+        if (qos < 0 || qos > 2) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid MQTT QoS " + qos));
+        }
+        byte[] encoded;
+        try {
+            encoded = codec.transcode(payload);
+        } catch (IOException ioe) {
+            log.error("Could not encode payload as {}: {}", codec.getName(), ioe.getMessage());
+            return CompletableFuture.failedFuture(ioe);
+        }
+        BrokerRateLimiter limiter = BrokerRateLimiter.forBroker(brokerAddress);
+        if (!limiter.isLimited()) {
+            return publishNow(topic, payload, encoded, qos);
+        }
+        return limiter.submit(encoded.length, () -> publishNow(topic, payload, encoded, qos));
+    }
+
+    private CompletableFuture<Void> publishNow(String topic, byte[] payload, byte[] encoded, int qos) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (!agent.isConnected()) {
+            connect();
+        }
+        Semaphore window = inflightWindow;
+        long waitNanos = MqttTimings.start();
+        try {
+            window.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(ie);
+            return result;
+        }
+        MqttTimings.recordInflightWait(waitNanos);
+        TrafficRecorder.record(topic, payload);
+        long startNanos = MqttTimings.start();
+        try {
+            agent.publish(topic, encoded, qos, false, null, new IMqttActionListener() {
+                public void onSuccess(IMqttToken token) {
+                    MqttTimings.recordDelivery(qos, startNanos);
+                    window.release();
+                    result.complete(null);
                 }
 
-                public void deliveryComplete(IMqttDeliveryToken token) {}
+                public void onFailure(IMqttToken token, Throwable cause) {
+                    window.release();
+                    log.error("Failed to publish to MQTT server {}: {}", brokerAddress, cause.getMessage());
+                    result.completeExceptionally(cause);
+                }
             });
+            MqttTimings.recordPublishCall(startNanos);
+        } catch (MqttException me) {
+            window.release();
+            log.error("Failed to publish to MQTT server {}: {}", brokerAddress, me.getMessage());
+            result.completeExceptionally(me);
+        }
+        return result;
+    }
 
-            agent.subscribe(topic);
+    /**
+     * Subscribes to receive messages on the topic.
+     */
+    public void receiveMessages() {
+        try {
+            getInboundMessages();
+            if (!agent.isConnected()) {
+                connect();
+            }
+            agent.subscribe(topic, qos).waitForCompletion(COMPLETION_TIMEOUT_MS);
         } catch (MqttException me) {
             log.error("Failed to connect to MQTT server {}: {}", brokerAddress, me.getMessage());
         }
@@ -138,7 +339,7 @@ public class MqttAgent {
     public void stopReceivingMessages() {
         try {
             if (agent.isConnected()) {
-                agent.unsubscribe(topic);
+                agent.unsubscribe(topic).waitForCompletion(COMPLETION_TIMEOUT_MS);
             }
         } catch (MqttException me) {
             log.error("Failed to unsubscribe for topic '{}' from MQTT server {}: {}", topic, brokerAddress, me.getMessage());
@@ -151,7 +352,7 @@ public class MqttAgent {
     public void disconnect() {
         try {
             if (agent.isConnected()) {
-                agent.disconnect();
+                agent.disconnect().waitForCompletion(COMPLETION_TIMEOUT_MS);
                 log.debug("Disconnected from MQTT broker {}", brokerAddress);
             } else {
                 log.debug("Agent was already disconnected from MQTT broker {}", brokerAddress);
@@ -161,24 +362,181 @@ public class MqttAgent {
         }
     }
 
+    /**
+     * Disconnects if needed and releases the underlying client resources.
+     * The agent cannot be reused after it is closed.
+     */
+    public void close() {
+        disconnect();
+        try {
+            agent.close();
+        } catch (MqttException me) {
+            log.error("Failed to close MQTT client for {}: {}", brokerAddress, me.getMessage());
+        }
+    }
+
+    public boolean isConnected() {
+        return agent != null && agent.isConnected();
+    }
+
+    /**
+     * Number of successful connections made by this agent, including automatic reconnects.
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the gateway topic a device with the given serial number publishes to.
+     */
+    public static String topicFor(String serial) {
+        return "devices/spectralink/" + serial;
+    }
+
+    public String getBrokerAddress() {
+        return brokerAddress;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * Sets the QoS used by {@link #sendMessage(ObjectNode)}, {@link #sendMessageAsync(ObjectNode)} and subscriptions.
+     */
+    public void setQos(int qos) {
+        if (qos < 0 || qos > 2) {
+            log.error("Invalid MQTT QoS {}; keeping {}", qos, this.qos);
+        } else {
+            this.qos = qos;
+        }
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets how payloads are encoded on the wire; null returns to the {@code run.mqtt.codec} default.
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codec = codec != null ? codec : PayloadCodecs.fromSettings();
+    }
+
+    public int getMaxInflight() {
+        return options.getMaxInflight();
+    }
+
+    /**
+     * Sets the maximum number of unacknowledged asynchronous publishes. Must be called before connecting.
+     */
+    public void setMaxInflight(int maxInflight) {
+        if (maxInflight < 1) {
+            log.error("Invalid MQTT inflight window {}", maxInflight);
+            return;
+        }
+        if (isConnected()) {
+            log.error("Cannot change the inflight window while connected to MQTT broker {}", brokerAddress);
+            return;
+        }
+        options.setMaxInflight(maxInflight);
+        inflightWindow = new Semaphore(maxInflight);
+    }
+
     /**
      * Retrieves and clears all received messages.
      *
-     * @return List of message payloads
+     * @return List of message payloads, oldest first
      */
     public List<byte[]> getMessages() {
-        List<byte[]> messages = new ArrayList<>();
-        Iterator<MqttMessage> messageIndex = inboundMessages.iterator();
-        while (messageIndex.hasNext()) {
-            MqttMessage messageObject = messageIndex.next();
-            byte[] messagePayload = messageObject.getPayload();
-            messages.add(messagePayload);
-            log.debug("Removing message '{}'", messagePayload);
-        }
-        inboundMessages.clear();
+        List<byte[]> messages = getInboundMessages().drain();
+        log.debug("Removed {} received messages", messages.size());
         return messages;
     }
 
+    /**
+     * Waits for a received message matching the predicate and removes it. Other messages stay buffered.
+     *
+     * @param predicate Test applied to each message payload
+     * @param timeoutMs Maximum time to wait
+     * @return The oldest matching payload, or null if none arrived in time
+     */
+    public byte[] awaitMessage(Predicate<byte[]> predicate, long timeoutMs) {
+        return getInboundMessages().await(predicate, timeoutMs);
+    }
+
+    /**
+     * Waits until the given number of messages has been received and removes them.
+     *
+     * @param count Number of messages to wait for
+     * @param timeoutMs Maximum time to wait
+     * @return Up to count payloads, oldest first; fewer if the timeout expired
+     */
+    public List<byte[]> awaitMessages(int count, long timeoutMs) {
+        return getInboundMessages().await(count, timeoutMs);
+    }
+
+    /**
+     * Number of received messages lost because the inbound buffer was full.
+     */
+    public long getDroppedMessageCount() {
+        InboundMessageBuffer inbound = inboundMessages;
+        return inbound != null ? inbound.getDroppedCount() : 0;
+    }
+
+    /**
+     * Warns on the first dropped message and then at most once per interval with the drops since, so a full
+     * buffer under a flood of messages does not flood the log as well.
+     */
+    private void warnDropped(String topic, long dropped) {
+        long now = System.nanoTime();
+        if (warnedDrops == 0 || now - lastDropWarningNanos >= DROP_WARNING_INTERVAL_NANOS) {
+            log.warn("Inbound buffer full on topic {}; dropped {} messages since the last warning ({} so far)",
+                    topic, dropped - warnedDrops, dropped);
+            warnedDrops = dropped;
+            lastDropWarningNanos = now;
+        }
+    }
+
+    /**
+     * The inbound buffer, created on first use so agents that only publish never allocate it.
+     */
+    private InboundMessageBuffer getInboundMessages() {
+        InboundMessageBuffer inbound = inboundMessages;
+        if (inbound == null) {
+            synchronized (inboundLock) {
+                inbound = inboundMessages;
+                if (inbound == null) {
+                    inbound = new InboundMessageBuffer(getInboundCapacity(), getInboundPolicy());
+                    inboundMessages = inbound;
+                }
+            }
+        }
+        return inbound;
+    }
+
+    private int getInboundCapacity() {
+        int capacity = Settings.getMqttInboundCapacity();
+        if (capacity < 1) {
+            log.error("Invalid MQTT inbound capacity {}, using {}", capacity, DEFAULT_INBOUND_CAPACITY);
+            return DEFAULT_INBOUND_CAPACITY;
+        }
+        return capacity;
+    }
+
+    private InboundMessageBuffer.OverflowPolicy getInboundPolicy() {
+        try {
+            return InboundMessageBuffer.OverflowPolicy.valueOf(Settings.getMqttInboundOverflow().trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            log.error("Invalid MQTT inbound overflow policy {}, using DROP_OLDEST", Settings.getMqttInboundOverflow());
+            return InboundMessageBuffer.OverflowPolicy.DROP_OLDEST;
+        }
+    }
+
     private void logPrettyJson(ObjectNode json) {
         log.debug("Metrics sent:");
         String jsonOutput = json.toPrettyString();
@@ -0,0 +1,145 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of long-lived MQTT agents, one per device serial number.
+ * An agent is connected on first use and reused for every later publish from the same device,
+ * relying on Paho's automatic reconnect to keep the session alive between sends. With several
+ * {@code run.gateway.addresses} each agent connects to the broker its serial hashes to on the {@link BrokerRing};
+ * use a {@link ShardedPublisher} to also fail over when a broker is down.
+ * Call {@link #shutdown()} at suite end to disconnect everything and log usage counts.
+ */
+public class MqttConnectionPool {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(MqttConnectionPool.class.getName());
+    private static final Map<String, MqttAgent> agents = new ConcurrentHashMap<>();
+    private static final AtomicLong acquisitions = new AtomicLong();
+    private static final AtomicLong agentsCreated = new AtomicLong();
+    private static final AtomicLong retiredConnects = new AtomicLong();
+    private static volatile BrokerRing ring;
+
+    /**
+     * Returns the connected agent for a serial number, creating it on first use.
+     *
+     * @param serial Device serial number (used for topic)
+     */
+    public static MqttAgent getAgent(String serial) {
+        acquisitions.incrementAndGet();
+        MqttAgent agent = agents.computeIfAbsent(serial, key -> {
+            agentsCreated.incrementAndGet();
+            log.debug("Opening pooled MQTT agent for {}", key);
+            BrokerRing brokers = getRing();
+            if (brokers == null) return new MqttAgent(key, null);
+            String endpoint = brokers.owner(key);
+            return new MqttAgent(key, BrokerRing.host(endpoint), BrokerRing.port(endpoint));
+        });
+        if (!agent.isConnected()) {
+            agent.connect();
+        }
+        return agent;
+    }
+
+    /**
+     * Ring that assigns new agents to brokers, built from the settings on first use; null when no gateway is
+     * configured.
+     */
+    public static BrokerRing getRing() {
+        if (ring == null && !Settings.getGatewayAddresses().isEmpty()) {
+            ring = BrokerRing.fromSettings();
+        }
+        return ring;
+    }
+
+    /**
+     * Replaces the ring for agents created from now on; existing agents keep their broker until released.
+     */
+    public static void setRing(BrokerRing ring) {
+        MqttConnectionPool.ring = ring;
+    }
+
+    /**
+     * Publishes a message on the pooled agent for a serial number.
+     */
+    public static void sendMessage(String serial, ObjectNode json) {
+        getAgent(serial).sendMessage(json);
+    }
+
+    /**
+     * Publishes a message on the pooled agent for a serial number without waiting for the broker.
+     */
+    public static CompletableFuture<Void> sendMessageAsync(String serial, ObjectNode json) {
+        return getAgent(serial).sendMessageAsync(json);
+    }
+
+    /**
+     * Publishes a serialized payload on the pooled agent for a serial number without waiting for the broker.
+     * Matches {@link MetricsPublisher} so the pool can be used as {@code MqttConnectionPool::publishAsync}.
+     */
+    public static CompletableFuture<Void> publishAsync(String serial, byte[] payload) {
+        MqttAgent agent = getAgent(serial);
+        return agent.sendMessageAsync(payload, agent.getQos());
+    }
+
+    /**
+     * Disconnects and forgets the agent for a single serial number.
+     */
+    public static void release(String serial) {
+        MqttAgent agent = agents.remove(serial);
+        if (agent != null) {
+            retiredConnects.addAndGet(agent.getConnectCount());
+            agent.close();
+        }
+    }
+
+    public static int size() {
+        return agents.size();
+    }
+
+    public static long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    /**
+     * Number of broker connections made by pooled agents, including automatic reconnects.
+     */
+    public static long getConnectCount() {
+        long total = retiredConnects.get();
+        for (MqttAgent agent : agents.values()) {
+            total += agent.getConnectCount();
+        }
+        return total;
+    }
+
+    /**
+     * Fraction of acquisitions served by an agent that already existed.
+     */
+    public static double getReuseRate() {
+        long requested = acquisitions.get();
+        if (requested == 0) return 0.0;
+        return (requested - agentsCreated.get()) / (double) requested;
+    }
+
+    /**
+     * Logs connection usage, then disconnects and closes every pooled agent.
+     */
+    public static void shutdown() {
+        if (acquisitions.get() > 0) {
+            log.info("MQTT pool: {} agents, {} acquisitions, {} connects, {}% reuse",
+                    agentsCreated.get(), acquisitions.get(), getConnectCount(), Math.round(getReuseRate() * 1000) / 10.0);
+        }
+        for (String serial : agents.keySet()) {
+            release(serial);
+        }
+        acquisitions.set(0);
+        agentsCreated.set(0);
+        retiredConnects.set(0);
+    }
+}
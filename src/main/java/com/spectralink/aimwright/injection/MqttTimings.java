@@ -0,0 +1,115 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side timing of every {@link MqttAgent}, aggregated across agents.
+ *
+ * Separates where publish time goes: waiting for a free inflight slot and the publish call itself are spent
+ * in this JVM, while the time from publishing to the delivery callback, kept per QoS, is mostly the network
+ * and the broker. Connect times are kept as well. Samples go into {@link LatencyHistogram}s, so recording
+ * does not allocate; set {@code run.mqtt.timings=false} to skip it entirely. {@link #logSummary()} runs at
+ * suite end.
+ */
+public class MqttTimings {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(MqttTimings.class.getName());
+    private static final LatencyHistogram connect = new LatencyHistogram("MQTT connect", TimeUnit.NANOSECONDS);
+    private static final LatencyHistogram inflightWait = new LatencyHistogram("MQTT inflight wait", TimeUnit.NANOSECONDS);
+    private static final LatencyHistogram publishCall = new LatencyHistogram("MQTT publish call", TimeUnit.NANOSECONDS);
+    private static final LatencyHistogram[] delivery = {
+            new LatencyHistogram("MQTT delivery QoS 0", TimeUnit.NANOSECONDS),
+            new LatencyHistogram("MQTT delivery QoS 1", TimeUnit.NANOSECONDS),
+            new LatencyHistogram("MQTT delivery QoS 2", TimeUnit.NANOSECONDS)
+    };
+    private static volatile boolean enabled = Settings.isMqttTimingsEnabled();
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MqttTimings.enabled = enabled;
+    }
+
+    /**
+     * Time from starting a connect to the broker's CONNACK.
+     */
+    public static LatencyHistogram getConnectTimes() {
+        return connect;
+    }
+
+    /**
+     * Time asynchronous publishes spent waiting for a free slot in the agent's inflight window.
+     */
+    public static LatencyHistogram getInflightWaitTimes() {
+        return inflightWait;
+    }
+
+    /**
+     * Time spent inside the client's publish call, before the message is on its way.
+     */
+    public static LatencyHistogram getPublishCallTimes() {
+        return publishCall;
+    }
+
+    /**
+     * Time from the publish call to delivery complete: written to the socket at QoS 0, PUBACK at QoS 1 and
+     * PUBCOMP at QoS 2.
+     */
+    public static LatencyHistogram getDeliveryTimes(int qos) {
+        return delivery[qos];
+    }
+
+    public static void reset() {
+        connect.reset();
+        inflightWait.reset();
+        publishCall.reset();
+        for (LatencyHistogram histogram : delivery) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Every histogram that has samples, one per line.
+     */
+    public static String getSummary() {
+        StringBuilder summary = new StringBuilder("MQTT client timings:");
+        for (LatencyHistogram histogram : new LatencyHistogram[]{connect, inflightWait, publishCall, delivery[0], delivery[1], delivery[2]}) {
+            if (histogram.getCount() > 0) summary.append(System.lineSeparator()).append("  ").append(histogram.getSummary());
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Logs the summary if anything was recorded.
+     */
+    public static void logSummary() {
+        if (connect.getCount() + publishCall.getCount() > 0) {
+            log.info(getSummary());
+        }
+    }
+
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void recordConnect(long startNanos) {
+        if (startNanos != 0) connect.recordSince(startNanos);
+    }
+
+    static void recordInflightWait(long startNanos) {
+        if (startNanos != 0) inflightWait.recordSince(startNanos);
+    }
+
+    static void recordPublishCall(long startNanos) {
+        if (startNanos != 0) publishCall.recordSince(startNanos);
+    }
+
+    static void recordDelivery(int qos, long startNanos) {
+        if (startNanos != 0) delivery[qos].recordSince(startNanos);
+    }
+}
@@ -0,0 +1,99 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Publishes metrics for any number of devices over a small fixed set of broker connections.
+ *
+ * Each device serial is hashed onto one connection, so a device's messages always share a connection and
+ * stay in order, while a large fleet costs only a handful of sockets and client threads on the injector.
+ */
+public class MultiplexedPublisher implements MetricsPublisher {
+    private final Logger log = (Logger) LoggerFactory.getLogger(this.getClass().getName());
+    private final MqttAgent[] connections;
+    private final int qos;
+
+    /**
+     * Creates a publisher against the configured gateway using {@code run.mqtt.connections} connections, each
+     * with a {@code run.mqtt.max.inflight} window.
+     */
+    public MultiplexedPublisher() {
+        this(Settings.getGatewayAddress(), null, Settings.getMqttConnections(), Settings.getMqttMaxInflight());
+    }
+
+    /**
+     * Creates a publisher with an explicit broker and connection count.
+     *
+     * @param brokerAddress Broker host name or IP address
+     * @param customPort Optional custom MQTT port (null for default 1883)
+     * @param connectionCount Number of broker connections to spread devices across
+     * @param maxInflight Inflight window per connection
+     */
+    public MultiplexedPublisher(String brokerAddress, String customPort, int connectionCount, int maxInflight) {
+        connections = new MqttAgent[Math.max(1, connectionCount)];
+        String publisherId = UUID.randomUUID().toString().substring(0, 8);
+        for (int index = 0; index < connections.length; index++) {
+            // The agent's own topic is never used; every publish names the device topic explicitly.
+            connections[index] = new MqttAgent("mux-" + publisherId + "-" + index, brokerAddress, customPort);
+            connections[index].setMaxInflight(maxInflight);
+        }
+        qos = connections[0].getQos();
+        log.debug("Multiplexing device topics over {} connections to {}", connections.length, brokerAddress);
+    }
+
+    /**
+     * Connects every underlying connection up front instead of on first publish.
+     */
+    public void connect() {
+        for (MqttAgent connection : connections) {
+            connection.connect();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String serial, byte[] payload) {
+        return getConnection(serial).publishAsync(MqttAgent.topicFor(serial), payload, qos);
+    }
+
+    /**
+     * Returns the connection a device serial number is sharded onto.
+     */
+    public MqttAgent getConnection(String serial) {
+        return connections[Math.floorMod(serial.hashCode(), connections.length)];
+    }
+
+    /**
+     * Sets the wire encoding on every connection.
+     */
+    public void setCodec(PayloadCodec codec) {
+        for (MqttAgent connection : connections) {
+            connection.setCodec(codec);
+        }
+    }
+
+    /**
+     * True when at least one underlying connection is up.
+     */
+    public boolean isConnected() {
+        for (MqttAgent connection : connections) {
+            if (connection.isConnected()) return true;
+        }
+        return false;
+    }
+
+    public int getConnectionCount() {
+        return connections.length;
+    }
+
+    @Override
+    public void close() {
+        for (MqttAgent connection : connections) {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed candidate AP lists for network metrics.
+ *
+ * For every AP of an indexed location the index holds its nearest neighbours on the floor, closest first,
+ * like the neighbour report a real AP hands to its clients. A phone's candidates are the neighbours of the
+ * AP it is connected to, so they only change when the phone roams, and building a network record costs
+ * the neighbour count instead of the number of APs in the Environment.
+ *
+ * APs outside any indexed location have no entry; phones on them fall back to scanning the Environment.
+ */
+public class NeighborIndex {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(NeighborIndex.class.getName());
+    private static final Map<SimulatedAP, List<SimulatedAP>> neighbors = new ConcurrentHashMap<>();
+    private static volatile int neighborCount = Settings.getNetworkCandidateCount();
+
+    /**
+     * Sets how many neighbours each AP lists, for locations indexed afterwards.
+     */
+    public static void setNeighborCount(int count) {
+        neighborCount = Math.max(0, count);
+    }
+
+    public static int getNeighborCount() {
+        return neighborCount;
+    }
+
+    /**
+     * Computes the neighbour list of every AP in the location, replacing any previous lists.
+     */
+    public static void index(SimulatedLocation location) {
+        long start = System.nanoTime();
+        int apCount = location.getAps().size();
+        int keep = Math.max(0, Math.min(neighborCount, apCount - 1));
+        double[] distances = new double[keep];
+        int[] nearest = new int[keep];
+        for (int apIndex = 0; apIndex < apCount; apIndex++) {
+            // Insertion into a short sorted array beats sorting every distance when K is much smaller than the AP count
+            int found = 0;
+            for (int other = 0; other < apCount; other++) {
+                if (other == apIndex) continue;
+                double dx = location.getApX(other) - location.getApX(apIndex);
+                double dy = location.getApY(other) - location.getApY(apIndex);
+                double distance = dx * dx + dy * dy;
+                if (found == keep && (keep == 0 || distance >= distances[keep - 1])) continue;
+                int slot = found < keep ? found++ : keep - 1;
+                while (slot > 0 && distances[slot - 1] > distance) {
+                    distances[slot] = distances[slot - 1];
+                    nearest[slot] = nearest[slot - 1];
+                    slot--;
+                }
+                distances[slot] = distance;
+                nearest[slot] = other;
+            }
+            List<SimulatedAP> list = new ArrayList<>(found);
+            for (int index = 0; index < found; index++) {
+                list.add(location.getAp(nearest[index]));
+            }
+            neighbors.put(location.getAp(apIndex), Collections.unmodifiableList(list));
+        }
+        log.debug("Indexed {} neighbours for each of {} APs in {} in {} ms", keep, apCount, location.getName(),
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Returns the APs a phone connected to the given AP should report as candidates, closest first, or null
+     * if the AP is not part of an indexed location.
+     */
+    public static List<SimulatedAP> getCandidates(SimulatedAP current) {
+        return current == null ? null : neighbors.get(current);
+    }
+
+    public static void remove(SimulatedLocation location) {
+        for (SimulatedAP ap : location.getAps()) {
+            neighbors.remove(ap);
+        }
+    }
+
+    public static void clear() {
+        neighbors.clear();
+    }
+}
@@ -0,0 +1,36 @@
+package com.spectralink.aimwright.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+/**
+ * Wire encoding for injected MQTT payloads.
+ *
+ * The injection stack builds every payload as JSON; an {@link MqttAgent} hands it to its codec just before
+ * publishing, so switching encodings never touches payload generation. Implementations must be thread-safe.
+ * Codecs are looked up by name through {@link PayloadCodecs}, which also discovers implementations listed in
+ * {@code META-INF/services/com.spectralink.aimwright.injection.PayloadCodec}.
+ */
+public interface PayloadCodec {
+
+    /**
+     * Name the codec is selected by, e.g. in {@code run.mqtt.codec}.
+     */
+    String getName();
+
+    /**
+     * Encodes a JSON tree.
+     */
+    byte[] encode(JsonNode json) throws IOException;
+
+    /**
+     * Re-encodes a serialized UTF-8 JSON payload, such as one from {@link MetricsStreamWriter}.
+     */
+    byte[] transcode(byte[] json) throws IOException;
+
+    /**
+     * Reads a payload produced by this codec back into a JSON tree.
+     */
+    JsonNode decode(byte[] payload) throws IOException;
+}
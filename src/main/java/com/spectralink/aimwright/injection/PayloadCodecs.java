@@ -0,0 +1,116 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of payload codecs by name.
+ *
+ * {@code json} is the gateway's format and the default; {@code smile} and {@code cbor} are the Jackson binary
+ * formats. Any registered name can take a {@code +gzip} suffix to compress its output. Further codecs are
+ * added with {@link #register} or discovered on the classpath through {@link ServiceLoader}.
+ */
+public class PayloadCodecs {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(PayloadCodecs.class.getName());
+    private static final String GZIP_SUFFIX = "+gzip";
+    private static final PayloadCodec JSON = new JacksonPayloadCodec("json", new JsonFactory());
+    private static final PayloadCodec SMILE = new JacksonPayloadCodec("smile", new SmileFactory());
+    private static final PayloadCodec CBOR = new JacksonPayloadCodec("cbor", new CBORFactory());
+    private static final Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(JSON);
+        register(SMILE);
+        register(CBOR);
+        try {
+            for (PayloadCodec codec : ServiceLoader.load(PayloadCodec.class)) {
+                register(codec);
+                log.info("Discovered payload codec {}", codec.getName());
+            }
+        } catch (ServiceConfigurationError sce) {
+            log.error("Could not load payload codecs: {}", sce.getMessage());
+        }
+    }
+
+    public static PayloadCodec json() {
+        return JSON;
+    }
+
+    public static PayloadCodec smile() {
+        return SMILE;
+    }
+
+    public static PayloadCodec cbor() {
+        return CBOR;
+    }
+
+    /**
+     * Wraps a codec in gzip compression.
+     */
+    public static PayloadCodec gzip(PayloadCodec codec) {
+        return new GzipPayloadCodec(codec);
+    }
+
+    /**
+     * Adds or replaces a codec under its own name.
+     */
+    public static void register(PayloadCodec codec) {
+        if (codec.getName().endsWith(GZIP_SUFFIX)) {
+            throw new IllegalArgumentException("Codec names must not end in " + GZIP_SUFFIX + ": " + codec.getName());
+        }
+        String key = codec.getName().toLowerCase();
+        codecs.put(key, codec);
+        codecs.remove(key + GZIP_SUFFIX);
+    }
+
+    /**
+     * Looks up a codec by name, case-insensitively, e.g. {@code cbor} or {@code smile+gzip}.
+     */
+    public static PayloadCodec forName(String name) {
+        String key = name.trim().toLowerCase();
+        if (key.endsWith(GZIP_SUFFIX)) {
+            PayloadCodec inner = codecs.get(key.substring(0, key.length() - GZIP_SUFFIX.length()));
+            if (inner != null) return codecs.computeIfAbsent(key, ignored -> gzip(inner));
+        }
+        PayloadCodec codec = codecs.get(key);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown payload codec " + name + ", expected one of " + getNames());
+        }
+        return codec;
+    }
+
+    /**
+     * Codec named by {@code run.mqtt.codec}, falling back to JSON if the name is unknown.
+     */
+    public static PayloadCodec fromSettings() {
+        String name = Settings.getMqttCodec();
+        try {
+            return forName(name);
+        } catch (IllegalArgumentException iae) {
+            log.error("{}; sending JSON", iae.getMessage());
+            return JSON;
+        }
+    }
+
+    /**
+     * Names of the registered codecs, without gzip variants.
+     */
+    public static Set<String> getNames() {
+        Set<String> names = new TreeSet<>();
+        for (String name : codecs.keySet()) {
+            if (!name.endsWith(GZIP_SUFFIX)) names.add(name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,146 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared cache of the static JSON fragments embedded in injected metrics, such as the per-model
+ * {@code app_versions} and the {@code top_apps} list.
+ *
+ * Each data file is read and parsed once. The fragment keeps both the parsed tree and its compact
+ * serialized form, so the streaming path copies bytes without touching the tree. Tests that edit the
+ * data files should call {@link #invalidate()} or {@link #reload()} afterwards.
+ */
+public class PayloadFragmentCache {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(PayloadFragmentCache.class.getName());
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Map<Path, Fragment> fragments = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the app_versions fragment for a phone model's series.
+     */
+    public static Fragment getAppVersions(SimulatedPhone.Model model) {
+        String fileName;
+        if (model.series() == 95) {
+            fileName = "app_versions_versity.json";
+        } else if (model.series() == 97) {
+            fileName = "app_versions_x1.json";
+        } else {
+            fileName = "app_versions_orion.json";
+        }
+        return getFragment(Paths.get(Environment.getTestDataDirectory(), "injection_data", fileName), NullNode.getInstance());
+    }
+
+    /**
+     * Returns the default top_apps fragment used by batteries without their own list.
+     */
+    public static Fragment getTopApps() {
+        return getFragment(Paths.get(Environment.getTestDataDirectory(), "injection_data", "top_apps.json"), mapper.createArrayNode());
+    }
+
+    /**
+     * Returns the cached fragment for a JSON file, loading it on first use.
+     * A file that cannot be read is logged once and cached as the fallback value.
+     *
+     * @param file     JSON data file
+     * @param fallback Value served when the file is missing or invalid
+     */
+    public static Fragment getFragment(Path file, JsonNode fallback) {
+        return fragments.computeIfAbsent(file.toAbsolutePath().normalize(), key -> load(key, fallback));
+    }
+
+    /**
+     * Drops every cached fragment; the next request re-reads its file.
+     */
+    public static void invalidate() {
+        fragments.clear();
+    }
+
+    /**
+     * Drops the cached fragment for a single file.
+     */
+    public static void invalidate(Path file) {
+        fragments.remove(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Re-reads every file that is currently cached.
+     */
+    public static void reload() {
+        List<Map.Entry<Path, Fragment>> loaded = new ArrayList<>(fragments.entrySet());
+        for (Map.Entry<Path, Fragment> entry : loaded) {
+            fragments.put(entry.getKey(), load(entry.getKey(), entry.getValue().fallback));
+        }
+    }
+
+    public static int size() {
+        return fragments.size();
+    }
+
+    private static Fragment load(Path file, JsonNode fallback) {
+        JsonNode node = fallback;
+        try {
+            node = mapper.readTree(Files.readAllBytes(file));
+            log.debug("Cached payload fragment {}", file);
+        } catch (IOException ioe) {
+            log.error("Could not load payload fragment {}: {}", file, ioe.getMessage());
+        }
+        return new Fragment(node, fallback);
+    }
+
+    /**
+     * A parsed JSON value together with its serialized form. The stored tree is never handed out,
+     * so a fragment cannot change after it is loaded.
+     */
+    public static class Fragment {
+        private final JsonNode node;
+        private final JsonNode fallback;
+        private final SerializableString serialized;
+
+        private Fragment(JsonNode node, JsonNode fallback) {
+            this.node = node;
+            this.fallback = fallback;
+            try {
+                this.serialized = new SerializedString(mapper.writeValueAsString(node));
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Could not serialize payload fragment", ioe);
+            }
+        }
+
+        /**
+         * Returns a private copy of the fragment for callers that build ObjectNode trees.
+         */
+        public JsonNode getNode() {
+            return node.deepCopy();
+        }
+
+        /**
+         * Returns the compact JSON text of the fragment.
+         */
+        public String getJson() {
+            return serialized.getValue();
+        }
+
+        /**
+         * Writes the pre-serialized fragment as the next value of a generator.
+         */
+        public void writeTo(JsonGenerator generator) throws IOException {
+            generator.writeRawValue(serialized);
+        }
+    }
+}
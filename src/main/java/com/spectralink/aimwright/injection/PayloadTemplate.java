@@ -0,0 +1,265 @@
+package com.spectralink.aimwright.injection;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.NumberOutput;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static com.spectralink.aimwright.injection.MetricsStreamWriter.writeField;
+import static com.spectralink.aimwright.injection.SimulatedPhone.Model.VERSITY_9653;
+import static com.spectralink.aimwright.injection.SimulatedPhone.Model.VERSITY_9753;
+
+/**
+ * A complete single-record MQTT message for one device, pre-rendered with gaps for the values that change per tick.
+ *
+ * Compiling a template writes the envelope and every static field (model, serial, MAC list, app versions,
+ * technology...) once. Rendering copies those bytes and fills in only the timestamps and drifting metrics,
+ * reading them through the same getters, in the same order, as the tree and streaming paths.
+ *
+ * Static fields are captured when the template is compiled; recompile after changing them. The
+ * randomly generated interface MACs in DEVICE_METRICS are therefore fixed for the life of the template.
+ * A template is not thread-safe.
+ */
+public class PayloadTemplate {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final SimulatedPhone.MetricsType type;
+    private final Object source;
+    private final byte[][] segments;
+    private final List<Supplier<? extends Number>> slots;
+    private final ByteArrayBuilder buffer = new ByteArrayBuilder(1024);
+    private final byte[] digits = new byte[24];
+
+    private PayloadTemplate(SimulatedPhone.MetricsType type, Object source, byte[][] segments, List<Supplier<? extends Number>> slots) {
+        this.type = type;
+        this.source = source;
+        this.segments = segments;
+        this.slots = slots;
+    }
+
+    /**
+     * Compiles the DEVICE_METRICS message for a phone.
+     */
+    public static PayloadTemplate forDeviceMetrics(SimulatedPhone phone) {
+        Compiler compiler = new Compiler(phone.getDevice_serial_number());
+        try {
+            JsonGenerator generator = compiler.generator;
+            writeField(generator, "device_os_revision", phone.getDevice_os_revision());
+            writeField(generator, "device_name", phone.getDevice_name());
+            writeField(generator, "device_sw_revision", phone.getDevice_sw_revision());
+            writeField(generator, "device_info_1", phone.getDevice_info_1());
+            writeField(generator, "device_info_2", phone.getDevice_info_2());
+            writeField(generator, "device_info_3", phone.getDevice_info_3());
+            writeField(generator, "device_info_4", phone.getDevice_info_4());
+            writeField(generator, "device_model", phone.getDevice_model());
+            generator.writeFieldName("app_versions");
+            if (phone.getApp_versions().isEmpty()) {
+                PayloadFragmentCache.getAppVersions(phone.getDesignated_model()).writeTo(generator);
+            } else {
+                generator.writeTree(mapper.valueToTree(phone.getApp_versions()));
+            }
+            if (phone.getDesignated_model().equals(VERSITY_9653) || phone.getDesignated_model().equals(VERSITY_9753)) {
+                writeField(generator, "imei", phone.getImei());
+            }
+            generator.writeFieldName("device_mac_addresses");
+            generator.writeTree(phone.getDeviceMacAddresses());
+            writeField(generator, "device_serial_number", phone.getDevice_serial_number());
+            compiler.slot("cpu_utilization_pct_last_1", phone::getCpu_utilization_pct_last_1);
+            compiler.slot("cpu_utilization_pct", phone::getCpu_utilization_pct);
+            compiler.slot("cpu_utilization_pct_last_15", phone::getCpu_utilization_pct_last_15);
+            compiler.slot("ram_utilization_pct", phone::getRam_utilization_pct);
+            writeField(generator, "total_storage_bytes", phone.getTotal_storage_bytes());
+            writeField(generator, "used_storage_bytes", phone.getUsed_storage_bytes());
+            compiler.slot("timestamp", null);
+            generator.writeStringField("type", "DEVICE_METRICS");
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return compiler.finish(SimulatedPhone.MetricsType.DEVICE, phone);
+    }
+
+    /**
+     * Compiles the BATTERY_METRICS message for a battery. The battery must be inserted in a phone.
+     */
+    public static PayloadTemplate forBattery(SimulatedBattery battery) {
+        SimulatedPhone phone = battery.getHousingPhone();
+        if (phone == null) {
+            throw new IllegalStateException("Battery " + battery.getBattery_serial_num() + " is not inserted in a phone");
+        }
+        Compiler compiler = new Compiler(phone.getDevice_serial_number());
+        try {
+            JsonGenerator generator = compiler.generator;
+            writeField(generator, "is_ac_powered", battery.getIs_ac_powered());
+            writeField(generator, "is_usb_powered", battery.getIs_usb_powered());
+            writeField(generator, "charge_state", battery.getCharge_state());
+            writeField(generator, "is_main_battery_present", battery.getIs_main_battery_present());
+            compiler.slot("level", battery::getLevel);
+            writeField(generator, "degradation_pct", battery.getDegradation_pct());
+            compiler.slot("full_charge", battery::getFull_charge);
+            writeField(generator, "battery_serial_num", battery.getBattery_serial_num());
+            compiler.slot("cycle_counter", battery::getCycle_counter);
+            compiler.slot("temperature_c", battery::getTemperature_c);
+            writeField(generator, "voltage", battery.getVoltage());
+            writeField(generator, "current_ma", battery.getCurrent_ma());
+            writeField(generator, "technology", battery.getTechnology());
+            writeField(generator, "health", battery.getHealth());
+            writeField(generator, "remaining_capacity_mah", battery.getRemaining_capacity_mah());
+            writeField(generator, "remaining_energy_nwh", battery.getRemaining_energy_nwh());
+
+            // Series-specific fields
+            if (phone.getDesignated_model().series() != 92) {
+                writeField(generator, "sec_health", battery.getSec_health());
+                writeField(generator, "sec_level", battery.getSec_level());
+                writeField(generator, "sec_cycle_counter", battery.getSec_cycle_counter());
+                writeField(generator, "sec_voltage", battery.getSec_voltage());
+                writeField(generator, "sec_current_ma", battery.getSec_current_ma());
+                writeField(generator, "sec_full_charge", battery.getSec_full_charge());
+                writeField(generator, "sec_remaining_capacity_mah", battery.getSec_remaining_capacity_mah());
+                writeField(generator, "sec_remaining_energy_nwh", battery.getSec_remaining_energy_nwh());
+            }
+
+            generator.writeFieldName("top_apps");
+            if (!battery.getTop_apps().isEmpty()) {
+                generator.writeTree(mapper.valueToTree(battery.getTop_apps()));
+            } else {
+                PayloadFragmentCache.getTopApps().writeTo(generator);
+            }
+            compiler.slot("timestamp", null);
+            generator.writeStringField("type", "BATTERY_METRICS");
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return compiler.finish(SimulatedPhone.MetricsType.BATTERY, battery);
+    }
+
+    public SimulatedPhone.MetricsType getType() {
+        return type;
+    }
+
+    /**
+     * The phone or battery the template was compiled from.
+     */
+    public Object getSource() {
+        return source;
+    }
+
+    public int getSlotCount() {
+        return slots.size();
+    }
+
+    /**
+     * Renders the message for one tick. Both the envelope and the record carry the given timestamp.
+     */
+    public byte[] render(long timestamp) {
+        buffer.write(segments[0]);
+        writeNumber(timestamp);
+        for (int index = 0; index < slots.size(); index++) {
+            buffer.write(segments[index + 1]);
+            Supplier<? extends Number> slot = slots.get(index);
+            if (slot == null) {
+                writeNumber(timestamp);
+            } else {
+                writeNumber(slot.get());
+            }
+        }
+        buffer.write(segments[segments.length - 1]);
+        byte[] payload = buffer.toByteArray();
+        buffer.reset();
+        return payload;
+    }
+
+    private void writeNumber(long value) {
+        int length = NumberOutput.outputLong(value, digits, 0);
+        buffer.write(digits, 0, length);
+    }
+
+    private void writeNumber(Number value) {
+        if (value == null) {
+            writeAscii("null");
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = value.doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                // Jackson quotes non-finite numbers by default
+                buffer.append('"');
+                writeAscii(Double.toString(number));
+                buffer.append('"');
+            } else {
+                writeAscii(NumberOutput.toString(number));
+            }
+        } else {
+            writeNumber(value.longValue());
+        }
+    }
+
+    private void writeAscii(String text) {
+        for (int index = 0; index < text.length(); index++) {
+            buffer.append(text.charAt(index));
+        }
+    }
+
+    /**
+     * Writes a message with the streaming generator and cuts it into static segments at each slot.
+     */
+    private static class Compiler {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        private final List<byte[]> segments = new ArrayList<>();
+        private final List<Supplier<? extends Number>> slots = new ArrayList<>();
+        private final JsonGenerator generator;
+        private int segmentStart = 0;
+
+        Compiler(String serial) {
+            try {
+                generator = mapper.getFactory().createGenerator(output);
+                generator.writeStartObject();
+                generator.writeStringField("deviceSerial", serial);
+                generator.writeFieldName("timestamp");
+                cut();
+                generator.writeArrayFieldStart("data");
+                generator.writeStartObject();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        /**
+         * Leaves a gap for a value read on every render. A null supplier stands for the message timestamp.
+         */
+        void slot(String name, Supplier<? extends Number> value) throws IOException {
+            generator.writeFieldName(name);
+            cut();
+            slots.add(value);
+        }
+
+        PayloadTemplate finish(SimulatedPhone.MetricsType type, Object source) {
+            try {
+                generator.writeEndObject();
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.flush();
+                generator.close();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            byte[] written = output.toByteArray();
+            segments.add(Arrays.copyOfRange(written, segmentStart, written.length));
+            return new PayloadTemplate(type, source, segments.toArray(new byte[0][]), slots);
+        }
+
+        private void cut() throws IOException {
+            // An empty raw value makes the generator emit the separator for the value that will fill the gap
+            generator.writeRawValue("");
+            generator.flush();
+            byte[] written = output.toByteArray();
+            segments.add(Arrays.copyOfRange(written, segmentStart, written.length));
+            segmentStart = written.length;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The events of an {@link InjectionScenario}, merged into one list ordered by time and run by a single thread.
+ *
+ * However many devices the scenario covers, the runner parks until the next event is due, applies it to its
+ * phone and publishes what it produced. Events due at the same time keep the order in which they were
+ * compiled. A speed above 1 compresses the timeline, so a two hour scenario can run in seconds; message
+ * timestamps follow the scenario clock rather than the wall clock. With the default publisher the pooled agent of
+ * every device is connected before the runner starts, so connection setup does not hold up the timeline.
+ */
+public class ScenarioSchedule {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(ScenarioSchedule.class.getName());
+    private static final MetricsPublisher POOLED = MqttConnectionPool::publishAsync;
+
+    private final String name;
+    private final List<Event> events = new ArrayList<>();
+    private final MetricsStreamWriter writer = new MetricsStreamWriter();
+    private final LatencyHistogram lateness;
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private MetricsPublisher publisher = POOLED;
+    private double speed = 1.0;
+    private EventListener listener;
+    private Thread runner;
+    private volatile boolean stopped = false;
+    private long startMillis;
+
+    /**
+     * Applies one compiled step to its phone at the given scenario timestamp.
+     */
+    interface Action {
+        void apply(ScenarioSchedule schedule, SimulatedPhone phone, long timestamp);
+    }
+
+    /**
+     * Observes each event after it ran, on the runner thread.
+     */
+    public interface EventListener {
+        void onEvent(long scenarioMs, String serial, long latenessNanos);
+    }
+
+    ScenarioSchedule(String name) {
+        this.name = name;
+        lateness = new LatencyHistogram("Scenario " + name + " lateness", TimeUnit.MICROSECONDS);
+    }
+
+    void add(long timeMs, SimulatedPhone phone, Action action) {
+        if (timeMs < 0) throw new IllegalArgumentException("negative time " + timeMs + " ms");
+        events.add(new Event(timeMs, events.size(), phone, action));
+    }
+
+    void seal() {
+        events.sort(Comparator.comparingLong((Event event) -> event.timeMs).thenComparingInt(event -> event.sequence));
+    }
+
+    /**
+     * Sets how messages are published; defaults to the pooled {@link MqttAgent} for each device.
+     */
+    public ScenarioSchedule setPublisher(MetricsPublisher publisher) {
+        this.publisher = publisher;
+        return this;
+    }
+
+    /**
+     * Scenario milliseconds per wall clock millisecond; 60 runs an hour of scenario in a minute.
+     */
+    public ScenarioSchedule setSpeed(double speed) {
+        if (speed <= 0 || Double.isNaN(speed)) {
+            log.error("Invalid scenario speed {}", speed);
+        } else {
+            this.speed = speed;
+        }
+        return this;
+    }
+
+    public ScenarioSchedule setListener(EventListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getEventCount() {
+        return events.size();
+    }
+
+    /**
+     * Scenario time of the last event.
+     */
+    public long getDurationMs() {
+        return events.isEmpty() ? 0 : events.get(events.size() - 1).timeMs;
+    }
+
+    public synchronized ScenarioSchedule start() {
+        if (runner != null) {
+            log.error("Scenario {} has already been started", name);
+            return this;
+        }
+        if (publisher == POOLED) {
+            Set<String> serials = new HashSet<>();
+            for (Event event : events) {
+                serials.add(event.phone.getDevice_serial_number());
+            }
+            log.info("Connecting {} devices for scenario {}", serials.size(), name);
+            for (String serial : serials) {
+                MqttConnectionPool.getAgent(serial);
+            }
+        }
+        log.info("Starting scenario {}: {} events over {} ms at speed {}", name, events.size(), getDurationMs(), speed);
+        runner = new Thread(this::run, "scenario-" + name);
+        runner.setDaemon(true);
+        runner.start();
+        return this;
+    }
+
+    /**
+     * Stops before the next event; events already applied stay applied.
+     */
+    public void stop() {
+        stopped = true;
+        Thread thread = runner;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Waits for the last event and for every message it published to complete.
+     */
+    public boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        if (!finished.await(timeoutMs, TimeUnit.MILLISECONDS)) return false;
+        while (pending.get() > 0) {
+            if (System.nanoTime() >= deadline) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    public boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * Events that did not apply to the phone's state at the time, such as a call step without a call.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /**
+     * How far behind its due time each event ran, in wall clock microseconds.
+     */
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
+
+    public String getSummary() {
+        return String.format("Scenario %s: %d events over %d ms at speed %.1f, %d executed, %d skipped, %d failed, %d messages, lateness p50 %.3f ms p99 %.3f ms max %.3f ms",
+                name, events.size(), getDurationMs(), speed, executed.get(), skipped.get(), failures.get(), messagesSent.get(),
+                lateness.toMillis(lateness.getValueAtPercentile(50)), lateness.toMillis(lateness.getValueAtPercentile(99)), lateness.toMillis(lateness.getMax()));
+    }
+
+    private void run() {
+        try {
+            startMillis = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            for (Event event : events) {
+                long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(event.timeMs) / speed);
+                long wait;
+                while (!stopped && (wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+                if (stopped) break;
+                try {
+                    event.action.apply(this, event.phone, startMillis + event.timeMs);
+                    executed.incrementAndGet();
+                } catch (RuntimeException re) {
+                    failures.incrementAndGet();
+                    log.error("Scenario {} event at {} ms failed for {}: {}", name, event.timeMs, event.phone.getDevice_serial_number(), re.toString());
+                }
+                long late = System.nanoTime() - due;
+                lateness.record(TimeUnit.NANOSECONDS.toMicros(late));
+                if (listener != null) listener.onEvent(event.timeMs, event.phone.getDevice_serial_number(), late);
+            }
+            log.info(getSummary());
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    // Actions
+
+    void setBattery(SimulatedPhone phone, Integer level, SimulatedBattery.LevelDriftType control, Integer increment) {
+        SimulatedBattery battery = phone.getCurrent_battery();
+        if (battery == null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        if (control != null) battery.setLevel_CONTROL(control);
+        if (increment != null) battery.setLevel_INCREMENT(increment);
+        if (level != null) battery.setLevel(level);
+    }
+
+    void emit(SimulatedPhone phone, List<SimulatedPhone.MetricsType> types, long timestamp) {
+        writer.beginMessage(phone.getDevice_serial_number(), timestamp);
+        int records = 0;
+        for (SimulatedPhone.MetricsType type : types) {
+            if (type == SimulatedPhone.MetricsType.BARCODE_SCAN) {
+                writer.writeRecord(phone.getBarcodeData(timestamp));
+                records++;
+            } else if (FleetSimulator.isEligible(phone, type)) {
+                FleetSimulator.writeMetrics(writer, phone, type, timestamp);
+                records++;
+            }
+        }
+        byte[] payload = writer.endMessage();
+        if (records == 0) {
+            skipped.incrementAndGet();
+        } else {
+            publish(phone, payload);
+        }
+    }
+
+    void beginCall(SimulatedPhone phone, SimulatedPhone.CallDirection direction, int intervalSeconds, long timestamp) {
+        if (phone.getCurrent_call() != null || phone.getCurrent_ap() == null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        phone.startCall(direction);
+        SimulatedCall call = phone.getCurrent_call();
+        call.setMetricsInterval(intervalSeconds);
+        publishRecord(phone, call.getCallBegin(timestamp), timestamp);
+    }
+
+    void confirmCall(SimulatedPhone phone, long timestamp) {
+        SimulatedCall call = phone.getCurrent_call();
+        if (call == null) {
+            skipped.incrementAndGet();
+        } else {
+            publishRecord(phone, call.getCallConfirmed(timestamp), timestamp);
+        }
+    }
+
+    void callDetails(SimulatedPhone phone, long timestamp) {
+        SimulatedCall call = phone.getCurrent_call();
+        if (call == null) {
+            skipped.incrementAndGet();
+        } else {
+            publishRecord(phone, call.getCallDetails(timestamp), timestamp);
+        }
+    }
+
+    void endCall(SimulatedPhone phone, long timestamp) {
+        SimulatedCall call = phone.getCurrent_call();
+        if (call == null) {
+            skipped.incrementAndGet();
+        } else {
+            publishRecord(phone, call.getCallEnd(timestamp), timestamp);
+            phone.setCurrent_call(null);
+        }
+    }
+
+    private void publishRecord(SimulatedPhone phone, JsonNode record, long timestamp) {
+        publish(phone, writer.beginMessage(phone.getDevice_serial_number(), timestamp).writeRecord(record).endMessage());
+    }
+
+    private void publish(SimulatedPhone phone, byte[] payload) {
+        pending.incrementAndGet();
+        CompletableFuture<Void> result;
+        try {
+            result = publisher.publish(phone.getDevice_serial_number(), payload);
+        } catch (RuntimeException re) {
+            result = CompletableFuture.failedFuture(re);
+        }
+        result.whenComplete((ignored, error) -> {
+            if (error == null) {
+                messagesSent.incrementAndGet();
+            } else {
+                failures.incrementAndGet();
+            }
+            pending.decrementAndGet();
+        });
+    }
+
+    private static class Event {
+        final long timeMs;
+        final int sequence;
+        final SimulatedPhone phone;
+        final Action action;
+
+        Event(long timeMs, int sequence, SimulatedPhone phone, Action action) {
+            this.timeMs = timeMs;
+            this.sequence = sequence;
+            this.phone = phone;
+            this.action = action;
+        }
+    }
+}
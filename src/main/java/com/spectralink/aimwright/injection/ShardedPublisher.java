@@ -0,0 +1,280 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads device metrics across several brokers, each device pinned to one broker by a {@link BrokerRing}.
+ *
+ * Every broker gets its own {@link MultiplexedPublisher}. A broker that fails to connect or to take a publish
+ * is marked down for {@code run.gateway.retry.ms}; meanwhile its devices go to the next broker clockwise on the
+ * ring, and the publish that failed is retried there once. After the retry period the next publish for one of
+ * its devices tries the broker again. Each broker counts its messages, bytes, failures and the publishes it
+ * took over from a down neighbour; {@link #getSummary()} reports them with throughput.
+ */
+public class ShardedPublisher implements MetricsPublisher {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(ShardedPublisher.class.getName());
+
+    private volatile BrokerRing ring;
+    private final Map<String, Broker> brokers = new ConcurrentHashMap<>();
+    private final int connectionsPerBroker;
+    private final int maxInflight;
+    private long retryNanos = TimeUnit.MILLISECONDS.toNanos(Settings.getGatewayRetryMs());
+    private volatile PayloadCodec codec;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Creates a publisher across {@code run.gateway.addresses} with {@code run.mqtt.connections} connections
+     * to each broker and a {@code run.mqtt.max.inflight} window per connection.
+     */
+    public ShardedPublisher() {
+        this(BrokerRing.fromSettings(), Settings.getMqttConnections(), Settings.getMqttMaxInflight());
+    }
+
+    /**
+     * @param ring Brokers and the assignment of devices to them
+     * @param connectionsPerBroker Connections each broker's devices are multiplexed over
+     * @param maxInflight Inflight window per connection
+     */
+    public ShardedPublisher(BrokerRing ring, int connectionsPerBroker, int maxInflight) {
+        this.ring = ring;
+        this.connectionsPerBroker = connectionsPerBroker;
+        this.maxInflight = maxInflight;
+        for (String endpoint : ring.getEndpoints()) {
+            brokers.put(endpoint, new Broker(endpoint));
+        }
+        log.info("Sharding devices across {} brokers: {}", ring.size(), ring.getEndpoints());
+    }
+
+    /**
+     * How long a failed broker is skipped before it is tried again.
+     */
+    public ShardedPublisher setRetryMs(long retryMs) {
+        retryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryMs));
+        return this;
+    }
+
+    /**
+     * Sets the wire encoding on every broker, including brokers added later.
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+        for (Broker broker : brokers.values()) {
+            broker.publisher.setCodec(codec);
+        }
+    }
+
+    /**
+     * Connects to every broker up front, marking the ones that cannot be reached as down.
+     */
+    public void connect() {
+        for (Broker broker : brokers.values()) {
+            broker.connect();
+        }
+    }
+
+    /**
+     * Adds a broker to the ring; only the devices that now hash to it move.
+     */
+    public synchronized void addBroker(String endpoint) {
+        BrokerRing grown = ring.with(endpoint);
+        Broker broker = new Broker(endpoint);
+        if (codec != null) broker.publisher.setCodec(codec);
+        brokers.put(endpoint, broker);
+        ring = grown;
+        log.info("Added broker {}, now sharding across {}", endpoint, ring.size());
+    }
+
+    /**
+     * Removes a broker from the ring; its devices move to their next broker clockwise.
+     */
+    public synchronized void removeBroker(String endpoint) {
+        ring = ring.without(endpoint);
+        Broker broker = brokers.remove(endpoint);
+        if (broker != null) broker.publisher.close();
+        log.info("Removed broker {}, now sharding across {}", endpoint, ring.size());
+    }
+
+    public BrokerRing getRing() {
+        return ring;
+    }
+
+    /**
+     * The broker a device's messages currently go to, skipping brokers that are down until their retry period
+     * is over. Only looks; a publish is what actually tries a recovering broker.
+     */
+    public String getBroker(String serial) {
+        BrokerRing current = ring;
+        String endpoint = current.route(serial, candidate -> {
+            Broker broker = brokers.get(candidate);
+            return broker != null && broker.isAvailable();
+        });
+        return endpoint != null ? endpoint : current.owner(serial);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String serial, byte[] payload) {
+        BrokerRing current = ring;
+        Broker broker = claim(current, serial, null);
+        if (broker == null) broker = brokers.get(current.owner(serial));
+        if (broker == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No broker left for device " + serial));
+        }
+        Broker chosen = broker;
+        if (!chosen.endpoint.equals(current.owner(serial))) chosen.failovers.incrementAndGet();
+        return chosen.publish(serial, payload).handle((ignored, error) -> {
+            if (error == null) return CompletableFuture.<Void>completedFuture(null);
+            chosen.markDown(error);
+            Broker fallback = claim(current, serial, chosen.endpoint);
+            if (fallback == null) return CompletableFuture.<Void>failedFuture(error);
+            fallback.failovers.incrementAndGet();
+            return fallback.publish(serial, payload);
+        }).thenCompose(result -> result);
+    }
+
+    /**
+     * The first broker clockwise from a device on the given ring that is up, or whose retry period is over and
+     * this publish gets to probe; null if there is none. Brokers removed since the ring was read are skipped.
+     */
+    private Broker claim(BrokerRing current, String serial, String excluded) {
+        Broker[] claimed = new Broker[1];
+        current.route(serial, candidate -> {
+            if (candidate.equals(excluded)) return false;
+            Broker broker = brokers.get(candidate);
+            if (broker == null || !broker.tryUse()) return false;
+            claimed[0] = broker;
+            return true;
+        });
+        return claimed[0];
+    }
+
+    @Override
+    public void close() {
+        for (Broker broker : brokers.values()) {
+            broker.publisher.close();
+        }
+    }
+
+    public long getMessageCount(String endpoint) {
+        return brokers.get(endpoint).messages.get();
+    }
+
+    public long getByteCount(String endpoint) {
+        return brokers.get(endpoint).bytes.get();
+    }
+
+    public long getFailureCount(String endpoint) {
+        return brokers.get(endpoint).failures.get();
+    }
+
+    /**
+     * Publishes this broker took for devices whose own broker was down.
+     */
+    public long getFailoverCount(String endpoint) {
+        return brokers.get(endpoint).failovers.get();
+    }
+
+    /**
+     * False while a broker is marked down, until a publish after the retry period gets through.
+     */
+    public boolean isUp(String endpoint) {
+        return !brokers.get(endpoint).down;
+    }
+
+    /**
+     * One line per broker with its counters and throughput since the publisher was created.
+     */
+    public String getSummary() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        StringBuilder summary = new StringBuilder(String.format("Sharded publisher across %d brokers:", ring.size()));
+        for (String endpoint : ring.getEndpoints()) {
+            Broker broker = brokers.get(endpoint);
+            summary.append(System.lineSeparator()).append(String.format("  %s: %d messages (%.1f/s), %d bytes (%.1f KB/s), %d failures, %d failovers in, %s",
+                    endpoint, broker.messages.get(), broker.messages.get() / seconds, broker.bytes.get(), broker.bytes.get() / seconds / 1024,
+                    broker.failures.get(), broker.failovers.get(), broker.down ? "down" : "up"));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * One broker's connections, counters and health.
+     */
+    private class Broker {
+        final String endpoint;
+        final MultiplexedPublisher publisher;
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong failovers = new AtomicLong();
+        final AtomicLong retryAt = new AtomicLong();
+        volatile boolean down = false;
+
+        Broker(String endpoint) {
+            this.endpoint = endpoint;
+            publisher = new MultiplexedPublisher(BrokerRing.host(endpoint), BrokerRing.port(endpoint), connectionsPerBroker, maxInflight);
+        }
+
+        void connect() {
+            publisher.connect();
+            if (publisher.isConnected()) {
+                down = false;
+            } else {
+                markDown(null);
+            }
+        }
+
+        /**
+         * True if the broker is up or its retry period is over.
+         */
+        boolean isAvailable() {
+            return !down || System.nanoTime() - retryAt.get() >= 0;
+        }
+
+        /**
+         * True if the broker is up, or if its retry period is over and this caller gets to try it; other
+         * callers keep skipping it until that publish has succeeded or the next retry period is over.
+         */
+        boolean tryUse() {
+            if (!down) return true;
+            long retry = retryAt.get();
+            long now = System.nanoTime();
+            return now - retry >= 0 && retryAt.compareAndSet(retry, now + retryNanos);
+        }
+
+        void markDown(Throwable error) {
+            if (!down) {
+                log.warn("Broker {} is down{}; failing its devices over to their neighbours", endpoint, error == null ? "" : ": " + error.getMessage());
+            }
+            retryAt.set(System.nanoTime() + retryNanos);
+            down = true;
+        }
+
+        CompletableFuture<Void> publish(String serial, byte[] payload) {
+            CompletableFuture<Void> result;
+            try {
+                result = publisher.publish(serial, payload);
+            } catch (RuntimeException re) {
+                result = CompletableFuture.failedFuture(re);
+            }
+            return result.whenComplete((ignored, error) -> {
+                if (error == null) {
+                    messages.incrementAndGet();
+                    bytes.addAndGet(payload.length);
+                    if (down) {
+                        down = false;
+                        log.info("Broker {} is back up", endpoint);
+                    }
+                } else {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+    }
+}
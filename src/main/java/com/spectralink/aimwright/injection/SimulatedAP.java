@@ -1,14 +1,18 @@
 package com.spectralink.aimwright.injection;
 
 import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+import static com.spectralink.aimwright.injection.MetricsStreamWriter.writeField;
 import static com.spectralink.aimwright.injection.SimulatedPhone.ConnectionState.*;
 
 /**
@@ -170,6 +174,9 @@ public class SimulatedAP {
     private SimulatedPhone.ConnectionState connection_state = DISCONNECTED;
     private Integer rssiIncrement = 4;
     private Boolean handOff = false;
+    private SplittableRandom random;
+    private DriftEngine driftEngine;
+    private int driftIndex;
 
     public SimulatedAP() {
     }
@@ -220,6 +227,7 @@ public class SimulatedAP {
 
     public void setAp_bssid(String ap_bssid) {
         this.ap_bssid = ap_bssid;
+        random = null;
     }
 
     public Integer getAp_band() {
@@ -241,6 +249,7 @@ public class SimulatedAP {
     }
 
     public Integer getAp_rssi() {
+        if (driftEngine != null) return (int) driftEngine.rssi.value[driftIndex];
         if (getAp_rssi_CONTROL().equals(RssiDriftType.INCREASING)) {
             if (ap_rssi - rssiIncrement < RssiDriftType.INCREASING.lowerLimit()) {
                 ap_rssi = RssiDriftType.INCREASING.lowerLimit();
@@ -254,13 +263,13 @@ public class SimulatedAP {
                 ap_rssi += rssiIncrement;
             }
         } else if (getAp_rssi_CONTROL().equals(RssiDriftType.RANDOM)) {
-            ap_rssi = RssiDriftType.RANDOM.lowerLimit() + new Random().nextInt(RssiDriftType.RANDOM.upperLimit() - RssiDriftType.RANDOM.lowerLimit() + 1);
+            ap_rssi = SimulationRandom.nextInt(random(), RssiDriftType.RANDOM.lowerLimit(), RssiDriftType.RANDOM.upperLimit());
         }
         return ap_rssi;
     }
 
     public void setAp_rssi(Integer ap_rssi) {
-        this.ap_rssi = ap_rssi;
+        syncDrift(() -> this.ap_rssi = ap_rssi);
     }
 
     public RssiDriftType getAp_rssi_CONTROL() {
@@ -268,11 +277,11 @@ public class SimulatedAP {
     }
 
     public void setAp_rssi_CONTROL(RssiDriftType ap_rssi_CONTROL) {
-        this.ap_rssi_CONTROL = ap_rssi_CONTROL;
+        syncDrift(() -> this.ap_rssi_CONTROL = ap_rssi_CONTROL);
     }
 
     public void setRssiIncrement(Integer rssiIncrement) {
-        this.rssiIncrement = rssiIncrement;
+        syncDrift(() -> this.rssiIncrement = rssiIncrement);
     }
 
     public Integer getRssiIncrement() {
@@ -295,12 +304,62 @@ public class SimulatedAP {
         this.handOff = handOff;
     }
 
+    // Drift engine binding
+    void attachDrift(DriftEngine engine, int index) {
+        // Rssi is negative: an INCREASING control weakens the signal towards the lower limit
+        byte mode = DriftEngine.modeOf(ap_rssi_CONTROL);
+        if (mode == DriftEngine.UP) {
+            mode = DriftEngine.DOWN;
+        } else if (mode == DriftEngine.DOWN) {
+            mode = DriftEngine.UP;
+        }
+        engine.rssi.load(index, mode, DriftEngine.valueOf(rssiIncrement),
+                ap_rssi_CONTROL.lowerLimit(), ap_rssi_CONTROL.upperLimit(), DriftEngine.valueOf(ap_rssi), random());
+        driftEngine = engine;
+        driftIndex = index;
+    }
+
+    void detachDrift() {
+        if (driftEngine == null) return;
+        ap_rssi = (int) driftEngine.rssi.value[driftIndex];
+        driftEngine = null;
+    }
+
+    private void syncDrift(Runnable change) {
+        DriftEngine engine = driftEngine;
+        if (engine == null) {
+            change.run();
+        } else {
+            detachDrift();
+            change.run();
+            attachDrift(engine, driftIndex);
+        }
+    }
+
+    /**
+     * Random source for this AP's RSSI and handoff jitter, keyed by BSSID. An AP shared by phones on
+     * different simulator threads draws from it concurrently, which costs determinism but not correctness.
+     */
+    SplittableRandom random() {
+        if (random == null) {
+            random = SimulationRandom.forKey(String.valueOf(getAp_bssid()));
+        }
+        return random;
+    }
+
     public ObjectNode getSelectedAP(ArrayNode candidates, long timestamp) {
+        return getSelectedAP(candidates, null, getHandOff(), timestamp);
+    }
+
+    /**
+     * Builds the record for one phone: {@code rssi} is the signal the phone measures, or null for this AP's
+     * own value, and {@code handOff} whether the phone has just roamed here.
+     */
+    public ObjectNode getSelectedAP(ArrayNode candidates, Integer rssi, boolean handOff, long timestamp) {
         ObjectNode metrics = mapper.createObjectNode();
         metrics.set("network_candidate_aps", candidates);
-        if (getHandOff()) {
-            Random generator = new Random();
-            int handoffMs = generator.nextInt(500);
+        if (handOff) {
+            int handoffMs = random().nextInt(500);
             metrics.put("roam_handoff_ms", handoffMs);
         }
         metrics.put("ap_band", getAp_band());
@@ -311,8 +370,8 @@ public class SimulatedAP {
         } else {
             metrics.put("ap_ssid", getAp_ssid());
         }
-        metrics.put("ap_rssi", getAp_rssi());
-        if (getHandOff()) {
+        metrics.put("ap_rssi", rssi != null ? rssi : getAp_rssi());
+        if (handOff) {
             metrics.put("network_type", "WIFI");
             metrics.put("connection_status", getConnection_state().state());
         }
@@ -330,6 +389,58 @@ public class SimulatedAP {
         return metrics;
     }
 
+    /**
+     * Streams the same record as {@link #getSelectedAP(ArrayNode, long)}, writing each candidate
+     * with {@link #writeCandidateAP(JsonGenerator)}.
+     */
+    public void writeSelectedAP(JsonGenerator generator, Collection<SimulatedAP> candidates, long timestamp) throws IOException {
+        writeSelectedAP(generator, candidates, null, getHandOff(), timestamp);
+    }
+
+    /**
+     * Streams the same record as {@link #getSelectedAP(ArrayNode, Integer, boolean, long)}.
+     */
+    public void writeSelectedAP(JsonGenerator generator, Collection<SimulatedAP> candidates, Integer rssi, boolean handOff, long timestamp) throws IOException {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("network_candidate_aps");
+        for (SimulatedAP candidate : candidates) {
+            candidate.writeCandidateAP(generator);
+        }
+        generator.writeEndArray();
+        if (handOff) {
+            int handoffMs = random().nextInt(500);
+            generator.writeNumberField("roam_handoff_ms", handoffMs);
+        }
+        writeField(generator, "ap_band", getAp_band());
+        writeField(generator, "ap_channel", getAp_channel());
+        writeField(generator, "ap_bssid", getAp_bssid());
+        if (candidates.isEmpty()) {
+            generator.writeStringField("ap_ssid", "<unknown ssid>");
+        } else {
+            writeField(generator, "ap_ssid", getAp_ssid());
+        }
+        writeField(generator, "ap_rssi", rssi != null ? rssi : getAp_rssi());
+        if (handOff) {
+            generator.writeStringField("network_type", "WIFI");
+            writeField(generator, "connection_status", getConnection_state().state());
+        }
+        generator.writeNumberField("timestamp", timestamp);
+        generator.writeStringField("type", "NETWORK_METRICS");
+        generator.writeEndObject();
+        setHandOff(false);
+    }
+
+    /**
+     * Streams the same record as {@link #getCandidateAP()}.
+     */
+    public void writeCandidateAP(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        writeField(generator, "bssid", getAp_bssid());
+        writeField(generator, "rssi", getAp_rssi());
+        writeField(generator, "ap_ssid", getAp_ssid());
+        generator.writeEndObject();
+    }
+
     @Override
     public String toString() {
         return "ap_channel: " + ap_channel + "\n" +
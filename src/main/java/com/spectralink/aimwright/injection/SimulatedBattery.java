@@ -1,21 +1,19 @@
 package com.spectralink.aimwright.injection;
 
 import ch.qos.logback.classic.Logger;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import static com.spectralink.aimwright.injection.MetricsStreamWriter.writeField;
+
 /**
  * Simulates a device battery for test data injection.
  * Generates battery metrics including charge state, level, temperature, and health.
@@ -167,6 +165,8 @@ public class SimulatedBattery {
     private Integer sec_remaining_capacity_mah = 95;
     private Long sec_remaining_energy_nwh = 396340000L;
     private List<Map<String, Object>> top_apps = new ArrayList<>();
+    private DriftEngine driftEngine;
+    private int driftIndex;
 
     public SimulatedBattery() {
     }
@@ -335,6 +335,7 @@ public class SimulatedBattery {
     }
 
     public Integer getLevel() {
+        if (driftEngine != null) return (int) driftEngine.level.value[driftIndex];
         if (getLevel_CONTROL().equals(LevelDriftType.INCREASING)) {
             if (level + getLevel_INCREMENT() > getLevel_CONTROL().upperLimit()) {
                 level = LevelDriftType.INCREASING.upperLimit();
@@ -352,7 +353,7 @@ public class SimulatedBattery {
     }
 
     public void setLevel(Integer level) {
-        this.level = level;
+        syncDrift(() -> this.level = level);
     }
 
     public LevelDriftType getLevel_CONTROL() {
@@ -360,7 +361,7 @@ public class SimulatedBattery {
     }
 
     public void setLevel_CONTROL(LevelDriftType level_CONTROL) {
-        this.level_CONTROL = level_CONTROL;
+        syncDrift(() -> this.level_CONTROL = level_CONTROL);
     }
 
     public Integer getLevel_INCREMENT() {
@@ -368,7 +369,7 @@ public class SimulatedBattery {
     }
 
     public void setLevel_INCREMENT(Integer level_INCREMENT) {
-        this.level_INCREMENT = level_INCREMENT;
+        syncDrift(() -> this.level_INCREMENT = level_INCREMENT);
     }
 
     public Integer getDegradation_pct() {
@@ -380,6 +381,7 @@ public class SimulatedBattery {
     }
 
     public Integer getFull_charge() {
+        if (driftEngine != null) return (int) driftEngine.fullCharge.value[driftIndex];
         if (getFull_charge_CONTROL().equals(FullChargeDriftType.DECREASING)) {
             if (full_charge - getFull_charge_INCREMENT() < getFull_charge_CONTROL().lowerLimit()) {
                 full_charge = FullChargeDriftType.DECREASING.lowerLimit();
@@ -391,7 +393,7 @@ public class SimulatedBattery {
     }
 
     public void setFull_charge(Integer full_charge) {
-        this.full_charge = full_charge;
+        syncDrift(() -> this.full_charge = full_charge);
     }
 
     public FullChargeDriftType getFull_charge_CONTROL() {
@@ -399,7 +401,7 @@ public class SimulatedBattery {
     }
 
     public void setFull_charge_CONTROL(FullChargeDriftType full_charge_CONTROL) {
-        this.full_charge_CONTROL = full_charge_CONTROL;
+        syncDrift(() -> this.full_charge_CONTROL = full_charge_CONTROL);
     }
 
     public Integer getFull_charge_INCREMENT() {
@@ -407,7 +409,7 @@ public class SimulatedBattery {
     }
 
     public void setFull_charge_INCREMENT(Integer full_charge_INCREMENT) {
-        this.full_charge_INCREMENT = full_charge_INCREMENT;
+        syncDrift(() -> this.full_charge_INCREMENT = full_charge_INCREMENT);
     }
 
     public String getBattery_serial_num() {
@@ -419,6 +421,7 @@ public class SimulatedBattery {
     }
 
     public Integer getCycle_counter() {
+        if (driftEngine != null) return (int) driftEngine.cycleCounter.value[driftIndex];
         if (getCycle_counter_CONTROL().equals(CycleCountDriftType.INCREASING)) {
             if (cycle_counter + getCycle_counter_INCREMENT() > getCycle_counter_CONTROL().upperLimit()) {
                 cycle_counter = CycleCountDriftType.INCREASING.upperLimit();
@@ -430,7 +433,7 @@ public class SimulatedBattery {
     }
 
     public void setCycle_counter(Integer cycle_counter) {
-        this.cycle_counter = cycle_counter;
+        syncDrift(() -> this.cycle_counter = cycle_counter);
     }
 
     public CycleCountDriftType getCycle_counter_CONTROL() {
@@ -438,7 +441,7 @@ public class SimulatedBattery {
     }
 
     public void setCycle_counter_CONTROL(CycleCountDriftType cycle_counter_CONTROL) {
-        this.cycle_counter_CONTROL = cycle_counter_CONTROL;
+        syncDrift(() -> this.cycle_counter_CONTROL = cycle_counter_CONTROL);
     }
 
     public Integer getCycle_counter_INCREMENT() {
@@ -446,10 +449,11 @@ public class SimulatedBattery {
     }
 
     public void setCycle_counter_INCREMENT(Integer cycle_counter_INCREMENT) {
-        this.cycle_counter_INCREMENT = cycle_counter_INCREMENT;
+        syncDrift(() -> this.cycle_counter_INCREMENT = cycle_counter_INCREMENT);
     }
 
     public Double getTemperature_c() {
+        if (driftEngine != null) return driftEngine.temperature.value[driftIndex];
         if (getTemperature_c_CONTROL().equals(TemperatureDriftType.INCREASING)) {
             if (temperature_c + getTemperature_c_INCREMENT() > getTemperature_c_CONTROL().upperLimit()) {
                 temperature_c = TemperatureDriftType.INCREASING.upperLimit();
@@ -467,7 +471,7 @@ public class SimulatedBattery {
     }
 
     public void setTemperature_c(Double temperature_c) {
-        this.temperature_c = temperature_c;
+        syncDrift(() -> this.temperature_c = temperature_c);
     }
 
     public TemperatureDriftType getTemperature_c_CONTROL() {
@@ -475,7 +479,7 @@ public class SimulatedBattery {
     }
 
     public void setTemperature_c_CONTROL(TemperatureDriftType temperature_c_CONTROL) {
-        this.temperature_c_CONTROL = temperature_c_CONTROL;
+        syncDrift(() -> this.temperature_c_CONTROL = temperature_c_CONTROL);
     }
 
     public Double getTemperature_c_INCREMENT() {
@@ -483,7 +487,7 @@ public class SimulatedBattery {
     }
 
     public void setTemperature_c_INCREMENT(Double temperature_c_INCREMENT) {
-        this.temperature_c_INCREMENT = temperature_c_INCREMENT;
+        syncDrift(() -> this.temperature_c_INCREMENT = temperature_c_INCREMENT);
     }
 
     public Double getVoltage() {
@@ -649,20 +653,7 @@ public class SimulatedBattery {
                 metrics.put("sec_remaining_energy_nwh", getSec_remaining_energy_nwh());
             }
 
-            ArrayNode topApps = mapper.createArrayNode();
-            if (!getTop_apps().isEmpty()) {
-                topApps = mapper.valueToTree(getTop_apps());
-            } else {
-                Path apData = Paths.get(Environment.getTestDataDirectory(), "injection_data", "top_apps.json");
-                try {
-                    topApps = (ArrayNode) mapper.readTree(Files.readAllBytes(apData));
-                    ObjectReader reader = mapper.readerFor(new TypeReference<List<Map<String, Object>>>() {});
-                    setTop_apps(reader.readValue(topApps));
-                } catch (IOException ioe) {
-                    log.error("Could not load file in the path {}: {}", apData, ioe.getMessage());
-                }
-            }
-            metrics.set("top_apps", topApps);
+            metrics.set("top_apps", getTopAppsNode());
             metrics.put("timestamp", timestamp);
             metrics.put("type", "BATTERY_METRICS");
             return metrics;
@@ -672,6 +663,97 @@ public class SimulatedBattery {
         }
     }
 
+    /**
+     * Streams the same record as {@link #getBattery(long)} without building a tree. Writes nothing when the
+     * battery is not in a phone, so the message carries no record rather than a null one.
+     */
+    public void writeBattery(JsonGenerator generator, long timestamp) throws IOException {
+        if (getHousingPhone() != null) {
+            generator.writeStartObject();
+            writeField(generator, "is_ac_powered", getIs_ac_powered());
+            writeField(generator, "is_usb_powered", getIs_usb_powered());
+            writeField(generator, "charge_state", getCharge_state());
+            writeField(generator, "is_main_battery_present", getIs_main_battery_present());
+            writeField(generator, "level", getLevel());
+            writeField(generator, "degradation_pct", getDegradation_pct());
+            writeField(generator, "full_charge", getFull_charge());
+            writeField(generator, "battery_serial_num", getBattery_serial_num());
+            writeField(generator, "cycle_counter", getCycle_counter());
+            writeField(generator, "temperature_c", getTemperature_c());
+            writeField(generator, "voltage", getVoltage());
+            writeField(generator, "current_ma", getCurrent_ma());
+            writeField(generator, "technology", getTechnology());
+            writeField(generator, "health", getHealth());
+            writeField(generator, "remaining_capacity_mah", getRemaining_capacity_mah());
+            writeField(generator, "remaining_energy_nwh", getRemaining_energy_nwh());
+
+            // Series-specific fields
+            if (getHousingPhone().getDesignated_model().series() != 92) {
+                writeField(generator, "sec_health", getSec_health());
+                writeField(generator, "sec_level", getSec_level());
+                writeField(generator, "sec_cycle_counter", getSec_cycle_counter());
+                writeField(generator, "sec_voltage", getSec_voltage());
+                writeField(generator, "sec_current_ma", getSec_current_ma());
+                writeField(generator, "sec_full_charge", getSec_full_charge());
+                writeField(generator, "sec_remaining_capacity_mah", getSec_remaining_capacity_mah());
+                writeField(generator, "sec_remaining_energy_nwh", getSec_remaining_energy_nwh());
+            }
+
+            generator.writeFieldName("top_apps");
+            if (!getTop_apps().isEmpty()) {
+                generator.writeTree(mapper.valueToTree(getTop_apps()));
+            } else {
+                PayloadFragmentCache.getTopApps().writeTo(generator);
+            }
+            generator.writeNumberField("timestamp", timestamp);
+            generator.writeStringField("type", "BATTERY_METRICS");
+            generator.writeEndObject();
+        } else {
+            log.error("No phone was set when requesting battery info");
+        }
+    }
+
+    // Drift engine binding
+    void attachDrift(DriftEngine engine, int index) {
+        engine.level.load(index, DriftEngine.modeOf(level_CONTROL), DriftEngine.valueOf(level_INCREMENT),
+                level_CONTROL.lowerLimit(), level_CONTROL.upperLimit(), DriftEngine.valueOf(level), null);
+        engine.fullCharge.load(index, DriftEngine.modeOf(full_charge_CONTROL), DriftEngine.valueOf(full_charge_INCREMENT),
+                full_charge_CONTROL.lowerLimit(), full_charge_CONTROL.upperLimit(), DriftEngine.valueOf(full_charge), null);
+        engine.cycleCounter.load(index, DriftEngine.modeOf(cycle_counter_CONTROL), DriftEngine.valueOf(cycle_counter_INCREMENT),
+                cycle_counter_CONTROL.lowerLimit(), cycle_counter_CONTROL.upperLimit(), DriftEngine.valueOf(cycle_counter), null);
+        engine.temperature.load(index, DriftEngine.modeOf(temperature_c_CONTROL), DriftEngine.valueOf(temperature_c_INCREMENT),
+                temperature_c_CONTROL.lowerLimit(), temperature_c_CONTROL.upperLimit(), DriftEngine.valueOf(temperature_c), null);
+        driftEngine = engine;
+        driftIndex = index;
+    }
+
+    void detachDrift() {
+        if (driftEngine == null) return;
+        level = (int) driftEngine.level.value[driftIndex];
+        full_charge = (int) driftEngine.fullCharge.value[driftIndex];
+        cycle_counter = (int) driftEngine.cycleCounter.value[driftIndex];
+        temperature_c = driftEngine.temperature.value[driftIndex];
+        driftEngine = null;
+    }
+
+    private void syncDrift(Runnable change) {
+        DriftEngine engine = driftEngine;
+        if (engine == null) {
+            change.run();
+        } else {
+            detachDrift();
+            change.run();
+            attachDrift(engine, driftIndex);
+        }
+    }
+
+    private ArrayNode getTopAppsNode() {
+        if (!getTop_apps().isEmpty()) {
+            return mapper.valueToTree(getTop_apps());
+        }
+        return (ArrayNode) PayloadFragmentCache.getTopApps().getNode();
+    }
+
     public ObjectNode getUsage(boolean usage, long timestamp) {
         ObjectNode metrics = mapper.createObjectNode();
         metrics.put("device_is_in_use", usage);
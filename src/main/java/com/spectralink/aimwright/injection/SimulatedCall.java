@@ -1,12 +1,16 @@
 package com.spectralink.aimwright.injection;
 
 import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
+
+import static com.spectralink.aimwright.injection.MetricsStreamWriter.writeField;
 
 /**
  * Simulates a phone call for test data injection.
@@ -107,6 +111,8 @@ public class SimulatedCall {
     private String extension = "7152";
     private Boolean call_dropped = false;
     private Integer metricsInterval = 5;
+    private DriftEngine driftEngine;
+    private int driftIndex;
 
     public SimulatedCall(SimulatedPhone phone) {
         calling_phone = phone;
@@ -166,22 +172,61 @@ public class SimulatedCall {
         this.call_id = call_id;
     }
 
-    private String getRandomHexString(int stringLength) {
-        Random generator = new Random();
-        StringBuilder randomString = new StringBuilder();
-        while(randomString.length() < stringLength) {
-            randomString.append(Integer.toHexString(generator.nextInt(16)));
+    public void setRandomCallId() {
+        call_id = SimulationRandom.callId(random());
+    }
+
+    // Drift engine binding
+    void attachDrift(DriftEngine engine, int index) {
+        engine.packetsMissed.load(index, DriftEngine.modeOf(packets_missed_CONTROL), DriftEngine.valueOf(packets_missed_INCREMENT),
+                packets_missed_CONTROL.lowerLimit(), packets_missed_CONTROL.upperLimit(), DriftEngine.valueOf(packets_missed_RATE), random());
+        // Random dropped packets accumulate on top of the current rate
+        byte droppedMode = DriftEngine.modeOf(packets_dropped_CONTROL);
+        engine.packetsDropped.load(index, droppedMode == DriftEngine.RANDOM ? DriftEngine.RANDOM_ADD : droppedMode,
+                DriftEngine.valueOf(packets_dropped_INCREMENT), packets_dropped_CONTROL.lowerLimit(), packets_dropped_CONTROL.upperLimit(),
+                DriftEngine.valueOf(packets_dropped_RATE), random());
+        engine.jitter.load(index, DriftEngine.modeOf(jitter_ms_CONTROL), DriftEngine.valueOf(jitter_ms_INCREMENT),
+                jitter_ms_CONTROL.lowerLimit(), jitter_ms_CONTROL.upperLimit(), DriftEngine.valueOf(jitter_ms), random());
+        engine.packetsMissedTotal[index] = (long) DriftEngine.valueOf(packets_missed);
+        engine.packetsDroppedTotal[index] = (long) DriftEngine.valueOf(packets_dropped);
+        engine.packetsMissedPct[index] = DriftEngine.valueOf(packets_missed_pct);
+        engine.packetsDroppedPct[index] = DriftEngine.valueOf(packets_dropped_pct);
+        engine.callInterval[index] = getMetricsInterval();
+        driftEngine = engine;
+        driftIndex = index;
+    }
+
+    void detachDrift() {
+        if (driftEngine == null) return;
+        packets_missed_RATE = (int) driftEngine.packetsMissed.value[driftIndex];
+        packets_dropped_RATE = (int) driftEngine.packetsDropped.value[driftIndex];
+        jitter_ms = (int) driftEngine.jitter.value[driftIndex];
+        packets_missed = (int) driftEngine.packetsMissedTotal[driftIndex];
+        packets_dropped = (int) driftEngine.packetsDroppedTotal[driftIndex];
+        packets_missed_pct = driftEngine.packetsMissedPct[driftIndex];
+        packets_dropped_pct = driftEngine.packetsDroppedPct[driftIndex];
+        driftEngine = null;
+    }
+
+    private void syncDrift(Runnable change) {
+        DriftEngine engine = driftEngine;
+        if (engine == null) {
+            change.run();
+        } else {
+            detachDrift();
+            change.run();
+            attachDrift(engine, driftIndex);
         }
-        return randomString.toString();
     }
 
-    public void setRandomCallId() {
-        String callId = getRandomHexString(8) + "-" +
-                getRandomHexString(4) + "-" +
-                getRandomHexString(4) + "-" +
-                getRandomHexString(4) + "-" +
-                getRandomHexString(12);
-        call_id = callId;
+    /**
+     * Calls draw from the calling phone's random source so a call's id and jitter follow the phone's seed.
+     */
+    private SplittableRandom random() {
+        if (calling_phone != null) {
+            return calling_phone.random();
+        }
+        return SimulationRandom.next();
     }
 
     public SimulatedPhone getCalling_phone() {
@@ -201,6 +246,7 @@ public class SimulatedCall {
     }
 
     public Integer getPackets_missed() {
+        if (driftEngine != null) return (int) driftEngine.packetsMissedTotal[driftIndex];
         int intervalPacketsMissed = getPackets_missed_RATE();
         if (getPackets_missed_CONTROL().equals(MissedPacketsDriftType.INCREASING)) {
             if (intervalPacketsMissed + getPackets_missed_INCREMENT() > MissedPacketsDriftType.INCREASING.upperLimit()) {
@@ -215,7 +261,7 @@ public class SimulatedCall {
                 intervalPacketsMissed -= getPackets_missed_INCREMENT();
             }
         } else if (getPackets_missed_CONTROL().equals(MissedPacketsDriftType.RANDOM)) {
-            intervalPacketsMissed = MissedPacketsDriftType.RANDOM.lowerLimit() + new Random().nextInt(MissedPacketsDriftType.RANDOM.upperLimit() - MissedPacketsDriftType.RANDOM.lowerLimit() + 1);
+            intervalPacketsMissed = SimulationRandom.nextInt(random(), MissedPacketsDriftType.RANDOM.lowerLimit(), MissedPacketsDriftType.RANDOM.upperLimit());
         }
         updatePackets_missed_pct(intervalPacketsMissed);
         setPackets_missed_RATE(intervalPacketsMissed);
@@ -224,7 +270,7 @@ public class SimulatedCall {
     }
 
     public void setPackets_missed(Integer packets_missed) {
-        this.packets_missed = packets_missed;
+        syncDrift(() -> this.packets_missed = packets_missed);
     }
 
     public MissedPacketsDriftType getPackets_missed_CONTROL() {
@@ -232,7 +278,7 @@ public class SimulatedCall {
     }
 
     public void setPackets_missed_CONTROL(MissedPacketsDriftType packets_missed_CONTROL) {
-        this.packets_missed_CONTROL = packets_missed_CONTROL;
+        syncDrift(() -> this.packets_missed_CONTROL = packets_missed_CONTROL);
     }
 
     public Integer getPackets_missed_INCREMENT() {
@@ -240,18 +286,20 @@ public class SimulatedCall {
     }
 
     public void setPackets_missed_INCREMENT(Integer packets_missed_INCREMENT) {
-        this.packets_missed_INCREMENT = packets_missed_INCREMENT;
+        syncDrift(() -> this.packets_missed_INCREMENT = packets_missed_INCREMENT);
     }
 
     public Integer getPackets_missed_RATE() {
+        if (driftEngine != null) return (int) driftEngine.packetsMissed.value[driftIndex];
         return packets_missed_RATE;
     }
 
     public void setPackets_missed_RATE(Integer packets_missed_RATE) {
-        this.packets_missed_RATE = packets_missed_RATE;
+        syncDrift(() -> this.packets_missed_RATE = packets_missed_RATE);
     }
 
     public Double getPackets_missed_pct() {
+        if (driftEngine != null) return driftEngine.packetsMissedPct[driftIndex];
         return packets_missed_pct;
     }
 
@@ -264,6 +312,7 @@ public class SimulatedCall {
     }
 
     public Integer getPackets_dropped() {
+        if (driftEngine != null) return (int) driftEngine.packetsDroppedTotal[driftIndex];
         int intervalPacketsDropped = getPackets_dropped_RATE();
         if (getPackets_dropped_CONTROL().equals(DroppedPacketsDriftType.INCREASING)) {
             if (getPackets_dropped_RATE() + getPackets_dropped_INCREMENT() > DroppedPacketsDriftType.INCREASING.upperLimit()) {
@@ -278,7 +327,7 @@ public class SimulatedCall {
                 intervalPacketsDropped -= getPackets_dropped_INCREMENT();
             }
         } else if (getPackets_dropped_CONTROL().equals(DroppedPacketsDriftType.RANDOM)) {
-            intervalPacketsDropped += DroppedPacketsDriftType.RANDOM.lowerLimit() + new Random().nextInt(DroppedPacketsDriftType.RANDOM.upperLimit() - DroppedPacketsDriftType.RANDOM.lowerLimit() + 1);
+            intervalPacketsDropped += SimulationRandom.nextInt(random(), DroppedPacketsDriftType.RANDOM.lowerLimit(), DroppedPacketsDriftType.RANDOM.upperLimit());
         }
         updatePackets_dropped_pct(intervalPacketsDropped);
         setPackets_dropped_RATE(intervalPacketsDropped);
@@ -287,7 +336,7 @@ public class SimulatedCall {
     }
 
     public void setPackets_dropped(Integer packets_dropped) {
-        this.packets_dropped = packets_dropped;
+        syncDrift(() -> this.packets_dropped = packets_dropped);
     }
 
     public DroppedPacketsDriftType getPackets_dropped_CONTROL() {
@@ -295,7 +344,7 @@ public class SimulatedCall {
     }
 
     public void setPackets_dropped_CONTROL(DroppedPacketsDriftType packets_dropped_CONTROL) {
-        this.packets_dropped_CONTROL = packets_dropped_CONTROL;
+        syncDrift(() -> this.packets_dropped_CONTROL = packets_dropped_CONTROL);
     }
 
     public Integer getPackets_dropped_INCREMENT() {
@@ -303,18 +352,20 @@ public class SimulatedCall {
     }
 
     public void setPackets_dropped_INCREMENT(Integer packets_dropped_INCREMENT) {
-        this.packets_dropped_INCREMENT = packets_dropped_INCREMENT;
+        syncDrift(() -> this.packets_dropped_INCREMENT = packets_dropped_INCREMENT);
     }
 
     public Integer getPackets_dropped_RATE() {
+        if (driftEngine != null) return (int) driftEngine.packetsDropped.value[driftIndex];
         return packets_dropped_RATE;
     }
 
     public void setPackets_dropped_RATE(Integer packets_dropped_RATE) {
-        this.packets_dropped_RATE = packets_dropped_RATE;
+        syncDrift(() -> this.packets_dropped_RATE = packets_dropped_RATE);
     }
 
     public Double getPackets_dropped_pct() {
+        if (driftEngine != null) return driftEngine.packetsDroppedPct[driftIndex];
         return packets_dropped_pct;
     }
 
@@ -327,6 +378,7 @@ public class SimulatedCall {
     }
 
     public Integer getJitter_ms() {
+        if (driftEngine != null) return (int) driftEngine.jitter.value[driftIndex];
         if (getJitter_ms_CONTROL().equals(JitterDriftType.INCREASING)) {
             if (jitter_ms + getJitter_ms_INCREMENT() > JitterDriftType.INCREASING.upperLimit()) {
                 jitter_ms = JitterDriftType.INCREASING.upperLimit();
@@ -340,13 +392,13 @@ public class SimulatedCall {
                 jitter_ms -= getJitter_ms_INCREMENT();
             }
         } else if (getJitter_ms_CONTROL().equals(JitterDriftType.RANDOM)) {
-            jitter_ms = JitterDriftType.RANDOM.lowerLimit() + new Random().nextInt(JitterDriftType.RANDOM.upperLimit() - JitterDriftType.RANDOM.lowerLimit() + 1);
+            jitter_ms = SimulationRandom.nextInt(random(), JitterDriftType.RANDOM.lowerLimit(), JitterDriftType.RANDOM.upperLimit());
         }
         return jitter_ms;
     }
 
     public void setJitter_ms(Integer jitter_ms) {
-        this.jitter_ms = jitter_ms;
+        syncDrift(() -> this.jitter_ms = jitter_ms);
     }
 
     public JitterDriftType getJitter_ms_CONTROL() {
@@ -354,7 +406,7 @@ public class SimulatedCall {
     }
 
     public void setJitter_ms_CONTROL(JitterDriftType jitter_ms_CONTROL) {
-        this.jitter_ms_CONTROL = jitter_ms_CONTROL;
+        syncDrift(() -> this.jitter_ms_CONTROL = jitter_ms_CONTROL);
     }
 
     public Integer getJitter_ms_INCREMENT() {
@@ -362,7 +414,7 @@ public class SimulatedCall {
     }
 
     public void setJitter_ms_INCREMENT(Integer jitter_ms_INCREMENT) {
-        this.jitter_ms_INCREMENT = jitter_ms_INCREMENT;
+        syncDrift(() -> this.jitter_ms_INCREMENT = jitter_ms_INCREMENT);
     }
 
     public String getCodec() {
@@ -443,6 +495,27 @@ public class SimulatedCall {
         return metrics;
     }
 
+    /**
+     * Streams the same record as {@link #getCallDetails(long)} without building a tree.
+     */
+    public void writeCallDetails(JsonGenerator generator, long timestamp) throws IOException {
+        generator.writeStartObject();
+        writeField(generator, "call_id", getCall_id());
+        writeField(generator, "call_type", getCall_type().direction());
+        writeField(generator, "packets_missed", getPackets_missed());
+        writeField(generator, "packets_missed_pct", getPackets_missed_pct());
+        writeField(generator, "packets_dropped", getPackets_dropped());
+        writeField(generator, "packets_dropped_pct", getPackets_dropped_pct());
+        writeField(generator, "jitter_ms", getJitter_ms());
+        writeField(generator, "codec", getCodec());
+        writeField(generator, "burst_rate", getBurst_rate());
+        writeField(generator, "extension", getExtension());
+        generator.writeNumberField("timestamp", timestamp);
+        generator.writeStringField("type", "CALL_METRICS");
+        writeField(generator, "ap_rssi", getCalling_phone().getCurrent_ap().getAp_rssi());
+        generator.writeEndObject();
+    }
+
     public ObjectNode getCallEnd(long timestamp) {
         ObjectNode metrics = mapper.createObjectNode();
         metrics.put("call_id", getCall_id());
@@ -0,0 +1,151 @@
+package com.spectralink.aimwright.injection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A site floor with a layout of access points and the phones placed on it.
+ *
+ * Positions are in meters from the south-west corner of the floor and are kept in arrays alongside the
+ * AP and phone lists, so simulators can scan a whole location without touching every object.
+ */
+public class SimulatedLocation {
+    private final String name;
+    private final double width;
+    private final double depth;
+    private final List<SimulatedAP> aps = new ArrayList<>();
+    private final List<SimulatedPhone> phones = new ArrayList<>();
+    private double[] apX = new double[16];
+    private double[] apY = new double[16];
+    private double[] phoneX = new double[16];
+    private double[] phoneY = new double[16];
+
+    /**
+     * @param name Location name, also used as the prefix of its AP SSIDs
+     * @param width Floor width in meters
+     * @param depth Floor depth in meters
+     */
+    public SimulatedLocation(String name, double width, double depth) {
+        this.name = name;
+        this.width = width;
+        this.depth = depth;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getDepth() {
+        return depth;
+    }
+
+    /**
+     * Places an AP on the floor.
+     *
+     * @return Index of the AP within this location
+     */
+    public int addAp(SimulatedAP ap, double x, double y) {
+        int index = aps.size();
+        if (index == apX.length) {
+            apX = Arrays.copyOf(apX, index * 2);
+            apY = Arrays.copyOf(apY, index * 2);
+        }
+        aps.add(ap);
+        apX[index] = x;
+        apY[index] = y;
+        return index;
+    }
+
+    /**
+     * Places a phone on the floor.
+     *
+     * @return Index of the phone within this location
+     */
+    public int addPhone(SimulatedPhone phone, double x, double y) {
+        int index = phones.size();
+        if (index == phoneX.length) {
+            phoneX = Arrays.copyOf(phoneX, index * 2);
+            phoneY = Arrays.copyOf(phoneY, index * 2);
+        }
+        phones.add(phone);
+        phoneX[index] = x;
+        phoneY[index] = y;
+        return index;
+    }
+
+    public List<SimulatedAP> getAps() {
+        return Collections.unmodifiableList(aps);
+    }
+
+    public SimulatedAP getAp(int index) {
+        return aps.get(index);
+    }
+
+    public double getApX(int index) {
+        return apX[index];
+    }
+
+    public double getApY(int index) {
+        return apY[index];
+    }
+
+    public List<SimulatedPhone> getPhones() {
+        return Collections.unmodifiableList(phones);
+    }
+
+    public SimulatedPhone getPhone(int index) {
+        return phones.get(index);
+    }
+
+    public double getPhoneX(int index) {
+        return phoneX[index];
+    }
+
+    public double getPhoneY(int index) {
+        return phoneY[index];
+    }
+
+    /**
+     * Moves a phone, clamping the position to the floor.
+     */
+    public void setPhonePosition(int index, double x, double y) {
+        phoneX[index] = Math.max(0, Math.min(width, x));
+        phoneY[index] = Math.max(0, Math.min(depth, y));
+    }
+
+    /**
+     * Returns the index of the AP closest to a point, or -1 if the location has no APs.
+     */
+    public int nearestAp(double x, double y) {
+        int nearest = -1;
+        double best = Double.MAX_VALUE;
+        for (int index = 0; index < aps.size(); index++) {
+            double dx = apX[index] - x;
+            double dy = apY[index] - y;
+            double distance = dx * dx + dy * dy;
+            if (distance < best) {
+                best = distance;
+                nearest = index;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Distance in meters between a phone and an AP of this location.
+     */
+    public double distance(int phoneIndex, int apIndex) {
+        return Math.hypot(phoneX[phoneIndex] - apX[apIndex], phoneY[phoneIndex] - apY[apIndex]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%.0f x %.0f m, %d APs, %d phones)", name, width, depth, aps.size(), phones.size());
+    }
+}
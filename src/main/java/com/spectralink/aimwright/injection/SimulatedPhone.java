@@ -1,6 +1,7 @@
 package com.spectralink.aimwright.injection;
 
 import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -12,17 +13,17 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.spectralink.aimwright.api.ApiClient.Method.GET;
+import static com.spectralink.aimwright.injection.MetricsStreamWriter.writeField;
 import static com.spectralink.aimwright.injection.SimulatedPhone.Model.*;
 
 /**
@@ -162,7 +163,12 @@ public class SimulatedPhone {
     private static final ZoneId zoneId = ZoneId.systemDefault();
 
     private ArrayNode buffer = mapper.createArrayNode();
+    private final Object bufferLock = new Object();
+    private FlushPolicy flushPolicy;
+    private ScheduledFuture<?> ageFlush;
     private SimulatedAP current_ap;
+    private volatile Integer signal_rssi;
+    private final AtomicBoolean handOff = new AtomicBoolean();
     private SimulatedBattery current_battery;
     private SimulatedCall current_call;
     private Model designated_model = VERSITY_9740;
@@ -194,7 +200,10 @@ public class SimulatedPhone {
     private String designated_battery;
     private String designated_ap;
     private Integer packetCount = 250;
-    private final DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT);
+    private SplittableRandom random;
+    private DriftEngine driftEngine;
+    private int driftIndex;
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT);
     private static String endpoint = "/api/administration/locations/gateway-summary?start=0&length=50&sortField=gateway_name&sortOrder=ASC";
 
     public SimulatedPhone() {
@@ -318,6 +327,7 @@ public class SimulatedPhone {
             }
         }
         device_model = designated_model.fullModel();
+        if (settings.get("device_serial_number") != null) random = SimulationRandom.forKey(device_serial_number);
         if (ip_address == null) ip_address = getRandomIpAddress();
         if (mac_address == null) mac_address = getRandomSpectralinkMacAddress();
     }
@@ -328,7 +338,24 @@ public class SimulatedPhone {
     }
 
     public void clearBuffer() {
-        buffer = mapper.createArrayNode();
+        synchronized (bufferLock) {
+            buffer = mapper.createArrayNode();
+            cancelAgeFlush();
+            BufferFlusher.untrack(this);
+        }
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        if (flushPolicy == null) flushPolicy = FlushPolicy.fromSettings();
+        return flushPolicy;
+    }
+
+    /**
+     * Sets when records added with {@link #bufferMetrics} are sent; null returns to the settings default.
+     */
+    public SimulatedPhone setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
     }
 
     public SimulatedAP getCurrent_ap() {
@@ -339,6 +366,29 @@ public class SimulatedPhone {
         this.current_ap = current_ap;
     }
 
+    /**
+     * RSSI this phone measures from its current AP, or null to report the AP's own drifting value.
+     * Cleared whenever the phone changes AP.
+     */
+    public Integer getSignal_rssi() {
+        return signal_rssi;
+    }
+
+    public void setSignal_rssi(Integer signal_rssi) {
+        this.signal_rssi = signal_rssi;
+    }
+
+    /**
+     * Whether this phone changed AP since its last network record, which then reports the handoff.
+     */
+    public Boolean getHandOff() {
+        return handOff.get();
+    }
+
+    public void setHandOff(Boolean handOff) {
+        this.handOff.set(Boolean.TRUE.equals(handOff));
+    }
+
     public SimulatedBattery getCurrent_battery() {
         return current_battery;
     }
@@ -457,17 +507,20 @@ public class SimulatedPhone {
 
     public void setDevice_serial_number(String device_serial_number) {
         this.device_serial_number = device_serial_number;
+        if (device_serial_number != null) random = SimulationRandom.forKey(device_serial_number);
     }
 
     public Double getCpu_utilization_pct_last_1() {
+        if (driftEngine != null) return driftEngine.cpu.previous[driftIndex];
         return cpu_utilization_pct_last_1;
     }
 
     public void setCpu_utilization_pct_last_1(Double cpu_utilization_pct_last_1) {
-        this.cpu_utilization_pct_last_1 = cpu_utilization_pct_last_1;
+        syncDrift(() -> this.cpu_utilization_pct_last_1 = cpu_utilization_pct_last_1);
     }
 
     public Double getCpu_utilization_pct() {
+        if (driftEngine != null) return driftEngine.cpu.value[driftIndex];
         if (getCpu_utilization_CONTROL().equals(CpuUtilizationDriftType.INCREASING)) {
             cpu_utilization_pct_last_1 = cpu_utilization_pct;
             if (cpu_utilization_pct + getCpu_utilization_INCREMENT() > getCpu_utilization_CONTROL().upperLimit()) {
@@ -475,7 +528,7 @@ public class SimulatedPhone {
             } else {
                 cpu_utilization_pct += getCpu_utilization_INCREMENT();
             }
-        } else if (getRam_utilization_pct_CONTROL().equals(RamUtilizationDriftType.DECREASING)) {
+        } else if (getCpu_utilization_CONTROL().equals(CpuUtilizationDriftType.DECREASING)) {
             cpu_utilization_pct_last_1 = cpu_utilization_pct;
             if (cpu_utilization_pct - getCpu_utilization_INCREMENT() < getCpu_utilization_CONTROL().lowerLimit()) {
                 cpu_utilization_pct = getCpu_utilization_CONTROL().lowerLimit();
@@ -487,8 +540,10 @@ public class SimulatedPhone {
     }
 
     public void setCpu_utilization_pct(Double cpu_utilization_pct) {
-        cpu_utilization_pct_last_1 = this.cpu_utilization_pct;
-        this.cpu_utilization_pct = cpu_utilization_pct;
+        syncDrift(() -> {
+            cpu_utilization_pct_last_1 = this.cpu_utilization_pct;
+            this.cpu_utilization_pct = cpu_utilization_pct;
+        });
     }
 
     public CpuUtilizationDriftType getCpu_utilization_CONTROL() {
@@ -496,7 +551,7 @@ public class SimulatedPhone {
     }
 
     public void setCpu_utilization_CONTROL(CpuUtilizationDriftType cpu_utilization_CONTROL) {
-        this.cpu_utilization_CONTROL = cpu_utilization_CONTROL;
+        syncDrift(() -> this.cpu_utilization_CONTROL = cpu_utilization_CONTROL);
     }
 
     public Double getCpu_utilization_INCREMENT() {
@@ -504,7 +559,7 @@ public class SimulatedPhone {
     }
 
     public void setCpu_utilization_INCREMENT(Double cpu_utilization_INCREMENT) {
-        this.cpu_utilization_INCREMENT = cpu_utilization_INCREMENT;
+        syncDrift(() -> this.cpu_utilization_INCREMENT = cpu_utilization_INCREMENT);
     }
 
     public Double getCpu_utilization_pct_last_15() {
@@ -516,6 +571,7 @@ public class SimulatedPhone {
     }
 
     public Integer getRam_utilization_pct() {
+        if (driftEngine != null) return (int) driftEngine.ram.value[driftIndex];
         if (getRam_utilization_pct_CONTROL().equals(RamUtilizationDriftType.INCREASING)) {
             if (ram_utilization_pct + getRam_utilization_pct_INCREMENT() > getRam_utilization_pct_CONTROL().upperLimit()) {
                 ram_utilization_pct = getRam_utilization_pct_CONTROL().upperLimit();
@@ -533,7 +589,7 @@ public class SimulatedPhone {
     }
 
     public void setRam_utilization_pct(Integer ram_utilization_pct) {
-        this.ram_utilization_pct = ram_utilization_pct;
+        syncDrift(() -> this.ram_utilization_pct = ram_utilization_pct);
     }
 
     public RamUtilizationDriftType getRam_utilization_pct_CONTROL() {
@@ -541,7 +597,7 @@ public class SimulatedPhone {
     }
 
     public void setRam_utilization_pct_CONTROL(RamUtilizationDriftType ram_utilization_pct_CONTROL) {
-        this.ram_utilization_pct_CONTROL = ram_utilization_pct_CONTROL;
+        syncDrift(() -> this.ram_utilization_pct_CONTROL = ram_utilization_pct_CONTROL);
     }
 
     public Integer getRam_utilization_pct_INCREMENT() {
@@ -549,7 +605,7 @@ public class SimulatedPhone {
     }
 
     public void setRam_utilization_pct_INCREMENT(Integer ram_utilization_pct_INCREMENT) {
-        this.ram_utilization_pct_INCREMENT = ram_utilization_pct_INCREMENT;
+        syncDrift(() -> this.ram_utilization_pct_INCREMENT = ram_utilization_pct_INCREMENT);
     }
 
     public Long getTotal_storage_bytes() {
@@ -615,6 +671,12 @@ public class SimulatedPhone {
 
     public void connectWifi(SimulatedAP ap) {
         if (ap != null) {
+            if (ap != getCurrent_ap()) {
+                handOff.set(true);
+                signal_rssi = null;
+            } else if (getConnection_status() != ConnectionState.CONNECTED) {
+                handOff.set(true);
+            }
             setConnection_status(ConnectionState.CONNECTED);
             setCurrent_ap(ap);
             ap.setHandOff(true);
@@ -643,37 +705,58 @@ public class SimulatedPhone {
         }
     }
 
+    // Drift engine binding
+    void attachDrift(DriftEngine engine, int index) {
+        engine.cpu.load(index, DriftEngine.modeOf(cpu_utilization_CONTROL), DriftEngine.valueOf(cpu_utilization_INCREMENT),
+                cpu_utilization_CONTROL.lowerLimit(), cpu_utilization_CONTROL.upperLimit(), DriftEngine.valueOf(cpu_utilization_pct), null);
+        engine.cpu.previous[index] = DriftEngine.valueOf(cpu_utilization_pct_last_1);
+        engine.ram.load(index, DriftEngine.modeOf(ram_utilization_pct_CONTROL), DriftEngine.valueOf(ram_utilization_pct_INCREMENT),
+                ram_utilization_pct_CONTROL.lowerLimit(), ram_utilization_pct_CONTROL.upperLimit(), DriftEngine.valueOf(ram_utilization_pct), null);
+        driftEngine = engine;
+        driftIndex = index;
+    }
+
+    void detachDrift() {
+        if (driftEngine == null) return;
+        cpu_utilization_pct = driftEngine.cpu.value[driftIndex];
+        cpu_utilization_pct_last_1 = driftEngine.cpu.previous[driftIndex];
+        ram_utilization_pct = (int) driftEngine.ram.value[driftIndex];
+        driftEngine = null;
+    }
+
+    private void syncDrift(Runnable change) {
+        DriftEngine engine = driftEngine;
+        if (engine == null) {
+            change.run();
+        } else {
+            detachDrift();
+            change.run();
+            attachDrift(engine, driftIndex);
+        }
+    }
+
     // Helper methods for random data generation
+
+    /**
+     * Random source for this phone, keyed by serial number once one is set.
+     */
+    SplittableRandom random() {
+        if (random == null) {
+            random = SimulationRandom.next();
+        }
+        return random;
+    }
+
     private String getRandomIpAddress() {
-        StringBuilder newIpAddress = new StringBuilder();
-        newIpAddress.append("192.168.");
-        Random generator = new Random();
-        int thisOctet = generator.nextInt(255);
-        newIpAddress.append(String.format("%02d.", thisOctet));
-        thisOctet = generator.nextInt(255);
-        newIpAddress.append(String.format("%02d", thisOctet));
-        return newIpAddress.toString();
+        return SimulationRandom.ipAddress(random());
     }
 
     private String getRandomMacAddress() {
-        StringBuilder newMacAddress = new StringBuilder();
-        Random generator = new Random();
-        for (int pair = 0; pair < 6; pair++) {
-            int thisPair = generator.nextInt(255);
-            newMacAddress.append(pair == 5 ? String.format("%02x", thisPair) : String.format("%02x:", thisPair));
-        }
-        return newMacAddress.toString().toUpperCase();
+        return SimulationRandom.macAddress(random());
     }
 
     private String getRandomSpectralinkMacAddress() {
-        StringBuilder newMacAddress = new StringBuilder();
-        newMacAddress.append("00:90:7a:");
-        Random generator = new Random();
-        for (int pair = 0; pair < 3; pair++) {
-            int thisPair = generator.nextInt(255);
-            newMacAddress.append(pair == 2 ? String.format("%02x", thisPair) : String.format("%02x:", thisPair));
-        }
-        return newMacAddress.toString().toUpperCase();
+        return SimulationRandom.spectralinkMacAddress(random());
     }
 
     public ArrayNode getDeviceMacAddresses() {
@@ -708,26 +791,11 @@ public class SimulatedPhone {
     }
 
     public ObjectNode getAppVersions() {
-        Path appVersionsPath;
-        ObjectNode appVersions = null;
         if (getApp_versions().isEmpty()) {
-            if (getDesignated_model().series() == 95) {
-                appVersionsPath = Paths.get(Environment.getProjectDirectory(), "src", "main", "resources", "test_data", "injection_data", "app_versions_versity.json");
-            } else if (getDesignated_model().series() == 97) {
-                appVersionsPath = Paths.get(Environment.getProjectDirectory(), "src", "main", "resources", "test_data", "injection_data", "app_versions_x1.json");
-            } else {
-                appVersionsPath = Paths.get(Environment.getProjectDirectory(), "src", "main", "resources", "test_data", "injection_data", "app_versions_orion.json");
-            }
-            File appVersionsFile = appVersionsPath.toFile();
-            try {
-                appVersions = (ObjectNode) mapper.readTree(appVersionsFile);
-            } catch (IOException ioe) {
-                log.error("Could not load app versions file {}: {}", appVersionsPath, ioe.getMessage());
-            }
-        } else {
-            appVersions = mapper.valueToTree(getApp_versions());
+            JsonNode appVersions = PayloadFragmentCache.getAppVersions(getDesignated_model()).getNode();
+            return appVersions.isNull() ? null : (ObjectNode) appVersions;
         }
-        return appVersions;
+        return mapper.valueToTree(getApp_versions());
     }
 
     // Metrics generation methods
@@ -762,19 +830,86 @@ public class SimulatedPhone {
         if (getCurrent_ap() != null) {
             ArrayNode networks = mapper.createArrayNode();
             if (getConnection_status().equals(ConnectionState.CONNECTED)) {
-                for (Map.Entry<String, SimulatedAP> entry : Environment.getSimNetworks().entrySet()) {
-                    if (!entry.getKey().contentEquals(getCurrent_ap().getAp_ssid())) {
-                        networks.add(entry.getValue().getCandidateAP());
-                    }
+                for (SimulatedAP candidate : getCandidateAPs()) {
+                    networks.add(candidate.getCandidateAP());
                 }
             }
-            return getCurrent_ap().getSelectedAP(networks, timestamp);
+            // Take and clear the flag in one step so a roam landing mid-record is reported by the next one
+            return getCurrent_ap().getSelectedAP(networks, getSignal_rssi(), handOff.getAndSet(false), timestamp);
         } else {
             log.error("No network connected to phone {}", getDevice_serial_number());
             return null;
         }
     }
 
+    /**
+     * Streams the same record as {@link #getDeviceMetrics(long)} without building a tree.
+     */
+    public void writeDeviceMetrics(JsonGenerator generator, long timestamp) throws IOException {
+        generator.writeStartObject();
+        writeField(generator, "device_os_revision", getDevice_os_revision());
+        writeField(generator, "device_name", getDevice_name());
+        writeField(generator, "device_sw_revision", getDevice_sw_revision());
+        writeField(generator, "device_info_1", getDevice_info_1());
+        writeField(generator, "device_info_2", getDevice_info_2());
+        writeField(generator, "device_info_3", getDevice_info_3());
+        writeField(generator, "device_info_4", getDevice_info_4());
+        writeField(generator, "device_model", getDevice_model());
+        generator.writeFieldName("app_versions");
+        if (getApp_versions().isEmpty()) {
+            PayloadFragmentCache.getAppVersions(getDesignated_model()).writeTo(generator);
+        } else {
+            generator.writeTree(mapper.valueToTree(getApp_versions()));
+        }
+        if (getDesignated_model().equals(VERSITY_9653) || getDesignated_model().equals(VERSITY_9753)) {
+            writeField(generator, "imei", getImei());
+        }
+        generator.writeFieldName("device_mac_addresses");
+        generator.writeTree(getDeviceMacAddresses());
+        writeField(generator, "device_serial_number", getDevice_serial_number());
+        writeField(generator, "cpu_utilization_pct_last_1", getCpu_utilization_pct_last_1());
+        writeField(generator, "cpu_utilization_pct", getCpu_utilization_pct());
+        writeField(generator, "cpu_utilization_pct_last_15", getCpu_utilization_pct_last_15());
+        writeField(generator, "ram_utilization_pct", getRam_utilization_pct());
+        writeField(generator, "total_storage_bytes", getTotal_storage_bytes());
+        writeField(generator, "used_storage_bytes", getUsed_storage_bytes());
+        generator.writeNumberField("timestamp", timestamp);
+        generator.writeStringField("type", "DEVICE_METRICS");
+        generator.writeEndObject();
+    }
+
+    /**
+     * Streams the same record as {@link #getNetworkMetrics(long)} without building a tree. Writes nothing when
+     * no AP is connected, so the message carries no record rather than a null one.
+     */
+    public void writeNetworkMetrics(JsonGenerator generator, long timestamp) throws IOException {
+        if (getCurrent_ap() != null) {
+            List<SimulatedAP> candidates = getConnection_status().equals(ConnectionState.CONNECTED)
+                    ? getCandidateAPs() : Collections.emptyList();
+            getCurrent_ap().writeSelectedAP(generator, candidates, getSignal_rssi(), handOff.getAndSet(false), timestamp);
+        } else {
+            log.error("No network connected to phone {}", getDevice_serial_number());
+        }
+    }
+
+    /**
+     * APs reported as roaming candidates: the precomputed neighbours of the current AP when its location is
+     * in the {@link NeighborIndex}, otherwise every other AP in the Environment.
+     */
+    public List<SimulatedAP> getCandidateAPs() {
+        List<SimulatedAP> neighbors = NeighborIndex.getCandidates(getCurrent_ap());
+        if (neighbors != null) {
+            return neighbors;
+        }
+        List<SimulatedAP> candidates = new ArrayList<>();
+        for (Map.Entry<String, SimulatedAP> entry : Environment.getSimNetworks().entrySet()) {
+            if (!entry.getKey().contentEquals(getCurrent_ap().getAp_ssid())) {
+                candidates.add(entry.getValue());
+            }
+        }
+        return candidates;
+    }
+
     public ObjectNode getDeviceIpAddress(long timestamp) {
         ObjectNode metrics = mapper.createObjectNode();
         metrics.put("device_ip_address", getIp_address());
@@ -795,6 +930,61 @@ public class SimulatedPhone {
         return outsideMetrics;
     }
 
+    /**
+     * Adds a record to the buffer and sends the buffer on its own once the flush policy says so.
+     *
+     * Reaching the record limit flushes on the calling thread, so the buffer never grows past it; otherwise the
+     * {@link BufferFlusher} sends it when the first record reaches the age limit.
+     */
+    public void bufferMetrics(JsonNode record) {
+        FlushPolicy policy = getFlushPolicy();
+        ArrayNode full = null;
+        synchronized (bufferLock) {
+            buffer.add(record);
+            if (buffer.size() >= policy.getMaxRecords()) {
+                full = takeBuffer();
+            } else if (buffer.size() == 1) {
+                if (policy.getMaxAgeMs() > 0) {
+                    ageFlush = BufferFlusher.schedule(this, policy.getMaxAgeMs());
+                } else {
+                    BufferFlusher.track(this);
+                }
+            }
+        }
+        if (full != null) BufferFlusher.publish(this, full, BufferFlusher.Trigger.SIZE);
+    }
+
+    /**
+     * Sends whatever is buffered now as one message, if anything is.
+     */
+    public void flushBuffer() {
+        flushBuffer(BufferFlusher.Trigger.MANUAL);
+    }
+
+    void flushBuffer(BufferFlusher.Trigger trigger) {
+        ArrayNode records;
+        synchronized (bufferLock) {
+            if (buffer.isEmpty()) return;
+            records = takeBuffer();
+        }
+        BufferFlusher.publish(this, records, trigger);
+    }
+
+    private ArrayNode takeBuffer() {
+        ArrayNode records = buffer;
+        buffer = mapper.createArrayNode();
+        cancelAgeFlush();
+        BufferFlusher.untrack(this);
+        return records;
+    }
+
+    private void cancelAgeFlush() {
+        if (ageFlush != null) {
+            ageFlush.cancel(false);
+            ageFlush = null;
+        }
+    }
+
     /**
      * Sends buffered metrics to the MQTT broker.
      */
@@ -808,10 +998,7 @@ public class SimulatedPhone {
             if (Settings.isDebugMode()) {
                 log.debug(fullMqttMessage.toPrettyString());
             } else {
-                MqttAgent agent = new MqttAgent(getDevice_serial_number(), null);
-                agent.connect();
-                agent.sendMessage(fullMqttMessage);
-                agent.disconnect();
+                MqttConnectionPool.sendMessage(getDevice_serial_number(), fullMqttMessage);
             }
         } else {
             log.error("No events were in the buffer - no metrics sent");
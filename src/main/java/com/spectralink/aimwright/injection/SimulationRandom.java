@@ -0,0 +1,141 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.util.SplittableRandom;
+
+/**
+ * Seeded random sources for the simulators, plus formatters for the random identifiers they generate.
+ *
+ * Every source derives from a single run seed ({@code run.simulation.seed}). A source keyed by a device
+ * serial number or AP BSSID always produces the same sequence for the same seed, so a fleet and its
+ * handoff jitter can be reproduced from the seed logged at the start of a run. A seed of 0 picks a
+ * fresh one. The configured seed is read on first use, so settings loaded after this class are honoured.
+ *
+ * The returned {@link SplittableRandom} instances are not thread-safe; each belongs to one simulated device.
+ */
+public class SimulationRandom {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(SimulationRandom.class.getName());
+    private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    private static long runSeed;
+    private static SplittableRandom sequence;
+
+    /**
+     * Sets the run seed. Sources created afterwards derive from it; existing sources are unaffected.
+     */
+    public static synchronized void setRunSeed(long seed) {
+        runSeed = seed;
+        sequence = new SplittableRandom(seed);
+        log.info("Simulation run seed: {}", seed);
+    }
+
+    public static synchronized long getRunSeed() {
+        seedFromSettings();
+        return runSeed;
+    }
+
+    /**
+     * Returns a new source whose sequence depends only on the run seed and the key.
+     *
+     * @param key Stable identifier such as a device serial number or AP BSSID
+     */
+    public static SplittableRandom forKey(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < key.length(); index++) {
+            hash ^= key.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+        return new SplittableRandom(getRunSeed() ^ hash);
+    }
+
+    /**
+     * Returns the next source split from the run seed, for objects created before they have a stable key.
+     * The sequence is reproducible when objects are created in the same order.
+     */
+    public static synchronized SplittableRandom next() {
+        seedFromSettings();
+        return sequence.split();
+    }
+
+    private static void seedFromSettings() {
+        if (sequence == null) {
+            long configured = Settings.getSimulationSeed();
+            setRunSeed(configured != 0 ? configured : new SplittableRandom().nextLong());
+        }
+    }
+
+    /**
+     * Formats six random octets as an upper-case MAC address, e.g. {@code 3A:F1:07:C2:9E:11}.
+     */
+    public static String macAddress(SplittableRandom random) {
+        char[] mac = new char[17];
+        for (int pair = 0; pair < 6; pair++) {
+            writeHexPair(mac, pair * 3, random.nextInt(255), HEX_UPPER);
+            if (pair < 5) mac[pair * 3 + 2] = ':';
+        }
+        return new String(mac);
+    }
+
+    /**
+     * Formats a MAC address in the Spectralink OUI with three random octets, e.g. {@code 00:90:7A:C2:9E:11}.
+     */
+    public static String spectralinkMacAddress(SplittableRandom random) {
+        char[] mac = {'0', '0', ':', '9', '0', ':', '7', 'A', ':', 0, 0, ':', 0, 0, ':', 0, 0};
+        for (int pair = 3; pair < 6; pair++) {
+            writeHexPair(mac, pair * 3, random.nextInt(255), HEX_UPPER);
+        }
+        return new String(mac);
+    }
+
+    /**
+     * Formats a random 192.168.x.y address, zero-padding each octet to at least two digits.
+     */
+    public static String ipAddress(SplittableRandom random) {
+        char[] ip = new char[15];
+        "192.168.".getChars(0, 8, ip, 0);
+        int length = writeOctet(ip, 8, random.nextInt(255));
+        ip[length++] = '.';
+        length = writeOctet(ip, length, random.nextInt(255));
+        return new String(ip, 0, length);
+    }
+
+    /**
+     * Formats a random call id in the 8-4-4-4-12 lower-case hex layout of a UUID.
+     */
+    public static String callId(SplittableRandom random) {
+        char[] id = new char[36];
+        for (int index = 0; index < id.length; index++) {
+            if (index == 8 || index == 13 || index == 18 || index == 23) {
+                id[index] = '-';
+            } else {
+                id[index] = HEX_LOWER[random.nextInt(16)];
+            }
+        }
+        return new String(id);
+    }
+
+    /**
+     * Returns a value between lowerLimit and upperLimit, both inclusive.
+     */
+    public static int nextInt(SplittableRandom random, int lowerLimit, int upperLimit) {
+        return random.nextInt(lowerLimit, upperLimit + 1);
+    }
+
+    private static void writeHexPair(char[] target, int offset, int value, char[] digits) {
+        target[offset] = digits[(value >> 4) & 0xf];
+        target[offset + 1] = digits[value & 0xf];
+    }
+
+    private static int writeOctet(char[] target, int offset, int value) {
+        if (value >= 100) {
+            target[offset++] = (char) ('0' + value / 100);
+        }
+        target[offset++] = (char) ('0' + value / 10 % 10);
+        target[offset++] = (char) ('0' + value % 10);
+        return offset;
+    }
+}
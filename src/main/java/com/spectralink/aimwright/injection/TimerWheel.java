@@ -0,0 +1,205 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for scheduling large numbers of short tasks on a single thread.
+ *
+ * Time is cut into ticks and each timeout is hashed into the bucket of the tick it expires on, counting how
+ * many turns of the wheel it must wait. Scheduling and cancelling are O(1) and each tick only visits one
+ * bucket, so thousands of timers cost no more than a thread that wakes once per tick. Timeouts fire up to one
+ * tick late, and every task runs on the wheel thread, so tasks must be short and must not block.
+ */
+public class TimerWheel implements AutoCloseable {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(TimerWheel.class.getName());
+
+    private final long tickNanos;
+    private final List<List<Timeout>> wheel;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Thread worker;
+    private final long startNanos;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * @param name Name of the wheel thread
+     * @param tickMs Resolution of the wheel
+     * @param wheelSize Number of buckets, rounded up to a power of two; ideally covers the usual timeout
+     */
+    public TimerWheel(String name, long tickMs, int wheelSize) {
+        if (tickMs < 1) {
+            throw new IllegalArgumentException("Timer wheel tick must be at least 1 ms: " + tickMs);
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        wheel = new ArrayList<>(size);
+        for (int index = 0; index < size; index++) {
+            wheel.add(new ArrayList<>());
+        }
+        mask = size - 1;
+        startNanos = System.nanoTime();
+        worker = new Thread(this::work, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs the task on the wheel thread once the delay has passed.
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+        pendingCount.incrementAndGet();
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Milliseconds since the wheel started.
+     */
+    public long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Number of timeouts that have neither fired nor been cancelled.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops the wheel. Timeouts that have not fired are discarded.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+        if (Thread.currentThread() != worker) {
+            try {
+                worker.join(TimeUnit.NANOSECONDS.toMillis(tickNanos) + 1000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for the wheel thread to exit after {@link #close()}. A task that is running when the wheel closes
+     * finishes first. Called from a task on the wheel itself, returns true at once, since no other task can
+     * run until it returns.
+     *
+     * @return True if the wheel thread has exited
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        if (Thread.currentThread() == worker) return true;
+        worker.join(Math.max(1, timeoutMs));
+        return !worker.isAlive();
+    }
+
+    private void work() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long wait;
+            while (running && (wait = deadline - (System.nanoTime() - startNanos)) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (!running) break;
+            transferIncoming();
+            expire(wheel.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+            long expiresOnTick = Math.max(timeout.deadlineNanos / tickNanos, tick);
+            timeout.rounds = (expiresOnTick - tick) / wheel.size();
+            wheel.get((int) (expiresOnTick & mask)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        int size = bucket.size();
+        for (int index = 0; index < size; index++) {
+            Timeout timeout = bucket.get(index);
+            if (timeout.isCancelled()) continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            if (!timeout.transition(Timeout.EXPIRED)) continue;
+            try {
+                timeout.task.run();
+            } catch (RuntimeException re) {
+                log.error("Timer wheel task failed: {}", re.getMessage());
+            }
+        }
+        // Tasks schedule through the incoming queue, never straight into a bucket, so trimming here is safe
+        bucket.subList(kept, size).clear();
+    }
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public static class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel owner;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long rounds;
+        private volatile int state = PENDING;
+
+        private Timeout(TimerWheel owner, Runnable task, long deadlineNanos) {
+            this.owner = owner;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running.
+         *
+         * @return False if it has already run or been cancelled
+         */
+        public boolean cancel() {
+            return transition(CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private boolean transition(int target) {
+            if (!STATE.compareAndSet(this, PENDING, target)) return false;
+            owner.pendingCount.decrementAndGet();
+            return true;
+        }
+    }
+}
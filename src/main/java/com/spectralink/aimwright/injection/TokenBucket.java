@@ -0,0 +1,57 @@
+package com.spectralink.aimwright.injection;
+
+/**
+ * Thread-safe token bucket that refills at a fixed rate up to one second of burst.
+ *
+ * Callers reserve permits and are told how long to wait before using them. A reservation may take the
+ * bucket into debt, so a single request larger than the burst (e.g. a big payload against a bytes/sec
+ * limit) is delayed rather than refused.
+ */
+public class TokenBucket {
+    private final double permitsPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond Sustained refill rate; must be positive
+     */
+    public TokenBucket(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Token bucket rate must be positive: " + permitsPerSecond);
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1.0, permitsPerSecond);
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Takes permits from the bucket and returns how many nanoseconds the caller must wait before using them.
+     */
+    public synchronized long reserve(double permits) {
+        refill(System.nanoTime());
+        tokens -= permits;
+        if (tokens >= 0) return 0;
+        return (long) Math.ceil(-tokens / permitsPerSecond * 1e9);
+    }
+
+    /**
+     * Takes permits only if they are available now.
+     */
+    public synchronized boolean tryAcquire(double permits) {
+        refill(System.nanoTime());
+        if (tokens < permits) return false;
+        tokens -= permits;
+        return true;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * permitsPerSecond);
+        lastRefillNanos = now;
+    }
+}
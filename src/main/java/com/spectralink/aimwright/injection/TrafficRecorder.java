@@ -0,0 +1,182 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import com.spectralink.aimwright.common.Settings;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of published MQTT traffic, written through a memory-mapped file.
+ *
+ * The file starts with a 16 byte header (magic, format version, creation time in epoch milliseconds) followed
+ * by one record per message: send time in epoch microseconds, topic length, payload length, topic bytes and
+ * payload bytes, all little-endian. The file is mapped in {@link #SEGMENT_SIZE} windows that are remapped as
+ * the log grows, and truncated to the written length when recording stops. A zero length topic marks the end
+ * of the log, so a file left behind by a crashed run can still be read up to its last complete record.
+ *
+ * {@link MqttAgent} records every message it publishes while a recording is active. Recording starts with
+ * {@link #start(Path)}, or on the first publish when {@code run.mqtt.record.file} is set.
+ * Use {@link TrafficReplayer} to send a log again.
+ */
+public class TrafficRecorder {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(TrafficRecorder.class.getName());
+    static final int MAGIC = 0x474c5741; // "AWLG"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 16;
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static volatile TrafficRecorder active;
+    private static volatile boolean settingsChecked = false;
+
+    private final Path path;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long mappedStart;
+    private final long startEpochMicros;
+    private final long startNanos;
+    private long messageCount = 0;
+    private long byteCount = 0;
+    private boolean closed = false;
+
+    private TrafficRecorder(Path path) throws IOException {
+        this.path = path;
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        startEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+        map(0, SEGMENT_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(TimeUnit.MICROSECONDS.toMillis(startEpochMicros));
+    }
+
+    /**
+     * Starts recording all published traffic to a file, replacing it if it exists.
+     * Stops any recording already in progress.
+     */
+    public static synchronized TrafficRecorder start(Path path) {
+        stop();
+        settingsChecked = true;
+        try {
+            active = new TrafficRecorder(path);
+            log.info("Recording MQTT traffic to {}", path);
+        } catch (IOException ioe) {
+            log.error("Could not start MQTT traffic recording to {}: {}", path, ioe.getMessage());
+        }
+        return active;
+    }
+
+    /**
+     * Stops the active recording, if any, and logs what it captured.
+     */
+    public static synchronized void stop() {
+        TrafficRecorder recorder = active;
+        active = null;
+        if (recorder != null) {
+            recorder.close();
+            log.info("Recorded {} MQTT messages ({} payload bytes) to {}", recorder.getMessageCount(), recorder.getByteCount(), recorder.path);
+        }
+    }
+
+    public static boolean isRecording() {
+        return getActive() != null;
+    }
+
+    /**
+     * Appends a message to the active recording. Does nothing when no recording is active.
+     */
+    public static void record(String topic, byte[] payload) {
+        TrafficRecorder recorder = getActive();
+        if (recorder != null) {
+            recorder.append(topic, payload);
+        }
+    }
+
+    private static TrafficRecorder getActive() {
+        if (!settingsChecked) {
+            synchronized (TrafficRecorder.class) {
+                if (!settingsChecked) {
+                    settingsChecked = true;
+                    String file = Settings.getMqttRecordFile();
+                    if (file != null && !file.isBlank()) {
+                        start(Paths.get(file));
+                    }
+                }
+            }
+        }
+        return active;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public synchronized long getMessageCount() {
+        return messageCount;
+    }
+
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    synchronized void append(String topic, byte[] payload) {
+        if (closed) return;
+        long timeMicros = startEpochMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_HEADER_SIZE + topicBytes.length + payload.length;
+        try {
+            // Keep room for the zero end marker after the record
+            if (buffer.remaining() < size + 4) {
+                map(mappedStart + buffer.position(), Math.max(SEGMENT_SIZE, size + 4));
+            }
+        } catch (IOException ioe) {
+            log.error("Could not extend MQTT traffic recording {}: {}", path, ioe.getMessage());
+            return;
+        }
+        buffer.putLong(timeMicros);
+        buffer.putInt(topicBytes.length);
+        buffer.putInt(payload.length);
+        buffer.put(topicBytes);
+        buffer.put(payload);
+        messageCount++;
+        byteCount += payload.length;
+    }
+
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        long length = mappedStart + buffer.position();
+        try {
+            buffer.force();
+            buffer = null;
+            channel.truncate(length);
+            channel.close();
+        } catch (IOException ioe) {
+            log.error("Could not finish MQTT traffic recording {}: {}", path, ioe.getMessage());
+        }
+    }
+
+    private void map(long start, long size) throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        mappedStart = start;
+    }
+}
@@ -0,0 +1,269 @@
+package com.spectralink.aimwright.injection;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the messages of a {@link TrafficRecorder} log again, streaming them from a memory-mapped file.
+ *
+ * Messages are sent in recorded order, spaced by their recorded send times divided by the replay speed, or
+ * back to back at {@link #MAX_SPEED}. Recorded device topics are mapped back to serial numbers so the log can
+ * be replayed through any {@link MetricsPublisher}; messages on other topics are skipped.
+ */
+public class TrafficReplayer {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(TrafficReplayer.class.getName());
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final String DEVICE_TOPIC_PREFIX = MqttAgent.topicFor("");
+
+    private final Path path;
+    private double speed = 1.0;
+
+    public TrafficReplayer(Path path) {
+        this.path = path;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Sets the replay speed: 1 for recorded timing, N for N times faster, {@link #MAX_SPEED} for no pacing.
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            log.error("Invalid replay speed {}; keeping {}", speed, this.speed);
+        } else {
+            this.speed = speed;
+        }
+    }
+
+    /**
+     * Replays the log through a publisher and waits for every publish to complete.
+     *
+     * @return Throughput and timing of the replay
+     */
+    public ReplayReport replay(MetricsPublisher publisher) throws IOException {
+        ReplayReport report = new ReplayReport(speed);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        try (LogReader reader = new LogReader(path)) {
+            long firstMicros = -1;
+            long startNanos = System.nanoTime();
+            while (reader.next()) {
+                if (firstMicros < 0) {
+                    firstMicros = reader.timeMicros;
+                }
+                long scheduledNanos = speed == MAX_SPEED ? 0
+                        : (long) (TimeUnit.MICROSECONDS.toNanos(reader.timeMicros - firstMicros) / speed);
+                long waitNanos = scheduledNanos - (System.nanoTime() - startNanos);
+                while (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                    waitNanos = scheduledNanos - (System.nanoTime() - startNanos);
+                }
+                report.recordLateness(-waitNanos);
+
+                String topic = reader.topic();
+                if (!topic.startsWith(DEVICE_TOPIC_PREFIX)) {
+                    report.skipped++;
+                    continue;
+                }
+                byte[] payload = reader.payload();
+                CompletableFuture<Void> result = publisher.publish(topic.substring(DEVICE_TOPIC_PREFIX.length()), payload);
+                pending.add(result.whenComplete((ignored, error) -> {
+                    if (error != null) report.failed.incrementAndGet();
+                }));
+                report.messages++;
+                report.bytes += payload.length;
+                if (pending.size() >= 10000) {
+                    pending.removeIf(CompletableFuture::isDone);
+                }
+            }
+            report.recordedMicros = firstMicros < 0 ? 0 : reader.timeMicros - firstMicros;
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+            } catch (RuntimeException re) {
+                // Failures are counted per message
+            }
+            report.elapsedNanos = System.nanoTime() - startNanos;
+        }
+        log.info(report.toString());
+        return report;
+    }
+
+    /**
+     * Outcome of one replay.
+     */
+    public static class ReplayReport {
+        private final double speed;
+        private long messages = 0;
+        private long bytes = 0;
+        private long skipped = 0;
+        private final AtomicLong failed = new AtomicLong();
+        private long recordedMicros = 0;
+        private long elapsedNanos = 0;
+        private long totalLatenessNanos = 0;
+        private long maxLatenessNanos = 0;
+        private long scheduled = 0;
+
+        ReplayReport(double speed) {
+            this.speed = speed;
+        }
+
+        void recordLateness(long latenessNanos) {
+            scheduled++;
+            totalLatenessNanos += latenessNanos;
+            maxLatenessNanos = Math.max(maxLatenessNanos, latenessNanos);
+        }
+
+        public long getMessageCount() {
+            return messages;
+        }
+
+        public long getByteCount() {
+            return bytes;
+        }
+
+        public long getSkippedCount() {
+            return skipped;
+        }
+
+        public long getFailedCount() {
+            return failed.get();
+        }
+
+        /**
+         * Time between the first and last recorded message.
+         */
+        public double getRecordedMillis() {
+            return recordedMicros / 1e3;
+        }
+
+        /**
+         * Wall clock time the replay took, including waiting for the last publishes to complete.
+         */
+        public double getElapsedMillis() {
+            return elapsedNanos / 1e6;
+        }
+
+        public double getMessagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Mean delay between when a message was due and when it was sent. Only meaningful for paced replays.
+         */
+        public double getMeanLatenessMillis() {
+            return scheduled == 0 ? 0 : totalLatenessNanos / 1e6 / scheduled;
+        }
+
+        public double getMaxLatenessMillis() {
+            return maxLatenessNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            String pace = speed == MAX_SPEED ? "max speed" : speed + "x";
+            return String.format("Replayed %d messages (%d bytes, %d skipped, %d failed) at %s: %.0f ms recorded, %.0f ms elapsed, "
+                            + "%.0f msg/s, lateness mean %.3f ms max %.3f ms",
+                    messages, bytes, skipped, failed.get(), pace, getRecordedMillis(), getElapsedMillis(),
+                    getMessagesPerSecond(), getMeanLatenessMillis(), getMaxLatenessMillis());
+        }
+    }
+
+    /**
+     * Sequential reader over a recorded log, remapping its window as it advances.
+     */
+    static class LogReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long mappedStart;
+        long timeMicros;
+        private int topicLength;
+        private int payloadLength;
+        private int recordStart;
+
+        LogReader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            map(0, 0);
+            if (size < TrafficRecorder.HEADER_SIZE || buffer.getInt() != TrafficRecorder.MAGIC) {
+                channel.close();
+                throw new IOException("Not an MQTT traffic recording: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != TrafficRecorder.VERSION) {
+                channel.close();
+                throw new IOException("Unsupported MQTT traffic recording version " + version + ": " + path);
+            }
+            buffer.getLong();
+        }
+
+        /**
+         * Moves to the next complete record.
+         */
+        boolean next() throws IOException {
+            if (topicLength > 0) {
+                buffer.position(recordStart + TrafficRecorder.RECORD_HEADER_SIZE + topicLength + payloadLength);
+            }
+            long position = mappedStart + buffer.position();
+            if (size - position < TrafficRecorder.RECORD_HEADER_SIZE) return false;
+            if (buffer.limit() - buffer.position() < TrafficRecorder.RECORD_HEADER_SIZE) {
+                map(position, TrafficRecorder.RECORD_HEADER_SIZE);
+            }
+            recordStart = buffer.position();
+            long time = buffer.getLong(recordStart);
+            int topic = buffer.getInt(recordStart + 8);
+            int payload = buffer.getInt(recordStart + 12);
+            long recordSize = (long) TrafficRecorder.RECORD_HEADER_SIZE + topic + payload;
+            if (topic <= 0 || payload < 0 || size - position < recordSize) return false;
+            if (buffer.limit() - recordStart < recordSize) {
+                map(position, recordSize);
+                recordStart = 0;
+            }
+            timeMicros = time;
+            topicLength = topic;
+            payloadLength = payload;
+            return true;
+        }
+
+        String topic() {
+            byte[] topic = new byte[topicLength];
+            buffer.position(recordStart + TrafficRecorder.RECORD_HEADER_SIZE);
+            buffer.get(topic);
+            return new String(topic, StandardCharsets.UTF_8);
+        }
+
+        byte[] payload() {
+            byte[] payload = new byte[payloadLength];
+            buffer.position(recordStart + TrafficRecorder.RECORD_HEADER_SIZE + topicLength);
+            buffer.get(payload);
+            return payload;
+        }
+
+        private void map(long start, long minimum) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(Math.max(WINDOW_SIZE, minimum), size - start));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            mappedStart = start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.BrokerRateLimiter;
+import com.spectralink.aimwright.injection.TokenBucket;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Broker Rate Limiter Tests
+ *
+ * Tests per-broker publish rate limiting without a broker:
+ * - The token bucket allows one second of burst, then holds the configured rate
+ * - Queued publishes are sent at the message rate and counted as throttled
+ * - SHED drops publishes once the queue is full, BLOCK waits for room
+ * - Publishes refused by a closed limiter are counted as cancelled, not shed
+ * - Brokers without a configured rate are not limited
+ */
+public class BrokerRateLimiterTest extends ApiTestWrapper {
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        BrokerRateLimiter.shutdown();
+    }
+
+    @Test(groups = {"positive"})
+    public void testTokenBucketRate() {
+        TokenBucket bucket = new TokenBucket(100);
+        for (int index = 0; index < 100; index++) {
+            Assert.assertEquals(bucket.reserve(1), 0L, "Burst of one second should not wait");
+        }
+        long waitNanos = bucket.reserve(50);
+        Assert.assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(400) && waitNanos <= TimeUnit.MILLISECONDS.toNanos(510),
+                "50 permits past the burst at 100/s should wait about 500 ms, got " + waitNanos);
+        Assert.assertFalse(bucket.tryAcquire(1), "Bucket in debt should refuse permits");
+        Assert.expectThrows(IllegalArgumentException.class, () -> new TokenBucket(0));
+    }
+
+    @Test(groups = {"positive"})
+    public void testQueuedPublishesFollowRate() {
+        BrokerRateLimiter limiter = BrokerRateLimiter.configure("rate.test.local", 200, 0, 1000, BrokerRateLimiter.OverflowPolicy.BLOCK);
+        AtomicInteger sent = new AtomicInteger();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int index = 0; index < 300; index++) {
+            results.add(limiter.submit(100, () -> {
+                sent.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(sent.get(), 300, "Every queued publish should be sent");
+        Assert.assertEquals(limiter.getPublishedCount(), 300L, "Published count");
+        Assert.assertTrue(elapsedMs >= 400, "100 messages past the burst at 200/s should take about 500 ms, took " + elapsedMs);
+        Assert.assertTrue(limiter.getThrottledCount() > 0, "Messages past the burst should be throttled");
+        Assert.assertEquals(limiter.getShedCount(), 0L, "BLOCK should not shed");
+        log.info(limiter.getSummary());
+    }
+
+    @Test(groups = {"positive"})
+    public void testShedWhenQueueFull() {
+        BrokerRateLimiter limiter = BrokerRateLimiter.configure("shed.test.local", 1, 0, 5, BrokerRateLimiter.OverflowPolicy.SHED);
+        CompletableFuture<Void> stalled = new CompletableFuture<>();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int index = 0; index < 50; index++) {
+            results.add(limiter.submit(10, () -> stalled));
+        }
+        long failed = results.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+        Assert.assertTrue(limiter.getShedCount() >= 40, "Publishes past the queue capacity should be shed, shed " + limiter.getShedCount());
+        Assert.assertEquals(failed, limiter.getShedCount(), "Every shed publish should fail its future");
+        stalled.complete(null);
+    }
+
+    @Test(groups = {"positive"})
+    public void testClosedLimiterCancelsWithoutShedding() {
+        BrokerRateLimiter closed = BrokerRateLimiter.configure("closed.test.local", 0, 0, 10, BrokerRateLimiter.OverflowPolicy.SHED);
+        BrokerRateLimiter.configure("closed.test.local", 0, 0, 10, BrokerRateLimiter.OverflowPolicy.SHED);
+        CompletableFuture<Void> result = closed.submit(10, () -> CompletableFuture.completedFuture(null));
+        Assert.assertTrue(result.isCompletedExceptionally(), "A replaced limiter should refuse publishes");
+        Assert.assertEquals(closed.getCancelledCount(), 1L, "The refused publish should be counted as cancelled");
+        Assert.assertEquals(closed.getShedCount(), 0L, "Only queue overflow counts as shed");
+    }
+
+    @Test(groups = {"positive"})
+    public void testUnlimitedByDefault() {
+        BrokerRateLimiter limiter = BrokerRateLimiter.configure("open.test.local", 0, 0, 10, BrokerRateLimiter.OverflowPolicy.BLOCK);
+        Assert.assertFalse(limiter.isLimited(), "Zero rates should mean unlimited");
+        long start = System.nanoTime();
+        for (int index = 0; index < 10000; index++) {
+            limiter.acquire(1000);
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "Unlimited acquire should not wait");
+        Assert.assertEquals(limiter.getThrottledCount(), 0L, "Unlimited broker should never throttle");
+    }
+}
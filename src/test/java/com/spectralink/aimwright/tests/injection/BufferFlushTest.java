@@ -0,0 +1,200 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer Flush Tests
+ *
+ * Tests automatic flushing of simulated device buffers:
+ * - A buffer is sent as one message as soon as it reaches the record limit
+ * - A partial buffer is sent once its first record reaches the age limit
+ * - Buffers never grow past the record limit and flushAll sends what is left
+ * - Buffering from many threads while flushing and shutting down loses no record
+ * - Coalescing chatty barcode events cuts the number of messages for a fleet
+ */
+public class BufferFlushTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private final ConcurrentLinkedQueue<JsonNode> messages = new ConcurrentLinkedQueue<>();
+
+    @BeforeMethod(alwaysRun = true)
+    public void collectMessages() {
+        messages.clear();
+        BufferFlusher.resetCounters();
+        BufferFlusher.setPublisher((serial, payload) -> {
+            try {
+                messages.add(mapper.readTree(payload));
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException ioe) {
+                return CompletableFuture.failedFuture(ioe);
+            }
+        });
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void restorePublisher() {
+        BufferFlusher.flushAll();
+        BufferFlusher.setPublisher(null);
+    }
+
+    @Test(groups = {"positive"})
+    public void testSizeFlush() {
+        SimulatedPhone phone = new SimulatedPhone().setFlushPolicy(FlushPolicy.of(10, 0));
+        for (int index = 0; index < 25; index++) {
+            phone.bufferMetrics(phone.getBarcodeData(1_700_000_000_000L + index));
+        }
+        Assert.assertEquals(messages.size(), 2, "Two full buffers should have been sent");
+        Assert.assertEquals(phone.getBuffer().size(), 5, "The remainder should stay buffered");
+        long expected = 1_700_000_000_000L;
+        for (JsonNode message : messages) {
+            Assert.assertEquals(message.get("deviceSerial").asText(), phone.getDevice_serial_number());
+            Assert.assertEquals(message.get("data").size(), 10, "Each flush should carry a full buffer");
+            for (JsonNode record : message.get("data")) {
+                Assert.assertEquals(record.get("timestamp").asLong(), expected++, "Records should keep their order");
+            }
+        }
+        Assert.assertEquals(BufferFlusher.getSizeFlushCount(), 2L);
+        phone.flushBuffer();
+        Assert.assertEquals(messages.size(), 3, "A manual flush should send the remainder");
+        Assert.assertTrue(phone.getBuffer().isEmpty(), "Flushing should empty the buffer");
+    }
+
+    @Test(groups = {"positive"})
+    public void testAgeFlush() throws InterruptedException {
+        SimulatedPhone phone = new SimulatedPhone().setFlushPolicy(FlushPolicy.of(100, 200));
+        long start = System.nanoTime();
+        for (int index = 0; index < 3; index++) {
+            phone.bufferMetrics(phone.getBarcodeData(System.currentTimeMillis()));
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+        Assert.assertTrue(messages.isEmpty(), "Nothing should be sent before the age limit");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (messages.isEmpty() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(messages.size(), 1, "The partial buffer should be sent once it is old enough");
+        Assert.assertEquals(messages.peek().get("data").size(), 3);
+        Assert.assertTrue(elapsedMs >= 200, "Sent before the age limit: " + elapsedMs + " ms");
+        Assert.assertEquals(BufferFlusher.getAgeFlushCount(), 1L);
+        Assert.assertEquals(BufferFlusher.getPendingCount(), 0, "No buffer should be left pending");
+    }
+
+    @Test(groups = {"positive"})
+    public void testBufferStaysBounded() {
+        List<SimulatedPhone> phones = new ArrayList<>();
+        for (int index = 0; index < 20; index++) {
+            phones.add(new SimulatedPhone().setFlushPolicy(FlushPolicy.of(16, 60_000)));
+        }
+        int maxSize = 0;
+        for (int round = 0; round < 500; round++) {
+            for (SimulatedPhone phone : phones) {
+                phone.bufferMetrics(phone.getBarcodeData(round));
+                maxSize = Math.max(maxSize, phone.getBuffer().size());
+            }
+        }
+        Assert.assertTrue(maxSize < 16, "A buffer should never hold the record limit, saw " + maxSize);
+        Assert.assertEquals(BufferFlusher.getPendingCount(), 20, "Every phone has a partial buffer waiting");
+        BufferFlusher.flushAll();
+        Assert.assertEquals(BufferFlusher.getPendingCount(), 0);
+        Assert.assertEquals(BufferFlusher.getRecordsFlushed(), 20L * 500, "Every record should be sent exactly once");
+        long records = 0;
+        for (JsonNode message : messages) {
+            records += message.get("data").size();
+        }
+        Assert.assertEquals(records, 20L * 500);
+    }
+
+    @Test(groups = {"positive"})
+    public void testConcurrentBufferingThenShutdown() throws InterruptedException {
+        List<SimulatedPhone> phones = new ArrayList<>();
+        for (int index = 0; index < 2; index++) {
+            // One size-only buffer, which only flushAll finds, and one with an age timer that shutdown cancels
+            SimulatedPhone phone = new SimulatedPhone().setFlushPolicy(FlushPolicy.of(3, index == 0 ? 0 : 60_000));
+            phone.setDevice_serial_number("flush000" + index);
+            phones.add(phone);
+        }
+        int threads = 4;
+        int recordsPerRound = 50;
+        int rounds = 500;
+        for (int round = 0; round < rounds; round++) {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> writers = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                Thread writer = new Thread(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int index = 0; index < recordsPerRound; index++) {
+                        SimulatedPhone phone = phones.get(index % phones.size());
+                        phone.bufferMetrics(phone.getBarcodeData(index));
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            go.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            BufferFlusher.shutdown();
+            Assert.assertEquals(BufferFlusher.getRecordsFlushed(), (long) (round + 1) * threads * recordsPerRound,
+                    "No buffered record should be lost by round " + round);
+        }
+        Assert.assertEquals(BufferFlusher.getPendingCount(), 0, "No buffer should be left pending");
+        for (SimulatedPhone phone : phones) {
+            Assert.assertTrue(phone.getBuffer().isEmpty(), phone.getDevice_serial_number() + " still holds records");
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkCoalescedBarcodeEvents() {
+        List<SimulatedPhone> phones = new ArrayList<>();
+        for (SimulatedLocation location : new FleetGenerator(2000).setSeed(19).generate()) {
+            phones.addAll(location.getPhones());
+        }
+        int eventsPerPhone = 100;
+        AtomicLong sent = new AtomicLong();
+        BufferFlusher.setPublisher((serial, payload) -> {
+            sent.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        FlushPolicy policy = FlushPolicy.of(50, 2000);
+        for (SimulatedPhone phone : phones) {
+            phone.setFlushPolicy(policy);
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < eventsPerPhone; round++) {
+            for (SimulatedPhone phone : phones) {
+                phone.bufferMetrics(phone.getBarcodeData(round));
+            }
+        }
+        BufferFlusher.flushAll();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long events = (long) phones.size() * eventsPerPhone;
+        log.info("{} barcode events from {} phones sent as {} messages in {} s ({} events/s)",
+                events, phones.size(), sent.get(), String.format("%.2f", seconds), String.format("%.0f", events / seconds));
+        log.info(BufferFlusher.getSummary());
+        Assert.assertEquals(BufferFlusher.getRecordsFlushed(), events, "Every event should be sent");
+        Assert.assertEquals(sent.get(), events / 50, "Fifty events should share each message");
+        Assert.assertEquals(BufferFlusher.getFailures(), 0L);
+    }
+}
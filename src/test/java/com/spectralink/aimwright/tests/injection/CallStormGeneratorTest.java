@@ -0,0 +1,202 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Call Storm Generator Tests
+ *
+ * Tests generating concurrent calls on a timer wheel:
+ * - Timer wheel timeouts fire once, never early, and cancelled ones never fire
+ * - Every call goes begin, confirmed, details at the metrics interval, then disconnected
+ * - Calls arrive at the configured rate and free their phone when they end
+ * - A phone that cannot take a call when one arrives stays available for later calls
+ * - A closed timer wheel can be waited on until its running task returns
+ * - Peak concurrent calls and events per second for a large storm are reported
+ */
+public class CallStormGeneratorTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test(groups = {"positive"})
+    public void testTimerWheelFiresOnTime() throws InterruptedException {
+        int count = 5000;
+        AtomicInteger early = new AtomicInteger();
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count / 2);
+        try (TimerWheel wheel = new TimerWheel("test-wheel", 5, 64)) {
+            List<TimerWheel.Timeout> cancellable = new ArrayList<>();
+            for (int index = 0; index < count; index++) {
+                long delayMs = 300 + index * 2L % 1200;
+                long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                TimerWheel.Timeout timeout = wheel.schedule(() -> {
+                    if (System.nanoTime() < due) early.incrementAndGet();
+                    fired.incrementAndGet();
+                    done.countDown();
+                }, delayMs);
+                if (index % 2 == 1) cancellable.add(timeout);
+            }
+            for (TimerWheel.Timeout timeout : cancellable) {
+                Assert.assertTrue(timeout.cancel(), "Pending timeout should cancel");
+            }
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS), "Every timeout should fire");
+            TimeUnit.MILLISECONDS.sleep(100);
+            Assert.assertEquals(fired.get(), count / 2, "Cancelled timeouts must not fire");
+            Assert.assertEquals(early.get(), 0, "No timeout should fire early");
+            Assert.assertEquals(wheel.getPendingCount(), 0, "Nothing should remain pending");
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testCallLifecycle() throws InterruptedException {
+        List<SimulatedPhone> fleet = TestFleets.fleet(100, 1);
+        ConcurrentLinkedQueue<JsonNode> events = new ConcurrentLinkedQueue<>();
+        CallStormGenerator storm = new CallStormGenerator(fleet)
+                .setCallsPerSecond(20)
+                .setSetupTime(CallStormGenerator.Distribution.fixed(200))
+                .setHoldTime(CallStormGenerator.Distribution.fixed(2500))
+                .setMetricsInterval(1)
+                .setDropRate(0)
+                .setSeed(1)
+                .setPublisher(collect(events));
+        storm.start();
+        TimeUnit.MILLISECONDS.sleep(1500);
+        Assert.assertTrue(storm.getActiveCalls() > 0, "Calls should be in progress");
+        TimeUnit.MILLISECONDS.sleep(3500);
+        long stopMs = System.currentTimeMillis();
+        storm.stop();
+
+        Map<String, List<String>> calls = new HashMap<>();
+        Map<String, Long> begins = new HashMap<>();
+        for (JsonNode event : events) {
+            JsonNode record = event.get("data").get(0);
+            String step = record.has("event") ? record.get("event").asText() : "DETAILS";
+            String callId = record.get("call_id").asText();
+            calls.computeIfAbsent(callId, id -> new ArrayList<>()).add(step);
+            begins.putIfAbsent(callId, record.get("timestamp").asLong());
+        }
+        Assert.assertEquals(events.size(), storm.getEventsEmitted(), "Every event should be published");
+        Assert.assertEquals(calls.size(), storm.getCallsStarted(), "One call id per call");
+        int completed = 0;
+        for (Map.Entry<String, List<String>> call : calls.entrySet()) {
+            List<String> steps = call.getValue();
+            Assert.assertTrue(steps.get(0).equals("CALL_STATE_CALLING") || steps.get(0).equals("CALL_STATE_INCOMING"), "Begin first: " + steps);
+            Assert.assertEquals(steps.get(steps.size() - 1), "CALL_STATE_DISCONNECTED", "Every call should disconnect: " + steps);
+            if (steps.size() > 2) {
+                Assert.assertEquals(steps.get(1), "CALL_STATE_CONFIRMED", "Confirmed after setup: " + steps);
+            }
+            if (begins.get(call.getKey()) + 200 + 2500 + 200 < stopMs) {
+                // A full 2.5 s hold with 1 s updates reports details twice before disconnecting
+                Assert.assertEquals(steps, List.of(steps.get(0), "CALL_STATE_CONFIRMED", "DETAILS", "DETAILS", "CALL_STATE_DISCONNECTED"), "Completed call");
+                completed++;
+            }
+        }
+        Assert.assertTrue(completed > 0, "Some calls should have completed their hold");
+        for (SimulatedPhone phone : fleet) {
+            Assert.assertNull(phone.getCurrent_call(), "Stopping should end every call");
+        }
+        Assert.assertEquals(storm.getActiveCalls(), 0L, "No active calls after stop");
+    }
+
+    @Test(groups = {"positive"})
+    public void testArrivalRateAndPhoneReuse() throws InterruptedException {
+        List<SimulatedPhone> fleet = TestFleets.fleet(20, 2);
+        CallStormGenerator storm = new CallStormGenerator(fleet)
+                .setCallsPerSecond(100)
+                .setSetupTime(CallStormGenerator.Distribution.fixed(0))
+                .setHoldTime(CallStormGenerator.Distribution.exponential(50))
+                .setSeed(2);
+        storm.start();
+        TimeUnit.SECONDS.sleep(2);
+        storm.stop();
+        long arrivals = storm.getCallsStarted() + storm.getArrivalsBlocked();
+        Assert.assertTrue(arrivals > 140 && arrivals < 260, "About 200 arrivals in 2 s at 100 calls/s, got " + arrivals);
+        Assert.assertTrue(storm.getPeakConcurrentCalls() <= 20, "Never more calls than phones");
+        Assert.assertTrue(storm.getCallsStarted() > 20, "Phones should take new calls once their call ends");
+        Assert.assertEquals(storm.getCallsEnded(), storm.getCallsStarted(), "Every started call should end");
+    }
+
+    @Test(groups = {"positive"})
+    public void testIneligiblePhoneReturnsToIdlePool() throws InterruptedException {
+        SimulatedPhone phone = TestFleets.fleet(1, 4).get(0);
+        SimulatedAP ap = phone.getCurrent_ap();
+        CallStormGenerator storm = new CallStormGenerator(List.of(phone))
+                .setCallsPerSecond(50)
+                .setSetupTime(CallStormGenerator.Distribution.fixed(0))
+                .setHoldTime(CallStormGenerator.Distribution.fixed(20))
+                .setSeed(4);
+        storm.start();
+        phone.setCurrent_ap(null);
+        TimeUnit.MILLISECONDS.sleep(500);
+        long blocked = storm.getArrivalsBlocked();
+        long startedOutOfCoverage = storm.getCallsStarted();
+        Assert.assertTrue(blocked > 5, "Arrivals without coverage should be skipped, got " + blocked);
+        phone.setCurrent_ap(ap);
+        TimeUnit.MILLISECONDS.sleep(500);
+        storm.stop();
+        Assert.assertTrue(storm.getCallsStarted() > startedOutOfCoverage, "The phone should take calls once it has coverage again");
+        Assert.assertEquals(storm.getCallsEnded(), storm.getCallsStarted(), "Every started call should end");
+    }
+
+    @Test(groups = {"positive"})
+    public void testClosedWheelWaitsForRunningTask() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        TimerWheel wheel = new TimerWheel("test-slow-wheel", 5, 64);
+        wheel.schedule(() -> {
+            running.countDown();
+            try {
+                TimeUnit.MILLISECONDS.sleep(1500);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }, 0);
+        Assert.assertTrue(running.await(5, TimeUnit.SECONDS), "The task should start");
+        wheel.close();
+        Assert.assertFalse(wheel.awaitTermination(100), "A running task should keep the wheel thread alive");
+        Assert.assertTrue(wheel.awaitTermination(5000), "The wheel thread should exit once its task returns");
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkCallStorm() throws InterruptedException {
+        List<SimulatedPhone> fleet = TestFleets.fleet(20000, 3);
+        CallStormGenerator storm = new CallStormGenerator(fleet)
+                .setCallsPerSecond(2000)
+                .setSetupTime(CallStormGenerator.Distribution.uniform(100, 500))
+                .setHoldTime(CallStormGenerator.Distribution.logNormal(3000, 0.5))
+                .setMetricsInterval(1)
+                .setSeed(3)
+                .setPublisher((serial, payload) -> CompletableFuture.completedFuture(null));
+        storm.start();
+        TimeUnit.SECONDS.sleep(5);
+        storm.stop();
+        log.info(storm.getSummary());
+        Assert.assertEquals(storm.getFailures(), 0L, "Publishing failures");
+        Assert.assertTrue(storm.getPeakConcurrentCalls() > 1000, "Thousands of calls should overlap, peak " + storm.getPeakConcurrentCalls());
+    }
+
+    private static MetricsPublisher collect(ConcurrentLinkedQueue<JsonNode> events) {
+        return (serial, payload) -> {
+            try {
+                events.add(mapper.readTree(payload));
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException ioe) {
+                return CompletableFuture.failedFuture(ioe);
+            }
+        };
+    }
+}
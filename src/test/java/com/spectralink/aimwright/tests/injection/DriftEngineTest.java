@@ -0,0 +1,118 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drift Engine Tests
+ *
+ * Tests the struct-of-arrays drift engine against the drifting getters it replaces:
+ * - Each engine step matches one read of the lazy getters, including RANDOM drift
+ * - CPU utilization follows its own control when DECREASING
+ * - Setters applied while attached take effect, and closing writes values back
+ * - Whole-fleet advance cost is reported
+ */
+public class DriftEngineTest extends ApiTestWrapper {
+
+    private static final int STEPS = 40;
+    private static final int FLEET_SIZE = 10000;
+
+    @Test(groups = {"positive"})
+    public void testEngineMatchesLazyDrift() {
+        SimulatedPhone lazy = buildPhone("drift0001");
+        SimulatedPhone driven = buildPhone("drift0001");
+        DriftEngine engine = new DriftEngine(List.of(driven));
+
+        for (int step = 0; step < STEPS; step++) {
+            engine.advance();
+            String label = " at step " + step;
+            Assert.assertEquals(driven.getCpu_utilization_pct(), lazy.getCpu_utilization_pct(), "cpu" + label);
+            // The engine reports the value before the current step as soon as the step is taken
+            Assert.assertEquals(driven.getCpu_utilization_pct_last_1(), lazy.getCpu_utilization_pct_last_1(), "cpu last 1" + label);
+            Assert.assertEquals(driven.getRam_utilization_pct(), lazy.getRam_utilization_pct(), "ram" + label);
+            Assert.assertEquals(driven.getCurrent_battery().getLevel(), lazy.getCurrent_battery().getLevel(), "level" + label);
+            Assert.assertEquals(driven.getCurrent_battery().getFull_charge(), lazy.getCurrent_battery().getFull_charge(), "full charge" + label);
+            Assert.assertEquals(driven.getCurrent_battery().getCycle_counter(), lazy.getCurrent_battery().getCycle_counter(), "cycle counter" + label);
+            Assert.assertEquals(driven.getCurrent_battery().getTemperature_c(), lazy.getCurrent_battery().getTemperature_c(), "temperature" + label);
+            Assert.assertEquals(driven.getCurrent_call().getPackets_missed(), lazy.getCurrent_call().getPackets_missed(), "packets missed" + label);
+            Assert.assertEquals(driven.getCurrent_call().getPackets_missed_pct(), lazy.getCurrent_call().getPackets_missed_pct(), "packets missed pct" + label);
+            Assert.assertEquals(driven.getCurrent_call().getPackets_dropped(), lazy.getCurrent_call().getPackets_dropped(), "packets dropped" + label);
+            Assert.assertEquals(driven.getCurrent_call().getJitter_ms(), lazy.getCurrent_call().getJitter_ms(), "jitter" + label);
+            Assert.assertEquals(driven.getCurrent_ap().getAp_rssi(), lazy.getCurrent_ap().getAp_rssi(), "rssi" + label);
+        }
+        Assert.assertEquals(driven.getCurrent_ap().getAp_rssi(), SimulatedAP.RssiDriftType.INCREASING.lowerLimit(),
+                "INCREASING rssi should settle at the lower limit");
+        engine.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testCpuDecreasingUsesCpuControl() {
+        SimulatedPhone phone = buildPhone("drift0002");
+        phone.setCpu_utilization_pct(50.0);
+        phone.setCpu_utilization_CONTROL(SimulatedPhone.CpuUtilizationDriftType.DECREASING);
+        phone.setRam_utilization_pct_CONTROL(SimulatedPhone.RamUtilizationDriftType.STABLE);
+        Assert.assertEquals(phone.getCpu_utilization_pct(), 46.0, "Lazy cpu should decrease by its increment");
+
+        DriftEngine engine = new DriftEngine(List.of(phone));
+        engine.advancePhones();
+        Assert.assertEquals(phone.getCpu_utilization_pct(), 42.0, "Engine cpu should decrease by its increment");
+        Assert.assertEquals(phone.getCpu_utilization_pct_last_1(), 46.0, "Previous cpu value should be kept");
+        engine.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testSettersWhileAttached() {
+        SimulatedPhone phone = buildPhone("drift0003");
+        DriftEngine engine = new DriftEngine(List.of(phone));
+        phone.setRam_utilization_pct(30);
+        phone.setRam_utilization_pct_CONTROL(SimulatedPhone.RamUtilizationDriftType.INCREASING);
+        phone.setRam_utilization_pct_INCREMENT(10);
+        Assert.assertEquals(phone.getRam_utilization_pct(), Integer.valueOf(30), "Value set while attached should be read back");
+        engine.advancePhones();
+        Assert.assertEquals(phone.getRam_utilization_pct(), Integer.valueOf(40), "Control set while attached should drive the engine");
+        Assert.assertEquals(phone.getRam_utilization_pct(), Integer.valueOf(40), "Attached reads should not drift");
+
+        engine.close();
+        Assert.assertEquals(phone.getRam_utilization_pct(), Integer.valueOf(50), "Detached phone should resume lazy drift from the engine value");
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkFleetAdvance() {
+        List<SimulatedPhone> fleet = new ArrayList<>();
+        for (int index = 0; index < FLEET_SIZE; index++) {
+            fleet.add(buildPhone(String.format("driftbench%05d", index)));
+        }
+        DriftEngine engine = new DriftEngine(fleet);
+        for (int step = 0; step < 200; step++) {
+            engine.advance();
+        }
+        long start = System.nanoTime();
+        for (int step = 0; step < 1000; step++) {
+            engine.advance();
+        }
+        long engineNanos = (System.nanoTime() - start) / 1000;
+        engine.close();
+
+        start = System.nanoTime();
+        long sink = 0;
+        for (int step = 0; step < 100; step++) {
+            for (SimulatedPhone phone : fleet) {
+                sink += phone.getRam_utilization_pct() + phone.getCpu_utilization_pct().longValue()
+                        + phone.getCurrent_battery().getLevel() + phone.getCurrent_battery().getTemperature_c().longValue()
+                        + phone.getCurrent_call().getPackets_missed() + phone.getCurrent_call().getJitter_ms();
+            }
+        }
+        long lazyNanos = (System.nanoTime() - start) / 100;
+        log.trace("Benchmark sink {}", sink);
+        log.info("Drift for {} phones: engine {} us/step, lazy getters {} us/step", FLEET_SIZE, engineNanos / 1000, lazyNanos / 1000);
+    }
+
+    private SimulatedPhone buildPhone(String serial) {
+        return TestFleets.drifting(TestFleets.connectedPhone(SimulatedPhone.Model.VERSITY_9640, serial, "Drift AP " + serial));
+    }
+}
@@ -0,0 +1,253 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.common.Settings;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded MQTT Broker Tests
+ *
+ * Tests the injection stack end to end against the in-JVM broker:
+ * - Blocking sends at QoS 0, 1 and 2 are counted once per topic
+ * - Asynchronous publishes block once run.mqtt.max.inflight are unacknowledged
+ * - Blocking sends wait for the inflight window shared with asynchronous publishes
+ * - The connection pool reuses one agent and one connection per serial number
+ * - Multiplexed asynchronous publishing delivers every message
+ * - The multiplexed publisher spreads devices over run.mqtt.connections connections
+ * - The fleet simulator publishes for every phone
+ * - Subscribers receive messages published on matching topics
+ * - Publish throughput through the multiplexed publisher is reported
+ */
+public class EmbeddedMqttBrokerTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private EmbeddedMqttBroker broker;
+    private String port;
+
+    @BeforeClass
+    public void startBroker() throws IOException {
+        broker = EmbeddedMqttBroker.start();
+        port = String.valueOf(broker.getPort());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopBroker() {
+        if (broker != null) broker.close();
+    }
+
+    @BeforeMethod
+    public void resetBroker() {
+        broker.reset();
+    }
+
+    @Test(groups = {"positive"})
+    public void testBlockingSendAtEveryQos() {
+        MqttAgent agent = new MqttAgent("embedded0001", broker.getHost(), port);
+        agent.connect();
+        Assert.assertTrue(agent.isConnected(), "Agent should connect to the embedded broker");
+        for (int qos = 0; qos <= 2; qos++) {
+            agent.setQos(qos);
+            ObjectNode message = mapper.createObjectNode();
+            message.put("qos", qos);
+            agent.sendMessage(message);
+        }
+        Assert.assertTrue(broker.awaitMessages(3, 5000), "Broker should receive all three messages");
+        EmbeddedMqttBroker.TopicStats stats = broker.getDeviceStats("embedded0001");
+        Assert.assertEquals(stats.getMessageCount(), 3L, "Each QoS level should be counted exactly once");
+        Assert.assertEquals(stats.getArrivalTimes().length, 3, "Arrival time per message");
+        Assert.assertEquals(stats.getByteCount(), 3L * "{\"qos\":0}".length(), "Payload bytes");
+        agent.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testInflightWindowBlocksAtConfiguredLimit() throws InterruptedException {
+        int window = Settings.getMqttMaxInflight();
+        MqttAgent agent = new MqttAgent("embedded0003", broker.getHost(), port);
+        Assert.assertEquals(agent.getMaxInflight(), window, "Window should come from run.mqtt.max.inflight");
+        agent.setQos(1);
+        agent.connect();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        AtomicInteger handedOff = new AtomicInteger();
+        Thread sender = new Thread(() -> {
+            for (int index = 0; index < window + 5; index++) {
+                results.add(agent.sendMessageAsync(new byte[32], 1));
+                handedOff.incrementAndGet();
+            }
+        });
+        broker.holdAcknowledgements();
+        try {
+            sender.start();
+            Assert.assertTrue(broker.awaitMessages(window, 5000), "The first " + window + " publishes should go out");
+            TimeUnit.MILLISECONDS.sleep(200);
+            Assert.assertEquals(handedOff.get(), window, "Publishing should block while the window is full");
+            Assert.assertTrue(sender.isAlive(), "Sender should be waiting for a slot");
+        } finally {
+            broker.releaseAcknowledgements();
+        }
+        sender.join(5000);
+        Assert.assertFalse(sender.isAlive(), "Acknowledgements should free the window");
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        Assert.assertTrue(broker.awaitMessages(window + 5, 5000), "Broker should receive every message");
+        agent.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testBlockingSendSharesInflightWindow() throws InterruptedException {
+        MqttAgent agent = new MqttAgent("embedded0002", broker.getHost(), port);
+        agent.setMaxInflight(2);
+        agent.setQos(1);
+        agent.connect();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        Thread blocking = new Thread(() -> {
+            for (int index = 0; index < 200; index++) {
+                agent.sendMessage(new byte[32]);
+            }
+        });
+        blocking.start();
+        for (int index = 0; index < 2000; index++) {
+            results.add(agent.sendMessageAsync(new byte[32], 1));
+        }
+        blocking.join();
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        Assert.assertTrue(broker.awaitMessages(2200, 5000), "Blocking sends should wait for a slot instead of failing, got "
+                + broker.getMessageCount());
+        agent.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testPoolReusesOneAgentPerSerial() {
+        MqttConnectionPool.shutdown();
+        int connectionsBefore = broker.getConnectionCount();
+        MqttConnectionPool.setRing(new BrokerRing(List.of(broker.getHost() + ":" + port), 16));
+        try {
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for (int index = 0; index < 500; index++) {
+                results.add(MqttConnectionPool.publishAsync(String.format("embeddedpool%02d", index % 10), new byte[32]));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+            Assert.assertTrue(broker.awaitMessages(500, 5000), "Broker should receive every message");
+            Assert.assertEquals(MqttConnectionPool.size(), 10, "One agent per serial");
+            Assert.assertEquals(MqttConnectionPool.getConnectCount(), 10L, "One connect per agent");
+            Assert.assertEquals(broker.getConnectionCount() - connectionsBefore, 10, "Connections seen by the broker");
+            Assert.assertEquals(MqttConnectionPool.getReuseRate(), 490 / 500.0, 0.0001, "Every publish after the first per serial reuses its agent");
+            Assert.assertSame(MqttConnectionPool.getAgent("embeddedpool03"), MqttConnectionPool.getAgent("embeddedpool03"));
+        } finally {
+            MqttConnectionPool.shutdown();
+            MqttConnectionPool.setRing(null);
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testMultiplexedPublishing() {
+        MultiplexedPublisher publisher = new MultiplexedPublisher(broker.getHost(), port, 2, 20);
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int index = 0; index < 2000; index++) {
+            results.add(publisher.publish(String.format("embedded%04d", index % 50), new byte[64]));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        publisher.close();
+        Assert.assertTrue(broker.awaitMessages(2000, 5000), "Broker should receive every message");
+        Assert.assertEquals(broker.getTopics().size(), 50, "One topic per device");
+        Assert.assertEquals(broker.getDeviceStats("embedded0007").getMessageCount(), 40L, "Messages for one device");
+    }
+
+    @Test(groups = {"positive"})
+    public void testMultiplexedPublisherSpreadsDevicesOverConnections() {
+        int connections = Settings.getMqttConnections();
+        int connectionsBefore = broker.getConnectionCount();
+        MultiplexedPublisher publisher = new MultiplexedPublisher(broker.getHost(), port, connections, Settings.getMqttMaxInflight());
+        Assert.assertEquals(publisher.getConnectionCount(), connections);
+        Set<MqttAgent> used = new HashSet<>();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int index = 0; index < 1000; index++) {
+            String serial = String.format("embeddedmux%03d", index % 100);
+            MqttAgent connection = publisher.getConnection(serial);
+            Assert.assertSame(publisher.getConnection(serial), connection, "A device should stay on one connection");
+            used.add(connection);
+            results.add(publisher.publish(serial, new byte[64]));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        publisher.close();
+        Assert.assertEquals(used.size(), connections, "100 devices should use every connection");
+        Assert.assertEquals(broker.getConnectionCount() - connectionsBefore, connections, "Connections seen by the broker");
+        Assert.assertTrue(broker.awaitMessages(1000, 5000), "Broker should receive every message");
+        Assert.assertEquals(broker.getTopics().size(), 100, "One topic per device");
+    }
+
+    @Test(groups = {"positive"})
+    public void testFleetSimulatorEndToEnd() throws InterruptedException {
+        List<SimulatedPhone> fleet = new ArrayList<>();
+        for (int index = 0; index < 20; index++) {
+            SimulatedPhone phone = new SimulatedPhone(SimulatedPhone.Model.VERSITY_9640,
+                    Map.of("device_serial_number", String.format("embeddedfleet%02d", index)));
+            phone.insertBattery(new SimulatedBattery("B" + index));
+            fleet.add(phone);
+        }
+        MultiplexedPublisher publisher = new MultiplexedPublisher(broker.getHost(), port, 2, 20);
+        FleetSimulator simulator = new FleetSimulator(fleet)
+                .setInterval(SimulatedPhone.MetricsType.DEVICE, 1000)
+                .setInterval(SimulatedPhone.MetricsType.BATTERY, 1000)
+                .setPublisher(publisher);
+        simulator.start();
+        TimeUnit.MILLISECONDS.sleep(2500);
+        simulator.stop();
+        publisher.close();
+
+        Assert.assertEquals(simulator.getFailures(), 0L, "Fleet publishing failures");
+        Assert.assertTrue(broker.awaitMessages(simulator.getMessagesSent(), 5000), "Broker should receive every sent message");
+        for (SimulatedPhone phone : fleet) {
+            Assert.assertNotNull(broker.getDeviceStats(phone.getDevice_serial_number()), "No messages from " + phone.getDevice_serial_number());
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testSubscriberReceivesMessages() {
+        MqttAgent subscriber = new MqttAgent("embeddedsub", broker.getHost(), port);
+        subscriber.receiveMessages();
+        MqttAgent sender = new MqttAgent("embeddedsub", broker.getHost(), port);
+        sender.sendMessage("hello".getBytes(StandardCharsets.UTF_8));
+
+        List<byte[]> received = subscriber.awaitMessages(1, 5000);
+        Assert.assertEquals(received.size(), 1, "Subscriber should receive the message");
+        Assert.assertEquals(new String(received.get(0), StandardCharsets.UTF_8), "hello", "Forwarded payload");
+        subscriber.close();
+        sender.close();
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkPublishThroughput() {
+        MultiplexedPublisher publisher = new MultiplexedPublisher(broker.getHost(), port, 4, 100);
+        publisher.connect();
+        byte[] payload = new byte[800];
+        int count = 100000;
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            results.add(publisher.publish(String.format("embeddedbench%04d", index % 1000), payload));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        long elapsedNanos = System.nanoTime() - start;
+        publisher.close();
+        Assert.assertTrue(broker.awaitMessages(count, 10000), "Broker should receive every message");
+        log.info("Published {} messages of {} bytes to the embedded broker at QoS {} in {} ms ({} msg/s)",
+                count, payload.length, Settings.getMqttQos(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), Math.round(count * 1e9 / elapsedNanos));
+    }
+}
@@ -0,0 +1,165 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.Environment;
+import com.spectralink.aimwright.injection.InjectionScenario;
+import com.spectralink.aimwright.injection.SimulatedPhone;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Environment Registry Tests
+ *
+ * Tests loading the simulated environment from definition files:
+ * - Devices are connected to their designated AP and battery by SSID and serial
+ * - Null keys are reported as not found instead of failing
+ * - Reloading replaces the registry whole instead of clearing it under its readers
+ * - A single device is reloaded from its own definition, and the index follows edits to the file
+ * - Loading 50,000 device definitions takes well under a second
+ */
+public class EnvironmentRegistryTest extends ApiTestWrapper {
+
+    private static final int AP_COUNT = 100;
+    private Path dataDirectory;
+
+    @BeforeClass
+    public void createData() throws IOException {
+        dataDirectory = Files.createTempDirectory("environment");
+        try (Writer writer = Files.newBufferedWriter(dataDirectory.resolve("ap_defaults.json"), StandardCharsets.UTF_8)) {
+            writer.write("[");
+            for (int index = 0; index < AP_COUNT; index++) {
+                if (index > 0) writer.write(",");
+                writer.write(String.format("\n  {\"ap_ssid\": \"Ward-%03d\", \"ap_bssid\": \"00:11:22:33:44:%02x\"}", index, index));
+            }
+            writer.write("\n]\n");
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void clearEnvironment() {
+        Environment.getSimPhones().clear();
+        Environment.getSimBatteries().clear();
+        Environment.getSimNetworks().clear();
+    }
+
+    @Test(groups = {"positive"})
+    public void testDevicesAttachToDesignatedApAndBattery() throws IOException {
+        Path devices = writeDevices("attach", 10);
+        Environment.loadAPs(dataDirectory.resolve("ap_defaults.json"));
+        Environment.loadBatteries(writeBatteries("attach", 10));
+        Environment.loadDevices(devices);
+
+        Assert.assertEquals(Environment.getDeviceList().size(), 10, "Every device should be loaded");
+        SimulatedPhone phone = Environment.getSimPhone("attach00007");
+        Assert.assertNotNull(phone, "Device should be indexed by serial");
+        Assert.assertSame(phone.getCurrent_ap(), Environment.getSimNetwork("Ward-007"), "Device should join its designated AP");
+        Assert.assertSame(phone.getCurrent_battery(), Environment.getSimBattery("Battattach00007"), "Device should hold its designated battery");
+
+        // A reload replaces the registry in one step; the previous one is never cleared under its readers
+        Map<String, SimulatedPhone> previous = Environment.getSimPhones();
+        Environment.loadDevices(devices);
+        Assert.assertEquals(previous.size(), 10, "The previous registry should stay whole");
+        Assert.assertNotSame(Environment.getSimPhone("attach00007"), phone, "The new registry holds fresh devices");
+    }
+
+    @Test(groups = {"positive"})
+    public void testNullKeysAreNotFound() throws IOException {
+        Assert.assertNull(Environment.getSimPhone(null), "A null serial should not be found");
+        Assert.assertNull(Environment.getSimBattery(null), "A null battery serial should not be found");
+        Assert.assertNull(Environment.getSimNetwork(null), "A null SSID should not be found");
+        Assert.assertNull(Environment.getSimLocation(null), "A null location name should not be found");
+
+        SimulatedPhone phone = new SimulatedPhone();
+        Environment.setSimPhone(null, phone);
+        Environment.removeSimPhone(null);
+        Assert.assertFalse(Environment.getSimPhones().containsValue(phone), "A phone without a serial should not be registered");
+        Environment.setSimPhone("nullkey0001", phone);
+        Environment.setSimPhone("nullkey0001", null);
+        Assert.assertNull(Environment.getSimPhone("nullkey0001"), "Setting null should unregister the phone");
+
+        InjectionScenario scenario = InjectionScenario.fromJson("{\"name\": \"null serial\", \"devices\": [{\"serials\": [null], \"timeline\": []}]}");
+        Assert.assertThrows(IllegalArgumentException.class, scenario::compile);
+    }
+
+    @Test(groups = {"positive"})
+    public void testReloadSingleDevice() throws IOException {
+        Path devices = writeDevices("reload", 100);
+        Environment.loadAPs(dataDirectory.resolve("ap_defaults.json"));
+        Environment.loadDevices(devices);
+
+        SimulatedPhone original = Environment.getSimPhone("reload00042");
+        Environment.reloadDevice(devices, "reload00042");
+        SimulatedPhone reloaded = Environment.getSimPhone("reload00042");
+        Assert.assertNotSame(reloaded, original, "Device should be replaced by a fresh copy");
+        Assert.assertEquals(reloaded.getDesignated_ap(), "Ward-042", "Reloaded definition");
+        Assert.assertSame(Environment.getSimPhone("reload00041"), Environment.getSimPhones().get("reload00041"), "Other devices are untouched");
+
+        // Moving the device to another AP shifts every later definition in the file
+        String edited = Files.readString(devices).replace("\"reload00010\", \"designated_ap\": \"Ward-010\"", "\"reload00010\", \"designated_ap\": \"Ward-099\"");
+        Files.writeString(devices, edited);
+        Files.setLastModifiedTime(devices, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        Environment.reloadDevice(devices, "reload00010");
+        Environment.reloadDevice(devices, "reload00042");
+        Assert.assertEquals(Environment.getSimPhone("reload00010").getDesignated_ap(), "Ward-099", "Edited definition should be reloaded");
+        Assert.assertEquals(Environment.getSimPhone("reload00042").getDesignated_ap(), "Ward-042", "Later definitions should be re-indexed");
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkLoadDevices() throws IOException {
+        int count = 50000;
+        Path devices = writeDevices("bench", count);
+        Environment.loadAPs(dataDirectory.resolve("ap_defaults.json"));
+        Environment.loadBatteries(writeBatteries("bench", count));
+        // Warm up the parser and bindings, then keep the best of a few timed loads
+        Environment.loadDevices(devices);
+        Environment.loadDevices(devices);
+        long elapsedMs = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            Environment.loadDevices(devices);
+            elapsedMs = Math.min(elapsedMs, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        Assert.assertEquals(Environment.getSimPhones().size(), count, "Every device should be loaded");
+        log.info("Loaded {} device definitions ({} KB) in {} ms", count, Files.size(devices) / 1024, elapsedMs);
+        Assert.assertTrue(elapsedMs < 1000, "Loading " + count + " devices took " + elapsedMs + " ms");
+    }
+
+    private Path writeDevices(String prefix, int count) throws IOException {
+        Path file = dataDirectory.resolve(prefix + "_device_defaults.json");
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("[");
+            for (int index = 0; index < count; index++) {
+                if (index > 0) writer.write(",");
+                writer.write(String.format("\n  {\"device_serial_number\": \"%s%05d\", \"designated_ap\": \"Ward-%03d\", "
+                        + "\"designated_battery\": \"Batt%s%05d\", \"designated_model\": \"VERSITY_9640\"}",
+                        prefix, index, index % AP_COUNT, prefix, index));
+            }
+            writer.write("\n]\n");
+        }
+        return file;
+    }
+
+    private Path writeBatteries(String prefix, int count) throws IOException {
+        Path file = dataDirectory.resolve(prefix + "_battery_defaults.json");
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("[");
+            for (int index = 0; index < count; index++) {
+                if (index > 0) writer.write(",");
+                writer.write(String.format("\n  {\"battery_serial_num\": \"Batt%s%05d\"}", prefix, index));
+            }
+            writer.write("\n]\n");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,156 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fleet Generator Tests
+ *
+ * Tests building simulated fleets from a seed:
+ * - The same seed builds the same fleet and a different seed a different one
+ * - Serials, MACs, IPs, battery serials, SSIDs and BSSIDs are unique across the fleet
+ * - Phones are spread across locations, paired with a battery and connected to the nearest AP
+ * - Neighbouring APs on the same band use different channels and the model mix is respected
+ * - Invalid settings are logged and leave the previous value in place
+ * - A generated fleet registers into the Environment and 100,000 phones generate quickly
+ */
+public class FleetGeneratorTest extends ApiTestWrapper {
+
+    @AfterMethod(alwaysRun = true)
+    public void clearEnvironment() {
+        Environment.getSimPhones().clear();
+        Environment.getSimBatteries().clear();
+        Environment.getSimNetworks().clear();
+        Environment.getSimLocations().clear();
+    }
+
+    @Test(groups = {"positive"})
+    public void testSameSeedBuildsSameFleet() {
+        List<SimulatedPhone> first = TestFleets.phones(new FleetGenerator(500).setLocations(3).setSeed(42).generate());
+        List<SimulatedPhone> second = TestFleets.phones(new FleetGenerator(500).setLocations(3).setSeed(42).generate());
+        List<SimulatedPhone> other = TestFleets.phones(new FleetGenerator(500).setLocations(3).setSeed(43).generate());
+        for (int index = 0; index < first.size(); index++) {
+            SimulatedPhone phone = first.get(index);
+            SimulatedPhone again = second.get(index);
+            Assert.assertEquals(again.getDevice_serial_number(), phone.getDevice_serial_number(), "Serial");
+            Assert.assertEquals(again.getMac_address(), phone.getMac_address(), "MAC address");
+            Assert.assertEquals(again.getIp_address(), phone.getIp_address(), "IP address");
+            Assert.assertEquals(again.getDevice_model(), phone.getDevice_model(), "Model");
+            Assert.assertEquals(again.getDesignated_ap(), phone.getDesignated_ap(), "Designated AP");
+        }
+        Assert.assertNotEquals(other.get(0).getDevice_serial_number(), first.get(0).getDevice_serial_number(), "Another seed should build another fleet");
+    }
+
+    @Test(groups = {"positive"})
+    public void testIdentifiersAreUnique() {
+        List<SimulatedLocation> locations = new FleetGenerator(50000).setLocations(20).setApsPerLocation(40).setSeed(7).generate();
+        Set<String> serials = new HashSet<>();
+        Set<String> macs = new HashSet<>();
+        Set<String> ips = new HashSet<>();
+        Set<String> batteries = new HashSet<>();
+        for (SimulatedPhone phone : TestFleets.phones(locations)) {
+            serials.add(phone.getDevice_serial_number());
+            macs.add(phone.getMac_address());
+            ips.add(phone.getIp_address());
+            batteries.add(phone.getCurrent_battery().getBattery_serial_num());
+        }
+        Assert.assertEquals(serials.size(), 50000, "Unique serials");
+        Assert.assertEquals(macs.size(), 50000, "Unique MAC addresses");
+        Assert.assertEquals(ips.size(), 50000, "Unique IP addresses");
+        Assert.assertEquals(batteries.size(), 50000, "Unique battery serials");
+        Set<String> ssids = new HashSet<>();
+        Set<String> bssids = new HashSet<>();
+        for (SimulatedLocation location : locations) {
+            for (SimulatedAP ap : location.getAps()) {
+                ssids.add(ap.getAp_ssid());
+                bssids.add(ap.getAp_bssid());
+            }
+        }
+        Assert.assertEquals(ssids.size(), 800, "Unique SSIDs");
+        Assert.assertEquals(bssids.size(), 800, "Unique BSSIDs");
+        Assert.assertTrue(serials.iterator().next().matches("cnnc[0-9a-z]{11}"), "Serial format");
+        Assert.assertTrue(macs.iterator().next().startsWith("00:90:7A:"), "Spectralink MAC prefix");
+    }
+
+    @Test(groups = {"positive"})
+    public void testTopology() {
+        List<SimulatedLocation> locations = new FleetGenerator(1000).setLocations(4).setApsPerLocation(9).setSeed(11).generate();
+        Assert.assertEquals(locations.size(), 4, "Location count");
+        for (SimulatedLocation location : locations) {
+            Assert.assertEquals(location.getPhones().size(), 250, "Phones per location");
+            Assert.assertEquals(location.getAps().size(), 9, "APs per location");
+            for (int index = 0; index < location.getPhones().size(); index++) {
+                SimulatedPhone phone = location.getPhone(index);
+                SimulatedAP nearest = location.getAp(location.nearestAp(location.getPhoneX(index), location.getPhoneY(index)));
+                Assert.assertSame(phone.getCurrent_ap(), nearest, "Phone should join its nearest AP");
+                Assert.assertEquals(phone.getDesignated_ap(), nearest.getAp_ssid(), "Designated AP");
+                Assert.assertEquals(phone.getCurrent_battery().getBattery_serial_num(), phone.getDesignated_battery(), "Paired battery");
+            }
+        }
+
+        // One band only, so grid neighbours must not share a channel
+        SimulatedLocation grid = new FleetGenerator(0).setApsPerLocation(16).setBandMix(1, 0, 0).setSeed(3).generate().get(0);
+        for (int index = 0; index < 16; index++) {
+            int channel = grid.getAp(index).getAp_channel();
+            Assert.assertTrue(channel == 1 || channel == 6 || channel == 11, "Non-overlapping 2.4 GHz channel: " + channel);
+            if (index % 4 < 3) Assert.assertNotEquals(grid.getAp(index + 1).getAp_channel().intValue(), channel, "East neighbour channel");
+            if (index < 12) Assert.assertNotEquals(grid.getAp(index + 4).getAp_channel().intValue(), channel, "North neighbour channel");
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testModelMix() {
+        Map<SimulatedPhone.Model, Integer> mix = new EnumMap<>(SimulatedPhone.Model.class);
+        mix.put(SimulatedPhone.Model.VERSITY_9640, 3);
+        mix.put(SimulatedPhone.Model.ORION_9253, 1);
+        int versity = 0;
+        List<SimulatedPhone> fleet = TestFleets.phones(new FleetGenerator(10000).setModelMix(mix).setSeed(5).generate());
+        for (SimulatedPhone phone : fleet) {
+            Assert.assertTrue(mix.containsKey(phone.getDesignated_model()), "Unexpected model " + phone.getDesignated_model());
+            if (phone.getDesignated_model() == SimulatedPhone.Model.VERSITY_9640) versity++;
+        }
+        Assert.assertEquals(versity / (double) fleet.size(), 0.75, 0.03, "Share of the heavier model");
+    }
+
+    @Test(groups = {"positive"})
+    public void testInvalidSettingsKeepPrevious() {
+        List<SimulatedLocation> locations = new FleetGenerator(100).setLocations(2).setApsPerLocation(4).setSeed(3)
+                .setLocations(0).setApsPerLocation(0).setModelMix(Map.of(SimulatedPhone.Model.VERSITY_9640, 0))
+                .setBandMix(0, 0, 0).generate();
+        Assert.assertEquals(locations.size(), 2, "An invalid location count should keep the previous one");
+        Assert.assertEquals(locations.get(0).getAps().size(), 4, "An invalid AP count should keep the previous one");
+        Assert.assertEquals(TestFleets.phones(locations).size(), 100, "An invalid model mix should keep the previous one");
+        Assert.assertThrows(IllegalArgumentException.class, () -> new FleetGenerator(-1));
+    }
+
+    @Test(groups = {"positive"})
+    public void testRegisterIntoEnvironment() {
+        List<SimulatedLocation> locations = new FleetGenerator(200).setLocations(2).setApsPerLocation(4).setLocationPrefix("Ward").setSeed(9).generateIntoEnvironment();
+        Assert.assertEquals(Environment.getSimPhones().size(), 200, "Registered phones");
+        Assert.assertEquals(Environment.getSimBatteries().size(), 200, "Registered batteries");
+        Assert.assertEquals(Environment.getSimNetworks().size(), 8, "Registered APs");
+        Assert.assertSame(Environment.getSimLocation("Ward-002"), locations.get(1), "Registered location");
+        SimulatedPhone phone = locations.get(0).getPhone(0);
+        Assert.assertSame(Environment.getSimNetwork(phone.getDesignated_ap()), phone.getCurrent_ap(), "AP lookup by SSID");
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkGenerate() {
+        new FleetGenerator(10000).setLocations(10).setSeed(1).generate();
+        long start = System.nanoTime();
+        List<SimulatedLocation> locations = new FleetGenerator(100000).setLocations(50).setApsPerLocation(64).setSeed(1).generate();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(TestFleets.phones(locations).size(), 100000, "Fleet size");
+        log.info("Generated 100000 phones across 50 locations with 64 APs each in {} ms", elapsedMs);
+    }
+}
@@ -0,0 +1,116 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Historical Backfill Tests
+ *
+ * Tests loading a metrics history in simulated time without a broker:
+ * - Every phone gets one record per interval of each metric type, inside the window and in time order
+ * - Records are packed into batched data arrays no larger than the batch size
+ * - Metrics drift across the history
+ * - Backfill throughput for a 90 day history is reported
+ */
+public class HistoricalBackfillTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final long DAY_MS = Duration.ofDays(1).toMillis();
+
+    @Test(groups = {"positive"})
+    public void testRecordsCoverWindow() throws IOException {
+        List<SimulatedPhone> fleet = new ArrayList<>();
+        for (int index = 0; index < 5; index++) {
+            fleet.add(buildPhone(String.format("backfill%04d", index)));
+        }
+        long end = 1718236800000L;
+        long start = end - DAY_MS;
+        Map<String, List<byte[]>> captured = new HashMap<>();
+        HistoricalBackfill backfill = new HistoricalBackfill(fleet)
+                .setWindow(start, end)
+                .setInterval(SimulatedPhone.MetricsType.DEVICE, 3600000)
+                .setInterval(SimulatedPhone.MetricsType.BATTERY, 900000)
+                .setInterval(SimulatedPhone.MetricsType.NETWORK, 0)
+                .setBatchSize(50)
+                .setThreadCount(2)
+                .setPublisher((serial, payload) -> {
+                    synchronized (captured) {
+                        captured.computeIfAbsent(serial, key -> new ArrayList<>()).add(payload);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+        Assert.assertEquals(backfill.getExpectedRecords(), 5L * (24 + 96), "Expected record count");
+        backfill.run();
+        Assert.assertEquals(backfill.getRecordsWritten(), 5L * (24 + 96), "Written record count");
+        Assert.assertEquals(backfill.getFailures(), 0L, "Backfill failures");
+
+        for (SimulatedPhone phone : fleet) {
+            String serial = phone.getDevice_serial_number();
+            List<byte[]> messages = captured.get(serial);
+            Assert.assertEquals(messages.size(), 3, "120 records in batches of 50 for " + serial);
+            int devices = 0;
+            int batteries = 0;
+            long previous = Long.MIN_VALUE;
+            List<Integer> levels = new ArrayList<>();
+            for (byte[] payload : messages) {
+                JsonNode message = mapper.readTree(payload);
+                Assert.assertEquals(message.get("deviceSerial").asText(), serial, "Envelope serial");
+                Assert.assertTrue(message.get("data").size() <= 50, "Batch larger than the batch size");
+                Assert.assertEquals(message.get("timestamp").asLong(), message.get("data").get(0).get("timestamp").asLong(),
+                        "Envelope should carry the first record's time");
+                for (JsonNode record : message.get("data")) {
+                    long timestamp = record.get("timestamp").asLong();
+                    Assert.assertTrue(timestamp >= start && timestamp < end, "Record outside the window: " + timestamp);
+                    Assert.assertTrue(timestamp >= previous, "Records should be in time order");
+                    previous = timestamp;
+                    if (record.get("type").asText().equals("DEVICE_METRICS")) devices++;
+                    if (record.get("type").asText().equals("BATTERY_METRICS")) {
+                        batteries++;
+                        levels.add(record.get("level").asInt());
+                    }
+                }
+            }
+            Assert.assertEquals(devices, 24, "Hourly device records for " + serial);
+            Assert.assertEquals(batteries, 96, "Quarter hourly battery records for " + serial);
+            Assert.assertTrue(levels.get(0) > levels.get(levels.size() - 1), "Battery level should drift down over the day");
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkNinetyDayBackfill() {
+        List<SimulatedPhone> fleet = new ArrayList<>();
+        for (int index = 0; index < 100; index++) {
+            fleet.add(buildPhone(String.format("backfillbench%04d", index)));
+        }
+        AtomicLong bytes = new AtomicLong();
+        HistoricalBackfill backfill = new HistoricalBackfill(fleet)
+                .setWindow(Duration.ofDays(90))
+                .setPublisher((serial, payload) -> {
+                    bytes.addAndGet(payload.length);
+                    return CompletableFuture.completedFuture(null);
+                });
+        backfill.run();
+        Assert.assertEquals(backfill.getRecordsWritten(), backfill.getExpectedRecords(), "Written record count");
+        double recordsPerSecond = backfill.getRecordsWritten() / backfill.getElapsedSeconds();
+        log.info("90 day backfill for {} phones: {} records, {} MB in {} s; 1000 phones would take about {} s before broker limits",
+                fleet.size(), backfill.getRecordsWritten(), bytes.get() / 1048576, Math.round(backfill.getElapsedSeconds() * 10) / 10.0,
+                Math.round(backfill.getExpectedRecords() * 10 / recordsPerSecond));
+    }
+
+    private SimulatedPhone buildPhone(String serial) {
+        return TestFleets.connectedPhone(SimulatedPhone.Model.VERSITY_9640, serial, "Backfill AP " + serial);
+    }
+}
@@ -0,0 +1,151 @@
+package com.spectralink.aimwright.tests.injection;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.EmbeddedMqttBroker;
+import com.spectralink.aimwright.injection.InboundMessageBuffer;
+import com.spectralink.aimwright.injection.MqttAgent;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound Message Buffer Tests
+ *
+ * Tests the bounded inbound buffer behind MqttAgent subscriptions:
+ * - DROP_OLDEST keeps the newest messages and DROP_NEWEST the oldest, counting drops
+ * - Waiting for a matching message returns it as soon as it arrives and leaves others buffered
+ * - Waiting for a count returns what arrived when the timeout expires
+ * - A subscribed agent wakes on the matching message from the embedded broker
+ * - An agent whose buffer overflows counts every drop but warns once, not per message
+ */
+public class InboundMessageBufferTest extends ApiTestWrapper {
+
+    @Test(groups = {"positive"})
+    public void testOverflowPolicies() {
+        InboundMessageBuffer oldest = new InboundMessageBuffer(3, InboundMessageBuffer.OverflowPolicy.DROP_OLDEST);
+        InboundMessageBuffer newest = new InboundMessageBuffer(3, InboundMessageBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int index = 0; index < 5; index++) {
+            oldest.add(bytes("m" + index));
+            newest.add(bytes("m" + index));
+        }
+        Assert.assertEquals(text(oldest.drain()), "m2,m3,m4", "DROP_OLDEST should keep the newest messages");
+        Assert.assertEquals(text(newest.drain()), "m0,m1,m2", "DROP_NEWEST should keep the oldest messages");
+        Assert.assertEquals(oldest.getDroppedCount(), 2L, "Dropped count");
+        Assert.assertEquals(newest.getDroppedCount(), 2L, "Dropped count");
+        Assert.assertEquals(oldest.getReceivedCount(), 5L, "Received count includes drops");
+        Assert.assertEquals(oldest.size(), 0, "Drain should empty the buffer");
+    }
+
+    @Test(groups = {"positive"})
+    public void testAwaitByPredicate() {
+        InboundMessageBuffer buffer = new InboundMessageBuffer(100, InboundMessageBuffer.OverflowPolicy.DROP_OLDEST);
+        buffer.add(bytes("skip-1"));
+        CompletableFuture.runAsync(() -> {
+            sleep(100);
+            buffer.add(bytes("skip-2"));
+            sleep(100);
+            buffer.add(bytes("match"));
+        });
+        long start = System.nanoTime();
+        byte[] match = buffer.await(payload -> new String(payload, StandardCharsets.UTF_8).equals("match"), 5000);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertNotNull(match, "Matching message should be returned");
+        Assert.assertTrue(waitedMs < 1000, "Should wake when the message arrives, waited " + waitedMs + " ms");
+        Assert.assertEquals(text(buffer.drain()), "skip-1,skip-2", "Non-matching messages should stay buffered in order");
+
+        Assert.assertNull(buffer.await(payload -> false, 50), "No match should time out with null");
+    }
+
+    @Test(groups = {"positive"})
+    public void testAwaitCount() {
+        InboundMessageBuffer buffer = new InboundMessageBuffer(100, InboundMessageBuffer.OverflowPolicy.DROP_OLDEST);
+        CompletableFuture.runAsync(() -> {
+            for (int index = 0; index < 5; index++) {
+                buffer.add(bytes("m" + index));
+            }
+        });
+        Assert.assertEquals(text(buffer.await(3, 5000)), "m0,m1,m2", "Should return the first three messages");
+        Assert.assertEquals(text(buffer.await(5, 100)), "m3,m4", "Timeout should return what arrived");
+    }
+
+    @Test(groups = {"positive"})
+    public void testAgentAwaitsMatchingMessage() throws IOException {
+        try (EmbeddedMqttBroker broker = EmbeddedMqttBroker.start()) {
+            String port = String.valueOf(broker.getPort());
+            MqttAgent subscriber = new MqttAgent("inboundsub", broker.getHost(), port);
+            subscriber.receiveMessages();
+            MqttAgent sender = new MqttAgent("inboundsub", broker.getHost(), port);
+            for (int index = 0; index < 10; index++) {
+                sender.sendMessage(bytes("{\"sequence\":" + index + "}"));
+            }
+            byte[] match = subscriber.awaitMessage(payload -> new String(payload, StandardCharsets.UTF_8).contains("\"sequence\":7"), 5000);
+            Assert.assertEquals(new String(match, StandardCharsets.UTF_8), "{\"sequence\":7}", "Matching payload");
+            Assert.assertEquals(subscriber.awaitMessages(9, 5000).size(), 9, "Other messages should remain");
+            Assert.assertEquals(subscriber.getDroppedMessageCount(), 0L, "No messages should be dropped");
+            subscriber.close();
+            sender.close();
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testAgentWarnsOnceForManyDrops() throws IOException {
+        Logger agentLog = (Logger) LoggerFactory.getLogger(MqttAgent.class.getName());
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        agentLog.addAppender(appender);
+        System.setProperty("run.mqtt.inbound.capacity", "10");
+        try (EmbeddedMqttBroker broker = EmbeddedMqttBroker.start()) {
+            String port = String.valueOf(broker.getPort());
+            MqttAgent subscriber = new MqttAgent("inbounddrop", broker.getHost(), port);
+            subscriber.receiveMessages();
+            MqttAgent sender = new MqttAgent("inbounddrop", broker.getHost(), port);
+            for (int index = 0; index < 500; index++) {
+                sender.sendMessage(bytes("m" + index));
+            }
+            for (int wait = 0; wait < 100 && subscriber.getDroppedMessageCount() < 490; wait++) {
+                sleep(50);
+            }
+            Assert.assertEquals(subscriber.getDroppedMessageCount(), 490L, "Every message beyond capacity should be counted");
+            long warnings = appender.list.stream()
+                    .filter(event -> event.getLevel() == Level.WARN && event.getFormattedMessage().startsWith("Inbound buffer full"))
+                    .count();
+            Assert.assertEquals(warnings, 1L, "490 drops in quick succession should log one warning");
+            subscriber.close();
+            sender.close();
+        } finally {
+            System.clearProperty("run.mqtt.inbound.capacity");
+            agentLog.detachAppender(appender);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(List<byte[]> messages) {
+        StringBuilder joined = new StringBuilder();
+        for (byte[] message : messages) {
+            if (joined.length() > 0) joined.append(',');
+            joined.append(new String(message, StandardCharsets.UTF_8));
+        }
+        return joined.toString();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
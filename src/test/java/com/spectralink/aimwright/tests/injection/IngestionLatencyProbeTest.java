@@ -0,0 +1,179 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import com.spectralink.aimwright.injection.IngestionLatencyProbe.MetricType;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingestion Latency Probe Tests
+ *
+ * Tests measuring publish-to-visible latency against a simulated ingest behind the embedded broker:
+ * - Latency histograms report percentiles within bucket precision
+ * - Each metric type's latency reflects its ingest delay, within the poll resolution
+ * - Markers that never appear count as timeouts
+ * - Time spent inside the publisher before it takes the message is not counted
+ * - A marker only matches a whole device_name or call_id, never a longer marker it prefixes
+ * - The report is written under target/
+ */
+public class IngestionLatencyProbeTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final long DEVICE_DELAY_MS = 200;
+    private static final long CALL_DELAY_MS = 600;
+    private EmbeddedMqttBroker broker;
+    private MultiplexedPublisher publisher;
+    private final Map<String, Long> visibleAt = new ConcurrentHashMap<>();
+
+    @BeforeClass
+    public void startBroker() throws IOException {
+        broker = EmbeddedMqttBroker.start();
+        publisher = new MultiplexedPublisher(broker.getHost(), String.valueOf(broker.getPort()), 2, 100);
+        publisher.connect();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopBroker() {
+        if (publisher != null) publisher.close();
+        if (broker != null) broker.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test", TimeUnit.MICROSECONDS);
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        Assert.assertEquals(histogram.getCount(), 100000L);
+        Assert.assertEquals(histogram.getMin(), 1L);
+        Assert.assertEquals(histogram.getMax(), 100000L);
+        Assert.assertEquals(histogram.getMean(), 50000.5, 0.001);
+        for (double percentile : new double[]{50, 95, 99, 99.9}) {
+            double expected = percentile * 1000;
+            long actual = histogram.getValueAtPercentile(percentile);
+            Assert.assertTrue(actual >= expected && actual <= expected * 1.04, "p" + percentile + " was " + actual);
+        }
+        Assert.assertEquals(histogram.getValueAtPercentile(100), 100000L);
+        LatencyHistogram merged = new LatencyHistogram("merged", TimeUnit.MICROSECONDS);
+        merged.record(5);
+        merged.add(histogram);
+        Assert.assertEquals(merged.getCount(), 100001L);
+        Assert.assertEquals(merged.getValueAtPercentile(0), 1L);
+        histogram.reset();
+        Assert.assertEquals(histogram.getCount(), 0L);
+        Assert.assertEquals(histogram.getValueAtPercentile(99), 0L);
+    }
+
+    @Test(groups = {"positive"})
+    public void testLatencyPerMetricType() throws InterruptedException, IOException {
+        List<SimulatedPhone> phones = TestFleets.fleet(50, 1);
+        IngestionLatencyProbe.Report report = new IngestionLatencyProbe()
+                .setPublisher(this::ingest)
+                .setVisibilityCheck((serial, type, marker) -> {
+                    Long visible = visibleAt.get(marker);
+                    return visible != null && System.nanoTime() >= visible;
+                })
+                .setPollInterval(20, 100)
+                .setTimeoutMs(5000)
+                .run(phones, MetricType.DEVICE_NAME, MetricType.CALL_HISTORY);
+
+        LatencyHistogram devices = report.getHistogram(MetricType.DEVICE_NAME);
+        LatencyHistogram calls = report.getHistogram(MetricType.CALL_HISTORY);
+        Assert.assertEquals(devices.getCount(), 50L, "Every device name should become visible");
+        Assert.assertEquals(calls.getCount(), 50L, "Every call should become visible");
+        Assert.assertEquals(report.getOverall().getCount(), 100L);
+        Assert.assertTrue(devices.getMin() >= DEVICE_DELAY_MS, "Visible before ingest: " + devices.getSummary());
+        Assert.assertTrue(devices.getValueAtPercentile(99) < DEVICE_DELAY_MS + 250, "Device latency: " + devices.getSummary());
+        Assert.assertTrue(calls.getMin() >= CALL_DELAY_MS, "Visible before ingest: " + calls.getSummary());
+        Assert.assertTrue(calls.getValueAtPercentile(99) < CALL_DELAY_MS + 250, "Call latency: " + calls.getSummary());
+        Assert.assertEquals(report.getTimeouts(MetricType.DEVICE_NAME) + report.getTimeouts(MetricType.CALL_HISTORY), 0L);
+
+        Path summary = report.write();
+        Assert.assertTrue(summary.startsWith("target"), "Reports belong under target/");
+        List<String> lines = Files.readAllLines(summary.resolveSibling(report.getRunId() + ".csv"));
+        Assert.assertEquals(lines.size(), 101, "Header plus one line per probe");
+        Assert.assertTrue(lines.get(1).contains("visible"), lines.get(1));
+    }
+
+    @Test(groups = {"positive"})
+    public void testMarkersThatNeverAppearTimeOut() throws InterruptedException {
+        List<SimulatedPhone> phones = TestFleets.fleet(5, 2);
+        IngestionLatencyProbe.Report report = new IngestionLatencyProbe()
+                .setPublisher(this::ingest)
+                .setVisibilityCheck((serial, type, marker) -> false)
+                .setPollInterval(20, 100)
+                .setTimeoutMs(400)
+                .run(phones, MetricType.DEVICE_NAME);
+        Assert.assertEquals(report.getTimeouts(MetricType.DEVICE_NAME), 5L, "Every probe should time out");
+        Assert.assertEquals(report.getHistogram(MetricType.DEVICE_NAME).getCount(), 0L);
+    }
+
+    @Test(groups = {"positive"})
+    public void testPublisherHandOffIsNotLatency() throws InterruptedException {
+        List<SimulatedPhone> phones = TestFleets.fleet(3, 3);
+        IngestionLatencyProbe.Report report = new IngestionLatencyProbe()
+                .setPublisher((serial, payload) -> {
+                    try {
+                        // Stands in for a pooled agent connecting on first use
+                        Thread.sleep(300);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return CompletableFuture.completedFuture(null);
+                })
+                .setVisibilityCheck((serial, type, marker) -> true)
+                .setPollInterval(20, 100)
+                .setTimeoutMs(2000)
+                .run(phones, MetricType.DEVICE_NAME);
+        LatencyHistogram devices = report.getHistogram(MetricType.DEVICE_NAME);
+        Assert.assertEquals(devices.getCount(), 3L);
+        Assert.assertTrue(devices.getMax() < 300, "Publisher time counted as latency: " + devices.getSummary());
+    }
+
+    @Test(groups = {"positive"})
+    public void testMarkerMatchesWholeField() throws IOException {
+        JsonNode device = mapper.readTree("{\"serial_number\": \"probe-x-1\", \"device_name\": \"probe-x-10\"}");
+        Assert.assertFalse(IngestionLatencyProbe.isMarked(device, MetricType.DEVICE_NAME, "probe-x-1"), "Prefix of the device name matched");
+        Assert.assertTrue(IngestionLatencyProbe.isMarked(device, MetricType.DEVICE_NAME, "probe-x-10"));
+        JsonNode calls = mapper.readTree("{\"calls\": [{\"call_id\": \"probe-x-12\"}, {\"call_id\": \"probe-x-2\"}]}");
+        Assert.assertTrue(IngestionLatencyProbe.isMarked(calls, MetricType.CALL_HISTORY, "probe-x-2"));
+        Assert.assertFalse(IngestionLatencyProbe.isMarked(calls, MetricType.CALL_HISTORY, "probe-x-1"), "Prefix of a call id matched");
+        Assert.assertFalse(IngestionLatencyProbe.isMarked(calls, MetricType.DEVICE_NAME, "probe-x-2"), "Call id matched as a device name");
+        Assert.assertFalse(IngestionLatencyProbe.isMarked(null, MetricType.DEVICE_NAME, "probe-x-2"));
+    }
+
+    /**
+     * Publishes to the embedded broker and, once it has the message, makes the marker visible after the
+     * ingest delay of its metric type, standing in for the gateway and AMiE.
+     */
+    private CompletableFuture<Void> ingest(String serial, byte[] payload) {
+        return publisher.publish(serial, payload).thenRun(() -> {
+            try {
+                for (JsonNode record : mapper.readTree(payload).get("data")) {
+                    if (record.has("device_name")) {
+                        visibleAt.put(record.get("device_name").asText(), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEVICE_DELAY_MS));
+                    } else if (record.has("call_id")) {
+                        visibleAt.putIfAbsent(record.get("call_id").asText(), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALL_DELAY_MS));
+                    }
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        });
+    }
+}
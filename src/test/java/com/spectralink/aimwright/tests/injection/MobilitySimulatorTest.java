@@ -0,0 +1,145 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mobility Simulator Tests
+ *
+ * Tests phones walking across a location's AP layout and roaming between APs:
+ * - A phone walking past an AP hands off beyond the midpoint in both directions, without ping-pong
+ * - Network metrics report the measured RSSI and the roam only for the phone that roamed
+ * - Reconnecting to the same AP after a disconnect is reported again
+ * - Roam storms across thousands of phones stay cheap per tick and within the RSSI limits
+ */
+public class MobilitySimulatorTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test(groups = {"positive"})
+    public void testHandoffHysteresis() throws IOException {
+        SimulatedLocation location = new SimulatedLocation("Corridor", 90, 20);
+        for (int index = 0; index < 3; index++) {
+            SimulatedAP ap = new SimulatedAP("Corridor-AP-00" + (index + 1));
+            ap.setAp_bssid("00:11:22:33:44:0" + index);
+            location.addAp(ap, 15 + 30 * index, 10);
+        }
+        SimulatedPhone walker = phone("mobility0001", location.getAp(0));
+        SimulatedPhone sitter = phone("mobility0002", location.getAp(1));
+        location.addPhone(walker, 15, 10);
+        location.addPhone(sitter, 45, 12);
+
+        List<Double> roamedAt = new ArrayList<>();
+        List<String> roamedTo = new ArrayList<>();
+        MobilitySimulator simulator = new MobilitySimulator(List.of(location))
+                .setMobileFraction(0)
+                .setMaxPauseMs(0)
+                .setHysteresisDb(6)
+                .setListener((phone, from, to, rssi) -> {
+                    roamedAt.add(location.getPhoneX(0));
+                    roamedTo.add(to.getAp_ssid());
+                });
+        try {
+            simulator.tick(100);
+            Assert.assertEquals(walker.getSignal_rssi(), Integer.valueOf(-30), "Standing at the AP gives the strongest signal");
+            networkRecord(walker);
+            networkRecord(sitter);
+
+            simulator.moveTo(walker, 75, 10, 1.0);
+            while (location.getPhoneX(0) < 75) {
+                simulator.tick(100);
+                if (roamedAt.size() == 1 && walker.getHandOff()) {
+                    JsonNode record = networkRecord(walker);
+                    Assert.assertTrue(record.has("roam_handoff_ms"), "The roam should be reported: " + record);
+                    Assert.assertEquals(record.get("ap_ssid").asText(), "Corridor-AP-002");
+                    Assert.assertEquals(record.get("ap_rssi").asInt(), walker.getSignal_rssi().intValue(), "The measured RSSI should be reported");
+                    Assert.assertFalse(networkRecord(walker).has("roam_handoff_ms"), "A roam is reported once");
+                    Assert.assertFalse(networkRecord(sitter).has("roam_handoff_ms"), "Only the phone that roamed reports it");
+                }
+            }
+            Assert.assertEquals(roamedTo, List.of("Corridor-AP-002", "Corridor-AP-003"), "Two handoffs walking out");
+            Assert.assertTrue(roamedAt.get(0) > 31 && roamedAt.get(0) < 37, "Should roam past the midpoint, roamed at " + roamedAt.get(0));
+
+            simulator.moveTo(walker, 15, 10, 1.0);
+            while (location.getPhoneX(0) > 15) {
+                simulator.tick(100);
+            }
+            Assert.assertEquals(roamedTo.size(), 4, "Two handoffs walking back, no ping-pong: " + roamedTo);
+            Assert.assertEquals(walker.getCurrent_ap(), location.getAp(0));
+            Assert.assertTrue(roamedAt.get(3) < 29 && roamedAt.get(3) > 23, "Should roam back past the midpoint, roamed at " + roamedAt.get(3));
+            Assert.assertEquals(sitter.getCurrent_ap(), location.getAp(1), "A stationary phone stays put");
+            Assert.assertEquals(simulator.getHandoffs(), 4L);
+
+            // Reconnecting to the same AP after a disconnect is reported like a roam, staying connected is not
+            walker.disconnectWifi();
+            walker.connectWifi(location.getAp(0));
+            JsonNode reconnect = networkRecord(walker);
+            Assert.assertTrue(reconnect.has("roam_handoff_ms"), "The reconnect should be reported: " + reconnect);
+            Assert.assertEquals(reconnect.get("connection_status").asText(), SimulatedPhone.ConnectionState.CONNECTED.state());
+            Assert.assertEquals(reconnect.get("network_type").asText(), "WIFI");
+            walker.connectWifi(location.getAp(0));
+            Assert.assertFalse(networkRecord(walker).has("roam_handoff_ms"), "Connecting again while connected is not a roam");
+        } finally {
+            NeighborIndex.remove(location);
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void testRoamStormAtScale() {
+        List<SimulatedLocation> locations = new FleetGenerator(10000).setLocations(10).setApsPerLocation(36).setSeed(24).generate();
+        MobilitySimulator simulator = new MobilitySimulator(locations).setMobileFraction(0.5).setSpeed(1.0, 3.0);
+        try {
+            for (int tick = 0; tick < 20; tick++) {
+                simulator.tick(1000);
+            }
+            simulator.getTickTimes().reset();
+            long before = simulator.getHandoffs();
+            long start = System.nanoTime();
+            for (int tick = 0; tick < 300; tick++) {
+                simulator.tick(1000);
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            long handoffs = simulator.getHandoffs() - before;
+            log.info("{}; {} handoffs in 300 simulated seconds, {} ms wall clock", simulator.getSummary(), handoffs, elapsedMs);
+            Assert.assertEquals(simulator.getPhoneCount(), 10000);
+            Assert.assertTrue(simulator.getMobileCount() > 4500 && simulator.getMobileCount() < 5500, "Half the phones should walk");
+            Assert.assertTrue(handoffs > 1000, "Walking phones should roam, got " + handoffs);
+            LatencyHistogram tickTimes = simulator.getTickTimes();
+            Assert.assertTrue(tickTimes.toMillis(tickTimes.getValueAtPercentile(99)) < 50, tickTimes.getSummary());
+
+            SimulatedAP.RssiDriftType range = SimulatedAP.RssiDriftType.INCREASING;
+            for (SimulatedLocation location : locations) {
+                for (SimulatedPhone phone : location.getPhones()) {
+                    int rssi = phone.getSignal_rssi();
+                    Assert.assertTrue(rssi >= range.lowerLimit() && rssi <= range.upperLimit(), "RSSI out of range: " + rssi);
+                    Assert.assertTrue(location.getAps().contains(phone.getCurrent_ap()), "Phones roam within their location");
+                }
+            }
+        } finally {
+            for (SimulatedLocation location : locations) {
+                NeighborIndex.remove(location);
+            }
+        }
+    }
+
+    private static SimulatedPhone phone(String serial, SimulatedAP ap) {
+        SimulatedPhone phone = new SimulatedPhone();
+        phone.setDevice_serial_number(serial);
+        phone.connectWifi(ap);
+        return phone;
+    }
+
+    private static JsonNode networkRecord(SimulatedPhone phone) throws IOException {
+        byte[] payload = new MetricsStreamWriter().beginMessage(phone.getDevice_serial_number(), System.currentTimeMillis())
+                .writeNetworkMetrics(phone, System.currentTimeMillis()).endMessage();
+        return mapper.readTree(payload).get("data").get(0);
+    }
+}
@@ -0,0 +1,132 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT Timings Tests
+ *
+ * Tests client-side latency histograms recorded by MqttAgent:
+ * - Connects, blocking sends and their delivery per QoS are timed
+ * - Asynchronous publishes record inflight wait, publish call and delivery times
+ * - Disabling timings stops recording
+ * - Recording a sample does not allocate
+ */
+public class MqttTimingsTest extends ApiTestWrapper {
+
+    private EmbeddedMqttBroker broker;
+    private String port;
+
+    @BeforeClass
+    public void startBroker() throws IOException {
+        broker = EmbeddedMqttBroker.start();
+        port = String.valueOf(broker.getPort());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopBroker() {
+        if (broker != null) broker.close();
+    }
+
+    @BeforeMethod(alwaysRun = true)
+    public void resetTimings() {
+        MqttTimings.reset();
+        MqttTimings.setEnabled(true);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void enableTimings() {
+        MqttTimings.setEnabled(true);
+    }
+
+    @Test(groups = {"positive"})
+    public void testBlockingSendsPerQos() {
+        MqttAgent agent = new MqttAgent("timings0001", broker.getHost(), port);
+        try {
+            agent.connect();
+            Assert.assertEquals(MqttTimings.getConnectTimes().getCount(), 1L, "Connect should be timed");
+            byte[] payload = "{}".getBytes(StandardCharsets.UTF_8);
+            for (int qos = 0; qos <= 2; qos++) {
+                agent.setQos(qos);
+                for (int index = 0; index < 10; index++) {
+                    agent.sendMessage(payload);
+                }
+            }
+            for (int qos = 0; qos <= 2; qos++) {
+                LatencyHistogram delivery = MqttTimings.getDeliveryTimes(qos);
+                Assert.assertEquals(delivery.getCount(), 10L, "Deliveries at QoS " + qos);
+                Assert.assertTrue(delivery.getMin() > 0, "Delivery takes time");
+            }
+            Assert.assertEquals(MqttTimings.getPublishCallTimes().getCount(), 30L, "Every publish call should be timed");
+            LatencyHistogram deliveries = new LatencyHistogram("all deliveries", TimeUnit.NANOSECONDS);
+            for (int qos = 0; qos <= 2; qos++) {
+                deliveries.add(MqttTimings.getDeliveryTimes(qos));
+            }
+            Assert.assertTrue(MqttTimings.getPublishCallTimes().getMean() <= deliveries.getMean(), "Each publish call is part of its delivery time");
+            log.info(MqttTimings.getSummary());
+        } finally {
+            agent.close();
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testAsyncPublishTimings() {
+        MultiplexedPublisher publisher = new MultiplexedPublisher(broker.getHost(), port, 1, 5);
+        try {
+            publisher.connect();
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for (int index = 0; index < 200; index++) {
+                results.add(publisher.publish("timings0002", new byte[200]));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+            int qos = publisher.getConnection("timings0002").getQos();
+            Assert.assertEquals(MqttTimings.getInflightWaitTimes().getCount(), 200L);
+            Assert.assertEquals(MqttTimings.getPublishCallTimes().getCount(), 200L);
+            Assert.assertEquals(MqttTimings.getDeliveryTimes(qos).getCount(), 200L, "Every delivery should be timed");
+            Assert.assertTrue(MqttTimings.getSummary().contains("MQTT delivery QoS " + qos), MqttTimings.getSummary());
+
+            MqttTimings.reset();
+            MqttTimings.setEnabled(false);
+            publisher.publish("timings0002", new byte[200]).join();
+            Assert.assertEquals(MqttTimings.getPublishCallTimes().getCount(), 0L, "Nothing is recorded while disabled");
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkRecordingOverhead() {
+        LatencyHistogram histogram = new LatencyHistogram("overhead", TimeUnit.NANOSECONDS);
+        for (int index = 0; index < 1_000_000; index++) {
+            histogram.recordSince(System.nanoTime() - index);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int samples = 5_000_000;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int index = 0; index < samples; index++) {
+            histogram.recordSince(start - (index & 0xFFFFF));
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        log.info("Recorded {} samples in {} ms ({} ns/sample, {} bytes allocated)",
+                samples, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), String.format("%.1f", elapsedNanos / (double) samples), allocated);
+        Assert.assertTrue(allocated < 64 * 1024, "Recording should not allocate, allocated " + allocated + " bytes");
+        Assert.assertTrue(elapsedNanos / samples < 500, "Recording should cost well under a microsecond");
+    }
+}
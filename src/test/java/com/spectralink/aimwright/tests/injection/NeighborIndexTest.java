@@ -0,0 +1,136 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Neighbor Index Tests
+ *
+ * Tests the precomputed candidate AP lists behind network metrics:
+ * - Each AP lists its nearest neighbours, closest first, never itself
+ * - Network metrics report only the current AP's neighbours, and the candidates follow a roam
+ * - Locations with no APs or a single AP index without neighbours
+ * - Phones on APs outside an indexed location still report every other AP in the Environment
+ * - Network metrics for a fleet on a campus-sized location are reported
+ */
+public class NeighborIndexTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @AfterMethod(alwaysRun = true)
+    public void clearEnvironment() {
+        for (String name : new ArrayList<>(Environment.getSimLocations().keySet())) {
+            Environment.removeSimLocation(name);
+        }
+        Environment.getSimPhones().clear();
+        Environment.getSimBatteries().clear();
+        Environment.getSimNetworks().clear();
+        NeighborIndex.setNeighborCount(8);
+    }
+
+    @Test(groups = {"positive"})
+    public void testNearestNeighboursClosestFirst() {
+        NeighborIndex.setNeighborCount(5);
+        SimulatedLocation location = new FleetGenerator(0).setApsPerLocation(30).setSeed(1).generate().get(0);
+        NeighborIndex.index(location);
+        for (int apIndex = 0; apIndex < location.getAps().size(); apIndex++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int other = 0; other < location.getAps().size(); other++) {
+                if (other != apIndex) expected.add(other);
+            }
+            int from = apIndex;
+            expected.sort(Comparator.comparingDouble(other -> distance(location, from, other)));
+            List<SimulatedAP> neighbours = NeighborIndex.getCandidates(location.getAp(apIndex));
+            Assert.assertEquals(neighbours.size(), 5, "Neighbour count");
+            for (int rank = 0; rank < 5; rank++) {
+                Assert.assertEquals(distance(location, apIndex, location.getAps().indexOf(neighbours.get(rank))),
+                        distance(location, apIndex, expected.get(rank)), 1e-9, "Neighbour " + rank + " of AP " + apIndex);
+            }
+            Assert.assertFalse(neighbours.contains(location.getAp(apIndex)), "An AP is not its own neighbour");
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testCandidatesFollowRoam() {
+        NeighborIndex.setNeighborCount(3);
+        SimulatedLocation location = new FleetGenerator(10).setApsPerLocation(25).setSeed(2).generateIntoEnvironment().get(0);
+        SimulatedPhone phone = location.getPhone(0);
+        JsonNode metrics = phone.getNetworkMetrics(1000L);
+        Assert.assertEquals(metrics.get("network_candidate_aps").size(), 3, "Only the nearest neighbours are candidates");
+        Assert.assertEquals(metrics.get("network_candidate_aps").get(0).get("ap_ssid").asText(),
+                NeighborIndex.getCandidates(phone.getCurrent_ap()).get(0).getAp_ssid(), "Closest neighbour first");
+
+        SimulatedAP corner = location.getAp(24);
+        phone.connectWifi(corner);
+        Assert.assertSame(phone.getCandidateAPs(), NeighborIndex.getCandidates(corner), "Candidates should follow the roam");
+        Assert.assertEquals(streamed(phone).get("network_candidate_aps").size(), 3, "Streamed record candidates");
+    }
+
+    @Test(groups = {"positive"})
+    public void testLocationsWithoutNeighbours() {
+        SimulatedLocation empty = new SimulatedLocation("Empty Floor", 40, 40);
+        Environment.addSimLocation(empty);
+        Assert.assertSame(Environment.getSimLocations().get("Empty Floor"), empty, "A location without APs can be registered");
+
+        SimulatedLocation single = new SimulatedLocation("Single AP Floor", 40, 40);
+        SimulatedAP only = new SimulatedAP("Single AP");
+        single.addAp(only, 20, 20);
+        Environment.addSimLocation(single);
+        Assert.assertTrue(NeighborIndex.getCandidates(only).isEmpty(), "A lone AP has no neighbours");
+    }
+
+    @Test(groups = {"positive"})
+    public void testUnindexedApScansEnvironment() {
+        SimulatedAP ward = new SimulatedAP("Ward A");
+        Environment.setSimNetwork("Ward A", ward);
+        Environment.setSimNetwork("Ward B", new SimulatedAP("Ward B"));
+        Environment.setSimNetwork("Ward C", new SimulatedAP("Ward C"));
+        SimulatedPhone phone = new SimulatedPhone();
+        phone.connectWifi(ward);
+        Assert.assertEquals(phone.getNetworkMetrics(1000L).get("network_candidate_aps").size(), 2, "Every other AP is a candidate");
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkCampusNetworkMetrics() throws IOException {
+        List<SimulatedLocation> locations = new FleetGenerator(20000).setApsPerLocation(2500).setSeed(3).generate();
+        long start = System.nanoTime();
+        Environment.addSimLocation(locations.get(0));
+        long indexMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        MetricsStreamWriter writer = new MetricsStreamWriter();
+        long bytes = 0;
+        start = System.nanoTime();
+        for (SimulatedPhone phone : locations.get(0).getPhones()) {
+            bytes += writer.beginMessage(phone.getDevice_serial_number(), 1000L).writeNetworkMetrics(phone, 1000L).endMessage().length;
+        }
+        long writeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Indexed 2500 APs in {} ms; wrote network metrics for 20000 phones ({} KB) in {} ms", indexMs, bytes / 1024, writeMs);
+        Assert.assertTrue(bytes / 20000 < 2048, "Network records should hold a handful of candidates, not the whole campus");
+    }
+
+    private static JsonNode streamed(SimulatedPhone phone) {
+        try {
+            byte[] message = new MetricsStreamWriter().beginMessage(phone.getDevice_serial_number(), 1000L)
+                    .writeNetworkMetrics(phone, 1000L).endMessage();
+            JsonNode envelope = mapper.readTree(message);
+            return envelope.get("data").get(0);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+    }
+
+    private static double distance(SimulatedLocation location, int from, int to) {
+        return Math.hypot(location.getApX(from) - location.getApX(to), location.getApY(from) - location.getApY(to));
+    }
+}
@@ -0,0 +1,151 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payload Codec Tests
+ *
+ * Tests encoding injected payloads with pluggable codecs:
+ * - JSON, Smile and CBOR, with and without gzip, round-trip device messages unchanged
+ * - Codecs are looked up by name, with a gzip suffix, and unknown names are rejected
+ * - An agent publishes its codec's encoding, which subscribers can decode
+ * - Size and throughput of every codec against the embedded broker are reported
+ */
+public class PayloadCodecTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private EmbeddedMqttBroker broker;
+
+    @BeforeClass
+    public void startBroker() throws IOException {
+        broker = EmbeddedMqttBroker.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopBroker() {
+        if (broker != null) broker.close();
+    }
+
+    @Test(groups = {"positive"})
+    public void testRoundTrip() throws IOException {
+        List<byte[]> messages = deviceMessages(20, 1);
+        for (PayloadCodec codec : allCodecs()) {
+            for (byte[] message : messages) {
+                JsonNode expected = mapper.readTree(message);
+                Assert.assertEquals(codec.decode(codec.transcode(message)), expected, codec.getName() + " transcode round trip");
+                Assert.assertEquals(codec.decode(codec.encode(expected)), expected, codec.getName() + " encode round trip");
+            }
+        }
+        byte[] message = messages.get(0);
+        Assert.assertSame(PayloadCodecs.json().transcode(message), message, "JSON payloads should pass through untouched");
+        Assert.assertNotEquals(PayloadCodecs.cbor().transcode(message)[0], (byte) '{', "CBOR should not be JSON text");
+    }
+
+    @Test(groups = {"positive"})
+    public void testLookupByName() {
+        Assert.assertSame(PayloadCodecs.forName("json"), PayloadCodecs.json());
+        Assert.assertSame(PayloadCodecs.forName(" CBOR "), PayloadCodecs.cbor());
+        PayloadCodec gzip = PayloadCodecs.forName("smile+gzip");
+        Assert.assertEquals(gzip.getName(), "smile+gzip");
+        Assert.assertSame(PayloadCodecs.forName("Smile+GZIP"), gzip, "Gzip variants should be created once");
+        Assert.assertTrue(PayloadCodecs.getNames().containsAll(List.of("json", "smile", "cbor")));
+        Assert.assertThrows(IllegalArgumentException.class, () -> PayloadCodecs.forName("protobuf"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> PayloadCodecs.forName("protobuf+gzip"));
+        Assert.assertSame(PayloadCodecs.fromSettings(), PayloadCodecs.json(), "The gateway default is JSON");
+    }
+
+    @Test(groups = {"positive"})
+    public void testAgentPublishesEncodedPayload() throws IOException {
+        String port = String.valueOf(broker.getPort());
+        MqttAgent subscriber = new MqttAgent("codec0001", broker.getHost(), port);
+        MqttAgent sender = new MqttAgent("codec0001", broker.getHost(), port);
+        try {
+            subscriber.receiveMessages();
+            PayloadCodec codec = PayloadCodecs.forName("cbor+gzip");
+            sender.setCodec(codec);
+            byte[] message = deviceMessages(1, 2).get(0);
+            sender.sendMessage(message);
+            sender.sendMessageAsync(message, 1).join();
+
+            List<byte[]> received = subscriber.awaitMessages(2, 5000);
+            Assert.assertEquals(received.size(), 2, "Subscriber should receive both messages");
+            for (byte[] payload : received) {
+                Assert.assertTrue(payload.length < message.length, "Encoded payload should be smaller than the JSON");
+                Assert.assertEquals(codec.decode(payload), mapper.readTree(message), "Decoded payload");
+            }
+            sender.setCodec(null);
+            Assert.assertSame(sender.getCodec(), PayloadCodecs.json(), "Clearing the codec should restore the default");
+        } finally {
+            subscriber.close();
+            sender.close();
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkCodecComparison() throws IOException {
+        CodecComparison comparison = new CodecComparison().setRounds(5).setPublishWindow(2, 500);
+        for (PayloadCodec codec : allCodecs()) {
+            comparison.addCodec(codec);
+        }
+        int index = 0;
+        for (byte[] message : deviceMessages(20000, 3)) {
+            comparison.addSample(String.format("codecbench%04d", index++ % 1000), message);
+        }
+        List<CodecComparison.Result> results = comparison.run(broker);
+        log.info(comparison.getReport());
+
+        CodecComparison.Result json = results.get(0);
+        Assert.assertEquals(json.getEncodedBytes(), json.getJsonBytes(), "JSON is the baseline");
+        for (CodecComparison.Result result : results) {
+            Assert.assertEquals(result.getBrokerBytes(), result.getEncodedBytes(), result.getCodec() + " bytes at the broker");
+            if (!result.getCodec().equals("json")) {
+                Assert.assertTrue(result.getSizeRatio() < 1.0, result.getCodec() + " should be smaller than JSON: " + result);
+            }
+        }
+    }
+
+    private static List<PayloadCodec> allCodecs() {
+        List<PayloadCodec> codecs = new ArrayList<>();
+        for (String name : List.of("json", "smile", "cbor")) {
+            codecs.add(PayloadCodecs.forName(name));
+        }
+        for (String name : List.of("json", "smile", "cbor")) {
+            codecs.add(PayloadCodecs.forName(name + "+gzip"));
+        }
+        return codecs;
+    }
+
+    /**
+     * Realistic device messages: device, network and battery records for phones of a generated fleet.
+     */
+    private static List<byte[]> deviceMessages(int count, long seed) {
+        List<SimulatedPhone> phones = new ArrayList<>();
+        for (SimulatedLocation location : new FleetGenerator(Math.min(count, 1000)).setApsPerLocation(8).setSeed(seed).generate()) {
+            phones.addAll(location.getPhones());
+        }
+        MetricsStreamWriter writer = new MetricsStreamWriter();
+        List<byte[]> messages = new ArrayList<>(count);
+        long timestamp = 1_700_000_000_000L;
+        for (int index = 0; index < count; index++) {
+            SimulatedPhone phone = phones.get(index % phones.size());
+            long now = timestamp + index * 1000L;
+            writer.beginMessage(phone.getDevice_serial_number(), now)
+                    .writeDeviceMetrics(phone, now)
+                    .writeNetworkMetrics(phone, now);
+            if (phone.getCurrent_battery() != null) writer.writeBattery(phone.getCurrent_battery(), now);
+            messages.add(writer.endMessage());
+        }
+        return messages;
+    }
+}
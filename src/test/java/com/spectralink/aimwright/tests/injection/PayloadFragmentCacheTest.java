@@ -0,0 +1,86 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.PayloadFragmentCache;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Payload Fragment Cache Tests
+ *
+ * Tests the shared cache of static payload fragments:
+ * - A data file is read once and served from memory afterwards
+ * - Cached trees cannot be modified by callers
+ * - invalidate() and reload() pick up edits to the data file
+ * - Missing files fall back to the supplied default
+ */
+public class PayloadFragmentCacheTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private Path dataDirectory;
+    private Path dataFile;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        dataDirectory = Files.createTempDirectory("fragment-cache");
+        dataFile = dataDirectory.resolve("top_apps.json");
+        Files.write(dataFile, "[ {\"app\": \"biz\", \"pct\": 12} ]".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() throws IOException {
+        PayloadFragmentCache.invalidate(dataFile);
+        Files.deleteIfExists(dataFile);
+        Files.deleteIfExists(dataDirectory);
+    }
+
+    @Test(groups = {"positive"})
+    public void testFragmentIsServedFromCache() throws IOException {
+        PayloadFragmentCache.Fragment fragment = PayloadFragmentCache.getFragment(dataFile, mapper.createArrayNode());
+        Assert.assertEquals(fragment.getJson(), "[{\"app\":\"biz\",\"pct\":12}]", "Fragment should be stored compactly");
+
+        Files.write(dataFile, "[]".getBytes(StandardCharsets.UTF_8));
+        Assert.assertSame(PayloadFragmentCache.getFragment(dataFile, mapper.createArrayNode()), fragment,
+                "Fragment should not be re-read while cached");
+    }
+
+    @Test(groups = {"positive"}, dependsOnMethods = "testFragmentIsServedFromCache")
+    public void testFragmentCannotBeModified() {
+        PayloadFragmentCache.Fragment fragment = PayloadFragmentCache.getFragment(dataFile, mapper.createArrayNode());
+        String before = fragment.getJson();
+        ((ArrayNode) fragment.getNode()).removeAll();
+        Assert.assertEquals(fragment.getNode().size(), 1, "Modifying a returned tree should not change the cache");
+        Assert.assertEquals(fragment.getJson(), before);
+    }
+
+    @Test(groups = {"positive"}, dependsOnMethods = "testFragmentCannotBeModified")
+    public void testInvalidateAndReload() throws IOException {
+        PayloadFragmentCache.invalidate();
+        Assert.assertEquals(PayloadFragmentCache.getFragment(dataFile, mapper.createArrayNode()).getJson(), "[]",
+                "Invalidated fragment should be re-read");
+
+        Files.write(dataFile, "[{\"app\":\"pushtotalk\",\"pct\":3}]".getBytes(StandardCharsets.UTF_8));
+        PayloadFragmentCache.reload();
+        Assert.assertEquals(PayloadFragmentCache.getFragment(dataFile, mapper.createArrayNode()).getJson(),
+                "[{\"app\":\"pushtotalk\",\"pct\":3}]", "Reload should re-read cached files");
+    }
+
+    @Test(groups = {"negative"})
+    public void testMissingFileUsesFallback() {
+        Path missing = dataDirectory.resolve("missing.json");
+        PayloadFragmentCache.Fragment fragment = PayloadFragmentCache.getFragment(missing, mapper.createArrayNode());
+        Assert.assertEquals(fragment.getJson(), "[]", "Missing file should serve the fallback");
+        Assert.assertSame(PayloadFragmentCache.getFragment(missing, mapper.createArrayNode()), fragment,
+                "Missing file should not be retried on every request");
+        PayloadFragmentCache.invalidate(missing);
+    }
+}
@@ -0,0 +1,211 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Payload Generation Benchmark
+ *
+ * Compares building injection payloads as ObjectNode trees against streaming them with
+ * MetricsStreamWriter and rendering them from a PayloadTemplate:
+ * - All paths must produce byte-identical messages
+ * - Records that cannot be generated are left out instead of written as null
+ * - Streaming and templates must allocate less per message
+ *
+ * No gateway or AMiE instance is required.
+ */
+public class PayloadGenerationBenchmarkTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 100000;
+    private static final String CANDIDATE_SSID = "Benchmark Candidate";
+
+    @BeforeClass
+    public void setup() {
+        SimulatedAP candidate = new SimulatedAP(CANDIDATE_SSID);
+        candidate.setAp_bssid("5c:0e:8b:c9:1b:10");
+        Environment.setSimNetwork(CANDIDATE_SSID, candidate);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        Environment.removeSimNetwork(CANDIDATE_SSID);
+    }
+
+    @Test(groups = {"positive"})
+    public void testStreamingMatchesTree() {
+        for (SimulatedPhone.Model model : List.of(SimulatedPhone.Model.VERSITY_9740, SimulatedPhone.Model.VERSITY_9753)) {
+            SimulatedPhone treePhone = buildPhone(model);
+            SimulatedPhone streamPhone = buildPhone(model);
+            MetricsStreamWriter writer = new MetricsStreamWriter();
+            for (int tick = 0; tick < 30; tick++) {
+                long timestamp = 1700000000000L + tick * 5000L;
+                assertSamePayload("device " + model, envelope(treePhone, timestamp, treePhone.getDeviceMetrics(timestamp)),
+                        writer.beginMessage(streamPhone.getDevice_serial_number(), timestamp).writeDeviceMetrics(streamPhone, timestamp).endMessage());
+                assertSamePayload("battery " + model, envelope(treePhone, timestamp, treePhone.getCurrent_battery().getBattery(timestamp)),
+                        writer.beginMessage(streamPhone.getDevice_serial_number(), timestamp).writeBattery(streamPhone.getCurrent_battery(), timestamp).endMessage());
+                assertSamePayload("network " + model, envelope(treePhone, timestamp, treePhone.getNetworkMetrics(timestamp)),
+                        writer.beginMessage(streamPhone.getDevice_serial_number(), timestamp).writeNetworkMetrics(streamPhone, timestamp).endMessage());
+                assertSamePayload("call " + model, envelope(treePhone, timestamp, treePhone.getCurrent_call().getCallDetails(timestamp)),
+                        writer.beginMessage(streamPhone.getDevice_serial_number(), timestamp).writeCallDetails(streamPhone.getCurrent_call(), timestamp).endMessage());
+            }
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testStreamingSkipsMissingRecords() throws Exception {
+        SimulatedPhone unconnected = new SimulatedPhone();
+        unconnected.setDevice_serial_number("benchmark0002");
+        MetricsStreamWriter writer = new MetricsStreamWriter();
+        byte[] payload = writer.beginMessage(unconnected.getDevice_serial_number(), 1700000000000L)
+                .writeNetworkMetrics(unconnected, 1700000000000L)
+                .writeBattery(new SimulatedBattery(), 1700000000000L)
+                .endMessage();
+        Assert.assertEquals(mapper.readTree(payload).get("data").size(), 0, "No AP or phone should leave out the record, not write null");
+    }
+
+    @Test(groups = {"performance"}, dependsOnMethods = "testStreamingMatchesTree")
+    public void benchmarkTreeVersusStreaming() {
+        SimulatedPhone treePhone = buildPhone(SimulatedPhone.Model.VERSITY_9740);
+        SimulatedPhone streamPhone = buildPhone(SimulatedPhone.Model.VERSITY_9740);
+        MetricsStreamWriter writer = new MetricsStreamWriter();
+
+        LongFunction<byte[]> treePath = timestamp -> envelope(treePhone, timestamp,
+                treePhone.getDeviceMetrics(timestamp), treePhone.getCurrent_battery().getBattery(timestamp));
+        LongFunction<byte[]> streamPath = timestamp -> writer.beginMessage(streamPhone.getDevice_serial_number(), timestamp)
+                .writeDeviceMetrics(streamPhone, timestamp)
+                .writeBattery(streamPhone.getCurrent_battery(), timestamp)
+                .endMessage();
+
+        Measurement tree = measure(treePath);
+        Measurement stream = measure(streamPath);
+        log.info("ObjectNode tree : {} ns/msg, {} bytes allocated/msg", tree.nanosPerMessage, tree.bytesPerMessage);
+        log.info("Streaming writer: {} ns/msg, {} bytes allocated/msg", stream.nanosPerMessage, stream.bytesPerMessage);
+        if (tree.bytesPerMessage > 0) {
+            Assert.assertTrue(stream.bytesPerMessage < tree.bytesPerMessage,
+                    "Streaming path should allocate less per message than the tree path");
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testTemplateMatchesTree() {
+        for (SimulatedPhone.Model model : List.of(SimulatedPhone.Model.VERSITY_9740, SimulatedPhone.Model.VERSITY_9753)) {
+            SimulatedPhone treePhone = buildPhone(model);
+            SimulatedPhone templatePhone = buildPhone(model);
+            PayloadTemplate device = PayloadTemplate.forDeviceMetrics(templatePhone);
+            PayloadTemplate battery = PayloadTemplate.forBattery(templatePhone.getCurrent_battery());
+            for (int tick = 0; tick < 30; tick++) {
+                long timestamp = 1700000000000L + tick * 5000L;
+                assertSamePayload("device template " + model, envelope(treePhone, timestamp, treePhone.getDeviceMetrics(timestamp)),
+                        device.render(timestamp));
+                assertSamePayload("battery template " + model, envelope(treePhone, timestamp, treePhone.getCurrent_battery().getBattery(timestamp)),
+                        battery.render(timestamp));
+            }
+        }
+    }
+
+    @Test(groups = {"performance"}, dependsOnMethods = "testTemplateMatchesTree")
+    public void benchmarkTreeVersusTemplate() {
+        SimulatedPhone treePhone = buildPhone(SimulatedPhone.Model.VERSITY_9740);
+        SimulatedPhone templatePhone = buildPhone(SimulatedPhone.Model.VERSITY_9740);
+        PayloadTemplate device = PayloadTemplate.forDeviceMetrics(templatePhone);
+        PayloadTemplate battery = PayloadTemplate.forBattery(templatePhone.getCurrent_battery());
+
+        LongFunction<byte[]> treePath = timestamp -> timestamp % 2 == 0
+                ? envelope(treePhone, timestamp, treePhone.getDeviceMetrics(timestamp))
+                : envelope(treePhone, timestamp, treePhone.getCurrent_battery().getBattery(timestamp));
+        LongFunction<byte[]> templatePath = timestamp -> timestamp % 2 == 0
+                ? device.render(timestamp)
+                : battery.render(timestamp);
+
+        Measurement tree = measure(treePath);
+        Measurement template = measure(templatePath);
+        log.info("ObjectNode tree : {} ns/msg, {} bytes allocated/msg", tree.nanosPerMessage, tree.bytesPerMessage);
+        log.info("Payload template: {} ns/msg, {} bytes allocated/msg", template.nanosPerMessage, template.bytesPerMessage);
+        if (tree.bytesPerMessage > 0) {
+            Assert.assertTrue(template.bytesPerMessage < tree.bytesPerMessage,
+                    "Template path should allocate less per message than the tree path");
+        }
+    }
+
+    private SimulatedPhone buildPhone(SimulatedPhone.Model model) {
+        SimulatedPhone phone = TestFleets.drifting(TestFleets.connectedPhone(model, "bench" + model.model(), "Benchmark AP"));
+        phone.setDevice_info_1("Benchmark");
+        phone.setMac_address("00:90:7A:00:00:01");
+        Map<String, String> appVersions = new HashMap<>();
+        appVersions.put("com.spectralink.slnkdevicemgr", "13.3.0.1576");
+        appVersions.put("com.spectralink.slnkbattery", "13.3.0.1211");
+        phone.setApp_versions(appVersions);
+
+        Map<String, Object> topApp = new HashMap<>();
+        topApp.put("name", "com.spectralink.ptt");
+        topApp.put("pct", 12.5);
+        phone.getCurrent_battery().setTop_apps(List.of(topApp));
+
+        phone.getCurrent_ap().setHandOff(false);
+        phone.setHandOff(false);
+        phone.getCurrent_call().setCall_id("0000aaaa-bbbb-cccc-dddd-eeeeffff0000");
+        return phone;
+    }
+
+    private byte[] envelope(SimulatedPhone phone, long timestamp, ObjectNode... records) {
+        ObjectNode fullMqttMessage = mapper.createObjectNode();
+        fullMqttMessage.put("deviceSerial", phone.getDevice_serial_number());
+        fullMqttMessage.put("timestamp", timestamp);
+        for (ObjectNode record : records) {
+            fullMqttMessage.withArray("data").add(record);
+        }
+        try {
+            return mapper.writeValueAsBytes(fullMqttMessage);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void assertSamePayload(String label, byte[] expected, byte[] actual) {
+        Assert.assertEquals(new String(actual, StandardCharsets.UTF_8), new String(expected, StandardCharsets.UTF_8),
+                "Payload differs from tree payload for " + label);
+    }
+
+    private Measurement measure(LongFunction<byte[]> path) {
+        long sink = 0;
+        for (int index = 0; index < WARMUP_ITERATIONS; index++) {
+            sink += path.apply(index).length;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int index = 0; index < MEASURED_ITERATIONS; index++) {
+            sink += path.apply(index).length;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        log.trace("Benchmark sink {}", sink);
+        return new Measurement(elapsed / MEASURED_ITERATIONS, allocatedBefore < 0 ? -1 : allocated / MEASURED_ITERATIONS);
+    }
+
+    private static class Measurement {
+        final long nanosPerMessage;
+        final long bytesPerMessage;
+
+        Measurement(long nanosPerMessage, long bytesPerMessage) {
+            this.nanosPerMessage = nanosPerMessage;
+            this.bytesPerMessage = bytesPerMessage;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scenario Timeline Tests
+ *
+ * Tests declarative injection scenarios compiled into a single schedule:
+ * - A two hour battery drain, roam and call timeline runs in compressed time, in order
+ * - Hundreds of devices share one runner thread and stay on time
+ * - Pooled agents connect before the runner starts, so the timeline stays on time against a real broker
+ * - Malformed scenarios are rejected with the device and step at fault
+ */
+public class ScenarioTimelineTest extends ApiTestWrapper {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String DRAIN_AND_ROAM = "{\"name\": \"drain-and-roam\", \"devices\": [{"
+            + "\"serials\": [%s], \"stagger\": \"5s\", \"timeline\": ["
+            + "{\"at\": \"0s\", \"action\": \"battery\", \"level\": 100, \"to\": 10, \"over\": \"2h\", \"every\": \"1m\"},"
+            + "{\"at\": \"0s\", \"action\": \"connect\", \"ap\": \"Scenario-001-AP-001\"},"
+            + "{\"at\": \"40m\", \"action\": \"connect\", \"ap\": \"Scenario-001-AP-002\"},"
+            + "{\"at\": \"80m\", \"action\": \"connect\", \"ap\": \"Scenario-001-AP-003\"},"
+            + "{\"at\": \"10m\", \"every\": \"30m\", \"times\": 4, \"action\": \"call\", \"duration\": \"3m\", \"setup\": \"4s\", \"interval\": \"5s\"},"
+            + "{\"at\": \"0s\", \"every\": \"1m\", \"until\": \"2h\", \"action\": \"emit\", \"metrics\": [\"DEVICE\", \"NETWORK\", \"BATTERY\"]}"
+            + "]}]}";
+
+    @Test(groups = {"positive"})
+    public void testCompressedDrainRoamAndCalls() throws IOException, InterruptedException {
+        Map<String, SimulatedPhone> phones = new HashMap<>();
+        Map<String, SimulatedAP> aps = new HashMap<>();
+        fleet(3, phones, aps);
+        String serials = "\"" + String.join("\", \"", phones.keySet()) + "\"";
+        ScenarioSchedule schedule = InjectionScenario.fromJson(String.format(DRAIN_AND_ROAM, serials)).compile(phones::get, aps::get);
+        // Per phone: 121 battery steps, 3 connects, 4 calls of begin, confirm, 35 details and end, 121 emits
+        Assert.assertEquals(schedule.getEventCount(), 3 * (121 + 3 + 4 * 38 + 121));
+        Assert.assertEquals(schedule.getDurationMs(), 2 * 3600000L + 10000L, "The last device is staggered by 10 s");
+
+        Queue<JsonNode> messages = new ConcurrentLinkedQueue<>();
+        schedule.setPublisher(recording(messages)).setSpeed(3600).start();
+        Assert.assertTrue(schedule.awaitCompletion(30000), schedule.getSummary());
+        log.info(schedule.getSummary());
+        Assert.assertEquals(schedule.getExecuted(), (long) schedule.getEventCount());
+        Assert.assertEquals(schedule.getSkipped() + schedule.getFailures(), 0L, schedule.getSummary());
+        Assert.assertEquals(schedule.getMessagesSent(), 3L * (4 * 38 + 121));
+
+        Map<String, List<JsonNode>> bySerial = new HashMap<>();
+        for (JsonNode message : messages) {
+            bySerial.computeIfAbsent(message.get("deviceSerial").asText(), serial -> new ArrayList<>()).add(message);
+        }
+        for (SimulatedPhone phone : phones.values()) {
+            List<JsonNode> sent = bySerial.get(phone.getDevice_serial_number());
+            long previous = 0;
+            int previousLevel = 100;
+            Set<String> calls = new HashSet<>();
+            int ended = 0;
+            for (JsonNode message : sent) {
+                long timestamp = message.get("timestamp").asLong();
+                Assert.assertTrue(timestamp >= previous, "Messages should follow the timeline");
+                previous = timestamp;
+                for (JsonNode record : message.get("data")) {
+                    if (record.has("level")) {
+                        Assert.assertTrue(record.get("level").asInt() <= previousLevel, "The battery should only drain");
+                        previousLevel = record.get("level").asInt();
+                    }
+                    if (record.has("call_id")) calls.add(record.get("call_id").asText());
+                    if ("CALL_STATE_DISCONNECTED".equals(record.path("event").asText())) ended++;
+                }
+            }
+            Assert.assertEquals(previousLevel, 10, "The drain should end at the target level");
+            Assert.assertEquals(calls.size(), 4, "Four distinct calls");
+            Assert.assertEquals(ended, 4, "Every call should end");
+            Assert.assertEquals(phone.getCurrent_battery().getLevel(), Integer.valueOf(10));
+            Assert.assertEquals(phone.getCurrent_ap().getAp_ssid(), "Scenario-001-AP-003", "The phone should have roamed twice");
+            Assert.assertNull(phone.getCurrent_call());
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void testHundredsOfDevicesOnOneRunner() throws IOException, InterruptedException {
+        Map<String, SimulatedPhone> phones = new HashMap<>();
+        Map<String, SimulatedAP> aps = new HashMap<>();
+        fleet(500, phones, aps);
+        InjectionScenario scenario = new InjectionScenario();
+        scenario.setName("fleet-emit");
+        InjectionScenario.DeviceTimeline timeline = new InjectionScenario.DeviceTimeline();
+        timeline.setSerials(new ArrayList<>(phones.keySet()));
+        timeline.setStagger("2ms");
+        InjectionScenario.Step emit = new InjectionScenario.Step();
+        emit.setAction("emit");
+        emit.setEvery("1s");
+        emit.setUntil("20s");
+        emit.setMetrics(List.of("DEVICE", "BATTERY"));
+        timeline.getTimeline().add(emit);
+        scenario.getDevices().add(timeline);
+        ScenarioSchedule schedule = scenario.compile(phones::get, aps::get);
+        Assert.assertEquals(schedule.getEventCount(), 500 * 21);
+
+        int threadsBefore = Thread.activeCount();
+        AtomicLong outOfOrder = new AtomicLong();
+        AtomicLong last = new AtomicLong();
+        long start = System.nanoTime();
+        schedule.setPublisher((serial, payload) -> CompletableFuture.completedFuture(null))
+                .setListener((scenarioMs, serial, lateNanos) -> {
+                    if (scenarioMs < last.getAndSet(scenarioMs)) outOfOrder.incrementAndGet();
+                })
+                .setSpeed(10)
+                .start();
+        Assert.assertTrue(Thread.activeCount() <= threadsBefore + 1, "One runner thread for every device");
+        Assert.assertTrue(schedule.awaitCompletion(30000), schedule.getSummary());
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        log.info("{} in {} ms", schedule.getSummary(), elapsedMs);
+        Assert.assertEquals(outOfOrder.get(), 0L, "Events should run in time order");
+        Assert.assertEquals(schedule.getMessagesSent(), 500L * 21);
+        long expectedMs = schedule.getDurationMs() / 10;
+        Assert.assertTrue(elapsedMs >= expectedMs && elapsedMs < expectedMs + 1000, "Ran for " + elapsedMs + " ms, expected " + expectedMs);
+        LatencyHistogram lateness = schedule.getLateness();
+        Assert.assertTrue(lateness.toMillis(lateness.getValueAtPercentile(99)) < 50, lateness.getSummary());
+    }
+
+    @Test(groups = {"performance"})
+    public void testPooledAgentsDoNotDelayTimeline() throws IOException, InterruptedException {
+        Map<String, SimulatedPhone> phones = new HashMap<>();
+        Map<String, SimulatedAP> aps = new HashMap<>();
+        fleet(50, phones, aps);
+        InjectionScenario scenario = new InjectionScenario();
+        scenario.setName("pooled-emit");
+        InjectionScenario.DeviceTimeline timeline = new InjectionScenario.DeviceTimeline();
+        timeline.setSerials(new ArrayList<>(phones.keySet()));
+        timeline.setStagger("2ms");
+        InjectionScenario.Step emit = new InjectionScenario.Step();
+        emit.setAction("emit");
+        emit.setEvery("100ms");
+        emit.setUntil("2s");
+        emit.setMetrics(List.of("DEVICE"));
+        timeline.getTimeline().add(emit);
+        scenario.getDevices().add(timeline);
+        ScenarioSchedule schedule = scenario.compile(phones::get, aps::get);
+
+        try (EmbeddedMqttBroker broker = EmbeddedMqttBroker.start()) {
+            MqttConnectionPool.setRing(new BrokerRing(List.of(broker.getHost() + ":" + broker.getPort()), 16));
+            schedule.start();
+            Assert.assertTrue(schedule.awaitCompletion(30000), schedule.getSummary());
+            log.info(schedule.getSummary());
+            Assert.assertEquals(schedule.getMessagesSent(), 50L * 21, schedule.getSummary());
+            Assert.assertTrue(broker.awaitMessages(50 * 21, 5000), "Broker received " + broker.getMessageCount());
+            Assert.assertEquals(MqttConnectionPool.getConnectCount(), 50L, "One connection per device");
+            LatencyHistogram lateness = schedule.getLateness();
+            Assert.assertTrue(lateness.toMillis(lateness.getMax()) < 250, "Connecting delayed the timeline: " + lateness.getSummary());
+        } finally {
+            MqttConnectionPool.shutdown();
+            MqttConnectionPool.setRing(null);
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testInvalidScenariosAreRejected() {
+        Map<String, SimulatedPhone> phones = new HashMap<>();
+        Map<String, SimulatedAP> aps = new HashMap<>();
+        fleet(1, phones, aps);
+        String serial = phones.keySet().iterator().next();
+        String[][] cases = {
+                {"{\"action\": \"jump\"}", "unknown action"},
+                {"{\"action\": \"connect\", \"ap\": \"Nowhere\"}", "unknown AP"},
+                {"{\"action\": \"emit\", \"every\": \"1s\", \"metrics\": [\"DEVICE\"]}", "until or times"},
+                {"{\"action\": \"emit\", \"at\": \"soon\", \"metrics\": [\"DEVICE\"]}", "invalid at"},
+                {"{\"action\": \"emit\", \"metrics\": [\"WEATHER\"]}", "WEATHER"},
+                {"{\"action\": \"call\"}", "needs a duration"},
+                {"{\"action\": \"call\", \"at\": \"1m\", \"duration\": \"5m\"}, {\"action\": \"call\", \"at\": \"3m\", \"duration\": \"1m\"}", "overlaps"}
+        };
+        for (String[] invalid : cases) {
+            String json = "{\"devices\": [{\"serial\": \"" + serial + "\", \"timeline\": [" + invalid[0] + "]}]}";
+            try {
+                InjectionScenario.fromJson(json).compile(phones::get, aps::get);
+                Assert.fail("Should reject " + invalid[0]);
+            } catch (IllegalArgumentException | IOException expected) {
+                Assert.assertTrue(expected.getMessage().contains(invalid[1]), expected.getMessage());
+                Assert.assertTrue(expected.getMessage().contains(serial), "The error should name the device: " + expected.getMessage());
+            }
+        }
+        try {
+            InjectionScenario.fromJson("{\"devices\": [{\"serial\": \"unknown0001\", \"timeline\": []}]}").compile(phones::get, aps::get);
+            Assert.fail("Should reject an unknown device");
+        } catch (IllegalArgumentException | IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("unknown0001"), expected.getMessage());
+        }
+        Assert.assertEquals(InjectionScenario.parseDuration("250", "at"), 250L);
+        Assert.assertEquals(InjectionScenario.parseDuration("1.5s", "at"), 1500L);
+        Assert.assertEquals(InjectionScenario.parseDuration("20m", "at"), 1200000L);
+        Assert.assertEquals(InjectionScenario.parseDuration("PT2H", "at"), 7200000L);
+    }
+
+    private static MetricsPublisher recording(Queue<JsonNode> messages) {
+        return (serial, payload) -> {
+            try {
+                messages.add(mapper.readTree(payload));
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+
+    private static void fleet(int count, Map<String, SimulatedPhone> phones, Map<String, SimulatedAP> aps) {
+        for (SimulatedLocation location : TestFleets.locations(count, "Scenario", 23)) {
+            for (SimulatedPhone phone : location.getPhones()) {
+                phones.put(phone.getDevice_serial_number(), phone);
+            }
+            for (SimulatedAP ap : location.getAps()) {
+                aps.put(ap.getAp_ssid(), ap);
+            }
+        }
+    }
+}
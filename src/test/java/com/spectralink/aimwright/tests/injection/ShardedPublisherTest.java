@@ -0,0 +1,173 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sharded Publisher Tests
+ *
+ * Tests spreading devices across several brokers with consistent hashing:
+ * - Every broker gets a fair share, and adding or removing a broker moves only the devices it gains or loses
+ * - Devices of a dead broker fail over to their neighbour on the ring and move back once it recovers
+ * - Per-broker message, byte, failure and failover counters add up across a fleet
+ */
+public class ShardedPublisherTest extends ApiTestWrapper {
+
+    private static final int DEVICES = 20000;
+
+    @Test(groups = {"positive"})
+    public void testConsistentHashing() {
+        BrokerRing ring = new BrokerRing(List.of("gw1:1883", "gw2:1883", "gw3:1883", "gw4:1883"), 128);
+        Map<String, Integer> shares = new HashMap<>();
+        for (int index = 0; index < DEVICES; index++) {
+            shares.merge(ring.owner(serial(index)), 1, Integer::sum);
+        }
+        for (String endpoint : ring.getEndpoints()) {
+            int share = shares.getOrDefault(endpoint, 0);
+            Assert.assertTrue(share > DEVICES / 4 * 0.75 && share < DEVICES / 4 * 1.25, endpoint + " got " + share + " of " + DEVICES);
+        }
+
+        BrokerRing grown = ring.with("gw5:1883");
+        int moved = 0;
+        for (int index = 0; index < DEVICES; index++) {
+            String before = ring.owner(serial(index));
+            String after = grown.owner(serial(index));
+            if (!before.equals(after)) {
+                moved++;
+                Assert.assertEquals(after, "gw5:1883", "Devices should only move to the new broker");
+            }
+        }
+        Assert.assertTrue(moved > DEVICES * 0.12 && moved < DEVICES * 0.28, "About a fifth should move, moved " + moved);
+
+        BrokerRing shrunk = ring.without("gw2:1883");
+        for (int index = 0; index < DEVICES; index++) {
+            String before = ring.owner(serial(index));
+            String expected = before.equals("gw2:1883") ? ring.route(serial(index), endpoint -> !endpoint.equals("gw2:1883")) : before;
+            Assert.assertEquals(shrunk.owner(serial(index)), expected, "Removing a broker hands its devices to the neighbour");
+        }
+
+        Assert.assertEquals(BrokerRing.host("10.0.0.1:1884"), "10.0.0.1");
+        Assert.assertEquals(BrokerRing.port("10.0.0.1:1884"), "1884");
+        Assert.assertNull(BrokerRing.port("10.0.0.1"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> new BrokerRing(List.of("gw1", "gw1"), 16));
+        Assert.assertThrows(IllegalArgumentException.class, () -> new BrokerRing(List.of(), 16));
+    }
+
+    @Test(groups = {"positive"})
+    public void testFailoverToNeighbour() throws IOException, InterruptedException {
+        List<EmbeddedMqttBroker> brokers = new ArrayList<>();
+        List<String> endpoints = new ArrayList<>();
+        for (int index = 0; index < 3; index++) {
+            EmbeddedMqttBroker broker = EmbeddedMqttBroker.start();
+            brokers.add(broker);
+            endpoints.add(broker.getHost() + ":" + broker.getPort());
+        }
+        int deadPort = brokers.get(1).getPort();
+        String dead = endpoints.get(1);
+        brokers.get(1).close();
+        BrokerRing ring = new BrokerRing(endpoints, 64);
+        ShardedPublisher publisher = new ShardedPublisher(ring, 1, 100).setRetryMs(300);
+        try {
+            publisher.connect();
+            Assert.assertFalse(publisher.isUp(dead), "An unreachable broker should be marked down");
+            List<String> orphans = new ArrayList<>();
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for (int index = 0; index < 300; index++) {
+                if (ring.owner(serial(index)).equals(dead)) orphans.add(serial(index));
+                results.add(publisher.publish(serial(index), payload(index)));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+            Assert.assertFalse(orphans.isEmpty(), "Some devices should belong to the dead broker");
+            for (String orphan : orphans) {
+                String neighbour = ring.route(orphan, endpoint -> !endpoint.equals(dead));
+                Assert.assertEquals(publisher.getBroker(orphan), neighbour);
+                Assert.assertNotNull(brokers.get(endpoints.indexOf(neighbour)).getDeviceStats(orphan), orphan + " should have failed over to " + neighbour);
+            }
+            Assert.assertEquals(publisher.getMessageCount(dead), 0L);
+            Assert.assertEquals(publisher.getMessageCount(endpoints.get(0)) + publisher.getMessageCount(endpoints.get(2)), 300L);
+            Assert.assertEquals(publisher.getFailoverCount(endpoints.get(0)) + publisher.getFailoverCount(endpoints.get(2)), (long) orphans.size());
+            Assert.assertTrue(publisher.getSummary().contains(dead + ": 0 messages"), publisher.getSummary());
+
+            // Once the broker is back, the first publish after the retry period finds it and its devices return
+            brokers.set(1, EmbeddedMqttBroker.start(deadPort));
+            Thread.sleep(400);
+            Assert.assertEquals(publisher.getBroker(orphans.get(0)), dead, "The retry period is over");
+            Assert.assertEquals(publisher.getBroker(orphans.get(0)), dead, "Looking a broker up does not use up its probe");
+            for (String orphan : orphans) {
+                publisher.publish(orphan, payload(0)).join();
+            }
+            Assert.assertTrue(publisher.isUp(dead), publisher.getSummary());
+            Assert.assertTrue(publisher.getMessageCount(dead) >= orphans.size() - 1, publisher.getSummary());
+            Assert.assertNotNull(brokers.get(1).getDeviceStats(orphans.get(orphans.size() - 1)));
+            log.info(publisher.getSummary());
+        } finally {
+            publisher.close();
+            for (EmbeddedMqttBroker broker : brokers) {
+                broker.close();
+            }
+        }
+    }
+
+    @Test(groups = {"performance"})
+    public void testThroughputAcrossBrokers() throws IOException {
+        List<EmbeddedMqttBroker> brokers = new ArrayList<>();
+        List<String> endpoints = new ArrayList<>();
+        for (int index = 0; index < 3; index++) {
+            EmbeddedMqttBroker broker = EmbeddedMqttBroker.start();
+            brokers.add(broker);
+            endpoints.add(broker.getHost() + ":" + broker.getPort());
+        }
+        ShardedPublisher publisher = new ShardedPublisher(new BrokerRing(endpoints, 128), 2, 200);
+        try {
+            publisher.connect();
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < 5; round++) {
+                for (int index = 0; index < 2000; index++) {
+                    byte[] payload = payload(index);
+                    bytes += payload.length;
+                    results.add(publisher.publish(serial(index), payload));
+                }
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            log.info("{} messages in {} ms{}{}", results.size(), elapsedMs, System.lineSeparator(), publisher.getSummary());
+            long messages = 0;
+            long counted = 0;
+            for (int index = 0; index < 3; index++) {
+                long share = publisher.getMessageCount(endpoints.get(index));
+                Assert.assertTrue(share > 10000 * 0.2 && share < 10000 * 0.47, endpoints.get(index) + " took " + share);
+                Assert.assertEquals(brokers.get(index).getMessageCount(), share, "The broker should see what was counted for it");
+                Assert.assertEquals(publisher.getFailureCount(endpoints.get(index)), 0L);
+                messages += share;
+                counted += publisher.getByteCount(endpoints.get(index));
+            }
+            Assert.assertEquals(messages, 10000L);
+            Assert.assertEquals(counted, bytes);
+        } finally {
+            publisher.close();
+            for (EmbeddedMqttBroker broker : brokers) {
+                broker.close();
+            }
+        }
+    }
+
+    private static String serial(int index) {
+        return String.format("shard%07d", index);
+    }
+
+    private static byte[] payload(int index) {
+        return ("{\"deviceSerial\":\"" + serial(index) + "\",\"data\":[]}").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,85 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.SimulatedPhone;
+import com.spectralink.aimwright.injection.SimulationRandom;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Simulation Random Tests
+ *
+ * Tests the seeded random sources used by the simulators:
+ * - The same run seed and key always produce the same identifiers
+ * - Different keys and seeds produce different identifiers
+ * - Formatted MAC, IP and call id values keep their established layout
+ */
+public class SimulationRandomTest extends ApiTestWrapper {
+
+    private static final long SEED = 20240613L;
+    private long originalSeed;
+
+    @BeforeClass
+    public void setup() {
+        originalSeed = SimulationRandom.getRunSeed();
+        SimulationRandom.setRunSeed(SEED);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        SimulationRandom.setRunSeed(originalSeed);
+    }
+
+    @Test(groups = {"positive"})
+    public void testKeyedSourceIsReproducible() {
+        SplittableRandom first = SimulationRandom.forKey("nwlgtesting2025");
+        SplittableRandom second = SimulationRandom.forKey("nwlgtesting2025");
+        for (int index = 0; index < 100; index++) {
+            Assert.assertEquals(SimulationRandom.macAddress(first), SimulationRandom.macAddress(second),
+                    "Same seed and key should produce the same sequence");
+        }
+        Assert.assertNotEquals(SimulationRandom.forKey("nwlgtesting2026").nextLong(), SimulationRandom.forKey("nwlgtesting2025").nextLong(),
+                "Different keys should produce different sequences");
+
+        SimulationRandom.setRunSeed(SEED + 1);
+        long otherSeed = SimulationRandom.forKey("nwlgtesting2025").nextLong();
+        SimulationRandom.setRunSeed(SEED);
+        Assert.assertNotEquals(otherSeed, SimulationRandom.forKey("nwlgtesting2025").nextLong(),
+                "Different run seeds should produce different sequences");
+    }
+
+    @Test(groups = {"positive"})
+    public void testPhoneIdentityIsReproducible() {
+        SimulatedPhone first = new SimulatedPhone(SimulatedPhone.Model.VERSITY_9640, Map.of("device_serial_number", "seedtest0001"));
+        SimulatedPhone second = new SimulatedPhone(SimulatedPhone.Model.VERSITY_9640, Map.of("device_serial_number", "seedtest0001"));
+        Assert.assertEquals(first.getMac_address(), second.getMac_address(), "Phones with the same serial should get the same MAC");
+        Assert.assertEquals(first.getIp_address(), second.getIp_address(), "Phones with the same serial should get the same IP");
+        Assert.assertEquals(first.getDeviceMacAddresses(), second.getDeviceMacAddresses(),
+                "Phones with the same serial should generate the same interface MACs");
+    }
+
+    @Test(groups = {"positive"})
+    public void testFormats() {
+        SplittableRandom random = SimulationRandom.forKey("format");
+        for (int index = 0; index < 10000; index++) {
+            String mac = SimulationRandom.macAddress(random);
+            Assert.assertTrue(mac.matches("([0-9A-F]{2}:){5}[0-9A-F]{2}"), "Unexpected MAC format " + mac);
+            String spectralinkMac = SimulationRandom.spectralinkMacAddress(random);
+            Assert.assertTrue(spectralinkMac.matches("00:90:7A(:[0-9A-F]{2}){3}"), "Unexpected Spectralink MAC format " + spectralinkMac);
+            String ip = SimulationRandom.ipAddress(random);
+            Assert.assertTrue(ip.matches("192\\.168\\.\\d{2,3}\\.\\d{2,3}"), "Unexpected IP format " + ip);
+            String[] octets = ip.split("\\.");
+            Assert.assertEquals(ip, String.format("192.168.%02d.%02d", Integer.parseInt(octets[2]), Integer.parseInt(octets[3])),
+                    "IP octets should be zero-padded to two digits");
+            String callId = SimulationRandom.callId(random);
+            Assert.assertTrue(callId.matches("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"), "Unexpected call id format " + callId);
+            int value = SimulationRandom.nextInt(random, -90, -30);
+            Assert.assertTrue(value >= -90 && value <= -30, "Value out of range: " + value);
+        }
+    }
+}
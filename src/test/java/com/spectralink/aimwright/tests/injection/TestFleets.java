@@ -0,0 +1,78 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.injection.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fleets and phones shared by the injection tests.
+ */
+final class TestFleets {
+
+    private TestFleets() {
+    }
+
+    /**
+     * Phones of a seeded fleet with four APs per location.
+     */
+    static List<SimulatedPhone> fleet(int count, long seed) {
+        return phones(locations(count, null, seed));
+    }
+
+    /**
+     * Locations of a seeded fleet with four APs each, named from the prefix when one is given.
+     */
+    static List<SimulatedLocation> locations(int count, String prefix, long seed) {
+        FleetGenerator generator = new FleetGenerator(count).setApsPerLocation(4).setSeed(seed);
+        if (prefix != null) generator.setLocationPrefix(prefix);
+        return generator.generate();
+    }
+
+    static List<SimulatedPhone> phones(List<SimulatedLocation> locations) {
+        List<SimulatedPhone> phones = new ArrayList<>();
+        for (SimulatedLocation location : locations) {
+            phones.addAll(location.getPhones());
+        }
+        return phones;
+    }
+
+    /**
+     * A phone connected to an AP of its own, with a full battery that drains.
+     */
+    static SimulatedPhone connectedPhone(SimulatedPhone.Model model, String serial, String ssid) {
+        SimulatedPhone phone = new SimulatedPhone(model, Map.of("device_serial_number", serial));
+        SimulatedBattery battery = new SimulatedBattery("B" + serial);
+        battery.setLevel(100);
+        battery.setLevel_CONTROL(SimulatedBattery.LevelDriftType.DECREASING);
+        phone.insertBattery(battery);
+        SimulatedAP ap = new SimulatedAP(ssid);
+        ap.setAp_bssid("5c:0e:8b:c9:1b:20");
+        phone.connectWifi(ap);
+        return phone;
+    }
+
+    /**
+     * Drives every drifting metric of a connected phone and starts an outgoing call whose quality drifts too.
+     * RANDOM drift is seeded from the serial number, so two phones built alike drift alike.
+     */
+    static SimulatedPhone drifting(SimulatedPhone phone) {
+        phone.setCpu_utilization_CONTROL(SimulatedPhone.CpuUtilizationDriftType.INCREASING);
+        phone.setRam_utilization_pct_CONTROL(SimulatedPhone.RamUtilizationDriftType.DECREASING);
+
+        SimulatedBattery battery = phone.getCurrent_battery();
+        battery.setFull_charge_CONTROL(SimulatedBattery.FullChargeDriftType.DECREASING);
+        battery.setCycle_counter_CONTROL(SimulatedBattery.CycleCountDriftType.INCREASING);
+        battery.setTemperature_c_CONTROL(SimulatedBattery.TemperatureDriftType.INCREASING);
+
+        phone.getCurrent_ap().setAp_rssi_CONTROL(SimulatedAP.RssiDriftType.INCREASING);
+
+        phone.startCall(SimulatedPhone.CallDirection.OUTGOING);
+        SimulatedCall call = phone.getCurrent_call();
+        call.setPackets_missed_CONTROL(SimulatedCall.MissedPacketsDriftType.RANDOM);
+        call.setPackets_dropped_CONTROL(SimulatedCall.DroppedPacketsDriftType.RANDOM);
+        call.setJitter_ms_CONTROL(SimulatedCall.JitterDriftType.INCREASING);
+        return phone;
+    }
+}
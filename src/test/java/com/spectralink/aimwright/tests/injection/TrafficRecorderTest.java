@@ -0,0 +1,151 @@
+package com.spectralink.aimwright.tests.injection;
+
+import com.spectralink.aimwright.common.ApiTestWrapper;
+import com.spectralink.aimwright.injection.MetricsPublisher;
+import com.spectralink.aimwright.injection.MqttAgent;
+import com.spectralink.aimwright.injection.TrafficRecorder;
+import com.spectralink.aimwright.injection.TrafficReplayer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traffic Recorder Tests
+ *
+ * Tests the memory-mapped record/replay log without a broker:
+ * - Replayed messages match the recorded topics, payloads and order
+ * - Paced replays keep the recorded spacing, scaled by the replay speed
+ * - A log that was never truncated (e.g. from a crashed run) reads up to its last record
+ * - Replay throughput at maximum speed is reported
+ */
+public class TrafficRecorderTest extends ApiTestWrapper {
+
+    private Path directory;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("traffic-recorder");
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() throws IOException {
+        TrafficRecorder.stop();
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test(groups = {"positive"})
+    public void testReplayMatchesRecording() throws IOException {
+        Path recording = directory.resolve("roundtrip.awlg");
+        TrafficRecorder.start(recording);
+        Assert.assertTrue(TrafficRecorder.isRecording(), "Recording should be active");
+        for (int index = 0; index < 1000; index++) {
+            TrafficRecorder.record(MqttAgent.topicFor("replay" + (index % 10)), ("{\"index\":" + index + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        TrafficRecorder.record("other/topic", new byte[] {1, 2, 3});
+        TrafficRecorder.stop();
+        Assert.assertFalse(TrafficRecorder.isRecording(), "Recording should be stopped");
+
+        CapturingPublisher publisher = new CapturingPublisher();
+        TrafficReplayer replayer = new TrafficReplayer(recording);
+        replayer.setSpeed(TrafficReplayer.MAX_SPEED);
+        TrafficReplayer.ReplayReport report = replayer.replay(publisher);
+
+        Assert.assertEquals(report.getMessageCount(), 1000L, "Replayed message count");
+        Assert.assertEquals(report.getSkippedCount(), 1L, "Non-device topics should be skipped");
+        for (int index = 0; index < 1000; index++) {
+            Assert.assertEquals(publisher.serials.get(index), "replay" + (index % 10), "Serial of message " + index);
+            Assert.assertEquals(new String(publisher.payloads.get(index), StandardCharsets.UTF_8), "{\"index\":" + index + "}",
+                    "Payload of message " + index);
+        }
+    }
+
+    @Test(groups = {"positive"})
+    public void testPacedReplayKeepsSpacing() throws Exception {
+        Path recording = directory.resolve("paced.awlg");
+        TrafficRecorder.start(recording);
+        for (int index = 0; index < 5; index++) {
+            TrafficRecorder.record(MqttAgent.topicFor("paced"), new byte[] {(byte) index});
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        TrafficRecorder.stop();
+
+        TrafficReplayer replayer = new TrafficReplayer(recording);
+        TrafficReplayer.ReplayReport realTime = replayer.replay(new CapturingPublisher());
+        Assert.assertTrue(realTime.getElapsedMillis() >= realTime.getRecordedMillis() - 1,
+                "1x replay should take the recorded time, took " + realTime.getElapsedMillis() + " ms");
+        Assert.assertTrue(realTime.getMaxLatenessMillis() < 50, "Messages should be sent close to schedule");
+
+        replayer.setSpeed(4);
+        TrafficReplayer.ReplayReport fast = replayer.replay(new CapturingPublisher());
+        Assert.assertTrue(fast.getElapsedMillis() >= fast.getRecordedMillis() / 4 - 1, "4x replay should take a quarter of the recorded time");
+        Assert.assertTrue(fast.getElapsedMillis() < realTime.getElapsedMillis() / 2, "4x replay should be faster than 1x");
+    }
+
+    @Test(groups = {"positive"})
+    public void testUntruncatedLogIsReadable() throws IOException {
+        Path recording = directory.resolve("crashed.awlg");
+        TrafficRecorder.start(recording);
+        for (int index = 0; index < 10; index++) {
+            TrafficRecorder.record(MqttAgent.topicFor("crash"), new byte[100]);
+        }
+        TrafficRecorder.stop();
+        // Simulate a run that died before truncating the mapped segment
+        try (var channel = FileChannel.open(recording, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4096), channel.size());
+        }
+
+        TrafficReplayer replayer = new TrafficReplayer(recording);
+        replayer.setSpeed(TrafficReplayer.MAX_SPEED);
+        Assert.assertEquals(replayer.replay(new CapturingPublisher()).getMessageCount(), 10L, "Zero padding should end the log");
+    }
+
+    @Test(groups = {"performance"})
+    public void benchmarkReplayThroughput() throws IOException {
+        Path recording = directory.resolve("throughput.awlg");
+        byte[] payload = new byte[800];
+        TrafficRecorder.start(recording);
+        long start = System.nanoTime();
+        for (int index = 0; index < 200000; index++) {
+            TrafficRecorder.record(MqttAgent.topicFor(String.format("bench%05d", index % 10000)), payload);
+        }
+        long recordNanos = System.nanoTime() - start;
+        TrafficRecorder.stop();
+
+        TrafficReplayer replayer = new TrafficReplayer(recording);
+        replayer.setSpeed(TrafficReplayer.MAX_SPEED);
+        TrafficReplayer.ReplayReport report = replayer.replay((serial, bytes) -> CompletableFuture.completedFuture(null));
+        Assert.assertEquals(report.getMessageCount(), 200000L, "Replayed message count");
+        log.info("Recorded 200000 messages in {} ms ({} MB on disk), replayed at {} msg/s",
+                TimeUnit.NANOSECONDS.toMillis(recordNanos), Files.size(recording) / (1024 * 1024), Math.round(report.getMessagesPerSecond()));
+    }
+
+    private static class CapturingPublisher implements MetricsPublisher {
+        final List<String> serials = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<Void> publish(String serial, byte[] payload) {
+            serials.add(serial);
+            payloads.add(payload);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}